@@ -69,3 +69,35 @@ esac
 WYRT_JAR=${tmp##* }
 WHILEY_BOOTPATH="$WYRT_JAR"
 
+
+# If WHILEY_SERVER is set to a port number, then builds are passed to the
+# compile server listening on that port (e.g. one started with "wyc -server
+# 4567"), rather than to a fresh JVM.  Each request is authenticated by the
+# token which the server writes to ~/.wyc-server-PORT.  If no server is
+# listening, or the build should not be run by a server (e.g. "-watch"),
+# this simply returns and the compiler is run as normal.
+run_server() {
+    MAIN=$1
+    shift
+    if [ -z "$WHILEY_SERVER" ]; then
+	return
+    fi
+    for arg in "$@"; do
+	if [ "$arg" = "-server" ] || [ "$arg" = "-watch" ]; then
+	    return
+	fi
+    done
+    TOKEN=`cat "$HOME/.wyc-server-$WHILEY_SERVER" 2>/dev/null` || return
+    { exec 3<>/dev/tcp/127.0.0.1/$WHILEY_SERVER ; } 2>/dev/null || return
+    { echo "$TOKEN"; echo "$MAIN"; pwd; echo $#; for arg in "$@"; do printf '%s\n' "$arg"; done; } >&3
+    STATUS=2
+    while IFS= read -r line <&3; do
+	case "$line" in
+	"o "*) printf '%s\n' "${line#o }" ;;
+	"e "*) printf '%s\n' "${line#e }" >&2 ;;
+	"x "*) STATUS=${line#x } ;;
+	esac
+    done
+    exec 3<&-
+    exit $STATUS
+}
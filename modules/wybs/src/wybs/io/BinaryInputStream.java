@@ -26,41 +26,151 @@
 package wybs.io;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
+/**
+ * <p>
+ * Provides a stream for reading binary data at the level of individual bits,
+ * as well as bytes. Bits are read from each byte starting with the least
+ * significant. Data is read from an underlying <code>ByteBuffer</code>, which
+ * may either be refilled from a given input stream or (e.g. in the case of a
+ * memory-mapped file) supplied directly.
+ * </p>
+ * 
+ * <p>
+ * Bits are first loaded from the buffer into a 64-bit word, from which they
+ * are then extracted as needed. In particular, reading <code>n</code> bits
+ * requires only a mask and a shift, rather than <code>n</code> individual
+ * steps. Furthermore, byte-aligned reads of byte arrays are copied directly
+ * from the buffer.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> when constructed from an input stream, data is read ahead from
+ * that stream. Therefore, the stream should not subsequently be read from
+ * directly.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
 public class BinaryInputStream extends InputStream {
+	/**
+	 * The size of buffer used when reading from an input stream.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+	
+	/**
+	 * The input stream from which the buffer is refilled, or null if there is
+	 * none (i.e. the buffer contains all of the data).
+	 */
 	protected InputStream input;
-	protected int value;
+	
+	/**
+	 * The buffer from which bytes are loaded. Observe that this uses a
+	 * little-endian byte order, so that eight bytes can be loaded into the
+	 * 64-bit word in one go.
+	 */
+	protected ByteBuffer buffer;
+	
+	/**
+	 * Bits which have been loaded from the buffer but not yet read. The next
+	 * bit to be read is always the least significant.
+	 */
+	protected long value;
+	
+	/**
+	 * The number of bits in <code>value</code> which have not yet been read.
+	 * Observe that, since bits are only loaded in whole bytes, the stream is
+	 * positioned on a byte boundary exactly when this is a multiple of eight.
+	 */
 	protected int count;
 
 	public BinaryInputStream(InputStream input) {
 		this.input = input;
+		this.buffer = ByteBuffer.allocate(BUFFER_SIZE).order(
+				ByteOrder.LITTLE_ENDIAN);
+		this.buffer.limit(0);
+	}
+	
+	/**
+	 * Construct a stream which reads from a given buffer, starting from its
+	 * current position. The position of the given buffer is not affected.
+	 * 
+	 * @param buffer
+	 */
+	public BinaryInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * Construct a stream which reads from a memory-mapped file. This avoids
+	 * copying the contents of the file through an intermediate buffer, and is
+	 * intended for binary files (e.g. wyil files) which are read in their
+	 * entirety.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static BinaryInputStream map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return new BinaryInputStream(channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			// NOTE: the mapping remains valid after the channel is closed.
+			raf.close();
+		}
 	}
 	
 	public int read() throws IOException {
 		if(count == 0) {
-			return input.read();
+			return next();
 		} else {
 			return read_un(8);
 		}
 	}
 	
 	public int read(byte[] bytes) throws IOException {
-		for (int i = 0; i != bytes.length; ++i) {
-			bytes[i] = (byte) read();
-		}
-		return bytes.length;
+		return read(bytes, 0, bytes.length);
 	}
 	
 	public int read(byte[] bytes, int offset, int length) throws IOException {
-		for(;offset < length;++offset) {
-			bytes[offset] = (byte) read();			
+		if (length == 0) {
+			return 0;
+		} else if ((count & 7) != 0) {
+			// not byte aligned, so must extract each byte in turn.
+			for (int i = 0; i != length; ++i) {
+				bytes[offset + i] = (byte) read_un(8);
+			}
+			return length;
+		}
+		int start = offset;
+		int end = offset + length;
+		// first, drain any whole bytes already loaded
+		while (count > 0 && offset < end) {
+			bytes[offset++] = (byte) value;
+			value = value >>> 8;
+			count = count - 8;
 		}
-		return length;
+		// second, copy remainder directly from buffer
+		while (offset < end && fill()) {
+			int n = Math.min(end - offset, buffer.remaining());
+			buffer.get(bytes, offset, n);
+			offset = offset + n;
+		}
+		return offset == start ? -1 : offset - start;
 	}
 	
 	public int read_u8() throws IOException {
 		if(count == 0) {
-			return input.read() & 0xFF;
+			int b = next();
+			if (b < 0) { throw new EOFException(); }
+			return b;
 		} else {
 			return read_un(8);
 		}
@@ -71,49 +181,116 @@ public class BinaryInputStream extends InputStream {
 	}
 		
 	public long read_u32() throws IOException {
-		// FIXME: this is most definitely broken
-		return (read_u8() << 24) | (read_u8() << 16) | (read_u8() << 8)
-				| read_u8();
+		return ((long) read_u16() << 16) | read_u16();
 	}
 	
-	public int read_un(int n) throws IOException {		
-		int value = 0;
-		int mask = 1;
-		for(int i=0;i!=n;++i) {
-			if(read_bit()) {
-				value |= mask;
-			}
-			mask = mask << 1;			
+	public int read_un(int n) throws IOException {
+		if (n == 0) {
+			return 0;
+		}
+		if (count < n) {
+			load(n);
 		}
-		return value;		
+		int r = (int) (value & (0xFFFFFFFFL >>> (32 - n)));
+		value = value >>> n;
+		count = count - n;
+		return r;
 	}
 	
 	public int read_uv() throws IOException {
 		int value = 0;
-		boolean flag = true;
 		int shift = 0;
-		while(flag) {
-			int w = read_un(4);
-			flag = (w&8) != 0;
-			value = ((w&7)<<shift) | value;
-			shift = shift + 3;			
-		}
+		int w;
+		do {
+			w = read_un(4);
+			value = ((w & 7) << shift) | value;
+			shift = shift + 3;
+		} while ((w & 8) != 0);
 		return value;
 	}
 	
 	public boolean read_bit() throws IOException {
-		if(count == 0) {
-			value = input.read();
-			if(value < 0) { throw new EOFException(); }
-			count = 8;
+		return read_un(1) != 0;
+	}
+	
+	public void pad_u8() throws IOException {
+		int n = count & 7;
+		value = value >>> n;
+		count = count - n;
+	}
+	
+	public void close() throws IOException {
+		if (input != null) {
+			input.close();
 		}
-		boolean r = (value&1) != 0;
-		value = value >> 1;
-		count = count - 1;
-		return r;
 	}
 	
-	public void pad_u8() throws IOException {		
-		count = 0; // easy!!
+	// =========================================================================
+	// Private Implementation
+	// =========================================================================
+
+	/**
+	 * Load bytes from the buffer until at least <code>n</code> bits are
+	 * available. If possible, eight bytes are loaded at once.
+	 * 
+	 * @param n
+	 *            --- number of bits required (at most 32)
+	 * @throws IOException
+	 */
+	private void load(int n) throws IOException {
+		while (count < n) {
+			if (!fill()) {
+				throw new EOFException();
+			}
+			if (count == 0 && buffer.remaining() >= 8) {
+				value = buffer.getLong();
+				count = 64;
+			} else {
+				while (count <= 56 && buffer.hasRemaining()) {
+					value |= (buffer.get() & 0xFFL) << count;
+					count = count + 8;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the next byte directly from the buffer. This assumes that no bits
+	 * are currently loaded.
+	 * 
+	 * @return the next byte, or -1 if the end of stream is reached.
+	 * @throws IOException
+	 */
+	private int next() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return buffer.get() & 0xFF;
+	}
+
+	/**
+	 * Ensure the buffer has at least one byte remaining, by refilling it from
+	 * the input stream if necessary.
+	 * 
+	 * @return false if the end of stream is reached.
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		if (buffer.hasRemaining()) {
+			return true;
+		} else if (input == null) {
+			return false;
+		}
+		byte[] array = buffer.array();
+		int n;
+		do {
+			n = input.read(array, 0, array.length);
+		} while (n == 0);
+		if (n < 0) {
+			return false;
+		}
+		buffer.position(0);
+		buffer.limit(n);
+		return true;
 	}
 }
@@ -27,11 +27,49 @@ package wybs.io;
 
 import java.io.*;
 
+/**
+ * <p>
+ * Provides a stream for writing binary data at the level of individual bits,
+ * as well as bytes. Bits are written into each byte starting with the least
+ * significant. Bits are accumulated in a 64-bit word and, as each byte is
+ * completed, it is placed into an internal buffer. The buffer is only written
+ * to the underlying stream when full, or when the stream is flushed or closed.
+ * Therefore, the stream must be flushed or closed before the data written to
+ * the underlying stream is used.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
 public class BinaryOutputStream extends OutputStream {	
+	/**
+	 * The size of buffer used for writing to the output stream.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+	
 	protected OutputStream output;
-	protected int value;
+	
+	/**
+	 * Bits which have been written but do not yet make up a complete byte.
+	 * The first such bit is always the least significant.
+	 */
+	protected long value;
+	
+	/**
+	 * The number of bits held in <code>value</code>.
+	 */
 	protected int count;
 	
+	/**
+	 * Completed bytes which have not yet been written to the output stream.
+	 */
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	
+	/**
+	 * The number of bytes held in <code>buffer</code>.
+	 */
+	private int length;
+	
 	/**
 	 * Write out data in big-endian format.
 	 * @param output
@@ -47,22 +85,26 @@ public class BinaryOutputStream extends OutputStream {
 	 * @throws IOException
 	 */
 	public void write(int i) throws IOException {		
-		if(count == 0) {
-			output.write(i & 0xFF);
-		} else {
-			write_un(i & 0xFF,8);
-		}
+		write_u8(i);
 	}		
 	
 	public void write(byte[] bytes) throws IOException {
-		for(byte b : bytes) {
-			write(b);
-		}
+		write(bytes, 0, bytes.length);
 	}
 	
 	public void write(byte[] bytes, int offset, int length) throws IOException {
-		for(;offset < length;++offset) {
-			write(bytes[offset]);
+		if (count != 0) {
+			// not byte aligned, so must insert each byte in turn
+			for (int i = 0; i != length; ++i) {
+				write_un(bytes[offset + i] & 0xFF, 8);
+			}
+		} else if (length > buffer.length - this.length) {
+			// insufficient space in buffer, so write directly
+			drain();
+			output.write(bytes, offset, length);
+		} else {
+			System.arraycopy(bytes, offset, buffer, this.length, length);
+			this.length += length;
 		}
 	}
 	
@@ -74,7 +116,7 @@ public class BinaryOutputStream extends OutputStream {
 	 */
 	public void write_u8(int w) throws IOException {
 		if(count == 0) {
-			output.write(w & 0xFF);
+			emit(w);
 		} else {
 			write_un(w & 0xFF,8);
 		}		
@@ -136,26 +178,21 @@ public class BinaryOutputStream extends OutputStream {
 	 * @param w
 	 * @throws IOException
 	 */
-	public void write_un(int bits, int n) throws IOException {		
-		int mask = 1;
-		for(int i=0;i<n;++i) {
-			boolean bit = (bits & mask) != 0;
-			write_bit(bit);
-			mask = mask << 1;
-		}		
+	public void write_un(int bits, int n) throws IOException {
+		if (n == 0) {
+			return;
+		}
+		value |= (bits & (0xFFFFFFFFL >>> (32 - n))) << count;
+		count = count + n;
+		while (count >= 8) {
+			emit((int) value);
+			value = value >>> 8;
+			count = count - 8;
+		}
 	}	
 	
 	public void write_bit(boolean bit) throws IOException {
-		value = value >> 1;
-		if(bit) {
-			value |= 128;
-		}
-		count = count + 1;
-		if(count == 8) {
-			count = 0;			
-			output.write(value);			
-			value = 0;
-		}
+		write_un(bit ? 1 : 0, 1);
 	}
 	
 	/**
@@ -164,7 +201,7 @@ public class BinaryOutputStream extends OutputStream {
 	 */
 	public void pad_u8() throws IOException {
 		if (count > 0) {			
-			output.write(value >>> (8-count));
+			emit((int) value);
 			value = 0;
 			count = 0;
 		}
@@ -181,11 +218,41 @@ public class BinaryOutputStream extends OutputStream {
 			// write. This means we have to pad out the remainder of a byte.
 			// Instead of padding with zeros, I pad with ones. The reason for
 			// this is that it forces an EOF when reading back in with read_uv().
-			value = value >>> (8-count);
 			int mask = 0xff & ((~0) << count);						
-			value = value | mask;			
-			output.write(value);
-		}		
+			emit((int) value | mask);
+			value = 0;
+			count = 0;
+		}
+		// NOTE: the output stream itself is not flushed here, since some
+		// streams (e.g. those which encode identifiers) finalise their
+		// output when flushed.
+		drain();
+	}
+	
+	/**
+	 * Place a completed byte into the buffer, writing the buffer out first if
+	 * it is full.
+	 * 
+	 * @param b
+	 * @throws IOException
+	 */
+	private void emit(int b) throws IOException {
+		if (length == buffer.length) {
+			drain();
+		}
+		buffer[length++] = (byte) b;
+	}
+	
+	/**
+	 * Write all buffered bytes to the output stream.
+	 * 
+	 * @throws IOException
+	 */
+	private void drain() throws IOException {
+		if (length > 0) {
+			output.write(buffer, 0, length);
+			length = 0;
+		}
 	}
 	
 	public static String bin2str(int v) {
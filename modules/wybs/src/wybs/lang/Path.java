@@ -30,6 +30,8 @@ import java.io.OutputStream;
 import java.io.IOException;
 import java.util.*;
 
+import wybs.io.BinaryInputStream;
+
 public class Path {
 	
 	/**
@@ -231,6 +233,16 @@ public class Path {
 		 */
 		public InputStream inputStream() throws IOException;
 
+		/**
+		 * Open a binary input stream to the entry. This allows an entry to
+		 * supply its contents more efficiently than through a generic input
+		 * stream (e.g. by mapping a file directly into memory).
+		 * 
+		 * @return
+		 * @throws IOException
+		 */
+		public BinaryInputStream binaryInputStream() throws IOException;
+
 		/**
 		 * Open a generic output stream to the entry.
 		 * 
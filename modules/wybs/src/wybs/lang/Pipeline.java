@@ -133,6 +133,24 @@ public class Pipeline<T extends CompilationUnit> {
 		return pipeline;
 	}
 
+	/**
+	 * Get a textual description of this pipeline, which identifies each stage
+	 * in order along with any options configured for it. Two pipelines with
+	 * the same description will apply the same transformations and, hence,
+	 * this can be used to determine whether or not a previously built file was
+	 * produced with the same configuration.
+	 */
+	public String toString() {
+		String r = "";
+		for (Template<T> s : stages) {
+			if (!r.equals("")) {
+				r += ",";
+			}
+			r += s;
+		}
+		return r;
+	}
+	
 	/**
 	 * A template is an uninstantiated pipeline stage. This contains all of the
 	 * necessary information to instantiate the stage.
@@ -221,6 +239,15 @@ public class Pipeline<T extends CompilationUnit> {
 			
 			return stage;
 		}
+		
+		public String toString() {
+			String r = clazz.getName();
+			if (!options.isEmpty()) {
+				// options are sorted to ensure a stable description
+				r += new TreeMap<String, Object>(options);
+			}
+			return r;
+		}
 	}
 	
 	/**
@@ -25,8 +25,10 @@
 
 package wybs.util;
 
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
+
+import wybs.io.BinaryInputStream;
 import wybs.lang.Path;
 
 import wybs.lang.Content;
@@ -34,13 +36,23 @@ import wybs.lang.Content;
 /**
  * Provides a simple implementation of <code>Path.Entry</code>. This caches
  * content in a field and employs a <code>modifies</code> bit to determine if
- * that content needs to be written to permanent storage.
+ * that content needs to be written to permanent storage. If a
+ * <code>ContentCache</code> has been set, then the content of unmodified
+ * entries may be discarded to bound memory usage, and is then read again when
+ * next requested.
  * 
  * @author David J. Pearce
  * 
  * @param <T>
  */
 public abstract class AbstractEntry<T> implements Path.Entry<T> {
+	
+	/**
+	 * The cache which bounds the contents held by all entries, or
+	 * <code>null</code> if contents are held until the entry is refreshed.
+	 */
+	private static volatile ContentCache cache;
+	
 	protected final Path.ID id;		
 	protected Content.Type<T> contentType;
 	protected T contents = null;
@@ -54,8 +66,20 @@ public abstract class AbstractEntry<T> implements Path.Entry<T> {
 		return id;
 	}
 	
+	/**
+	 * Set the cache used to bound the contents held by all entries. A value of
+	 * <code>null</code> means contents are held until an entry is refreshed.
+	 * This should be set before any entries are read.
+	 * 
+	 * @param cache
+	 */
+	public static void setContentCache(ContentCache cache) {
+		AbstractEntry.cache = cache;
+	}
+	
 	public void touch() {
 		this.modified = true;
+		unpin();
 	}
 	
 	public boolean isModified() {
@@ -69,26 +93,92 @@ public abstract class AbstractEntry<T> implements Path.Entry<T> {
 	public void refresh() throws IOException {
 		if(!modified) {
 			contents = null; // reset contents
+			unpin();
 		}
 	}
 	
 	public void flush() throws IOException {
 		if(modified && contents != null) {
-			contentType.write(outputStream(), contents);
-			this.modified = false;
+			ContentCache cache = AbstractEntry.cache;
+			if (cache == null) {
+				contentType.write(outputStream(), contents);
+				this.modified = false;
+			} else {
+				// Having been written, the contents can now be read again and,
+				// hence, may be evicted from the cache.
+				CountingOutputStream out = new CountingOutputStream(outputStream());
+				contentType.write(out, contents);
+				this.modified = false;
+				cache.add(this, out.count);
+			}
 		}
 	}
 	
 	public T read() throws IOException {
-		if (contents == null) {
-			contents = contentType.read(this,inputStream());
+		ContentCache cache = AbstractEntry.cache;
+		T result;
+		long count;
+		synchronized (this) {
+			if (contents != null) {
+				if (cache != null && !modified) {
+					cache.touch(this);
+				}
+				return contents;
+			} else if (cache == null) {
+				contents = contentType.read(this, inputStream());
+				return contents;
+			}
+			CountingInputStream in = new CountingInputStream(inputStream());
+			contents = contentType.read(this, in);
+			result = contents;
+			// The content type may not read through the given stream (e.g. if
+			// it maps the underlying file into memory instead), in which case
+			// the bytes counted underestimate the size of the contents.
+			count = Math.max(in.count, size());
 		}
-		return contents;
+		// NOTE: the cache may evict other entries, which requires their locks.
+		// Therefore, we must not hold our own lock at this point.
+		cache.add(this, count);
+		return result;
 	}		
 			
-	public void write(T contents) throws IOException {
+	public synchronized void write(T contents) throws IOException {
 		this.modified = true;
 		this.contents = contents; 
+		unpin();
+	}
+	
+	/**
+	 * Return the number of bytes this entry occupies in permanent storage, or
+	 * -1 if this is unknown. This is used to estimate the size of its contents
+	 * for the content cache.
+	 * 
+	 * @return
+	 */
+	protected long size() {
+		return -1;
+	}
+	
+	/**
+	 * Discard the contents of this entry, unless it has been modified. This is
+	 * called by the content cache.
+	 */
+	synchronized void evict() {
+		if (!modified) {
+			contents = null;
+		}
+	}
+	
+	/**
+	 * Remove this entry from the content cache (if there is one), either
+	 * because its contents have been discarded or because they are modified
+	 * and cannot be discarded until flushed.
+	 */
+	private void unpin() {
+		ContentCache cache = AbstractEntry.cache;
+		if (cache != null) {
+			cache.remove(this);
+		}
 	}
 	
 	public void associate(Content.Type<T> contentType, T contents) {
@@ -99,10 +189,74 @@ public abstract class AbstractEntry<T> implements Path.Entry<T> {
 		this.contents = contents;
 	}	
 	
+	public BinaryInputStream binaryInputStream() throws IOException {
+		return new BinaryInputStream(inputStream());
+	}
+	
 	public Set<Path.Entry<?>> dependents() {
 		return Collections.EMPTY_SET;
 	}
 	public Set<Path.Entry<?>> dependencies() {
 		return Collections.EMPTY_SET;
 	}
+	
+	/**
+	 * Counts the bytes read from an input stream, which are used to estimate
+	 * the size of the contents read from it.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		private long count;
+
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long m = in.skip(n);
+			count += m;
+			return m;
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+	}
+	
+	/**
+	 * Counts the bytes written to an output stream, which are used to
+	 * estimate the size of the contents written to it.
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
 }
@@ -264,7 +264,7 @@ public abstract class AbstractFolder implements Path.Folder {
 	 * 
 	 * @param item
 	 */
-	protected void insert(Path.Item item) throws IOException {
+	protected synchronized void insert(Path.Item item) throws IOException {
 		if (item.id().parent() != id) {
 			throw new IllegalArgumentException(
 					"Cannot insert with incorrect Path.Item (" + item.id() + ") into AbstractFolder (" + id + ")");
@@ -294,7 +294,54 @@ public abstract class AbstractFolder implements Path.Folder {
 		nentries++;		
 	}
 	
-	private final void updateContents() throws IOException{
+	/**
+	 * Remove an item from this folder, for example because the corresponding
+	 * file has been deleted. If the item is not contained in this folder, then
+	 * this has no effect.
+	 * 
+	 * @param item
+	 */
+	protected synchronized void remove(Path.Item item) throws IOException {
+		updateContents();
+
+		int index = binarySearch(contents, nentries, item.id());
+		if (index >= 0) {
+			do {
+				if (contents[index] == item) {
+					System.arraycopy(contents, index + 1, contents, index,
+							nentries - index - 1);
+					contents[--nentries] = null;
+					return;
+				}
+			} while (++index < nentries
+					&& contents[index].id().equals(item.id()));
+		}
+	}
+
+	/**
+	 * Get all items in this folder with a given name. There may be more than
+	 * one such item, since entries with the same name may have different
+	 * content types.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	protected synchronized List<Path.Item> getItems(String name)
+			throws IOException {
+		updateContents();
+
+		ArrayList<Path.Item> items = new ArrayList<Path.Item>();
+		ID tid = id.append(name);
+		int index = binarySearch(contents, nentries, tid);
+		if (index >= 0) {
+			do {
+				items.add(contents[index]);
+			} while (++index < nentries && contents[index].id().equals(tid));
+		}
+		return items;
+	}
+	
+	private final synchronized void updateContents() throws IOException{
 		if(contents == null) {
 			contents = contents();			
 			nentries = contents.length;
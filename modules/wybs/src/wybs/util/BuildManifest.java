@@ -0,0 +1,317 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wybs.util;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import wybs.lang.Path;
+
+/**
+ * <p>
+ * Records a content hash for each target built into a given root, so that
+ * targets which are already up-to-date can be skipped. The hash of a target is
+ * computed from the contents of its source, along with the contents of those
+ * entries upon which the source depends. If the hash recorded for a target
+ * matches that computed for its source, then building the target again would
+ * produce the same result and, hence, can be avoided. Unlike modification
+ * times, such hashes are unaffected by e.g. a version control system touching
+ * files on checkout.
+ * </p>
+ * 
+ * <p>
+ * Every manifest is associated with a <i>configuration</i>, which describes
+ * the builder used to produce its targets (e.g. the stages of its pipeline).
+ * If a manifest is read which was written under a different configuration,
+ * then all recorded hashes are discarded.
+ * </p>
+ * 
+ * <p>
+ * Hashes for newly built targets are not computed immediately, since their
+ * sources may not yet have been written to permanent storage. Instead, they
+ * are computed when the manifest is written, which should happen after all
+ * roots have been flushed.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public class BuildManifest {
+
+	/**
+	 * The file in which this manifest is stored.
+	 */
+	private final File file;
+
+	/**
+	 * The hash of the configuration under which targets are built.
+	 */
+	private final String configuration;
+
+	/**
+	 * Maps the key of each target to its recorded hash.
+	 */
+	private final HashMap<String, String> hashes = new HashMap<String, String>();
+
+	/**
+	 * Targets built since this manifest was last read or written, whose hashes
+	 * are yet to be computed.
+	 */
+	private final HashMap<String, Record> pending = new HashMap<String, Record>();
+
+	/**
+	 * Caches the digest of each entry's contents, to avoid rereading entries
+	 * which are the dependencies of many targets. This is cleared whenever the
+	 * manifest is written, since entries may then have been flushed.
+	 */
+	private final HashMap<Path.Entry<?>, byte[]> digests = new HashMap<Path.Entry<?>, byte[]>();
+
+	public BuildManifest(File file, String configuration) {
+		this.file = file;
+		this.configuration = toHexString(digest(configuration.getBytes()));
+	}
+
+	// ======================================================================
+	// Accessors
+	// ======================================================================
+
+	/**
+	 * Check whether a given target is up-to-date with respect to its source
+	 * and the source's dependencies. A target is never considered up-to-date
+	 * if its source or one of those dependencies has been modified but not
+	 * yet written to permanent storage.
+	 * 
+	 * @param target
+	 *            --- target to be checked.
+	 * @param source
+	 *            --- source from which the target is built.
+	 * @param dependencies
+	 *            --- entries upon which the source depends.
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized boolean isUpToDate(Path.Entry<?> target,
+			Path.Entry<?> source, List<Path.Entry<?>> dependencies)
+			throws IOException {
+		String hash = hashes.get(key(target));
+		if (hash == null || source.isModified()) {
+			return false;
+		}
+		for (Path.Entry<?> dependency : dependencies) {
+			if (dependency.isModified()) {
+				return false;
+			}
+		}
+		return hash.equals(hash(source, dependencies));
+	}
+
+	// ======================================================================
+	// Mutators
+	// ======================================================================
+
+	/**
+	 * Record that a given target has been built from a given source. The
+	 * target's hash will be computed when the manifest is next written.
+	 * 
+	 * @param target
+	 *            --- target which was built.
+	 * @param source
+	 *            --- source from which the target was built.
+	 * @param dependencies
+	 *            --- entries upon which the source depends.
+	 */
+	public synchronized void record(Path.Entry<?> target,
+			Path.Entry<?> source, List<Path.Entry<?>> dependencies) {
+		String key = key(target);
+		hashes.remove(key);
+		pending.put(key, new Record(source, dependencies));
+	}
+
+	// ======================================================================
+	// Persistence
+	// ======================================================================
+
+	/**
+	 * Read this manifest from its file, replacing the current contents. If the
+	 * file does not exist, or was written under a different configuration,
+	 * then the manifest is left empty.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void read() throws IOException {
+		hashes.clear();
+		pending.clear();
+		digests.clear();
+		if (file.exists()) {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line = reader.readLine();
+				if (line == null || !line.equals(configuration)) {
+					return;
+				}
+				while ((line = reader.readLine()) != null) {
+					int split = line.lastIndexOf(' ');
+					if (split > 0) {
+						hashes.put(line.substring(0, split),
+								line.substring(split + 1));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Compute the hashes of any targets built since the manifest was last read
+	 * or written, and then write it to its file. This should only be called
+	 * once the sources of those targets have been written to permanent storage.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void write() throws IOException {
+		digests.clear();
+		for (Map.Entry<String, Record> e : pending.entrySet()) {
+			Record r = e.getValue();
+			if (!r.isModified()) {
+				// a target whose source has still not been written cannot be
+				// hashed reliably, and so is simply rebuilt next time.
+				hashes.put(e.getKey(), hash(r.source, r.dependencies));
+			}
+		}
+		pending.clear();
+		digests.clear();
+
+		PrintWriter writer = new PrintWriter(new BufferedWriter(
+				new FileWriter(file)));
+		try {
+			writer.println(configuration);
+			for (Map.Entry<String, String> e : new TreeMap<String, String>(
+					hashes).entrySet()) {
+				writer.print(e.getKey());
+				writer.print(" ");
+				writer.println(e.getValue());
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	// ======================================================================
+	// Private Implementation
+	// ======================================================================
+
+	private static String key(Path.Entry<?> target) {
+		return target.id() + "." + target.suffix();
+	}
+
+	/**
+	 * Compute the hash for a given source and its dependencies. This is the
+	 * digest of the source's contents, followed by the identifier and digest
+	 * of each dependency.
+	 * 
+	 * @param source
+	 * @param dependencies
+	 * @return
+	 * @throws IOException
+	 */
+	private String hash(Path.Entry<?> source,
+			List<Path.Entry<?>> dependencies) throws IOException {
+		MessageDigest md = newDigest();
+		md.update(digest(source));
+		for (Path.Entry<?> dependency : dependencies) {
+			md.update(key(dependency).getBytes());
+			md.update(digest(dependency));
+		}
+		return toHexString(md.digest());
+	}
+
+	private byte[] digest(Path.Entry<?> entry) throws IOException {
+		byte[] digest = digests.get(entry);
+		if (digest == null) {
+			MessageDigest md = newDigest();
+			InputStream input = entry.inputStream();
+			try {
+				byte[] buffer = new byte[4096];
+				int nread;
+				while ((nread = input.read(buffer)) != -1) {
+					md.update(buffer, 0, nread);
+				}
+			} finally {
+				input.close();
+			}
+			digest = md.digest();
+			digests.put(entry, digest);
+		}
+		return digest;
+	}
+
+	private static byte[] digest(byte[] bytes) {
+		return newDigest().digest(bytes);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is required to be supported by every Java platform.
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	private static String toHexString(byte[] bytes) {
+		StringBuilder r = new StringBuilder();
+		for (byte b : bytes) {
+			r.append(Character.forDigit((b >> 4) & 0xF, 16));
+			r.append(Character.forDigit(b & 0xF, 16));
+		}
+		return r.toString();
+	}
+
+	private static final class Record {
+		final Path.Entry<?> source;
+		final List<Path.Entry<?>> dependencies;
+
+		public Record(Path.Entry<?> source, List<Path.Entry<?>> dependencies) {
+			this.source = source;
+			this.dependencies = dependencies;
+		}
+
+		public boolean isModified() {
+			if (source.isModified()) {
+				return true;
+			}
+			for (Path.Entry<?> dependency : dependencies) {
+				if (dependency.isModified()) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,522 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wybs.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import wybs.lang.*;
+
+/**
+ * <p>
+ * Responsible for applying a set of build rules to a set of targets using a
+ * pool of worker threads. The scheduler first constructs an explicit
+ * dependency graph between the targets, where an edge from one target to
+ * another indicates the latter cannot be built until the former has been.
+ * Edges arise from <i>vertical</i> dependencies (e.g. <code>Test.class</code>
+ * is built from <code>Test.wyil</code>) and from <i>horizontal</i> dependencies
+ * (e.g. <code>Test1.wyil</code> uses something defined in
+ * <code>Test2.wyil</code>), as recorded in the {@link DependencyIndex}.
+ * Targets which depend upon each other (e.g. modules which import each other)
+ * form a cycle in this graph, and are treated as a single target.
+ * </p>
+ * 
+ * <p>
+ * Targets whose dependencies have all been built are grouped into
+ * <i>batches</i>, one per build rule, and each batch is dispatched to a
+ * fork/join pool. Batches for different rules may run concurrently. However,
+ * at most one batch per rule is in flight at any given moment, since builders
+ * are not required to be thread-safe. Furthermore, all targets of a given rule
+ * which become ready together are built together. This is necessary as a
+ * builder (e.g. for Whiley source files) may need to see files which refer to
+ * each other in the same batch.
+ * </p>
+ * 
+ * <p>
+ * The time taken by each batch is recorded and can be examined after the build
+ * has completed via <code>tasks()</code>.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public class BuildScheduler {
+
+	/**
+	 * The rules which will be applied by this scheduler. The position of a rule
+	 * in this list is used to identify it.
+	 */
+	private final List<BuildRule> rules;
+
+	/**
+	 * The maximum number of worker threads used.
+	 */
+	private final int parallelism;
+
+	/**
+	 * For logging the completion of each batch.
+	 */
+	private final Logger logger;
+
+	/**
+	 * The index of horizontal dependencies between modules. This may be null,
+	 * in which case only vertical dependencies are considered.
+	 */
+	private final DependencyIndex dependencies;
+
+	/**
+	 * The list of batches which have completed, in order of completion.
+	 */
+	private final ArrayList<Task> tasks = new ArrayList<Task>();
+
+	public BuildScheduler(List<BuildRule> rules, int parallelism,
+			Logger logger, DependencyIndex dependencies) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("invalid parallelism level: "
+					+ parallelism);
+		}
+		this.rules = rules;
+		this.parallelism = parallelism;
+		this.logger = logger;
+		this.dependencies = dependencies;
+	}
+
+	/**
+	 * Get the list of batches which were executed by the last build, in order
+	 * of completion.
+	 * 
+	 * @return
+	 */
+	public List<Task> tasks() {
+		return Collections.unmodifiableList(tasks);
+	}
+
+	/**
+	 * Build a given set of targets. Every target which is successfully built is
+	 * removed from <code>targets</code>. Therefore, any targets remaining after
+	 * this method returns could not be built (e.g. because of a cyclic
+	 * dependency).
+	 * 
+	 * @param sources
+	 *            --- the source entries from which the targets were originally
+	 *            determined.
+	 * @param targets
+	 *            --- the complete set of targets to be built.
+	 * @throws Exception
+	 */
+	public void build(Collection<? extends Path.Entry<?>> sources,
+			Set<Path.Entry<?>> targets) throws Exception {
+		tasks.clear();
+
+		// ======================================================================
+		// Construct dependency graph
+		// ======================================================================
+
+		List<Group> graph = collapse(buildGraph(sources, targets));
+
+		ArrayList<HashSet<Group>> pending = new ArrayList<HashSet<Group>>();
+		for (int i = 0; i != rules.size(); ++i) {
+			pending.add(new HashSet<Group>());
+		}
+		for (Group g : graph) {
+			if (g.rule >= 0 && g.predecessors == 0) {
+				pending.get(g.rule).add(g);
+			}
+		}
+
+		// ======================================================================
+		// Dispatch batches
+		// ======================================================================
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		CompletionService<Batch> completion = new ExecutorCompletionService<Batch>(
+				pool);
+		boolean[] running = new boolean[rules.size()];
+		int inflight = 0;
+		final long start = System.currentTimeMillis();
+
+		try {
+			while (true) {
+				for (int i = 0; i != rules.size(); ++i) {
+					HashSet<Group> ready = pending.get(i);
+					if (!running[i] && !ready.isEmpty()) {
+						completion.submit(new Batch(i, ready, start));
+						pending.set(i, new HashSet<Group>());
+						running[i] = true;
+						inflight++;
+					}
+				}
+
+				if (inflight == 0) {
+					// nothing left which can be built
+					break;
+				}
+
+				Batch batch = waitFor(completion);
+				running[batch.rule] = false;
+				inflight--;
+
+				tasks.add(batch.task);
+				logger.logTimedMessage("Applied rule #" + batch.rule + " to "
+						+ batch.task.size + " target(s) on "
+						+ batch.task.thread, batch.task.time, 0);
+
+				for (Group g : batch.groups) {
+					if (!Collections.disjoint(batch.remaining, g.targets)) {
+						// this target was not built by its rule, hence
+						// anything which depends upon it cannot be built either.
+						continue;
+					}
+					targets.removeAll(g.targets);
+					for (Group s : g.successors) {
+						if (--s.predecessors == 0 && s.rule >= 0) {
+							pending.get(s.rule).add(s);
+						}
+					}
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Construct the dependency graph for a given set of targets. Each target is
+	 * associated with the (first) rule which produces it, and has an edge from
+	 * each target it depends upon.
+	 * 
+	 * @param sources
+	 * @param targets
+	 * @return
+	 * @throws Exception
+	 */
+	private Collection<Node> buildGraph(
+			Collection<? extends Path.Entry<?>> sources,
+			Set<Path.Entry<?>> targets) throws Exception {
+		HashMap<Path.Entry<?>, Node> graph = new HashMap<Path.Entry<?>, Node>();
+		for (Path.Entry<?> t : targets) {
+			graph.put(t, new Node(t));
+		}
+
+		// First, identify vertical dependencies. These are identified by
+		// asking each rule for the dependents of every entry involved.
+		HashSet<Path.Entry<?>> entries = new HashSet<Path.Entry<?>>(sources);
+		entries.addAll(targets);
+		for (Path.Entry<?> e : entries) {
+			Node from = graph.get(e);
+			for (int i = 0; i != rules.size(); ++i) {
+				for (Path.Entry<?> d : rules.get(i).dependentsOf(e)) {
+					Node to = graph.get(d);
+					if (to == null) {
+						continue;
+					}
+					if (to.rule < 0) {
+						to.rule = i;
+					}
+					if (from != null && from != to) {
+						addEdge(from, to);
+					}
+				}
+			}
+		}
+
+		// Targets which were scheduled only because of a horizontal dependency
+		// have no changed source from which to determine their rule. Such
+		// targets are produced by the same rule as others of their content
+		// type.
+		HashMap<Content.Type<?>, Integer> producers = new HashMap<Content.Type<?>, Integer>();
+		for (Node n : graph.values()) {
+			if (n.rule >= 0) {
+				producers.put(n.target.contentType(), n.rule);
+			}
+		}
+		for (Node n : graph.values()) {
+			Integer rule = producers.get(n.target.contentType());
+			if (n.rule < 0 && rule != null) {
+				n.rule = rule;
+			}
+		}
+
+		// Second, identify horizontal dependencies. These are recorded in the
+		// index between modules and, hence, hold between targets with the
+		// same identifier and content type.
+		if (dependencies != null) {
+			HashMap<Path.ID, ArrayList<Node>> modules = new HashMap<Path.ID, ArrayList<Node>>();
+			for (Node n : graph.values()) {
+				ArrayList<Node> ns = modules.get(n.target.id());
+				if (ns == null) {
+					ns = new ArrayList<Node>();
+					modules.put(n.target.id(), ns);
+				}
+				ns.add(n);
+			}
+			for (Node to : graph.values()) {
+				for (Path.ID id : dependencies.dependenciesOf(to.target.id())) {
+					ArrayList<Node> ns = modules.get(id);
+					if (ns == null) {
+						continue;
+					}
+					for (Node from : ns) {
+						if (from != to
+								&& from.target.contentType() == to.target
+										.contentType()) {
+							addEdge(from, to);
+						}
+					}
+				}
+			}
+		}
+
+		return graph.values();
+	}
+
+	/**
+	 * Collapse every strongly connected component of the dependency graph into
+	 * a single group of targets, using Tarjan's algorithm. The resulting graph
+	 * between groups is acyclic, and so every group can eventually be built.
+	 * Since horizontal dependencies only hold between targets of the same
+	 * content type, the targets of a group are produced by the same rule.
+	 * 
+	 * @param nodes
+	 * @return
+	 */
+	private static List<Group> collapse(Collection<Node> nodes) {
+		ArrayList<Group> groups = new ArrayList<Group>();
+		ArrayList<Node> stack = new ArrayList<Node>();
+		// The depth-first search is iterative, since the graph may be large.
+		ArrayList<Node> path = new ArrayList<Node>();
+		ArrayList<Iterator<Node>> iterators = new ArrayList<Iterator<Node>>();
+		int index = 0;
+
+		for (Node root : nodes) {
+			if (root.index >= 0) {
+				continue;
+			}
+			root.index = root.lowlink = index++;
+			stack.add(root);
+			root.onStack = true;
+			path.add(root);
+			iterators.add(root.successors.iterator());
+
+			while (!path.isEmpty()) {
+				int top = path.size() - 1;
+				Node n = path.get(top);
+				Iterator<Node> iter = iterators.get(top);
+				if (iter.hasNext()) {
+					Node s = iter.next();
+					if (s.index < 0) {
+						s.index = s.lowlink = index++;
+						stack.add(s);
+						s.onStack = true;
+						path.add(s);
+						iterators.add(s.successors.iterator());
+					} else if (s.onStack) {
+						n.lowlink = Math.min(n.lowlink, s.index);
+					}
+				} else {
+					path.remove(top);
+					iterators.remove(top);
+					if (top > 0) {
+						Node parent = path.get(top - 1);
+						parent.lowlink = Math.min(parent.lowlink, n.lowlink);
+					}
+					if (n.lowlink == n.index) {
+						// n is the root of a strongly connected component
+						Group g = new Group();
+						Node m;
+						do {
+							m = stack.remove(stack.size() - 1);
+							m.onStack = false;
+							m.group = g;
+							g.targets.add(m.target);
+							if (g.rule < 0) {
+								g.rule = m.rule;
+							}
+						} while (m != n);
+						groups.add(g);
+					}
+				}
+			}
+		}
+
+		for (Node n : nodes) {
+			for (Node s : n.successors) {
+				if (n.group != s.group && n.group.successors.add(s.group)) {
+					s.group.predecessors++;
+				}
+			}
+		}
+
+		return groups;
+	}
+
+	private static void addEdge(Node from, Node to) {
+		from.successors.add(to);
+	}
+
+	/**
+	 * Wait for the next batch to complete. If the batch failed, then the
+	 * exception it raised is rethrown.
+	 * 
+	 * @param completion
+	 * @return
+	 * @throws Exception
+	 */
+	private static Batch waitFor(CompletionService<Batch> completion)
+			throws Exception {
+		try {
+			return completion.take().get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			} else {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Records how long a given batch took to build, and on which thread it was
+	 * built.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	public static final class Task {
+		/**
+		 * The index of the rule which was applied.
+		 */
+		public final int rule;
+
+		/**
+		 * The number of targets in the batch.
+		 */
+		public final int size;
+
+		/**
+		 * The time (in ms) at which the batch started, relative to the start
+		 * of the build.
+		 */
+		public final long start;
+
+		/**
+		 * The time (in ms) taken to complete the batch.
+		 */
+		public final long time;
+
+		/**
+		 * The name of the thread which executed the batch.
+		 */
+		public final String thread;
+
+		public Task(int rule, int size, long start, long time, String thread) {
+			this.rule = rule;
+			this.size = size;
+			this.start = start;
+			this.time = time;
+			this.thread = thread;
+		}
+
+		public String toString() {
+			return "rule #" + rule + " (" + size + " target(s)) @" + start
+					+ "ms [" + time + "ms, " + thread + "]";
+		}
+	}
+
+	/**
+	 * A node in the dependency graph between targets.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	private static final class Node {
+		final Path.Entry<?> target;
+		final HashSet<Node> successors = new HashSet<Node>();
+		int rule = -1;
+		// the following are used to determine strongly connected components
+		int index = -1;
+		int lowlink;
+		boolean onStack;
+		Group group;
+
+		public Node(Path.Entry<?> target) {
+			this.target = target;
+		}
+	}
+
+	/**
+	 * A group of targets which depend upon each other and, hence, are built
+	 * together. A target which is not part of any cycle forms a group by
+	 * itself.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	private static final class Group {
+		final ArrayList<Path.Entry<?>> targets = new ArrayList<Path.Entry<?>>();
+		final HashSet<Group> successors = new HashSet<Group>();
+		int predecessors;
+		int rule = -1;
+	}
+
+	/**
+	 * A batch of targets which are to be built by a single rule.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	private final class Batch implements Callable<Batch> {
+		final int rule;
+		final Set<Group> groups;
+		final HashSet<Path.Entry<?>> remaining;
+		final long buildStart;
+		Task task;
+
+		public Batch(int rule, Set<Group> groups, long buildStart) {
+			this.rule = rule;
+			this.groups = groups;
+			this.remaining = new HashSet<Path.Entry<?>>();
+			this.buildStart = buildStart;
+			for (Group g : groups) {
+				remaining.addAll(g.targets);
+			}
+		}
+
+		public Batch call() throws Exception {
+			long start = System.currentTimeMillis();
+			// NOTE: the rule removes those targets it builds from remaining.
+			int size = remaining.size();
+			rules.get(rule).apply(remaining);
+			long end = System.currentTimeMillis();
+			task = new Task(rule, size, start - buildStart,
+					end - start, Thread.currentThread().getName());
+			return this;
+		}
+	}
+}
@@ -0,0 +1,207 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wybs.util;
+
+import java.util.*;
+
+import wybs.lang.Content;
+
+/**
+ * <p>
+ * Bounds the memory used by the contents of entries which have been read
+ * (e.g. the abstract syntax trees of source files, or compiled WyIL modules).
+ * Without a cache, an entry holds onto its contents until it is refreshed,
+ * which means a large build keeps every file it has read in memory until
+ * the build is complete.
+ * </p>
+ * 
+ * <p>
+ * The cache tracks the <i>estimated</i> size of each entry's contents, and
+ * evicts the least recently used entries when the total exceeds a given
+ * capacity. An evicted entry simply discards its contents, which are then
+ * read again when next requested. The size of an entry's contents is
+ * estimated from the number of bytes it was read from, multiplied by a
+ * factor which depends upon its content type.
+ * </p>
+ * 
+ * <p>
+ * Only the contents of types which have been registered (see
+ * <code>register()</code>) are ever evicted. In particular, types whose
+ * contents are updated in place without being written (e.g. source files
+ * which are annotated during compilation) must not be registered, since
+ * such updates would be lost on eviction.
+ * </p>
+ * 
+ * <p>
+ * Entries which have been modified, but not yet flushed, are never held in
+ * the cache, since their contents cannot be read again. They are added once
+ * they have been flushed.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> this class is thread-safe. Entries are never evicted whilst
+ * the lock on the cache is held, since evicting an entry requires its own
+ * lock, and an entry may hold its lock when accessing the cache.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public class ContentCache {
+
+	/**
+	 * The maximum total (estimated) size of the cached contents, in bytes.
+	 */
+	private final long capacity;
+
+	/**
+	 * The (estimated) total size of the cached contents, in bytes.
+	 */
+	private long size;
+
+	/**
+	 * The cached entries, in order of least recent access.
+	 */
+	private final LinkedHashMap<AbstractEntry<?>, Long> entries = new LinkedHashMap<AbstractEntry<?>, Long>(
+			16, 0.75f, true);
+
+	/**
+	 * The expansion factor for each registered content type. That is, the
+	 * estimated ratio between the size in memory of contents of that type
+	 * and the number of bytes they were read from.
+	 */
+	private final HashMap<Content.Type<?>, Integer> expansions = new HashMap<Content.Type<?>, Integer>();
+
+	/**
+	 * Construct a cache which holds contents of a given total (estimated)
+	 * size.
+	 * 
+	 * @param capacity
+	 *            --- maximum total size of contents, in bytes.
+	 */
+	public ContentCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Register a content type whose contents may be evicted from this cache,
+	 * along with its expansion factor. That is, the estimated ratio between
+	 * the size in memory of contents of that type and the number of bytes
+	 * they were read from.
+	 * 
+	 * @param type
+	 * @param factor
+	 */
+	public synchronized void register(Content.Type<?> type, int factor) {
+		expansions.put(type, factor);
+	}
+
+	/**
+	 * Return the (estimated) total size of the cached contents, in bytes.
+	 * 
+	 * @return
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Record that a given entry holds contents read from a given number of
+	 * bytes, evicting other entries as necessary to remain within capacity.
+	 * This has no effect if the entry's content type is not registered.
+	 * 
+	 * @param entry
+	 * @param bytes
+	 */
+	public void add(AbstractEntry<?> entry, long bytes) {
+		List<AbstractEntry<?>> victims;
+		synchronized (this) {
+			Integer factor = expansions.get(entry.contentType());
+			if (factor == null) {
+				return;
+			}
+			long estimate = bytes * factor;
+			Long old = entries.put(entry, estimate);
+			if (old != null) {
+				size -= old;
+			}
+			size += estimate;
+			victims = evictions(entry);
+		}
+		for (AbstractEntry<?> victim : victims) {
+			victim.evict();
+		}
+	}
+
+	/**
+	 * Record that a given entry has been accessed, making it the most
+	 * recently used.
+	 * 
+	 * @param entry
+	 */
+	public synchronized void touch(AbstractEntry<?> entry) {
+		entries.get(entry);
+	}
+
+	/**
+	 * Remove a given entry from the cache (e.g. because it has been modified,
+	 * or refreshed). The entry itself is not affected.
+	 * 
+	 * @param entry
+	 */
+	public synchronized void remove(AbstractEntry<?> entry) {
+		Long old = entries.remove(entry);
+		if (old != null) {
+			size -= old;
+		}
+	}
+
+	/**
+	 * Remove least recently used entries until the cache is within capacity.
+	 * The most recently added entry is never removed, even if it alone
+	 * exceeds the capacity.
+	 * 
+	 * @param latest
+	 * @return
+	 */
+	private List<AbstractEntry<?>> evictions(AbstractEntry<?> latest) {
+		if (size <= capacity) {
+			return Collections.EMPTY_LIST;
+		}
+		ArrayList<AbstractEntry<?>> victims = new ArrayList<AbstractEntry<?>>();
+		Iterator<Map.Entry<AbstractEntry<?>, Long>> iter = entries.entrySet()
+				.iterator();
+		while (size > capacity && iter.hasNext()) {
+			Map.Entry<AbstractEntry<?>, Long> e = iter.next();
+			if (e.getKey() != latest) {
+				victims.add(e.getKey());
+				size -= e.getValue();
+				iter.remove();
+			}
+		}
+		return victims;
+	}
+}
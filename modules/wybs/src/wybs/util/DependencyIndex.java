@@ -0,0 +1,252 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wybs.util;
+
+import java.io.*;
+import java.util.*;
+
+import wybs.lang.Path;
+
+/**
+ * <p>
+ * Records the <i>horizontal</i> dependencies between modules. That is, for
+ * each module the index records the set of modules from which it uses one or
+ * more names (e.g. types, functions, constants, etc). For example, if
+ * <code>Test1</code> uses a type defined in <code>Test2</code> then the index
+ * records that <code>Test1</code> depends upon <code>Test2</code>. Thus, when
+ * <code>Test2</code> is changed, <code>Test1</code> must be rebuilt. Modules
+ * are identified only by their <code>Path.ID</code>, and hence the index is
+ * independent of content type.
+ * </p>
+ * 
+ * <p>
+ * The index is intended to persist between builds, so that an incremental
+ * build can determine the minimal set of modules to be rebuilt without
+ * rescanning every module. The on-disk format is a simple text file containing
+ * one line per module, consisting of the module's identifier followed by the
+ * identifiers of its dependencies, all separated by whitespace.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> this class is thread-safe, since builders running concurrently
+ * may record dependencies at the same time.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public class DependencyIndex {
+
+	/**
+	 * Maps each module to the set of modules it depends upon.
+	 */
+	private final HashMap<Path.ID, HashSet<Path.ID>> dependencies = new HashMap<Path.ID, HashSet<Path.ID>>();
+
+	/**
+	 * Maps each module to the set of modules which depend upon it. This is
+	 * simply the inverse of <code>dependencies</code>, and is maintained to
+	 * make determining the dependents of a module cheap.
+	 */
+	private final HashMap<Path.ID, HashSet<Path.ID>> dependents = new HashMap<Path.ID, HashSet<Path.ID>>();
+
+	/**
+	 * Indicates whether or not the index has been modified since it was last
+	 * read or written.
+	 */
+	private boolean modified = false;
+
+	// ======================================================================
+	// Accessors
+	// ======================================================================
+
+	/**
+	 * Get the set of modules which a given module depends upon.
+	 * 
+	 * @param id
+	 *            --- module in question.
+	 * @return
+	 */
+	public synchronized Set<Path.ID> dependenciesOf(Path.ID id) {
+		HashSet<Path.ID> r = dependencies.get(id);
+		if (r == null) {
+			return Collections.EMPTY_SET;
+		} else {
+			return new HashSet<Path.ID>(r);
+		}
+	}
+
+	/**
+	 * Get the set of modules which directly depend upon a given module.
+	 * 
+	 * @param id
+	 *            --- module in question.
+	 * @return
+	 */
+	public synchronized Set<Path.ID> dependentsOf(Path.ID id) {
+		HashSet<Path.ID> r = dependents.get(id);
+		if (r == null) {
+			return Collections.EMPTY_SET;
+		} else {
+			return new HashSet<Path.ID>(r);
+		}
+	}
+
+	/**
+	 * Get the set of modules recorded in this index (i.e. those which have at
+	 * least one dependency).
+	 * 
+	 * @return
+	 */
+	public synchronized Set<Path.ID> modules() {
+		return new HashSet<Path.ID>(dependencies.keySet());
+	}
+
+	public synchronized boolean isModified() {
+		return modified;
+	}
+
+	// ======================================================================
+	// Mutators
+	// ======================================================================
+
+	/**
+	 * Record that one module depends upon another. Dependencies of a module on
+	 * itself are ignored.
+	 * 
+	 * @param from
+	 *            --- module which uses the name.
+	 * @param to
+	 *            --- module which defines the name.
+	 */
+	public synchronized void add(Path.ID from, Path.ID to) {
+		if (from.equals(to)) {
+			return;
+		}
+		HashSet<Path.ID> deps = dependencies.get(from);
+		if (deps == null) {
+			deps = new HashSet<Path.ID>();
+			dependencies.put(from, deps);
+		}
+		if (deps.add(to)) {
+			HashSet<Path.ID> users = dependents.get(to);
+			if (users == null) {
+				users = new HashSet<Path.ID>();
+				dependents.put(to, users);
+			}
+			users.add(from);
+			modified = true;
+		}
+	}
+
+	/**
+	 * Remove all dependencies recorded for a given module. This should be
+	 * called whenever a module is about to be rebuilt, since its dependencies
+	 * will be recomputed from scratch.
+	 * 
+	 * @param id
+	 *            --- module in question.
+	 */
+	public synchronized void clear(Path.ID id) {
+		HashSet<Path.ID> deps = dependencies.remove(id);
+		if (deps != null) {
+			for (Path.ID to : deps) {
+				HashSet<Path.ID> users = dependents.get(to);
+				users.remove(id);
+				if (users.isEmpty()) {
+					dependents.remove(to);
+				}
+			}
+			modified = true;
+		}
+	}
+
+	// ======================================================================
+	// Persistence
+	// ======================================================================
+
+	/**
+	 * Read the index from a given file, replacing the current contents. If the
+	 * file does not exist then the index is simply left empty.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public synchronized void read(File file) throws IOException {
+		dependencies.clear();
+		dependents.clear();
+		if (file.exists()) {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] components = line.trim().split("\\s+");
+					if (components.length > 1) {
+						Path.ID from = Trie.fromString(components[0]);
+						for (int i = 1; i != components.length; ++i) {
+							add(from, Trie.fromString(components[i]));
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		modified = false;
+	}
+
+	/**
+	 * Write the index to a given file. Modules are written in sorted order so
+	 * the file remains stable across builds.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public synchronized void write(File file) throws IOException {
+		TreeMap<String, TreeSet<String>> sorted = new TreeMap<String, TreeSet<String>>();
+		for (Map.Entry<Path.ID, HashSet<Path.ID>> e : dependencies.entrySet()) {
+			TreeSet<String> deps = new TreeSet<String>();
+			for (Path.ID id : e.getValue()) {
+				deps.add(id.toString());
+			}
+			sorted.put(e.getKey().toString(), deps);
+		}
+		PrintWriter writer = new PrintWriter(new BufferedWriter(
+				new FileWriter(file)));
+		try {
+			for (Map.Entry<String, TreeSet<String>> e : sorted.entrySet()) {
+				writer.print(e.getKey());
+				for (String dep : e.getValue()) {
+					writer.print(" ");
+					writer.print(dep);
+				}
+				writer.println();
+			}
+		} finally {
+			writer.close();
+		}
+		modified = false;
+	}
+}
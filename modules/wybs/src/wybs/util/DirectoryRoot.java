@@ -27,7 +27,9 @@ package wybs.util;
 
 import java.io.*;
 import java.util.*;
+import java.util.regex.Pattern;
 
+import wybs.io.BinaryInputStream;
 import wybs.lang.Content;
 import wybs.lang.Content.Filter;
 import wybs.lang.Path;
@@ -178,6 +180,54 @@ public final class DirectoryRoot extends AbstractRoot<DirectoryRoot.Folder> {
 		return sources;
 	}
 	
+	/**
+	 * <p>
+	 * Update this root to reflect a change to a given file on the file system
+	 * (e.g. as reported by a <code>DirectoryWatcher</code>). Only the entry for
+	 * the file, and the contents of its enclosing folder, are affected. This
+	 * is much cheaper than <code>refresh()</code>, after which every folder
+	 * must be rescanned.
+	 * </p>
+	 * 
+	 * <p>
+	 * If the file has been created, then a new entry is added to its folder. If
+	 * it has been deleted, then its entry is removed. Otherwise, any contents
+	 * cached for its entry are discarded. A change to the root directory
+	 * itself causes the whole root to be refreshed.
+	 * </p>
+	 * 
+	 * @param file
+	 *            --- file on the physical file system which has changed.
+	 * @return the entry for the file, or null if there is none (e.g. because
+	 *         the file has been deleted, is a directory, is not within this
+	 *         root or is not accepted by its filter).
+	 * @throws IOException
+	 */
+	public Path.Entry<?> update(File file) throws IOException {
+		String location = dir.getCanonicalPath();
+		String path = file.getCanonicalPath();
+		if (path.equals(location)) {
+			refresh();
+			return null;
+		} else if (!path.startsWith(location + File.separator)) {
+			return null;
+		}
+
+		// Find the folder enclosing the file. If this is not known, then the
+		// change will be seen when the folder is first listed.
+		String[] components = path.substring(location.length() + 1).split(
+				Pattern.quote(File.separator));
+		Folder folder = root;
+		for (int i = 0; i < components.length - 1; ++i) {
+			folder = (Folder) folder.getFolder(components[i]);
+			if (folder == null) {
+				return null;
+			}
+		}
+
+		return folder.update(new File(path));
+	}
+	
 	/**
 	 * An entry is a file on the file system which represents a Whiley module. The
 	 * file may be encoded in a range of different formats. For example, it may be a
@@ -206,6 +256,10 @@ public final class DirectoryRoot extends AbstractRoot<DirectoryRoot.Folder> {
 			return file;
 		}		
 		
+		protected long size() {
+			return file.length();
+		}
+		
 		public String suffix() {
 			String filename = file.getName();
 			String suffix = "";
@@ -220,6 +274,10 @@ public final class DirectoryRoot extends AbstractRoot<DirectoryRoot.Folder> {
 			return new FileInputStream(file);
 		}
 		
+		public BinaryInputStream binaryInputStream() throws IOException {
+			return BinaryInputStream.map(file);
+		}
+		
 		public OutputStream outputStream() throws IOException {
 			file.getParentFile().mkdirs();
 			return new FileOutputStream(file);
@@ -278,6 +336,63 @@ public final class DirectoryRoot extends AbstractRoot<DirectoryRoot.Folder> {
 			}
 		}
 
+		/**
+		 * Update this folder to reflect a change to a given file contained
+		 * within it. See <code>DirectoryRoot.update()</code>.
+		 * 
+		 * @param file
+		 * @return
+		 * @throws IOException
+		 */
+		protected Path.Entry<?> update(File file) throws IOException {
+			String filename = file.getName();
+			int idx = filename.lastIndexOf('.');
+			
+			// First, find the item (if any) currently representing the file.
+			Path.Item item = null;
+			for (Path.Item i : getItems(filename)) {
+				if (i instanceof Folder) {
+					item = i;
+				}
+			}
+			if (item == null && idx > 0) {
+				for (Path.Item i : getItems(filename.substring(0, idx))) {
+					if (i instanceof Entry
+							&& ((Entry) i).file().getName().equals(filename)) {
+						item = i;
+					}
+				}
+			}
+			
+			// Second, bring this folder up-to-date with respect to the file.
+			if (item != null
+					&& (!file.exists() || !filter.accept(file) || file
+							.isDirectory() != (item instanceof Folder))) {
+				remove(item);
+				item = null;
+			}
+			
+			if (!file.exists() || !filter.accept(file)) {
+				return null;
+			} else if (file.isDirectory()) {
+				if (item == null) {
+					insert(new Folder(id.append(filename)));
+				}
+				return null;
+			} else if (item != null) {
+				Entry e = (Entry) item;
+				e.refresh();
+				return e;
+			} else if (idx > 0) {
+				Entry e = new Entry(id.append(filename.substring(0, idx)), file);
+				contentTypes.associate(e);
+				insert(e);
+				return e;
+			} else {
+				return null;
+			}
+		}
+
 		@Override
 		public <T> Path.Entry<T> create(ID nid, Content.Type<T> ct,
 				Path.Entry<?>... sources) throws IOException {	
@@ -0,0 +1,171 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wybs.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * <p>
+ * Watches a directory tree on the file system for changes, using the
+ * operating system's file notification facilities (where available). This
+ * allows a build to be triggered when a file is saved, without repeatedly
+ * walking the tree to find out what has changed. The changes reported can be
+ * passed to <code>DirectoryRoot.update()</code>, such that only the affected
+ * entries are invalidated.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> this requires Java 7 or later. It is kept separate from
+ * <code>DirectoryRoot</code>, so that the rest of the build system does not
+ * depend upon this.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public final class DirectoryWatcher {
+
+	/**
+	 * The root of the directory tree being watched.
+	 */
+	private final File dir;
+
+	private final WatchService service;
+
+	/**
+	 * Maps each watch key to the directory it was registered for.
+	 */
+	private final HashMap<WatchKey, java.nio.file.Path> keys = new HashMap<WatchKey, java.nio.file.Path>();
+
+	public DirectoryWatcher(File dir) throws IOException {
+		this.dir = dir;
+		this.service = FileSystems.getDefault().newWatchService();
+		register(dir.toPath(), null);
+	}
+
+	/**
+	 * <p>
+	 * Wait until one or more files in the tree have changed, and return them.
+	 * Since saving a file often generates several events in quick succession,
+	 * this continues to collect changes until none have been seen for the
+	 * given period.
+	 * </p>
+	 * 
+	 * <p>
+	 * A file which has been created, modified or deleted is included in the
+	 * result. If some changes have been lost (e.g. because too many occurred
+	 * at once), then the root directory itself is included, indicating that
+	 * the whole tree should be refreshed.
+	 * </p>
+	 * 
+	 * @param quiet
+	 *            --- period (in milliseconds) without changes after which the
+	 *            changes seen are returned.
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public Set<File> take(long quiet) throws IOException, InterruptedException {
+		LinkedHashSet<File> changes = new LinkedHashSet<File>();
+		WatchKey key = service.take();
+		while (key != null) {
+			java.nio.file.Path parent = keys.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW || parent == null) {
+					changes.add(dir);
+				} else {
+					java.nio.file.Path child = parent
+							.resolve((java.nio.file.Path) event.context());
+					changes.add(child.toFile());
+					if (event.kind() == ENTRY_CREATE
+							&& Files.isDirectory(child)) {
+						// files may already have been created in the new
+						// directory before it was registered, so these are
+						// included as well.
+						register(child, changes);
+					}
+				}
+			}
+			if (!key.reset()) {
+				// directory no longer accessible
+				keys.remove(key);
+			}
+			key = service.poll(quiet, TimeUnit.MILLISECONDS);
+		}
+		return changes;
+	}
+
+	/**
+	 * Stop watching the directory tree.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		service.close();
+	}
+
+	/**
+	 * Register a given directory, and all directories within it, with the
+	 * watch service.
+	 * 
+	 * @param start
+	 *            --- directory to register.
+	 * @param files
+	 *            --- set to which all files and directories found are added,
+	 *            or null if they are not required.
+	 * @throws IOException
+	 */
+	private void register(java.nio.file.Path start, final Set<File> files)
+			throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<java.nio.file.Path>() {
+			public FileVisitResult preVisitDirectory(java.nio.file.Path d,
+					BasicFileAttributes attrs) throws IOException {
+				WatchKey key = d.register(service, ENTRY_CREATE, ENTRY_DELETE,
+						ENTRY_MODIFY);
+				keys.put(key, d);
+				if (files != null) {
+					files.add(d.toFile());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFile(java.nio.file.Path f,
+					BasicFileAttributes attrs) {
+				if (files != null) {
+					files.add(f.toFile());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
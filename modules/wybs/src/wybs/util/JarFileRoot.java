@@ -30,19 +30,69 @@ import java.util.*;
 import java.util.jar.*;
 
 import wybs.lang.Content;
-import wybs.lang.Content.Type;
 import wybs.lang.Path;
 
 /**
+ * <p>
  * Provides an implementation of <code>Path.Root</code> for representing the
  * contents of a jar file.
+ * </p>
+ * 
+ * <p>
+ * Enumerating the entries of a large jar file (e.g. the standard library) is
+ * relatively expensive, and would otherwise be done every time the compiler
+ * starts. Therefore, the list of entries is persisted in an index file (see
+ * <code>setIndexDirectory()</code>) which is keyed on the jar file's path,
+ * length and modification time. When a valid index exists, the jar file
+ * itself is not opened until an entry is actually read. Furthermore, the
+ * folders of the root are only materialised when they are first accessed.
+ * </p>
+ * 
+ * <p>
+ * Finally, the decompressed bytes of small entries can be cached in memory
+ * (see <code>setCacheLimit()</code>). This is useful for long running
+ * processes, where the same root is shared between many builds.
+ * </p>
  * 
  * @author David J. Pearce
  * 
  */
 public final class JarFileRoot extends AbstractRoot<JarFileRoot.Folder> implements Path.Root {	
+	
+	/**
+	 * The directory in which index files are stored. If this is
+	 * <code>null</code>, then no index files are read or written. Observe that
+	 * this is located in the user's home directory, rather than a shared
+	 * location (e.g. the temporary directory) where another user could
+	 * otherwise plant index files which are then trusted.
+	 */
+	private static File indexDirectory = new File(
+			System.getProperty("user.home"), ".wybs-index");
+	
+	/**
+	 * The header which identifies (a particular version of) an index file.
+	 */
+	private static final String INDEX_HEADER = "wybs-jar-index 1";
+	
 	private final File dir;
-	private Path.Item[] jfContents;
+	
+	/**
+	 * The jar file itself, which is opened lazily when the first entry is
+	 * read.
+	 */
+	private JarFile jf;
+	
+	/**
+	 * Maps each folder in the jar file to the records of the items it
+	 * contains.
+	 */
+	private HashMap<Path.ID,ArrayList<Record>> folders;
+	
+	/**
+	 * Entries whose uncompressed size is at most this many bytes have their
+	 * bytes cached in memory once read. A limit of zero disables this cache.
+	 */
+	private volatile int cacheLimit;
 	
 	public JarFileRoot(String dir, Content.Registry contentTypes) throws IOException {
 		super(contentTypes);
@@ -56,6 +106,35 @@ public final class JarFileRoot extends AbstractRoot<JarFileRoot.Folder> implemen
 		refresh();
 	}
 	
+	/**
+	 * Set the directory in which index files are stored for all jar file
+	 * roots subsequently constructed or refreshed. A value of
+	 * <code>null</code> disables index files altogether.
+	 * 
+	 * @param dir
+	 */
+	public static synchronized void setIndexDirectory(File dir) {
+		indexDirectory = dir;
+	}
+	
+	private static synchronized File getIndexDirectory() {
+		return indexDirectory;
+	}
+	
+	/**
+	 * Set the maximum (uncompressed) size of entries whose bytes are cached in
+	 * memory once read. A limit of zero disables this cache.
+	 * 
+	 * @param limit
+	 */
+	public void setCacheLimit(int limit) {
+		this.cacheLimit = limit;
+	}
+	
+	public File location() {
+		return dir;
+	}
+	
 	@Override
 	public <T> Path.Entry<T> create(Path.ID id, Content.Type<T> ct,Path.Entry<?>... sources) throws IOException {
 		throw new UnsupportedOperationException();
@@ -67,29 +146,214 @@ public final class JarFileRoot extends AbstractRoot<JarFileRoot.Folder> implemen
 	}
 
 	@Override
-	public void refresh() throws IOException {
-		JarFile jf = new JarFile(dir);
-		Enumeration<JarEntry> entries = jf.entries();
-		this.jfContents = new Path.Item[jf.size()];
-		int i = 0;
-		while (entries.hasMoreElements()) {
-			JarEntry e = entries.nextElement();
-			String filename = e.getName();	
+	public synchronized void refresh() throws IOException {
+		if (jf != null) {
+			jf.close();
+			jf = null;
+		}
+		List<Record> records = readIndex();
+		if (records == null) {
+			records = readJarFile();
+			writeIndex(records);
+		}
+		
+		// Now, group the records by folder. Folders are created for every
+		// package mentioned in the jar file, since a jar file need not have
+		// explicit entries for its directories.
+		HashMap<Path.ID,ArrayList<Record>> folders = new HashMap<Path.ID,ArrayList<Record>>();
+		folders.put(Trie.ROOT, new ArrayList<Record>());
+		for (Record r : records) {
+			String filename = r.name;
 			int lastSlash = filename.lastIndexOf('/');
-			Trie pkg = lastSlash == -1 ? Trie.ROOT : Trie.fromString(filename.substring(0, lastSlash));
-			if(!e.isDirectory()) {				
-				int lastDot = filename.lastIndexOf('.');										
-				String name = lastDot >= 0 ? filename.substring(lastSlash + 1, lastDot) : filename;
-				String suffix = lastDot >= 0 ? filename.substring(lastDot + 1) : null;						
-				Trie id = pkg.append(name);
-				Entry pe = new Entry(id, jf, e);
-				contentTypes.associate(pe);
-				jfContents[i++] = pe;
+			if (lastSlash == filename.length() - 1) {
+				// directory; the corresponding folder is created below
+				filename = filename.substring(0, lastSlash);
+				lastSlash = filename.lastIndexOf('/');
+				Trie pkg = lastSlash == -1 ? Trie.ROOT : Trie.fromString(filename
+						.substring(0, lastSlash));
+				folder(pkg.append(filename.substring(lastSlash + 1)), folders);
 			} else {
-				// folder
-				jfContents[i++] = new Folder(pkg);
+				Trie pkg = lastSlash == -1 ? Trie.ROOT : Trie.fromString(filename
+						.substring(0, lastSlash));
+				folder(pkg, folders).add(r);
 			}
-		}		
+		}
+		this.folders = folders;
+		root.refresh();
+	}
+	
+	/**
+	 * Get the records for a given folder, creating the folder (and any
+	 * enclosing folders) if it does not already exist.
+	 * 
+	 * @param id
+	 * @param folders
+	 * @return
+	 */
+	private static ArrayList<Record> folder(Path.ID id,
+			HashMap<Path.ID, ArrayList<Record>> folders) {
+		ArrayList<Record> records = folders.get(id);
+		if (records == null) {
+			records = new ArrayList<Record>();
+			folders.put(id, records);
+			folder(id.parent(), folders).add(new Record(id.last(), -1, -1, true));
+		}
+		return records;
+	}
+	
+	/**
+	 * Enumerate the entries of the jar file itself.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private List<Record> readJarFile() throws IOException {
+		JarFile jf = new JarFile(dir);
+		try {
+			ArrayList<Record> records = new ArrayList<Record>(jf.size());
+			Enumeration<JarEntry> entries = jf.entries();
+			while (entries.hasMoreElements()) {
+				JarEntry e = entries.nextElement();
+				records.add(new Record(e.getName(), e.getTime(), e.getSize(), false));
+			}
+			return records;
+		} finally {
+			jf.close();
+		}
+	}
+	
+	/**
+	 * Get the index file for this jar file. This is named after a hash of the
+	 * jar file's path, though the path is also recorded in the index file
+	 * itself to guard against collisions.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private File indexFile() throws IOException {
+		File indexDir = getIndexDirectory();
+		if (indexDir == null) {
+			return null;
+		}
+		String path = dir.getCanonicalPath();
+		return new File(indexDir, dir.getName() + "-"
+				+ Integer.toHexString(path.hashCode()) + ".idx");
+	}
+	
+	/**
+	 * Generate the key which determines whether or not an index file is valid
+	 * for this jar file.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private String indexKey() throws IOException {
+		return dir.getCanonicalPath() + " " + dir.length() + " "
+				+ dir.lastModified();
+	}
+	
+	/**
+	 * Read the index file for this jar file, returning <code>null</code> if
+	 * there is no such file, or it is out-of-date.
+	 * 
+	 * @return
+	 */
+	private List<Record> readIndex() {
+		try {
+			File file = indexFile();
+			if (file == null || !file.exists()) {
+				return null;
+			}
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), "UTF-8"));
+			try {
+				if (!INDEX_HEADER.equals(in.readLine())
+						|| !indexKey().equals(in.readLine())) {
+					return null;
+				}
+				int count = Integer.parseInt(in.readLine());
+				ArrayList<Record> records = new ArrayList<Record>(count);
+				for (int i = 0; i != count; ++i) {
+					String line = in.readLine();
+					int first = line.indexOf(' ');
+					int second = line.indexOf(' ', first + 1);
+					long time = Long.parseLong(line.substring(0, first));
+					long size = Long.parseLong(line.substring(first + 1, second));
+					records.add(new Record(line.substring(second + 1), time, size, false));
+				}
+				return records;
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			// A missing or corrupt index is not an error, since we can always
+			// fall back to reading the jar file itself.
+			return null;
+		}
+	}
+	
+	/**
+	 * Write the index file for this jar file. This is written to a temporary
+	 * file first, and then renamed, so that a concurrent reader never sees a
+	 * partially written index.
+	 * 
+	 * @param records
+	 */
+	private void writeIndex(List<Record> records) {
+		try {
+			File file = indexFile();
+			if (file == null) {
+				return;
+			}
+			File parent = file.getParentFile();
+			if (!parent.exists() && parent.mkdirs()) {
+				// the index directory is accessible only by its owner
+				parent.setReadable(false, false);
+				parent.setWritable(false, false);
+				parent.setExecutable(false, false);
+				parent.setReadable(true, true);
+				parent.setWritable(true, true);
+				parent.setExecutable(true, true);
+			}
+			File tmp = File.createTempFile("index", ".tmp", parent);
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(tmp), "UTF-8"));
+			try {
+				out.println(INDEX_HEADER);
+				out.println(indexKey());
+				out.println(records.size());
+				for (Record r : records) {
+					out.println(r.time + " " + r.size + " " + r.name);
+				}
+			} finally {
+				out.close();
+			}
+			if (out.checkError()) {
+				tmp.delete();
+			} else if (!tmp.renameTo(file)) {
+				// some platforms will not rename over an existing file
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					tmp.delete();
+				}
+			}
+		} catch (Exception e) {
+			// Failing to write the index is not an error, since it is only an
+			// optimisation.
+		}
+	}
+	
+	/**
+	 * Get the jar file itself, opening it if necessary.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private synchronized JarFile jarFile() throws IOException {
+		if (jf == null) {
+			jf = new JarFile(dir);
+		}
+		return jf;
 	}
 	
 	@Override
@@ -101,9 +365,33 @@ public final class JarFileRoot extends AbstractRoot<JarFileRoot.Folder> implemen
 		return dir.getPath();
 	}
 	
+	/**
+	 * Records the information about an item in the jar file which is needed
+	 * to construct the corresponding entry or folder.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	private static final class Record {
+		/**
+		 * The full name of an entry in the jar file, or the name of a folder
+		 * within its enclosing folder.
+		 */
+		public final String name;
+		public final long time;
+		public final long size;
+		public final boolean folder;
+		
+		public Record(String name, long time, long size, boolean folder) {
+			this.name = name;
+			this.time = time;
+			this.size = size;
+			this.folder = folder;
+		}
+	}
 	
 	/**
-	 * Represents a directory on a physical file system.
+	 * Represents a directory within a jar file.
 	 * 
 	 * @author David J. Pearce
 	 *
@@ -115,25 +403,30 @@ public final class JarFileRoot extends AbstractRoot<JarFileRoot.Folder> implemen
 
 		@Override
 		protected Path.Item[] contents() throws IOException {	
-			// This algorithm is straightforward. I use a two loops instead of a
-			// single loop with ArrayList to avoid allocating on the heap. 
-			int count = 0 ;
-			for(int i=0;i!=jfContents.length;++i) {
-				Path.Item item = jfContents[i];				
-				if(item.id().parent() == id) {
-					count++;
-				}
+			ArrayList<Record> records;
+			synchronized (JarFileRoot.this) {
+				records = folders.get(id);
 			}
-			
-			Path.Item[] myContents = new Path.Item[count];
-			count=0;
-			for(int i=0;i!=jfContents.length;++i) {
-				Path.Item item = jfContents[i];
-				if(item.id().parent() == id) {
-					myContents[count++] = item;
+			if (records == null) {
+				return new Path.Item[0];
+			}
+			Path.Item[] myContents = new Path.Item[records.size()];
+			for (int i = 0; i != myContents.length; ++i) {
+				Record r = records.get(i);
+				if (r.folder) {
+					myContents[i] = new Folder(id.append(r.name));
+				} else {
+					String filename = r.name;
+					int lastSlash = filename.lastIndexOf('/');
+					int lastDot = filename.lastIndexOf('.');
+					String name = lastDot > lastSlash ? filename.substring(
+							lastSlash + 1, lastDot) : filename
+							.substring(lastSlash + 1);
+					Entry pe = new Entry(id.append(name), r);
+					contentTypes.associate(pe);
+					myContents[i] = pe;
 				}
 			}
-			
 			return myContents;
 		}
 
@@ -143,22 +436,29 @@ public final class JarFileRoot extends AbstractRoot<JarFileRoot.Folder> implemen
 		}
 	}
 	
-	private static final class Entry<T> extends AbstractEntry<T> implements Path.Entry<T> {		
-		private final JarFile parent;
-		private final JarEntry entry;
+	private final class Entry<T> extends AbstractEntry<T> implements Path.Entry<T> {		
+		private final Record record;
+		
+		/**
+		 * The decompressed bytes of this entry, if they are cached.
+		 */
+		private byte[] bytes;
 
-		public Entry(Trie mid, JarFile parent, JarEntry entry) {
+		public Entry(Path.ID mid, Record record) {
 			super(mid);
-			this.parent = parent;
-			this.entry = entry;
+			this.record = record;
 		}
 
 		public String location() {
-			return parent.getName();
+			return dir.getPath();
 		}
 		
 		public long lastModified() {
-			return entry.getTime();
+			return record.time;
+		}
+		
+		protected long size() {
+			return record.size;
 		}
 		
 		public boolean isModified() {
@@ -172,16 +472,45 @@ public final class JarFileRoot extends AbstractRoot<JarFileRoot.Folder> implemen
 		
 		public String suffix() {
 			String suffix = "";
-			String filename = entry.getName();
+			String filename = record.name;
 			int pos = filename.lastIndexOf('.');
-			if (pos > 0) {
+			if (pos > filename.lastIndexOf('/')) {
 				suffix = filename.substring(pos + 1);
 			}
 			return suffix;
 		}
 		
-		public InputStream inputStream() throws IOException {
-			return parent.getInputStream(entry);
+		public synchronized InputStream inputStream() throws IOException {
+			if (bytes != null) {
+				return new ByteArrayInputStream(bytes);
+			}
+			JarFile jf = jarFile();
+			JarEntry entry = jf.getJarEntry(record.name);
+			if (entry == null) {
+				throw new FileNotFoundException(record.name + " (in "
+						+ dir.getPath() + ")");
+			}
+			InputStream in = jf.getInputStream(entry);
+			long size = entry.getSize();
+			if (size < 0 || size > cacheLimit) {
+				return in;
+			}
+			try {
+				byte[] data = new byte[(int) size];
+				int offset = 0;
+				while (offset < data.length) {
+					int n = in.read(data, offset, data.length - offset);
+					if (n < 0) {
+						throw new EOFException(record.name + " (in "
+								+ dir.getPath() + ")");
+					}
+					offset += n;
+				}
+				bytes = data;
+			} finally {
+				in.close();
+			}
+			return new ByteArrayInputStream(bytes);
 		}
 
 		public OutputStream outputStream() throws IOException {
@@ -318,11 +318,35 @@ public final class OptArg {
 	 *         encountered (that is, a token starting with '-')..
 	 */
 	public static Map<String,Object> parseOptions(List<String> args, OptArg... options) {
+		return parseOptions(args, null, options);
+	}
+	
+	/**
+	 * Parse options from the list of arguments, as above. However, any file
+	 * paths given as arguments to options (including default values) are
+	 * interpreted relative to the given directory, rather than the current
+	 * working directory. This is useful when processing arguments on behalf
+	 * of some other process (e.g. a compile server).
+	 * 
+	 * @param args
+	 *            --- the list of argument strings. This is modified by removing
+	 *            those which are processed.
+	 * @param dir
+	 *            --- the directory against which relative paths are resolved,
+	 *            or null for the current working directory.
+	 * @param options
+	 *            --- the list of OptArg defining which options should be
+	 *            processed
+	 */
+	public static Map<String, Object> parseOptions(List<String> args,
+			File dir, OptArg... options) {
 		HashMap<String,Object> result = new HashMap<String,Object>();
 		HashMap<String,OptArg> optmap = new HashMap<String,OptArg>();		
 		
 		for(OptArg opt : options) {
-			if(opt.defaultValue != null) {
+			if(opt.defaultValue instanceof File) {
+				result.put(opt.option, resolve(dir, opt.defaultValue.toString()));
+			} else if(opt.defaultValue != null) {
 				result.put(opt.option, opt.defaultValue);
 			}
 			optmap.put(opt.option, opt);			
@@ -342,6 +366,18 @@ public final class OptArg {
 					if(k != null) {		
 						String param = iter.next();
 						iter.remove();
+						if (dir != null && (k == FILE || k == FILEDIR)) {
+							param = resolve(dir, param).getPath();
+						} else if (dir != null && k == FILELIST) {
+							String r = "";
+							for (String s : param.split(File.pathSeparator)) {
+								if (!r.equals("")) {
+									r += File.pathSeparator;
+								}
+								r += resolve(dir, s).getPath();
+							}
+							param = r;
+						}
 						k.process(opt.option,param,result);
 					} else {
 						result.put(opt.option,null);
@@ -355,6 +391,23 @@ public final class OptArg {
 		return result;
 	}
 	
+	/**
+	 * Interpret a given path relative to a given directory. If the path is
+	 * absolute, or the directory is null, then the path is unchanged.
+	 * 
+	 * @param dir
+	 * @param path
+	 * @return
+	 */
+	public static File resolve(File dir, String path) {
+		File f = new File(path);
+		if (dir == null || f.isAbsolute()) {
+			return f;
+		} else {
+			return new File(dir, path);
+		}
+	}
+	
 	public static void usage(PrintStream output, OptArg...options) {
 		// first, work out gap information
 		int gap = 0;		
@@ -0,0 +1,137 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wybs.util;
+
+import java.io.*;
+import java.util.*;
+
+import wybs.lang.Content;
+
+/**
+ * <p>
+ * Caches the roots of jar files (e.g. the standard library), such that they
+ * can be shared between builds. Since the entries of a root cache their
+ * contents once read, this means a library is only loaded once, rather than
+ * once per build. This is intended for long running processes, such as a
+ * compile server, which perform many builds against the same libraries.
+ * </p>
+ * 
+ * <p>
+ * A cached root is discarded if its jar file has since been modified. Roots
+ * are also keyed on the kind of content registry used, since this determines
+ * the content types associated with their entries.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> this class is thread-safe. The roots it returns are shared by
+ * every build which requests them, which is safe since jar files are
+ * read-only.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public class RootCache {
+
+	/**
+	 * Maps each (canonical) jar file and registry class to the root last
+	 * constructed for it.
+	 */
+	private final HashMap<Pair<File, Class<?>>, Item> roots = new HashMap<Pair<File, Class<?>>, Item>();
+
+	/**
+	 * The maximum size of entries whose decompressed bytes are cached by each
+	 * root (see <code>JarFileRoot.setCacheLimit()</code>).
+	 */
+	private int entryCacheLimit = 64 * 1024;
+
+	/**
+	 * Get the root for a given jar file, constructing it if there is no root
+	 * for the file in the cache, or the file has changed since it was cached.
+	 * 
+	 * @param jar
+	 *            --- the jar file in question.
+	 * @param registry
+	 *            --- the content registry to be used for the root.
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized JarFileRoot get(File jar, Content.Registry registry)
+			throws IOException {
+		jar = jar.getCanonicalFile();
+		Pair<File, Class<?>> key = new Pair<File, Class<?>>(jar,
+				registry.getClass());
+		Item item = roots.get(key);
+		long lastModified = jar.lastModified();
+		long length = jar.length();
+		if (item == null || item.lastModified != lastModified
+				|| item.length != length) {
+			JarFileRoot root = new JarFileRoot(jar, registry);
+			root.setCacheLimit(entryCacheLimit);
+			item = new Item(root, lastModified, length);
+			roots.put(key, item);
+		}
+		return item.root;
+	}
+
+	/**
+	 * Set the maximum size of entries whose decompressed bytes are cached by
+	 * the roots subsequently constructed. A limit of zero disables this.
+	 * 
+	 * @param limit
+	 */
+	public synchronized void setEntryCacheLimit(int limit) {
+		this.entryCacheLimit = limit;
+	}
+
+	/**
+	 * Discard all cached roots.
+	 */
+	public synchronized void clear() {
+		roots.clear();
+	}
+
+	/**
+	 * Return the number of roots currently cached.
+	 * 
+	 * @return
+	 */
+	public synchronized int size() {
+		return roots.size();
+	}
+
+	private static final class Item {
+		public final JarFileRoot root;
+		public final long lastModified;
+		public final long length;
+
+		public Item(JarFileRoot root, long lastModified, long length) {
+			this.root = root;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+}
@@ -27,9 +27,11 @@ package wybs.util;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeMap;
 
 import wybs.lang.*;
 
@@ -51,12 +53,34 @@ import wybs.lang.*;
 public class StandardBuildRule implements BuildRule {	
 	private final Builder builder;
 	private final ArrayList<Item> items;
+	
+	/**
+	 * The manifest records the hash of every target built by this rule, and is
+	 * used to skip those which are already up-to-date. This may be null, in
+	 * which case every target requested is built.
+	 */
+	private BuildManifest manifest;
+	
+	/**
+	 * The dependency index identifies those entries upon which a given source
+	 * depends. This is used to ensure a target is not considered up-to-date
+	 * when something its source depends upon has changed.
+	 */
+	private DependencyIndex dependencies;
 
 	public StandardBuildRule(Builder builder) {
 		this.builder = builder;
 		this.items = new ArrayList<Item>();
 	}
 	
+	public void setManifest(BuildManifest manifest) {
+		this.manifest = manifest;
+	}
+	
+	public void setDependencyIndex(DependencyIndex dependencies) {
+		this.dependencies = dependencies;
+	}
+	
 	public void add(Path.Root source, Content.Filter includes,
 			Content.Filter excludes, Path.Root target, Content.Type<?> from,
 			Content.Type<?> to) {
@@ -90,6 +114,8 @@ public class StandardBuildRule implements BuildRule {
 
 	public void apply(Set<Path.Entry<?>> targets) throws Exception {
 		ArrayList<Pair<Path.Entry<?>,Path.Entry<?>>> delta = new ArrayList();
+		HashMap<Path.Entry<?>,Item> sourceItems = new HashMap();
+		ArrayList<Path.Entry<?>> upToDate = new ArrayList();
 		
 		for (int i = 0; i != items.size(); ++i) {
 			final Item item = items.get(i);
@@ -109,7 +135,20 @@ public class StandardBuildRule implements BuildRule {
 					if (se != null
 							&& includes.matches(se.id(), se.contentType())
 							&& (excludes == null || !excludes.matches(se.id(),
-									se.contentType()))) {						
+									se.contentType()))) {
+						if (manifest != null) {
+							// Check whether the target is already up-to-date
+							// and, if so, skip it. Observe that a target which
+							// has never been written to permanent storage
+							// cannot be up-to-date.
+							List<Path.Entry<?>> deps = dependenciesOf(se, item);
+							if (te.lastModified() != 0
+									&& manifest.isUpToDate(te, se, deps)) {
+								upToDate.add(te);
+								continue;
+							}
+							sourceItems.put(se, item);
+						}
 						delta.add(new Pair<Path.Entry<?>, Path.Entry<?>>(se, te));
 					}
 				}
@@ -138,12 +177,62 @@ public class StandardBuildRule implements BuildRule {
 //			}
 		}
 		
+		targets.removeAll(upToDate);
+		
 		if(!delta.isEmpty()) {
 			builder.build(delta);
 			for(Pair<Path.Entry<?>,Path.Entry<?>> p : delta) {
 				targets.remove(p.second());
+				if (manifest != null) {
+					// Observe that the dependencies are recomputed here, since
+					// building may have changed them.
+					Path.Entry<?> se = p.first();
+					manifest.record(p.second(), se,
+							dependenciesOf(se, sourceItems.get(se)));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Determine the entries upon which a given source entry depends, either
+	 * directly or transitively, as recorded in the dependency index. The
+	 * closure is needed since a change to one module can alter what a module
+	 * using it exposes (e.g. through an inferred type), without altering the
+	 * latter's contents. Only those dependencies which are found in the same
+	 * source root are returned; entries from other roots (e.g. libraries) are
+	 * accounted for by the configuration of the manifest. The entries are
+	 * returned in a fixed order to ensure a stable hash.
+	 * 
+	 * @param source
+	 * @param item
+	 * @return
+	 * @throws IOException
+	 */
+	private List<Path.Entry<?>> dependenciesOf(Path.Entry<?> source, Item item)
+			throws IOException {
+		if (dependencies == null) {
+			return Collections.EMPTY_LIST;
+		}
+		TreeMap<String, Path.Entry<?>> deps = new TreeMap<String, Path.Entry<?>>();
+		HashSet<Path.ID> visited = new HashSet<Path.ID>();
+		ArrayList<Path.ID> worklist = new ArrayList<Path.ID>();
+		visited.add(source.id());
+		worklist.add(source.id());
+		while (!worklist.isEmpty()) {
+			Path.ID next = worklist.remove(worklist.size() - 1);
+			for (Path.ID id : dependencies.dependenciesOf(next)) {
+				if (!visited.add(id)) {
+					continue;
+				}
+				Path.Entry<?> dep = item.source.get(id, item.from);
+				if (dep != null) {
+					deps.put(id.toString(), dep);
+					worklist.add(id);
+				}
 			}
 		}
+		return new ArrayList<Path.Entry<?>>(deps.values());
 	}
 	
 	private final static class Item {
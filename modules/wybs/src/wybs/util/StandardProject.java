@@ -57,6 +57,26 @@ public class StandardProject implements NameSpace {
 	 */
 	protected final ArrayList<BuildRule> rules;
 	
+	/**
+	 * The maximum number of threads which may be used to apply build rules.
+	 * By default, this is one and, hence, rules are applied sequentially on the
+	 * calling thread.
+	 */
+	protected int parallelism = 1;
+	
+	/**
+	 * For logging information about the build (e.g. the time taken for each
+	 * batch when building in parallel).
+	 */
+	protected Logger logger = Logger.NULL;
+	
+	/**
+	 * The index of horizontal dependencies between modules, which is used to
+	 * determine which modules must be rebuilt as a result of a change to
+	 * another. This may be null, in which case no horizontal dependencies are
+	 * considered.
+	 */
+	protected DependencyIndex dependencies;
 	
 	public StandardProject(Collection<Path.Root> roots) {
 		this.roots = new ArrayList<Path.Root>(roots);
@@ -83,6 +103,28 @@ public class StandardProject implements NameSpace {
 	public void add(BuildRule rule) {
 		rules.add(rule);
 	}
+	
+	/**
+	 * Set the maximum number of threads which may be used to apply build
+	 * rules. A value of one means the project is built sequentially.
+	 * 
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("invalid parallelism level: "
+					+ parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+	
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+	
+	public void setDependencyIndex(DependencyIndex dependencies) {
+		this.dependencies = dependencies;
+	}
 		
 	// ======================================================================
 	// Accessors
@@ -166,12 +208,18 @@ public class StandardProject implements NameSpace {
 		} while (allTargets.size() != oldSize);
 		
 		// Finally, build all identified targets!
-		do {
-			oldSize = allTargets.size();
-			for(BuildRule r : rules) {
-				r.apply(allTargets);
-			}
-		} while(allTargets.size() < oldSize);
+		if (parallelism > 1) {
+			BuildScheduler scheduler = new BuildScheduler(rules, parallelism,
+					logger, dependencies);
+			scheduler.build(sources, allTargets);
+		} else {
+			do {
+				oldSize = allTargets.size();
+				for (BuildRule r : rules) {
+					r.apply(allTargets);
+				}
+			} while (allTargets.size() < oldSize);
+		}
 
 		// If we didn't manage to build all the targets, then this indicates
 		// that some kind of cyclic dependency situation is present.
@@ -205,12 +253,26 @@ public class StandardProject implements NameSpace {
 	 * These are trickier to identify as we need to maintain dependence
 	 * information between them. For example, Test1.wyil will depende
 	 * horizontally on Test2.wyil if Test1.wyil uses something defined in
-	 * Test2.wyil.
+	 * Test2.wyil. Such information is maintained in the dependency index
+	 * and, hence, when no index is provided no horizontal dependencies are
+	 * identified.
 	 * 
 	 * @param allTargets
-	 * @throws IOException
+	 * @throws Exception
 	 */
-	private void addHorizontalDeps(HashSet<Path.Entry<?>> allTargets) throws IOException {
-		
+	private void addHorizontalDeps(HashSet<Path.Entry<?>> allTargets) throws Exception {
+		if (dependencies == null) {
+			return;
+		}
+		HashSet<Path.Entry<?>> delta = new HashSet();
+		for (Path.Entry<?> target : allTargets) {
+			for (Path.ID id : dependencies.dependentsOf(target.id())) {
+				Path.Entry<?> dependent = get(id, target.contentType());
+				if (dependent != null) {
+					delta.add(dependent);
+				}
+			}
+		}
+		allTargets.addAll(delta);
 	}
 }
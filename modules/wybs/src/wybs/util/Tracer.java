@@ -0,0 +1,436 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wybs.util;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * <p>
+ * Records the time and memory spent in each part of a build, such as parsing
+ * a given file or applying a given pipeline stage to it. Each part is
+ * recorded as a <i>span</i>, which captures the elapsed (wall clock) time,
+ * the CPU time consumed by the thread executing it and the number of bytes
+ * allocated by that thread. Unlike the free memory reported by
+ * <code>Logger</code>, the latter is not affected by garbage collection.
+ * </p>
+ * 
+ * <p>
+ * The recorded spans can be written in the Chrome trace event format (which
+ * can be viewed using <code>chrome://tracing</code>), or as a summary table
+ * which identifies the files and stages which dominate the build.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> this class is thread-safe. Spans may be nested, but a span
+ * must be ended by the thread which started it.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public class Tracer {
+
+	/**
+	 * The NULL tracer simply ignores all spans. This is the default for
+	 * builders, and costs very little.
+	 */
+	public static final Tracer NULL = new Tracer(false) {
+		public Span start(String category, String name, String file,
+				String detail) {
+			return NULL_SPAN;
+		}
+	};
+
+	private static final Span NULL_SPAN = new Span(null, null, null, null,
+			null, 0) {
+		public void end() {
+			// do nothing.
+		}
+	};
+
+	private static final ThreadMXBean threads = ManagementFactory
+			.getThreadMXBean();
+
+	/**
+	 * The method for determining the number of bytes allocated by a thread.
+	 * This is not part of the standard management interface and, hence, may
+	 * not be available (in which case this is <code>null</code>).
+	 */
+	private static final Method allocatedBytes;
+
+	static {
+		Method method = null;
+		try {
+			Class<?> iface = Class.forName("com.sun.management.ThreadMXBean");
+			if (iface.isInstance(threads)) {
+				method = iface.getMethod("getThreadAllocatedBytes", long.class);
+			}
+		} catch (Exception e) {
+			// not available on this platform
+		}
+		allocatedBytes = method;
+	}
+
+	/**
+	 * The (nano) time at which this tracer was created. All spans are
+	 * recorded relative to this.
+	 */
+	private final long origin = System.nanoTime();
+
+	/**
+	 * The spans which have been completed, in order of completion.
+	 */
+	private final ArrayList<Span> spans = new ArrayList<Span>();
+
+	/**
+	 * The names of the threads which have completed spans.
+	 */
+	private final HashMap<Long, String> threadNames = new HashMap<Long, String>();
+
+	/**
+	 * The number of spans currently open in each thread. This is used to
+	 * distinguish top-level spans from those nested within them.
+	 */
+	private final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	public Tracer() {
+		this(true);
+	}
+
+	/**
+	 * Construct a tracer which, optionally, enables the measurement of thread
+	 * CPU time. This is not done by the NULL tracer, since doing so may slow
+	 * down every thread in the JVM.
+	 * 
+	 * @param cpuTime
+	 *            --- whether or not to enable the measurement of thread CPU
+	 *            time.
+	 */
+	private Tracer(boolean cpuTime) {
+		if (cpuTime) {
+			try {
+				if (threads.isCurrentThreadCpuTimeSupported()
+						&& !threads.isThreadCpuTimeEnabled()) {
+					threads.setThreadCpuTimeEnabled(true);
+				}
+			} catch (UnsupportedOperationException e) {
+				// not available on this platform
+			}
+		}
+	}
+
+	/**
+	 * Start a new span in the current thread, which lasts until its
+	 * <code>end()</code> method is called.
+	 * 
+	 * @param category
+	 *            --- the kind of work being done (e.g. "parse", or "stage").
+	 * @param name
+	 *            --- the particular work being done (e.g. the name of a
+	 *            pipeline stage).
+	 * @param file
+	 *            --- the file being worked on, or <code>null</code> if not
+	 *            applicable.
+	 * @return
+	 */
+	public Span start(String category, String name, String file) {
+		return start(category, name, file, null);
+	}
+
+	/**
+	 * Start a new span in the current thread, which lasts until its
+	 * <code>end()</code> method is called.
+	 * 
+	 * @param category
+	 *            --- the kind of work being done (e.g. "parse", or "stage").
+	 * @param name
+	 *            --- the particular work being done (e.g. the name of a
+	 *            pipeline stage).
+	 * @param file
+	 *            --- the file being worked on, or <code>null</code> if not
+	 *            applicable.
+	 * @param detail
+	 *            --- further information which identifies the span (e.g. the
+	 *            declaration being worked on), or <code>null</code> if not
+	 *            applicable. This is not considered in the summary.
+	 * @return
+	 */
+	public Span start(String category, String name, String file, String detail) {
+		int[] d = depth.get();
+		return new Span(this, category, name, file, detail, d[0]++);
+	}
+
+	/**
+	 * Return the spans completed so far.
+	 * 
+	 * @return
+	 */
+	public synchronized List<Span> spans() {
+		return new ArrayList<Span>(spans);
+	}
+
+	/**
+	 * Write the spans completed so far in the Chrome trace (JSON) format.
+	 * 
+	 * @param out
+	 */
+	public synchronized void writeChromeTrace(PrintStream out) {
+		out.println("{\"traceEvents\":[");
+		boolean firstTime = true;
+		for (Map.Entry<Long, String> e : threadNames.entrySet()) {
+			if (!firstTime) {
+				out.println(",");
+			}
+			firstTime = false;
+			out.print("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"
+					+ e.getKey() + ",\"args\":{\"name\":" + quote(e.getValue())
+					+ "}}");
+		}
+		for (Span s : spans) {
+			if (!firstTime) {
+				out.println(",");
+			}
+			firstTime = false;
+			out.print("{\"name\":" + quote(s.name) + ",\"cat\":"
+					+ quote(s.category) + ",\"ph\":\"X\",\"pid\":1,\"tid\":"
+					+ s.thread + ",\"ts\":" + (s.startTime - origin) / 1000
+					+ ",\"dur\":" + s.wallTime() / 1000 + ",\"args\":{");
+			if (s.file != null) {
+				out.print("\"file\":" + quote(s.file) + ",");
+			}
+			if (s.detail != null) {
+				out.print("\"detail\":" + quote(s.detail) + ",");
+			}
+			out.print("\"cpu_us\":" + s.cpuTime() / 1000 + ",\"alloc_bytes\":"
+					+ s.allocated() + "}}");
+		}
+		out.println();
+		out.println("]}");
+		out.flush();
+	}
+
+	/**
+	 * Write a summary of the spans completed so far. This gives the total
+	 * time and allocation for each kind of work (i.e. category and name) and,
+	 * separately, for each file. The latter considers only top-level spans,
+	 * since nested spans are already included in their enclosing span.
+	 * 
+	 * @param out
+	 */
+	public synchronized void writeSummary(PrintStream out) {
+		LinkedHashMap<String, long[]> stages = new LinkedHashMap<String, long[]>();
+		LinkedHashMap<String, long[]> files = new LinkedHashMap<String, long[]>();
+		for (Span s : spans) {
+			accumulate(stages, s.category + ": " + s.name, s);
+			if (s.file != null && s.depth == 0) {
+				accumulate(files, s.file, s);
+			}
+		}
+		writeTable("STAGE", stages, out);
+		out.println();
+		writeTable("FILE", files, out);
+		out.flush();
+	}
+
+	/**
+	 * Record the completion of a given span.
+	 * 
+	 * @param span
+	 */
+	private synchronized void complete(Span span) {
+		depth.get()[0]--;
+		spans.add(span);
+		if (!threadNames.containsKey(span.thread)) {
+			threadNames.put(span.thread, Thread.currentThread().getName());
+		}
+	}
+
+	private static void accumulate(HashMap<String, long[]> totals, String key,
+			Span s) {
+		long[] total = totals.get(key);
+		if (total == null) {
+			total = new long[4];
+			totals.put(key, total);
+		}
+		total[0]++;
+		total[1] += s.wallTime();
+		total[2] += s.cpuTime();
+		total[3] += s.allocated();
+	}
+
+	private static void writeTable(String heading,
+			HashMap<String, long[]> totals, PrintStream out) {
+		ArrayList<Map.Entry<String, long[]>> rows = new ArrayList<Map.Entry<String, long[]>>(
+				totals.entrySet());
+		// Sort rows in order of decreasing time, so that the most expensive
+		// come first.
+		Collections.sort(rows, new Comparator<Map.Entry<String, long[]>>() {
+			public int compare(Map.Entry<String, long[]> r1,
+					Map.Entry<String, long[]> r2) {
+				long t1 = r1.getValue()[1];
+				long t2 = r2.getValue()[1];
+				return t1 < t2 ? 1 : (t1 > t2 ? -1 : 0);
+			}
+		});
+		out.println(String.format("%-50s %8s %10s %10s %10s", heading,
+				"COUNT", "WALL(ms)", "CPU(ms)", "ALLOC(mb)"));
+		for (Map.Entry<String, long[]> row : rows) {
+			long[] total = row.getValue();
+			out.println(String.format("%-50s %8d %10d %10d %10.1f",
+					row.getKey(), total[0], total[1] / 1000000,
+					total[2] / 1000000, total[3] / (1024.0 * 1024.0)));
+		}
+	}
+
+	private static String quote(String s) {
+		StringBuilder r = new StringBuilder("\"");
+		for (int i = 0; i != s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				r.append('\\');
+				r.append(c);
+			} else if (c < 0x20) {
+				r.append(String.format("\\u%04x", (int) c));
+			} else {
+				r.append(c);
+			}
+		}
+		r.append('"');
+		return r.toString();
+	}
+
+	private static long cpuTime() {
+		try {
+			return threads.getCurrentThreadCpuTime();
+		} catch (UnsupportedOperationException e) {
+			return 0;
+		}
+	}
+
+	private static long allocatedBytes(long thread) {
+		if (allocatedBytes != null) {
+			try {
+				return (Long) allocatedBytes.invoke(threads, thread);
+			} catch (Exception e) {
+				// fall through
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Represents a single piece of work carried out by a given thread.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	public static class Span {
+		private final Tracer tracer;
+		public final String category;
+		public final String name;
+		public final String file;
+		public final String detail;
+		public final int depth;
+		public final long thread;
+		private final long startTime;
+		private final long startCpu;
+		private final long startAllocated;
+		private long endTime;
+		private long endCpu;
+		private long endAllocated;
+		private boolean ended;
+
+		private Span(Tracer tracer, String category, String name, String file,
+				String detail, int depth) {
+			this.tracer = tracer;
+			this.category = category;
+			this.name = name;
+			this.file = file;
+			this.detail = detail;
+			this.depth = depth;
+			this.thread = Thread.currentThread().getId();
+			if (tracer != null) {
+				this.startAllocated = allocatedBytes(thread);
+				this.startCpu = Tracer.cpuTime();
+				this.startTime = System.nanoTime();
+			} else {
+				this.startAllocated = 0;
+				this.startCpu = 0;
+				this.startTime = 0;
+			}
+		}
+
+		/**
+		 * End this span. This must be called by the thread which started it.
+		 * Ending a span which has already ended has no effect.
+		 */
+		public void end() {
+			if (ended) {
+				return;
+			}
+			ended = true;
+			endTime = System.nanoTime();
+			endCpu = Tracer.cpuTime();
+			endAllocated = allocatedBytes(thread);
+			tracer.complete(this);
+		}
+
+		/**
+		 * The elapsed time of this span, in nanoseconds.
+		 * 
+		 * @return
+		 */
+		public long wallTime() {
+			return endTime - startTime;
+		}
+
+		/**
+		 * The CPU time consumed by this span, in nanoseconds.
+		 * 
+		 * @return
+		 */
+		public long cpuTime() {
+			return endCpu - startCpu;
+		}
+
+		/**
+		 * The number of bytes allocated during this span.
+		 * 
+		 * @return
+		 */
+		public long allocated() {
+			return endAllocated - startAllocated;
+		}
+	}
+}
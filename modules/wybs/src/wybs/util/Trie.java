@@ -46,7 +46,14 @@ import wybs.lang.Path;
  * <p>
  * <b>NOTE:</b> the implementation does not currently attempt to garbage collect
  * tries. Therefore, the memory consumed is proportional to the total number of
- * distinct tries created throughout the program's life
+ * distinct tries created throughout the program's life.
+ * </p>
+ * <p>
+ * Tries are shared between all threads in a build. Children are only ever
+ * added under a lock, whilst looking up an existing trie (which is by far the
+ * common case) requires neither locking nor allocation. An unlocked lookup
+ * which races with the addition of a child may fail to find an existing
+ * child, in which case it is simply repeated under the lock.
  * </p>
  * 
  * @author David J. Pearce
@@ -54,8 +61,6 @@ import wybs.lang.Path;
  */
 public final class Trie implements Path.ID, Path.Filter {
 
-	private static final Trie[] ONE_CHILD = new Trie[1];
-	
 	// =========================================================
 	// Public Constants
 	// =========================================================
@@ -70,8 +75,19 @@ public final class Trie implements Path.ID, Path.Filter {
 	private final String component;
 	private final int depth;
 	private final boolean isConcrete;
-	private Trie[] children;
-	private int nchildren;
+	private final int hashCode;
+	
+	/**
+	 * The children of this node, sorted by component. The array grows
+	 * geometrically and, hence, is usually updated in place. Only the first
+	 * <code>nchildren</code> elements are in use. Since this count is written
+	 * after the array, a thread which reads the count first will then see an
+	 * array holding at least that many children. Both are only written under
+	 * the lock and, since a new trie may be seen by other threads before its
+	 * constructor's writes are, the array is allocated by the first insertion.
+	 */
+	private volatile Trie[] children;
+	private volatile int nchildren;
 
 	// =========================================================
 	// Public Methods
@@ -86,8 +102,8 @@ public final class Trie implements Path.ID, Path.Filter {
 		} else {
 			this.depth = -1;
 		}
-		this.children = ONE_CHILD;
-		this.nchildren = 0;
+		this.hashCode = parent == null ? component.hashCode() : component
+				.hashCode() ^ parent.hashCode;
 		this.isConcrete = (parent == null || parent.isConcrete)
 				&& !component.contains("*");
 	}
@@ -127,6 +143,10 @@ public final class Trie implements Path.ID, Path.Filter {
 	}
 	
 	public Trie subpath(int start, int end) {
+		if (start == 0 && end <= size()) {
+			// In this case, the subpath is simply an ancestor of this trie.
+			return parent(end);
+		}
 		Trie id = Trie.ROOT;
 		for(int i=start;i!=end;++i) {
 			// TODO: this could be made more efficient
@@ -147,7 +167,10 @@ public final class Trie implements Path.ID, Path.Filter {
 	}
 	
 	public int compareTo(final Path.ID o) {
-		if(o instanceof Trie) {
+		if(o == this) {
+			// Since tries are unique, this is the common case of equality
+			return 0;
+		} else if(o instanceof Trie) {
 			// We can be efficient here
 			Trie t1 = this;
 			Trie t2 = (Trie) o;
@@ -178,11 +201,7 @@ public final class Trie implements Path.ID, Path.Filter {
 	}
 	
 	public int hashCode() {
-		int hc = component.hashCode();
-		if(parent != null) {
-			hc = hc ^ parent.hashCode();
-		}
-		return hc;
+		return hashCode;
 	}
 	
 	public boolean equals(final Object o) {
@@ -190,25 +209,56 @@ public final class Trie implements Path.ID, Path.Filter {
 	}
 	
 	public Trie append(final String component) {
+		int nchildren = this.nchildren;
+		Trie[] children = this.children;
 		int index = binarySearch(children, nchildren, component);
 		if(index >= 0) {
-			return children[index];
+			// Observe that, whilst another thread is inserting, the element
+			// found may have since moved. However, it must still be a child
+			// with the given component.
+			Trie child = children[index];
+			if(child.component.equals(component)) {
+				return child;
+			}
 		} 
+		return insert(component);
+	}
+	
+	/**
+	 * Add a new child to this node. Since another thread may have added the
+	 * same child after our (unsynchronised) search, we must search again under
+	 * the lock.
+	 * 
+	 * @param component
+	 * @return
+	 */
+	private synchronized Trie insert(final String component) {
+		Trie[] children = this.children;
+		int nchildren = this.nchildren;
+		int index = binarySearch(children, nchildren, component);
+		if(index >= 0) {
+			return children[index];
+		}
 		
 		Trie nt = new Trie(this,component);
 		index = -index - 1; // calculate insertion point
-
-		if((nchildren+1) < children.length) {
+		
+		if(children != null && nchildren < children.length) {
+			// A concurrent search may observe the array part way through
+			// this shift, but can at worst miss a child (and then repeat the
+			// search under the lock).
 			System.arraycopy(children, index, children, index+1, nchildren - index);
+			children[index] = nt;
 		} else {
-			Trie[] tmp = new Trie[children.length * 2];
-			System.arraycopy(children, 0, tmp, 0, index);
-			System.arraycopy(children, index, tmp, index+1, nchildren - index);	
-			children = tmp;
+			Trie[] tmp = new Trie[children == null ? 2 : children.length * 2];
+			if(children != null) {
+				System.arraycopy(children, 0, tmp, 0, index);
+				System.arraycopy(children, index, tmp, index+1, nchildren - index);
+			}
+			tmp[index] = nt;
+			this.children = tmp;
 		}
-		
-		children[index] = nt;
-		nchildren++;
+		this.nchildren = nchildren + 1;
 		return nt;
 	}
 	
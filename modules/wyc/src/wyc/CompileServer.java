@@ -0,0 +1,307 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyc;
+
+import java.io.*;
+import java.net.*;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import wybs.util.RootCache;
+
+/**
+ * <p>
+ * A compile server carries out builds on behalf of clients, within a single
+ * long-running JVM. This avoids the costs of starting a new JVM, loading the
+ * compiler and reading the standard library on every build, which otherwise
+ * dominate small edit-compile cycles. In particular, jar files on the boot
+ * and whiley paths are shared between builds via a <code>RootCache</code>, as
+ * are the (static) intern tables for types, bytecodes and constants.
+ * </p>
+ * 
+ * <p>
+ * Requests are accepted over a socket on the loopback interface, and are
+ * processed one at a time. The protocol is line-based (using UTF-8), so that
+ * a client can easily be written as a shell script. A request consists of the
+ * name of the main class the client expects (e.g. <code>wyc.WycMain</code>),
+ * the client's working directory, the number of command-line arguments, and
+ * then the arguments themselves, each on its own line. The response consists
+ * of lines beginning with "o " (normal output) or "e " (error output), and is
+ * terminated by a line consisting of "x " followed by the exit status.
+ * </p>
+ * 
+ * <p>
+ * Since the loopback interface is accessible to every user of the machine,
+ * each request must be preceded by a line holding a token, which the server
+ * generates when it starts. The token is written to a file in the home
+ * directory of the user running the server (see <code>tokenFile()</code>),
+ * which only that user can read. Clients which take too long to send their
+ * request are disconnected, so that they cannot block other clients.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public class CompileServer {
+
+	/**
+	 * The compiler on whose behalf this server is running. This is not used
+	 * directly; rather, a fresh instance is created for each request.
+	 */
+	private final WycMain main;
+
+	/**
+	 * The port on which requests are accepted.
+	 */
+	private final int port;
+
+	/**
+	 * The jar file roots shared between builds.
+	 */
+	private final RootCache roots = new RootCache();
+
+	/**
+	 * The token which every request must begin with.
+	 */
+	private final String token;
+
+	/**
+	 * The time (in milliseconds) a client may take to send its request.
+	 */
+	private static final int READ_TIMEOUT = 30000;
+
+	/**
+	 * The maximum number of arguments which a request may contain.
+	 */
+	private static final int MAX_ARGUMENTS = 65536;
+
+	public CompileServer(WycMain main, int port) {
+		this.main = main;
+		this.port = port;
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder r = new StringBuilder();
+		for (byte b : bytes) {
+			r.append(Character.forDigit((b >> 4) & 0xF, 16));
+			r.append(Character.forDigit(b & 0xF, 16));
+		}
+		this.token = r.toString();
+	}
+
+	/**
+	 * Determine the file in which the token for a server listening on a given
+	 * port is stored. Clients must read the token from this file.
+	 * 
+	 * @param port
+	 * @return
+	 */
+	public static File tokenFile(int port) {
+		return new File(System.getProperty("user.home"), ".wyc-server-" + port);
+	}
+
+	/**
+	 * Accept and process requests, until this server is killed.
+	 * 
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		ServerSocket server = new ServerSocket(port, 50,
+				InetAddress.getByName(null));
+		try {
+			writeToken(tokenFile(port));
+			while (true) {
+				Socket socket = server.accept();
+				try {
+					socket.setSoTimeout(READ_TIMEOUT);
+					process(socket);
+				} catch (IOException e) {
+					// the client has gone away (or was too slow), so there is
+					// no-one to report this to.
+				} catch (RuntimeException e) {
+					// a single request must not bring down the server
+					e.printStackTrace();
+				} finally {
+					socket.close();
+				}
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * Write the token to a given file, which is made readable and writable
+	 * only by its owner before the token is written. The file is deleted when
+	 * the server exits.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	private void writeToken(File file) throws IOException {
+		file.delete();
+		if (!file.createNewFile()
+				|| !(file.setReadable(false, false)
+						&& file.setWritable(false, false)
+						&& file.setReadable(true, true) && file
+							.setWritable(true, true))) {
+			throw new IOException("unable to create token file " + file);
+		}
+		file.deleteOnExit();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+				"UTF-8");
+		try {
+			writer.write(token + "\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Read a request from a given client, carry out the build and report the
+	 * results back to the client.
+	 * 
+	 * @param socket
+	 * @throws IOException
+	 */
+	protected void process(Socket socket) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), "UTF-8"));
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				socket.getOutputStream(), "UTF-8"));
+		PrintStream out = new PrintStream(new Channel("o ", writer), true,
+				"UTF-8");
+		PrintStream err = new PrintStream(new Channel("e ", writer), true,
+				"UTF-8");
+
+		String key = in.readLine();
+		if (key == null
+				|| !MessageDigest.isEqual(key.getBytes("UTF-8"),
+						token.getBytes("UTF-8"))) {
+			// unauthorised request, which is not worth replying to
+			return;
+		}
+
+		String name = in.readLine();
+		String dir = in.readLine();
+		String count = in.readLine();
+		if (name == null || dir == null || count == null) {
+			// incomplete request
+			return;
+		}
+		int nargs;
+		try {
+			nargs = Integer.parseInt(count);
+		} catch (NumberFormatException e) {
+			nargs = -1;
+		}
+
+		int status;
+		if (nargs < 0 || nargs > MAX_ARGUMENTS) {
+			err.println("malformed request");
+			status = WycMain.INTERNAL_FAILURE;
+		} else {
+			String[] args = new String[nargs];
+			for (int i = 0; i != args.length; ++i) {
+				args[i] = in.readLine();
+				if (args[i] == null) {
+					// incomplete request
+					return;
+				}
+			}
+			String unsupported = null;
+			for (String arg : args) {
+				if (arg.equals("-watch") || arg.equals("-server")) {
+					// these would never return, thereby blocking all other
+					// requests to this server.
+					unsupported = arg;
+				}
+			}
+			if (!name.equals(main.getClass().getName())) {
+				err.println("compile server is running "
+						+ main.getClass().getName() + ", not " + name);
+				status = WycMain.INTERNAL_FAILURE;
+			} else if (unsupported != null) {
+				err.println("option " + unsupported
+						+ " is not supported by the compile server");
+				status = WycMain.INTERNAL_FAILURE;
+			} else {
+				WycMain request = main.newInstance();
+				request.setOutput(out, err);
+				request.setWorkingDirectory(new File(dir));
+				request.builder.setRootCache(roots);
+				status = request.run(args);
+			}
+		}
+
+		out.close();
+		err.close();
+		writer.write("x " + status + "\n");
+		writer.flush();
+	}
+
+	/**
+	 * Passes output back to the client one line at a time, with each line
+	 * marked by a given prefix to indicate which stream it belongs to.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	private static final class Channel extends OutputStream {
+		private final String prefix;
+		private final Writer writer;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		public Channel(String prefix, Writer writer) {
+			this.prefix = prefix;
+			this.writer = writer;
+		}
+
+		public void write(int b) throws IOException {
+			if (b == '\n') {
+				emit();
+			} else if (b != '\r') {
+				line.write(b);
+			}
+		}
+
+		public void close() throws IOException {
+			if (line.size() > 0) {
+				// output a partial last line
+				emit();
+			}
+		}
+
+		private void emit() throws IOException {
+			synchronized (writer) {
+				writer.write(prefix);
+				writer.write(line.toString("UTF-8"));
+				writer.write("\n");
+				writer.flush();
+			}
+			line.reset();
+		}
+	}
+}
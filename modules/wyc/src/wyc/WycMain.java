@@ -70,6 +70,16 @@ public class WycMain {
 					"Print detailed information on what the compiler is doing"),
 			new OptArg("verify",
 					"Enable detailed verification checking"),
+			new OptArg("jobs", "j", OptArg.INT,
+					"Specify the number of threads to use when compiling", 1),
+			new OptArg("server", OptArg.INT,
+					"Run as a compile server, accepting builds on the given port"),
+			new OptArg("watch",
+					"Watch the source directory, rebuilding files as they change"),
+			new OptArg("cache", OptArg.INT,
+					"Bound the memory used to hold file contents (in megabytes)"),
+			new OptArg("trace", OptArg.FILE,
+					"Write a (Chrome) trace of the build to the given file, and print a summary"),
 			new OptArg("whileypath", "wp", OptArg.FILELIST,
 					"Specify where to find whiley (binary) files",
 					new ArrayList<String>()),
@@ -141,6 +151,22 @@ public class WycMain {
 	 */
 	protected final WycBuildTask builder;
 
+	/**
+	 * The stream to which normal output (e.g. usage information) is written.
+	 */
+	protected PrintStream out = System.out;
+	
+	/**
+	 * The stream to which error messages are written.
+	 */
+	protected PrintStream err = errout;
+	
+	/**
+	 * The directory against which relative paths given on the command-line
+	 * are resolved. This is null for the current working directory.
+	 */
+	protected File workingDir;
+	
 	// =========================================================================
 	// Constructors & Configuration
 	// =========================================================================
@@ -149,6 +175,26 @@ public class WycMain {
 		this.options = options;
 		this.builder = builder;
 	}
+	
+	/**
+	 * Construct a fresh instance of this compiler, with the same options.
+	 * This is used by the compile server to process each build request.
+	 * 
+	 * @return
+	 */
+	protected WycMain newInstance() {
+		return new WycMain(new WycBuildTask(), options);
+	}
+	
+	public void setOutput(PrintStream out, PrintStream err) {
+		this.out = out;
+		this.err = err;
+		builder.setLogOut(err);
+	}
+	
+	public void setWorkingDirectory(File workingDir) {
+		this.workingDir = workingDir;
+	}
 
 	// =========================================================================
 	// Run Method
@@ -163,16 +209,24 @@ public class WycMain {
 			// =====================================================================
 
 			ArrayList<String> args = new ArrayList<String>(Arrays.asList(_args));
-			Map<String, Object> values = OptArg.parseOptions(args, options);
+			Map<String, Object> values = OptArg.parseOptions(args, workingDir,
+					options);
 
 			// Second, check if we're printing version
 			if (values.containsKey("version")) {
 				version();
 				return SUCCESS;
 			}
+			
+			// Third, check if we're running as a compile server
+			if (values.containsKey("server")) {
+				new CompileServer(this, (Integer) values.get("server")).run();
+				return SUCCESS;
+			}
 
 			// Otherwise, if no files to compile specified, then print usage
-			if (args.isEmpty() || values.containsKey("help")) {
+			if ((args.isEmpty() && !values.containsKey("watch"))
+					|| values.containsKey("help")) {
 				usage();
 				return SUCCESS;
 			}
@@ -186,13 +240,13 @@ public class WycMain {
 						
 			ArrayList<File> delta = new ArrayList<File>();
 			for (String arg : args) {
-				delta.add(new File(arg));
+				delta.add(OptArg.resolve(workingDir, arg));
 			}
 			
 			// sanity check we've actually compiling things that exist
 			for(File f : delta) {
 				if(!f.exists()) {
-					System.out.println("wyc: file not found: " + f.getName());
+					out.println("wyc: file not found: " + f.getName());
 					return INTERNAL_FAILURE;
 				}
 			}
@@ -201,29 +255,115 @@ public class WycMain {
 			// Run Build Task
 			// =====================================================================
 
-			builder.build(delta);
+			if (values.containsKey("watch")) {
+				watch((File) values.get("whileydir"), delta, verbose);
+			} else {
+				File traceFile = (File) values.get("trace");
+				Tracer tracer = traceFile != null ? new Tracer() : Tracer.NULL;
+				builder.setTracer(tracer);
+				try {
+					builder.build(delta);
+				} finally {
+					if (traceFile != null) {
+						trace(tracer, traceFile);
+					}
+				}
+			}
+
+		} catch (Throwable e) {
+			return report(e, verbose);
+		}
 
-		} catch (InternalFailure e) {
-			e.outputSourceError(errout);
+		return SUCCESS;
+	}
+
+	/**
+	 * Build the given source files (or all modified source files, if none are
+	 * given) and then watch the source directory. Whenever source files
+	 * change, they are rebuilt along with any files which depend upon them.
+	 * Errors are reported as usual, but do not stop the watch. This method
+	 * only returns if watching the directory fails.
+	 * 
+	 * @param whileyDir
+	 *            --- source directory to watch.
+	 * @param delta
+	 *            --- source files to build initially.
+	 * @param verbose
+	 * @throws Exception
+	 */
+	protected void watch(File whileyDir, List<File> delta, boolean verbose)
+			throws Exception {
+		DirectoryWatcher watcher = new DirectoryWatcher(whileyDir);
+		try {
+			try {
+				if (delta.isEmpty()) {
+					builder.buildAll();
+				} else {
+					builder.build(delta);
+				}
+			} catch (Throwable e) {
+				report(e, verbose);
+			}
+			while (true) {
+				// Saving a file often generates several events in quick
+				// succession, hence we wait for things to settle down.
+				Set<File> changes = watcher.take(50);
+				try {
+					builder.buildChanges(changes);
+				} catch (Throwable e) {
+					report(e, verbose);
+				}
+			}
+		} finally {
+			watcher.close();
+		}
+	}
+	
+	/**
+	 * Write the spans recorded during a build to a given file, and print a
+	 * summary of them.
+	 * 
+	 * @param tracer
+	 * @param file
+	 * @throws IOException
+	 */
+	protected void trace(Tracer tracer, File file) throws IOException {
+		PrintStream trace = new PrintStream(new FileOutputStream(file));
+		try {
+			tracer.writeChromeTrace(trace);
+		} finally {
+			trace.close();
+		}
+		tracer.writeSummary(err);
+	}
+	
+	/**
+	 * Report an error which occurred during a build.
+	 * 
+	 * @param e
+	 * @param verbose
+	 * @return the appropriate exit status.
+	 */
+	protected int report(Throwable e, boolean verbose) {
+		if (e instanceof InternalFailure) {
+			((InternalFailure) e).outputSourceError(err);
 			if (verbose) {
-				e.printStackTrace(errout);
+				e.printStackTrace(err);
 			}
 			return INTERNAL_FAILURE;
-		} catch (SyntaxError e) {
-			e.outputSourceError(errout);
+		} else if (e instanceof SyntaxError) {
+			((SyntaxError) e).outputSourceError(err);
 			if (verbose) {
-				e.printStackTrace(errout);
+				e.printStackTrace(err);
 			}
 			return SYNTAX_ERROR;
-		} catch (Throwable e) {
-			errout.println("internal failure (" + e.getMessage() + ")");
+		} else {
+			err.println("internal failure (" + e.getMessage() + ")");
 			if (verbose) {
-				e.printStackTrace(errout);
+				e.printStackTrace(err);
 			}
 			return INTERNAL_FAILURE;
 		}
-
-		return SUCCESS;
 	}
 
 	// =========================================================================
@@ -235,6 +375,22 @@ public class WycMain {
 				
 		builder.setVerbose(verbose);
 		builder.setVerification(values.containsKey("verify"));
+		
+		Integer jobs = (Integer) values.get("jobs");
+		if (jobs != null) {
+			builder.setParallelism(jobs);
+		}
+		
+		Integer cacheSize = (Integer) values.get("cache");
+		if (cacheSize != null) {
+			// Source files are not registered, since they are annotated in
+			// place during compilation and, hence, cannot be read again.
+			ContentCache cache = new ContentCache(cacheSize * 1024L * 1024L);
+			cache.register(WyilFile.ContentType, 10);
+			AbstractEntry.setContentCache(cache);
+		} else {
+			AbstractEntry.setContentCache(null);
+		}
 
 		ArrayList<Pipeline.Modifier> pipelineModifiers = (ArrayList) values
 				.get("pipeline");
@@ -267,15 +423,15 @@ public class WycMain {
 	}
 	
 	protected void version() {
-		System.out.println("Whiley Compiler (wyc) version "
+		out.println("Whiley Compiler (wyc) version "
 				+ MAJOR_VERSION + "." + MINOR_VERSION + "."
 				+ MINOR_REVISION + " (build " + BUILD_NUMBER + ")");		
 	}
 	
 	protected void usage() {
-		System.out.println("usage: wyc <options> <source-files>");
-		OptArg.usage(System.out, options);
-		usage(System.out, WycBuildTask.defaultPipeline);		
+		out.println("usage: wyc <options> <source-files>");
+		OptArg.usage(out, options);
+		usage(out, WycBuildTask.defaultPipeline);		
 	}
 	
 	/**
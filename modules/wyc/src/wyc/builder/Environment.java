@@ -1,95 +1,545 @@
 package wyc.builder;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 
-
+/**
+ * <p>
+ * An immutable mapping from variable names to their (nominal) types, as used
+ * during flow typing. This is implemented as a persistent hash array mapped
+ * trie, so that an update produces a new environment in <i>O(log n)</i> time
+ * which shares all untouched subtrees with the original. Forking an
+ * environment (e.g. at a branch) is therefore free.
+ * </p>
+ *
+ * <p>
+ * The trie is kept in a canonical form: a branch node never holds exactly one
+ * child unless that child is itself a branch. This means two environments
+ * built from the same bindings have the same shape, which is exploited by
+ * <code>equals()</code> and <code>join()</code> to skip shared subtrees
+ * outright.
+ * </p>
+ */
 public final class Environment {
-	private final HashMap<String,Nominal> map;
-	private int count; // refCount
-	
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	private final Node root; // null when empty
+	private int size; // -1 if not yet computed
+	private int hashCode; // cached, 0 if not yet computed
+
 	public Environment() {
-		count = 1;
-		map = new HashMap<String,Nominal>();
+		this(null, 0);
 	}
-	
-	private Environment(HashMap<String,Nominal> types) {
-		count = 1;
-		this.map = (HashMap<String,Nominal>) types.clone();
+
+	private Environment(Node root, int size) {
+		this.root = root;
+		this.size = size;
 	}
 
 	public Nominal get(String key) {
-		return map.get(key);
+		Leaf l = find(key);
+		return l == null ? null : l.value;
 	}
-	
+
 	public boolean containsKey(String key) {
-		return map.containsKey(key);
+		return find(key) != null;
+	}
+
+	public int size() {
+		if (size < 0) {
+			size = leaves().size();
+		}
+		return size;
 	}
-	
+
 	public Set<String> keySet() {
-		return map.keySet();
+		HashSet<String> keys = new HashSet<String>();
+		for (Leaf l : leaves()) {
+			keys.add(l.key);
+		}
+		return keys;
 	}
-	
+
 	public Environment put(String key, Nominal value) {
-		if(count == 1) {
-			map.put(key,value);
+		int hash = hash(key);
+		if (root == null) {
+			return new Environment(new Leaf(hash, key, value), 1);
+		}
+		Node nroot = root.put(hash, key, value, 0);
+		if (nroot == root) {
 			return this;
-		} else {				
-			Environment nenv = new Environment(map);
-			nenv.map.put(key,value);
-			count--;
-			return nenv;
 		}
+		int nsize = size;
+		if (nsize >= 0 && root.find(hash, key, 0) == null) {
+			nsize = nsize + 1;
+		}
+		return new Environment(nroot, nsize);
 	}
-	
+
 	public Environment putAll(Environment env) {
-		if(count == 1) {
-			HashMap<String,Nominal> envTypes = env.map;							
-			map.putAll(envTypes);			
-			return this;
-		} else { 
-			Environment nenv = new Environment(map);
-			HashMap<String,Nominal> envTypes = env.map;			
-			nenv.map.putAll(envTypes);			
-			count--;
-			return nenv;				
+		Environment r = this;
+		for (Leaf l : env.leaves()) {
+			r = r.put(l.key, l.value);
 		}
+		return r;
 	}
-	
+
 	public Environment remove(String key) {
-		if(count == 1) {
-			map.remove(key);
+		if (root == null) {
+			return this;
+		}
+		Node nroot = root.remove(hash(key), key, 0);
+		if (nroot == root) {
+			return this;
+		}
+		return new Environment(nroot, size < 0 ? -1 : size - 1);
+	}
+
+	/**
+	 * Join this environment with another at a control-flow meet point. The
+	 * result contains only those variables bound in both, each mapped to the
+	 * union of its types. Subtrees which are shared between the two
+	 * environments are returned as is, without being visited.
+	 *
+	 * @param env
+	 * @return
+	 */
+	public Environment join(Environment env) {
+		if (root == env.root) {
+			return this;
+		} else if (root == null || env.root == null) {
+			return new Environment();
+		}
+		Node nroot = join(root, env.root, 0);
+		if (nroot == root) {
 			return this;
-		} else {				
-			Environment nenv = new Environment(map);
-			nenv.map.remove(key);
-			count--;
-			return nenv;
-		}
-	}		
-	
+		}
+		// The size is not known without visiting every binding, which is
+		// precisely what the join avoids.
+		return new Environment(nroot, nroot == null ? 0 : -1);
+	}
+
+	/**
+	 * Environments are immutable, hence there is no need to copy one before
+	 * updating it. This is retained so that forks in the flow typing remain
+	 * explicit.
+	 */
 	public Environment clone() {
-		count++;
 		return this;
 	}
-	
+
+	/**
+	 * Environments are immutable and shared, hence there is nothing to release
+	 * here.
+	 */
 	public void free() {
-		--count;			
 	}
-	
+
 	public String toString() {
+		HashMap<String, Nominal> map = new HashMap<String, Nominal>();
+		for (Leaf l : leaves()) {
+			map.put(l.key, l.value);
+		}
 		return map.toString();
 	}
-	
+
 	public int hashCode() {
-		return map.hashCode();
+		int h = hashCode;
+		if (h == 0) {
+			for (Leaf l : leaves()) {
+				h += l.hashCode();
+			}
+			hashCode = h;
+		}
+		return h;
 	}
-	
+
 	public boolean equals(Object o) {
 		if (o instanceof Environment) {
 			Environment r = (Environment) o;
-			return map.equals(r.map);
+			return equals(root, r.root, 0);
 		}
 		return false;
 	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+
+	private Leaf find(String key) {
+		return root == null ? null : root.find(hash(key), key, 0);
+	}
+
+	private ArrayList<Leaf> leaves() {
+		ArrayList<Leaf> leaves = new ArrayList<Leaf>();
+		if (root != null) {
+			root.collect(leaves);
+		}
+		return leaves;
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static int bit(int hash, int shift) {
+		return 1 << ((hash >>> shift) & MASK);
+	}
+
+	/**
+	 * Construct a branch holding two nodes whose hashes differ, starting at a
+	 * given depth.
+	 */
+	private static Node branch(int shift, Node a, int ha, Node b, int hb) {
+		int ia = (ha >>> shift) & MASK;
+		int ib = (hb >>> shift) & MASK;
+		if (ia == ib) {
+			return new Branch(1 << ia, new Node[] { branch(shift + BITS, a, ha,
+					b, hb) });
+		} else if (ia < ib) {
+			return new Branch((1 << ia) | (1 << ib), new Node[] { a, b });
+		} else {
+			return new Branch((1 << ia) | (1 << ib), new Node[] { b, a });
+		}
+	}
+
+	/**
+	 * Build a node from a list of leaves, all of which are found at the same
+	 * position in the trie.
+	 */
+	private static Node build(ArrayList<Leaf> leaves, int shift) {
+		Node r = null;
+		for (Leaf l : leaves) {
+			r = r == null ? l : r.put(l.hash, l.key, l.value, shift);
+		}
+		return r;
+	}
+
+	private static Node join(Node lhs, Node rhs, int shift) {
+		if (lhs == rhs) {
+			return lhs;
+		} else if (lhs instanceof Branch && rhs instanceof Branch) {
+			Branch l = (Branch) lhs;
+			Branch r = (Branch) rhs;
+			int common = l.bitmap & r.bitmap;
+			Node[] children = new Node[Integer.bitCount(common)];
+			int bitmap = 0;
+			int n = 0;
+			boolean unchanged = common == l.bitmap;
+			while (common != 0) {
+				int bit = common & -common;
+				common &= ~bit;
+				Node lc = l.child(bit);
+				Node c = join(lc, r.child(bit), shift + BITS);
+				if (c != null) {
+					bitmap |= bit;
+					children[n++] = c;
+				}
+				unchanged &= (c == lc);
+			}
+			if (unchanged) {
+				return lhs;
+			}
+			return Branch.create(bitmap, children, n);
+		}
+		// At least one side is a leaf or collision, so has few bindings.
+		ArrayList<Leaf> result = new ArrayList<Leaf>();
+		if (!(lhs instanceof Branch)) {
+			for (Leaf l : lhs.collect(new ArrayList<Leaf>())) {
+				Leaf r = rhs.find(l.hash, l.key, shift);
+				if (r != null) {
+					result.add(l.join(r));
+				}
+			}
+		} else {
+			for (Leaf r : rhs.collect(new ArrayList<Leaf>())) {
+				Leaf l = lhs.find(r.hash, r.key, shift);
+				if (l != null) {
+					result.add(l.join(r));
+				}
+			}
+		}
+		return build(result, shift);
+	}
+
+	private static boolean equals(Node lhs, Node rhs, int shift) {
+		if (lhs == rhs) {
+			return true;
+		} else if (lhs == null || rhs == null) {
+			return false;
+		} else if (lhs instanceof Branch && rhs instanceof Branch) {
+			Branch l = (Branch) lhs;
+			Branch r = (Branch) rhs;
+			if (l.bitmap != r.bitmap) {
+				return false;
+			}
+			for (int i = 0; i != l.children.length; ++i) {
+				if (!equals(l.children[i], r.children[i], shift + BITS)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		// Fall back on comparing bindings directly. Since both nodes sit at
+		// the same position, they cover the same range of hashes.
+		ArrayList<Leaf> ls = lhs.collect(new ArrayList<Leaf>());
+		ArrayList<Leaf> rs = rhs.collect(new ArrayList<Leaf>());
+		if (ls.size() != rs.size()) {
+			return false;
+		}
+		for (Leaf l : ls) {
+			Leaf r = rhs.find(l.hash, l.key, shift);
+			if (r == null || !l.value.equals(r.value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// =========================================================================
+	// Trie Nodes
+	// =========================================================================
+
+	private static abstract class Node {
+		/**
+		 * Find the binding for a given key, or null if there is none.
+		 */
+		public abstract Leaf find(int hash, String key, int shift);
+
+		/**
+		 * Bind a given key, returning this node if nothing changed.
+		 */
+		public abstract Node put(int hash, String key, Nominal value, int shift);
+
+		/**
+		 * Unbind a given key, returning this node if nothing changed or null
+		 * if the node is now empty.
+		 */
+		public abstract Node remove(int hash, String key, int shift);
+
+		public abstract ArrayList<Leaf> collect(ArrayList<Leaf> leaves);
+	}
+
+	private static final class Leaf extends Node {
+		public final int hash;
+		public final String key;
+		public final Nominal value;
+
+		public Leaf(int hash, String key, Nominal value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+
+		public Leaf find(int hash, String key, int shift) {
+			return this.key.equals(key) ? this : null;
+		}
+
+		public Node put(int hash, String key, Nominal value, int shift) {
+			if (this.key.equals(key)) {
+				return this.value == value ? this : new Leaf(hash, key, value);
+			}
+			Leaf l = new Leaf(hash, key, value);
+			if (this.hash == hash) {
+				return new Collision(hash, new Leaf[] { this, l });
+			}
+			return branch(shift, this, this.hash, l, hash);
+		}
+
+		public Node remove(int hash, String key, int shift) {
+			return this.key.equals(key) ? null : this;
+		}
+
+		public ArrayList<Leaf> collect(ArrayList<Leaf> leaves) {
+			leaves.add(this);
+			return leaves;
+		}
+
+		public Leaf join(Leaf r) {
+			if (value == r.value || value.equals(r.value)) {
+				return this;
+			}
+			return new Leaf(hash, key, Nominal.Union(value, r.value));
+		}
+
+		public int hashCode() {
+			return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+		}
+	}
+
+	/**
+	 * Holds two or more bindings whose keys have identical hashes.
+	 */
+	private static final class Collision extends Node {
+		private final int hash;
+		private final Leaf[] leaves;
+
+		public Collision(int hash, Leaf[] leaves) {
+			this.hash = hash;
+			this.leaves = leaves;
+		}
+
+		public Leaf find(int hash, String key, int shift) {
+			if (this.hash == hash) {
+				for (Leaf l : leaves) {
+					if (l.key.equals(key)) {
+						return l;
+					}
+				}
+			}
+			return null;
+		}
+
+		public Node put(int hash, String key, Nominal value, int shift) {
+			if (this.hash != hash) {
+				return branch(shift, this, this.hash, new Leaf(hash, key,
+						value), hash);
+			}
+			for (int i = 0; i != leaves.length; ++i) {
+				if (leaves[i].key.equals(key)) {
+					Node l = leaves[i].put(hash, key, value, shift);
+					if (l == leaves[i]) {
+						return this;
+					}
+					Leaf[] nleaves = leaves.clone();
+					nleaves[i] = (Leaf) l;
+					return new Collision(hash, nleaves);
+				}
+			}
+			Leaf[] nleaves = new Leaf[leaves.length + 1];
+			System.arraycopy(leaves, 0, nleaves, 0, leaves.length);
+			nleaves[leaves.length] = new Leaf(hash, key, value);
+			return new Collision(hash, nleaves);
+		}
+
+		public Node remove(int hash, String key, int shift) {
+			if (this.hash != hash) {
+				return this;
+			}
+			for (int i = 0; i != leaves.length; ++i) {
+				if (leaves[i].key.equals(key)) {
+					if (leaves.length == 2) {
+						return leaves[1 - i];
+					}
+					Leaf[] nleaves = new Leaf[leaves.length - 1];
+					System.arraycopy(leaves, 0, nleaves, 0, i);
+					System.arraycopy(leaves, i + 1, nleaves, i, nleaves.length
+							- i);
+					return new Collision(hash, nleaves);
+				}
+			}
+			return this;
+		}
+
+		public ArrayList<Leaf> collect(ArrayList<Leaf> leaves) {
+			for (Leaf l : this.leaves) {
+				leaves.add(l);
+			}
+			return leaves;
+		}
+	}
+
+	/**
+	 * An interior node, whose bitmap identifies which of its 32 possible
+	 * children are present. The children are stored compactly in order.
+	 */
+	private static final class Branch extends Node {
+		private final int bitmap;
+		private final Node[] children;
+
+		public Branch(int bitmap, Node[] children) {
+			this.bitmap = bitmap;
+			this.children = children;
+		}
+
+		/**
+		 * Construct a branch from the first n children given, collapsing it
+		 * where possible to maintain canonical form.
+		 */
+		public static Node create(int bitmap, Node[] children, int n) {
+			if (n == 0) {
+				return null;
+			} else if (n == 1 && !(children[0] instanceof Branch)) {
+				return children[0];
+			} else if (n != children.length) {
+				Node[] nchildren = new Node[n];
+				System.arraycopy(children, 0, nchildren, 0, n);
+				children = nchildren;
+			}
+			return new Branch(bitmap, children);
+		}
+
+		private int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		public Node child(int bit) {
+			return children[index(bit)];
+		}
+
+		public Leaf find(int hash, String key, int shift) {
+			int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return null;
+			}
+			return children[index(bit)].find(hash, key, shift + BITS);
+		}
+
+		public Node put(int hash, String key, Nominal value, int shift) {
+			int bit = bit(hash, shift);
+			int idx = index(bit);
+			if ((bitmap & bit) == 0) {
+				Node[] nchildren = new Node[children.length + 1];
+				System.arraycopy(children, 0, nchildren, 0, idx);
+				nchildren[idx] = new Leaf(hash, key, value);
+				System.arraycopy(children, idx, nchildren, idx + 1,
+						children.length - idx);
+				return new Branch(bitmap | bit, nchildren);
+			}
+			Node child = children[idx];
+			Node nchild = child.put(hash, key, value, shift + BITS);
+			if (nchild == child) {
+				return this;
+			}
+			Node[] nchildren = children.clone();
+			nchildren[idx] = nchild;
+			return new Branch(bitmap, nchildren);
+		}
+
+		public Node remove(int hash, String key, int shift) {
+			int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+			int idx = index(bit);
+			Node child = children[idx];
+			Node nchild = child.remove(hash, key, shift + BITS);
+			if (nchild == child) {
+				return this;
+			} else if (nchild != null) {
+				if (children.length == 1 && !(nchild instanceof Branch)) {
+					return nchild;
+				}
+				Node[] nchildren = children.clone();
+				nchildren[idx] = nchild;
+				return new Branch(bitmap, nchildren);
+			}
+			Node[] nchildren = new Node[children.length - 1];
+			System.arraycopy(children, 0, nchildren, 0, idx);
+			System.arraycopy(children, idx + 1, nchildren, idx,
+					nchildren.length - idx);
+			return create(bitmap & ~bit, nchildren, nchildren.length);
+		}
+
+		public ArrayList<Leaf> collect(ArrayList<Leaf> leaves) {
+			for (Node c : children) {
+				c.collect(leaves);
+			}
+			return leaves;
+		}
+	}
 }
@@ -4,6 +4,7 @@ import static wyc.lang.WhileyFile.*;
 import static wyil.util.ErrorMessages.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import wyautl_old.lang.Automata;
 import wyautl_old.lang.Automaton;
@@ -35,9 +36,19 @@ import wyc.lang.WhileyFile;
  */
 public class GlobalResolver extends LocalResolver {
 	/**
-	 * The constant cache contains a cache of expanded constant values.
+	 * The constant cache contains a cache of expanded constant values. Since
+	 * the resolver may be shared between threads typing different files, all
+	 * caches are concurrent.
 	 */
-	private final HashMap<NameID, Constant> constantCache = new HashMap();
+	private final ConcurrentHashMap<NameID, Constant> constantCache = new ConcurrentHashMap<NameID, Constant>();
+	
+	/**
+	 * The type cache contains a cache of fully expanded named types. There are
+	 * separate caches for the constrained and unconstrained expansions, since
+	 * these differ for types which have constraints.
+	 */
+	private final ConcurrentHashMap<NameID, Type> typeCache = new ConcurrentHashMap<NameID, Type>();
+	private final ConcurrentHashMap<NameID, Type> unconstrainedTypeCache = new ConcurrentHashMap<NameID, Type>();
 	
 	public GlobalResolver(WhileyBuilder project) {
 		super(project);
@@ -83,6 +94,7 @@ public class GlobalResolver extends LocalResolver {
 						// ok, we have found the name in question. But, is it
 						// visible?
 						if(isVisible(nid,context)) {
+							addDependency(nid.module(),context);
 							return nid;
 						} else {
 							throw new ResolveError(nid + " is not visible");	
@@ -121,6 +133,7 @@ public class GlobalResolver extends LocalResolver {
 			NameID nid = new NameID(mid, name); 
 			if (builder.isName(nid)) {
 				if(isVisible(nid,context)) {
+					addDependency(mid,context);
 					return nid;
 				} else {
 					throw new ResolveError(nid + " is not visible");	
@@ -137,6 +150,7 @@ public class GlobalResolver extends LocalResolver {
 			NameID nid = new NameID(mid, name); 
 			if (builder.isName(nid)) {
 				if(isVisible(nid,context)) {
+					addDependency(mid,context);
 					return nid;
 				} else {
 					throw new ResolveError(nid + " is not visible");	
@@ -179,7 +193,8 @@ public class GlobalResolver extends LocalResolver {
 				continue; // skip as not relevant
 			}
 			
-			for(Path.ID mid : builder.imports(filter)) {								
+			for(Path.ID mid : builder.imports(filter)) {
+				addDependency(mid,context);
 				return mid;				
 			}
 		}
@@ -423,6 +438,30 @@ public class GlobalResolver extends LocalResolver {
 		// First, check the various caches we have
 		Integer root = roots.get(key);			
 		if (root != null) { return root; } 		
+		ConcurrentHashMap<NameID, Type> cache = unconstrained ? unconstrainedTypeCache
+				: typeCache;
+		Type cached = cache.get(key);
+		if (cached != null) {
+			roots.put(key, states.size());
+			return append(cached, states);
+		}
+		
+		int start = states.size();
+		int myIndex = expandAsType(key, states, roots, unconstrained);
+		
+		// Finally, cache the expanded type if it is complete. That is, when it
+		// contains no back-links to types further up which are still being
+		// expanded.
+		Type type = extract(start, myIndex, states);
+		if (type != null) {
+			cache.put(key, type);
+		}
+		
+		return myIndex;
+	}
+	
+	private int expandAsType(NameID key, ArrayList<Automaton.State> states,
+			HashMap<NameID, Integer> roots, boolean unconstrained) throws Exception {
 		
 		// check whether this type is external or not
 		WhileyFile wf = builder.getSourceFile(key.module());
@@ -476,14 +515,43 @@ public class GlobalResolver extends LocalResolver {
 		} else {						
 			return resolveAsType(type,td,states,roots,false,unconstrained);			
 		}
-		
-		// TODO: performance can be improved here, but actually assigning the
-		// constructed type into a cache of previously expanded types cache.
-		// This is challenging, in the case that the type may not be complete at
-		// this point. In particular, if it contains any back-links above this
-		// index there could be an issue.
 	}	
 	
+	/**
+	 * Extract the type rooted at a given index, provided it is closed. That is,
+	 * all states from the given start index onwards only refer to states
+	 * within that same range.
+	 * 
+	 * @param start
+	 *            --- index of first state in the range
+	 * @param root
+	 *            --- index of root state of type
+	 * @param states
+	 * @return --- the extracted type, or null if it is not closed.
+	 */
+	private static Type extract(int start, int root,
+			ArrayList<Automaton.State> states) {
+		if (root != start || root == states.size()) {
+			return null;
+		}
+		Automaton.State[] nStates = new Automaton.State[states.size() - start];
+		for (int i = 0; i != nStates.length; ++i) {
+			Automaton.State state = states.get(start + i);
+			int[] children = state.children;
+			int[] nChildren = new int[children.length];
+			for (int j = 0; j != children.length; ++j) {
+				int child = children[j];
+				if (child < start) {
+					return null; // back-link
+				}
+				nChildren[j] = child - start;
+			}
+			nStates[i] = new Automaton.State(state.kind, state.data,
+					state.deterministic, nChildren);
+		}
+		return Type.construct(new Automaton(nStates));
+	}
+	
 	private int resolveAsType(UnresolvedType.Primitive t,
 			Context context, ArrayList<Automaton.State> states) {
 		int myIndex = states.size();
@@ -559,7 +627,11 @@ public class GlobalResolver extends LocalResolver {
 	 * @return
 	 * @throws Exception
 	 */
-	private Constant resolveAsConstant(NameID key, HashSet<NameID> visited) throws Exception {				
+	private synchronized Constant resolveAsConstant(NameID key,
+			HashSet<NameID> visited) throws Exception {
+		// NOTE: this is synchronized since resolving a constant declared in a
+		// source file updates that file's declaration, and the file may be
+		// being typed concurrently by another thread.
 		Constant result = constantCache.get(key);
 		if(result != null) {
 			return result;
@@ -878,4 +950,18 @@ public class GlobalResolver extends LocalResolver {
 //			}
 		}		
 	}
+	
+	/**
+	 * Record that the module enclosing a given context uses something defined
+	 * in a given module. This information is used to determine which modules
+	 * must be rebuilt when another changes.
+	 * 
+	 * @param mid
+	 *            --- module on which the context depends.
+	 * @param context
+	 *            --- context in which the module was used.
+	 */
+	private void addDependency(Path.ID mid, Context context) {
+		builder.addDependency(context.file().module, mid);
+	}
 }
@@ -1527,15 +1527,6 @@ public abstract class LocalResolver extends AbstractResolver {
 		lhs.free();
 		rhs.free(); 		
 		
-		Environment result = new Environment();
-		for(String key : lhs.keySet()) {
-			if(rhs.containsKey(key)) {
-				Nominal lhs_t = lhs.get(key);
-				Nominal rhs_t = rhs.get(key);				
-				result.put(key, Nominal.Union(lhs_t, rhs_t));
-			}
-		}
-		
-		return result;
+		return lhs.join(rhs);
 	}	
 }
@@ -27,6 +27,7 @@ package wyc.builder;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import wyil.*;
 import wyil.lang.*;
@@ -91,16 +92,36 @@ public final class WhileyBuilder implements Builder {
 	private final NameSpace namespace;		
 	
 	/**
-	 * The list of stages which must be applied to a Wyil file.
+	 * The pipeline of stages which must be applied to a Wyil file.
+	 */
+	private final Pipeline<WyilFile> pipeline;
+	
+	/**
+	 * The list of stages which must be applied to a Wyil file. When building
+	 * in parallel, each file is instead given its own instances of these
+	 * stages, since stages are not required to be thread-safe.
 	 */
 	private final List<Transform<WyilFile>> stages;
 	
 	private Logger logger;
 	
+	/**
+	 * For recording the time and memory spent on each file and stage. By
+	 * default, nothing is recorded.
+	 */
+	private Tracer tracer = Tracer.NULL;
+	
+	/**
+	 * The maximum number of threads used to process source files. When this
+	 * is greater than one, each phase of the build is applied to all files in
+	 * parallel (although phases are still applied in order).
+	 */
+	private int parallelism = 1;
+	
 	/**
 	 * A map of the source files currently being compiled.
 	 */
-	private final HashMap<Path.ID, Path.Entry<WhileyFile>> srcFiles = new HashMap<Path.ID, Path.Entry<WhileyFile>>();
+	private final ConcurrentHashMap<Path.ID, Path.Entry<WhileyFile>> srcFiles = new ConcurrentHashMap<Path.ID, Path.Entry<WhileyFile>>();
 
 	/**
 	 * The import cache caches specific import queries to their result sets.
@@ -108,9 +129,17 @@ public final class WhileyBuilder implements Builder {
 	 * time. For example, the statement <code>import whiley.lang.*</code>
 	 * corresponds to the triple <code>("whiley.lang",*,null)</code>.
 	 */
-	private final HashMap<Trie,ArrayList<Path.ID>> importCache = new HashMap();	
+	private final ConcurrentHashMap<Trie,ArrayList<Path.ID>> importCache = new ConcurrentHashMap<Trie,ArrayList<Path.ID>>();	
+	
+	/**
+	 * The dependency index records, for each module compiled, those modules
+	 * from which it uses one or more names. This may be null, in which case
+	 * no dependency information is recorded.
+	 */
+	private DependencyIndex dependencies;
 		
 	public WhileyBuilder(NameSpace namespace, Pipeline<WyilFile> pipeline) {
+		this.pipeline = pipeline;
 		this.stages = pipeline.instantiate(this);
 		this.logger = Logger.NULL;
 		this.namespace = namespace;
@@ -124,6 +153,28 @@ public final class WhileyBuilder implements Builder {
 		this.logger = logger;
 	}
 	
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer;
+	}
+	
+	public void setDependencyIndex(DependencyIndex dependencies) {
+		this.dependencies = dependencies;
+	}
+	
+	/**
+	 * Set the maximum number of threads which may be used to process source
+	 * files.
+	 * 
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("invalid parallelism level: "
+					+ parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+	
 	public void build(List<Pair<Path.Entry<?>,Path.Entry<?>>> delta) throws Exception {
 		Runtime runtime = Runtime.getRuntime();
 		long startTime = System.currentTimeMillis();
@@ -135,81 +186,218 @@ public final class WhileyBuilder implements Builder {
 		// Parse and register source files
 		// ========================================================================
 		
-		srcFiles.clear();
-		int count=0;
+		ArrayList<Path.Entry<WhileyFile>> sources = new ArrayList<Path.Entry<WhileyFile>>();
+		ArrayList<Path.Entry<WyilFile>> targets = new ArrayList<Path.Entry<WyilFile>>();
 		for (Pair<Path.Entry<?>,Path.Entry<?>> p : delta) {
 			Path.Entry<?> f = p.first();
+			Path.Entry<?> s = p.second();
 			if (f.contentType() == WhileyFile.ContentType) {
-				Path.Entry<WhileyFile> sf = (Path.Entry<WhileyFile>) f;
-				WhileyFile wf = sf.read();
-				count++;				
-				srcFiles.put(wf.module, sf);
+				sources.add((Path.Entry<WhileyFile>) f);
+				if(s.contentType() == WyilFile.ContentType) {
+					targets.add((Path.Entry<WyilFile>) s);
+				} else {
+					targets.add(null);
+				}
 			}
 		}
-
-		logger.logTimedMessage("Parsed " + count + " source file(s).",
-				System.currentTimeMillis() - tmpTime, tmpMemory - runtime.freeMemory());
-
-		// ========================================================================
-		// Flow Type source files
-		// ========================================================================
 		
-		GlobalResolver resolver = new GlobalResolver(this);
+		ExecutorService executor = parallelism > 1 ? Executors
+				.newFixedThreadPool(parallelism) : null;
 		
-		runtime = Runtime.getRuntime();
-		tmpTime = System.currentTimeMillis();		
-		tmpMemory = runtime.freeMemory();
-		
-		for(Pair<Path.Entry<?>,Path.Entry<?>> p : delta) {
-			Path.Entry<?> f = p.first();
-			if (f.contentType() == WhileyFile.ContentType) {
-				Path.Entry<WhileyFile> sf = (Path.Entry<WhileyFile>) f;			
-				WhileyFile wf = sf.read();								
-				new FlowTyping(resolver).propagate(wf);						
+		// The dependencies of each module are cleared before it is rebuilt.
+		// Should the build fail, these are restored (alongside any found
+		// thus far) so that the index does not lose track of dependents.
+		HashMap<Path.ID, Set<Path.ID>> cleared = new HashMap<Path.ID, Set<Path.ID>>();
+		boolean completed = false;
+		try {
+			srcFiles.clear();
+			ArrayList<Callable<WhileyFile>> parsers = new ArrayList<Callable<WhileyFile>>();
+			for (final Path.Entry<WhileyFile> sf : sources) {
+				parsers.add(new Callable<WhileyFile>() {
+					public WhileyFile call() throws Exception {
+						Tracer.Span span = tracer.start("parse", "parse", sf
+								.id().toString());
+						try {
+							return sf.read();
+						} finally {
+							span.end();
+						}
+					}
+				});
 			}
-		}		
-		
-		logger.logTimedMessage("Typed " + count + " source file(s).",
-				System.currentTimeMillis() - tmpTime, tmpMemory - runtime.freeMemory());
-		
-		// ========================================================================
-		// Code Generation
-		// ========================================================================
-		
-		runtime = Runtime.getRuntime();
-		tmpTime = System.currentTimeMillis();		
-		tmpMemory = runtime.freeMemory();	
-
-		GlobalGenerator globalGen = new GlobalGenerator(this,resolver);
-		CodeGeneration generator = new CodeGeneration(this,globalGen,resolver);
-		for(Pair<Path.Entry<?>,Path.Entry<?>> p : delta) {
-			Path.Entry<?> f = p.first();
-			Path.Entry<?> s = (Path.Entry<?>) p.second();
-			if (f.contentType() == WhileyFile.ContentType && s.contentType() == WyilFile.ContentType) {
-				Path.Entry<WhileyFile> source = (Path.Entry<WhileyFile>) f;
-				Path.Entry<WyilFile> target = (Path.Entry<WyilFile>) s;				
-				WhileyFile wf = source.read();								
-				WyilFile wyil = generator.generate(wf);
-				target.write(wyil);
+			List<WhileyFile> files = execute(parsers, executor);
+			for (int i = 0; i != files.size(); ++i) {
+				WhileyFile wf = files.get(i);
+				srcFiles.put(wf.module, sources.get(i));
+				if (dependencies != null) {
+					// dependencies are recomputed during name resolution.
+					cleared.put(wf.module, dependencies.dependenciesOf(wf.module));
+					dependencies.clear(wf.module);
+				}
 			}
-		}
-		
-		logger.logTimedMessage("Generated code for " + count + " source file(s).",
+			int count = files.size();
+			
+			logger.logTimedMessage("Parsed " + count + " source file(s).",
 					System.currentTimeMillis() - tmpTime, tmpMemory - runtime.freeMemory());
-		
-		// ========================================================================
-		// Pipeline Stages
-		// ========================================================================
-				
-		for(Transform stage : stages) {
-			for(Pair<Path.Entry<?>,Path.Entry<?>> p : delta) {
-				Path.Entry<?> f = p.second();
-				if (f.contentType() == WyilFile.ContentType) {			
-					Path.Entry<WyilFile> wf = (Path.Entry<WyilFile>) f;
-					process(wf.read(),stage);
-				}				
+			
+			// ====================================================================
+			// Flow Type source files
+			// ====================================================================
+			
+			final GlobalResolver resolver = new GlobalResolver(this);
+			
+			runtime = Runtime.getRuntime();
+			tmpTime = System.currentTimeMillis();		
+			tmpMemory = runtime.freeMemory();
+			
+			// Every file is typed before code is generated for any of them,
+			// since generating code for one file may require the (typed)
+			// constraints of types declared in another. Likewise, the types
+			// and constants of every file are typed (in order) before any
+			// function or method, since resolving a name in one file may
+			// update the declaration of that name in another. The functions
+			// and methods of each file are then typed in parallel, as these
+			// are only updated by the file which declares them.
+			for (WhileyFile wf : files) {
+				Tracer.Span span = tracer.start("type", "flow typing",
+						wf.module.toString());
+				try {
+					new FlowTyping(resolver).propagateTypesAndConstants(wf);
+				} finally {
+					span.end();
+				}
+			}
+			ArrayList<Callable<WhileyFile>> typers = new ArrayList<Callable<WhileyFile>>();
+			for (final WhileyFile wf : files) {
+				typers.add(new Callable<WhileyFile>() {
+					public WhileyFile call() throws Exception {
+						Tracer.Span span = tracer.start("type", "flow typing",
+								wf.module.toString());
+						try {
+							new FlowTyping(resolver).propagateFunctionsAndMethods(wf);
+						} finally {
+							span.end();
+						}
+						return wf;
+					}
+				});
+			}
+			execute(typers, executor);
+			
+			logger.logTimedMessage("Typed " + count + " source file(s).",
+					System.currentTimeMillis() - tmpTime, tmpMemory - runtime.freeMemory());
+			
+			// ====================================================================
+			// Code Generation
+			// ====================================================================
+			
+			runtime = Runtime.getRuntime();
+			tmpTime = System.currentTimeMillis();		
+			tmpMemory = runtime.freeMemory();	
+	
+			// Each file draws its labels from its own scope, so that these do
+			// not depend on how files are interleaved when building in
+			// parallel.
+			final GlobalGenerator globalGen = new GlobalGenerator(this,resolver);
+			ArrayList<Callable<WyilFile>> generators = new ArrayList<Callable<WyilFile>>();
+			final ArrayList<Path.Entry<WyilFile>> generated = new ArrayList<Path.Entry<WyilFile>>();
+			final ArrayList<Block.LabelScope> labels = new ArrayList<Block.LabelScope>();
+			for (int i = 0; i != files.size(); ++i) {
+				final WhileyFile wf = files.get(i);
+				final Path.Entry<WyilFile> target = targets.get(i);
+				if (target != null) {
+					final Block.LabelScope scope = new Block.LabelScope(
+							"blklab" + i + "_");
+					generators.add(new Callable<WyilFile>() {
+						public WyilFile call() throws Exception {
+							Tracer.Span span = tracer.start("generate",
+									"code generation", wf.module.toString());
+							Block.LabelScope old = Block.setLabelScope(scope);
+							try {
+								CodeGeneration generator = new CodeGeneration(
+										WhileyBuilder.this, globalGen, resolver);
+								WyilFile wyil = generator.generate(wf);
+								target.write(wyil);
+								return wyil;
+							} finally {
+								Block.setLabelScope(old);
+								span.end();
+							}
+						}
+					});
+					generated.add(target);
+					labels.add(scope);
+				}
+			}
+			execute(generators, executor);
+			
+			logger.logTimedMessage("Generated code for " + count + " source file(s).",
+						System.currentTimeMillis() - tmpTime, tmpMemory - runtime.freeMemory());
+			
+			// ====================================================================
+			// Pipeline Stages
+			// ====================================================================
+			
+			// Stages are applied in order, such that each stage has been
+			// applied to every file before the next begins. The exception is
+			// a run of consecutive stages which can be applied one method case
+			// at a time. These are fused, so that each case passes through
+			// every stage in the run before the next case is considered. When
+			// building in parallel, each file has its own instances of the
+			// stages.
+			ArrayList<List<Transform<WyilFile>>> fileStages = new ArrayList<List<Transform<WyilFile>>>();
+			for (int i = 0; i != generated.size(); ++i) {
+				fileStages.add(executor == null ? stages : pipeline
+						.instantiate(this));
+			}
+			int k = 0;
+			while (k != stages.size()) {
+				int end = k + 1;
+				if (stages.get(k) instanceof CaseTransform) {
+					while (end != stages.size()
+							&& stages.get(end) instanceof CaseTransform) {
+						end = end + 1;
+					}
+				}
+				ArrayList<Callable<WyilFile>> processors = new ArrayList<Callable<WyilFile>>();
+				for (int i = 0; i != generated.size(); ++i) {
+					final Path.Entry<WyilFile> wf = generated.get(i);
+					final Block.LabelScope scope = labels.get(i);
+					final List<Transform<WyilFile>> run = fileStages.get(i)
+							.subList(k, end);
+					processors.add(new Callable<WyilFile>() {
+						public WyilFile call() throws Exception {
+							Block.LabelScope old = Block.setLabelScope(scope);
+							try {
+								WyilFile module = wf.read();
+								if (run.size() == 1) {
+									process(module, run.get(0));
+								} else {
+									process(module, run);
+								}
+								return module;
+							} finally {
+								Block.setLabelScope(old);
+							}
+						}
+					});
+				}
+				execute(processors, executor);
+				k = end;
+			}
+			completed = true;
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
 			}
-		}	
+			if (!completed) {
+				for (Map.Entry<Path.ID, Set<Path.ID>> e : cleared.entrySet()) {
+					for (Path.ID to : e.getValue()) {
+						dependencies.add(e.getKey(), to);
+					}
+				}
+			}
+		}
 	
 		// ========================================================================
 		// Done
@@ -252,6 +440,22 @@ public final class WhileyBuilder implements Builder {
 		}
 	}	
 	
+	/**
+	 * Record that one module uses a name defined in another. This is called
+	 * during name resolution, and is ignored if no dependency index is
+	 * provided.
+	 * 
+	 * @param from
+	 *            --- module which uses the name.
+	 * @param to
+	 *            --- module which defines the name.
+	 */
+	public void addDependency(Path.ID from, Path.ID to) {
+		if (dependencies != null) {
+			dependencies.add(from, to);
+		}
+	}
+	
 	/**
 	 * This method takes a given import declaration, and expands it to find all
 	 * matching modules.
@@ -334,17 +538,158 @@ public final class WhileyBuilder implements Builder {
 	// Private Implementation
 	// ======================================================================
 
+	/**
+	 * Execute a list of tasks, either in the current thread (if no executor is
+	 * given) or in parallel. In both cases, the results are returned in the
+	 * order of the tasks. If one or more tasks fail then the exception thrown
+	 * by the first of these (in order) is rethrown, so that errors are
+	 * reported in the same way regardless of whether or not the build is
+	 * parallel.
+	 * 
+	 * @param tasks
+	 *            --- the tasks to execute.
+	 * @param executor
+	 *            --- the executor to use, or null to execute sequentially.
+	 * @return
+	 * @throws Exception
+	 */
+	private static <T> List<T> execute(List<Callable<T>> tasks,
+			ExecutorService executor) throws Exception {
+		ArrayList<T> results = new ArrayList<T>();
+		if (executor == null) {
+			for (Callable<T> task : tasks) {
+				results.add(task.call());
+			}
+		} else {
+			for (Future<T> future : executor.invokeAll(tasks)) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception) {
+						throw (Exception) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					} else {
+						throw e;
+					}
+				}
+			}
+		}
+		return results;
+	}
+	
 	private void process(WyilFile module, Transform stage) throws Exception {
 		Runtime runtime = Runtime.getRuntime();
 		long start = System.currentTimeMillis();		
 		long memory = runtime.freeMemory();
 		String name = name(stage.getClass().getSimpleName());		
+		Tracer.Span span = tracer.start("stage", name, module.id().toString());
 		
 		try {						
 			stage.apply(module);			
+			span.end(); // exclude garbage collection
 			logger.logTimedMessage("[" + module.filename() + "] applied "
 					+ name, System.currentTimeMillis() - start, memory - runtime.freeMemory());
-			System.gc();
+			if (parallelism == 1) {
+				System.gc();
+			}
+		} catch (RuntimeException ex) {
+			logger.logTimedMessage("[" + module.filename() + "] failed on "
+					+ name + " (" + ex.getMessage() + ")",
+					System.currentTimeMillis() - start, memory - runtime.freeMemory());
+			throw ex;
+		} catch (IOException ex) {
+			logger.logTimedMessage("[" + module.filename() + "] failed on "
+					+ name + " (" + ex.getMessage() + ")",
+					System.currentTimeMillis() - start, memory - runtime.freeMemory());
+			throw ex;
+		} finally {
+			span.end();
+		}
+	}
+	
+	/**
+	 * Apply a run of stages to a given module, such that each declaration is
+	 * passed through every stage before the next is considered. This means
+	 * the intermediate forms of a declaration can be discarded as soon as the
+	 * last stage has finished with it, rather than being kept for the whole
+	 * module. When tracing, each stage is recorded separately for each
+	 * declaration.
+	 * 
+	 * @param module
+	 *            --- module to be transformed.
+	 * @param run
+	 *            --- list of stages, each of which is a {@link CaseTransform}.
+	 * @throws Exception
+	 */
+	private void process(WyilFile module, List<Transform<WyilFile>> run)
+			throws Exception {
+		Runtime runtime = Runtime.getRuntime();
+		long start = System.currentTimeMillis();
+		long memory = runtime.freeMemory();
+		String name = "";
+		ArrayList<CaseTransform> active = new ArrayList<CaseTransform>();
+		ArrayList<String> activeNames = new ArrayList<String>();
+		for (Transform<WyilFile> stage : run) {
+			CaseTransform transform = (CaseTransform) stage;
+			String stageName = name(stage.getClass().getSimpleName());
+			if (transform.begin(module)) {
+				active.add(transform);
+				activeNames.add(stageName);
+			}
+			if (!name.equals("")) {
+				name += ", ";
+			}
+			name += stageName;
+		}
+		String file = module.id().toString();
+		Tracer.Span span = tracer.start("pipeline", name, file);
+
+		try {
+			List<WyilFile.Declaration> declarations = module.declarations();
+			for (int i = 0; i != declarations.size(); ++i) {
+				WyilFile.Declaration d = declarations.get(i);
+				if (d instanceof WyilFile.TypeDeclaration) {
+					WyilFile.TypeDeclaration td = (WyilFile.TypeDeclaration) d;
+					for (int j = 0; j != active.size(); ++j) {
+						Tracer.Span s = tracer.start("stage",
+								activeNames.get(j), file, td.name());
+						try {
+							td = active.get(j).apply(td);
+						} finally {
+							s.end();
+						}
+					}
+					module.replace(d, td);
+				} else if (d instanceof WyilFile.MethodDeclaration) {
+					WyilFile.MethodDeclaration md = (WyilFile.MethodDeclaration) d;
+					if (!md.isNative()) {
+						// native functions/methods don't have bodies
+						ArrayList<WyilFile.Case> cases = new ArrayList<WyilFile.Case>();
+						for (WyilFile.Case c : md.cases()) {
+							for (int j = 0; j != active.size(); ++j) {
+								Tracer.Span s = tracer.start("stage",
+										activeNames.get(j), file, md.name());
+								try {
+									c = active.get(j).apply(c, md);
+								} finally {
+									s.end();
+								}
+							}
+							cases.add(c);
+						}
+						module.replace(md, new WyilFile.MethodDeclaration(md
+								.modifiers(), md.name(), md.type(), cases));
+					}
+				}
+			}
+			span.end(); // exclude garbage collection
+			logger.logTimedMessage("[" + module.filename() + "] applied "
+					+ name, System.currentTimeMillis() - start, memory - runtime.freeMemory());
+			if (parallelism == 1) {
+				System.gc();
+			}
 		} catch (RuntimeException ex) {
 			logger.logTimedMessage("[" + module.filename() + "] failed on "
 					+ name + " (" + ex.getMessage() + ")",
@@ -355,6 +700,8 @@ public final class WhileyBuilder implements Builder {
 					+ name + " (" + ex.getMessage() + ")",
 					System.currentTimeMillis() - start, memory - runtime.freeMemory());
 			throw ex;
+		} finally {
+			span.end();
 		}
 	}
 	
@@ -134,6 +134,13 @@ public final class CodeGeneration {
 			localGenerator = new LocalGenerator(globalGenerator,td);			
 			NameID nid = new NameID(td.file().module,td.name);
 			constraint = globalGenerator.generate(nid);			
+			if (constraint != null) {
+				// NOTE: the generated constraint is cached and shared with
+				// any file which uses this type. It is therefore relabelled,
+				// so that this file has its own copy whose labels were drawn
+				// whilst generating this file.
+				constraint = constraint.relabel();
+			}
 		}
 		
 		return new WyilFile.TypeDeclaration(td.modifiers, td.name(), td.resolvedType.raw(), constraint);
@@ -184,6 +191,10 @@ public final class CodeGeneration {
 		// Generate post-condition
 		// ==================================================================
 		Block postcondition = globalGenerator.generate(fd.ret,fd);						
+		if (postcondition != null) {
+			// as for type constraints, this may be shared with other files
+			postcondition = postcondition.relabel();
+		}
 		
 		if (fd.postcondition != null) {
 			LocalGenerator.Environment postEnv = new LocalGenerator.Environment();
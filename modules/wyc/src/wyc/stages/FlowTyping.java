@@ -99,16 +99,50 @@ public final class FlowTyping {
 	}
 	
 	public void propagate(WhileyFile wf) {
+		propagate(wf, true, true);
+	}
+	
+	/**
+	 * Propagate type information through the type and constant declarations
+	 * of a given file. Resolving a name declared in another file may read
+	 * these declarations, but never those of functions or methods (beyond
+	 * their declared types, which are not changed by typing). Hence, once the
+	 * types and constants of every file have been typed, the functions and
+	 * methods of different files can be typed concurrently.
+	 * 
+	 * @param wf
+	 */
+	public void propagateTypesAndConstants(WhileyFile wf) {
+		propagate(wf, true, false);
+	}
+	
+	/**
+	 * Propagate type information through the function and method
+	 * declarations of a given file.
+	 * 
+	 * @param wf
+	 */
+	public void propagateFunctionsAndMethods(WhileyFile wf) {
+		propagate(wf, false, true);
+	}
+	
+	private void propagate(WhileyFile wf, boolean types, boolean functions) {
 		this.filename = wf.filename;
 		
 		for(WhileyFile.Declaration decl : wf.declarations) {
 			try {
 				if(decl instanceof WhileyFile.FunctionOrMethod) {
-					propagate((WhileyFile.FunctionOrMethod)decl);
+					if(functions) {
+						propagate((WhileyFile.FunctionOrMethod)decl);
+					}
 				} else if(decl instanceof WhileyFile.TypeDef) {
-					propagate((WhileyFile.TypeDef)decl);					
+					if(types) {
+						propagate((WhileyFile.TypeDef)decl);
+					}
 				} else if(decl instanceof WhileyFile.Constant) {
-					propagate((WhileyFile.Constant)decl);					
+					if(types) {
+						propagate((WhileyFile.Constant)decl);
+					}
 				}			
 			} catch(ResolveError e) {
 				syntaxError(errorMessage(RESOLUTION_ERROR,e.getMessage()),filename,decl,e);
@@ -132,7 +166,7 @@ public final class FlowTyping {
 		if(td.constraint != null) {						
 			// second, construct the appropriate typing environment			
 			Environment environment = new Environment();
-			environment.put("$", td.resolvedType);
+			environment = environment.put("$", td.resolvedType);
 			environment = addExposedNames(td.unresolvedType,environment,td);
 			// third, propagate type information through the constraint 			
 			td.constraint = resolver.resolve(td.constraint,environment,td);
@@ -809,9 +843,11 @@ public final class FlowTyping {
 		}
 	}
 	
-	private static final Environment BOTTOM = new Environment();
+	// NOTE: bottom is not static, since environments are not thread-safe and
+	// files may be typed in parallel.
+	private final Environment BOTTOM = new Environment();
 	
-	private static final Environment join(Environment lhs,Environment rhs) {
+	private final Environment join(Environment lhs,Environment rhs) {
 		
 		// first, need to check for the special bottom value case.
 		
@@ -826,15 +862,6 @@ public final class FlowTyping {
 		lhs.free();
 		rhs.free(); 		
 		
-		Environment result = new Environment();
-		for(String key : lhs.keySet()) {
-			if(rhs.containsKey(key)) {
-				Nominal lhs_t = lhs.get(key);
-				Nominal rhs_t = rhs.get(key);				
-				result.put(key, Nominal.Union(lhs_t, rhs_t));
-			}
-		}
-		
-		return result;
+		return lhs.join(rhs);
 	}	
 }
@@ -33,8 +33,18 @@ import wybs.lang.SyntaxError;
 import wyautl.util.BigRational;
 
 /**
+ * <p>
  * Split a source file into a list of tokens. These tokens can then be fed into
  * the parser in order to generate an Abstract Syntax Tree (AST).
+ * </p>
+ * 
+ * <p>
+ * The lexer is designed to allocate as little as possible. The source file is
+ * read into a single character array, and identifiers (including keywords)
+ * are interned such that each distinct identifier in a file is represented by
+ * a single string. Likewise, numeric literals are only converted into their
+ * values when first requested, and comments record only their extent.
+ * </p>
  * 
  * @author David J. Pearce
  * 
@@ -43,10 +53,21 @@ public class WhileyLexer {
 	public final int SPACES_PER_TAB = 4;
 	
 	private String filename;
-	private String input;
+	
+	/**
+	 * The characters of the source file. Only the first <code>length</code>
+	 * characters are used.
+	 */
+	private char[] input;
+	private int length;
 	private int pos;
 	private int line;
 	
+	/**
+	 * Identifiers, keywords and indentation found so far.
+	 */
+	private final SymbolTable symbols = new SymbolTable();
+	
 	public WhileyLexer(String filename) throws IOException {
 		this(new InputStreamReader(new FileInputStream(filename),"UTF-8"));
 		this.filename = filename;
@@ -57,24 +78,27 @@ public class WhileyLexer {
 	}
 	
 	public WhileyLexer(Reader reader) throws IOException {	
-		StringBuilder tmp = new StringBuilder();	    
-	    int len = 0;
-	    char[] buf = new char[1024]; 
-	    while((len = reader.read(buf)) != -1) {
-	    	tmp.append(buf,0,len);	    	
-	    }
-		
-		input = tmp.toString();	
+		char[] buf = new char[4096];
+		int len = 0;
+		int n;
+		while ((n = reader.read(buf, len, buf.length - len)) != -1) {
+			len += n;
+			if (len == buf.length) {
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			}
+		}
+		input = buf;
+		length = len;
 	}
 	
 	public List<Token> scan() {
-		ArrayList<Token> tokens = new ArrayList<Token>();
+		ArrayList<Token> tokens = new ArrayList<Token>(length / 4);
 		pos = 0;
 		line = 1;
 		Token lastToken = null;
 		
-		while(pos < input.length()) {
-			char c = input.charAt(pos);
+		while(pos < length) {
+			char c = input[pos];
 			
 			if (Character.isDigit(c)) {
 				lastToken = scanDigits();
@@ -91,8 +115,8 @@ public class WhileyLexer {
 			} else if (isIdentifierStart(c)) {
 				lastToken = scanIdentifier();
 				tokens.add(lastToken);
-			} else if (c == '\r' && (pos + 1) < input.length()
-					&& input.charAt(pos + 1) == '\n') {
+			} else if (c == '\r' && (pos + 1) < length
+					&& input[pos + 1] == '\n') {
 				lastToken = new NewLine("\r\n", pos, line++);
 				tokens.add(lastToken);
 				pos += 2;
@@ -115,46 +139,43 @@ public class WhileyLexer {
 	
 	public Token scanLineComment() {
 		int start = pos;
-		while(pos < input.length() && input.charAt(pos) != '\n') {
+		while(pos < length && input[pos] != '\n') {
 			pos++;
 		}
-		return new LineComment(input.substring(start,pos),start,line);
+		return new LineComment(start,pos - start,line);
 	}
 	
 	public Token scanBlockComment() {
 		int start = pos;
-		while((pos+1) < input.length() && (input.charAt(pos) != '*' || input.charAt(pos+1) != '/')) {
+		while((pos+1) < length && (input[pos] != '*' || input[pos+1] != '/')) {
 			pos++;
 		}
 		pos++;
 		pos++;
-		return new BlockComment(input.substring(start,pos),start,line);
+		return new BlockComment(start,pos - start,line);
 	}
 	
 	public Token scanDigits() {		
-		if (pos < (input.length() + 1) && input.charAt(pos) == '0'
-				&& input.charAt(pos+1) == 'x') {			
+		if ((pos + 1) < length && input[pos] == '0' && input[pos+1] == 'x') {			
 			return scanHexDigits();
 		}
 
 		int start = pos;
-		while (pos < input.length() && Character.isDigit(input.charAt(pos))) {
+		while (pos < length && Character.isDigit(input[pos])) {
 			pos = pos + 1;
 		}		
-		if(pos < input.length() && input.charAt(pos) == '.') {
+		if(pos < length && input[pos] == '.') {
 			pos = pos + 1;			
-			if(pos < input.length() && input.charAt(pos) == '.') {
+			if(pos < length && input[pos] == '.') {
 				// this is case for range e.g. 0..1
 				pos = pos - 1;
-				BigInteger r = new BigInteger(input.substring(start, pos));
-				return new Int(r,input.substring(start,pos),start,line);
+				return new Int(symbols.intern(input, start, pos - start),start,line);
 			}
-			while (pos < input.length() && Character.isDigit(input.charAt(pos))) {
+			while (pos < length && Character.isDigit(input[pos])) {
 				pos = pos + 1;
 			}			
-			BigRational r = new BigRational(input.substring(start, pos));
-			return new Real(r,input.substring(start,pos),start,line);
-		} else if(pos < input.length() && input.charAt(pos) == 'b') {
+			return new Real(symbols.intern(input, start, pos - start),start,line);
+		} else if(pos < length && input[pos] == 'b') {
 			// indicates a binary literal
 			if((pos - start) > 8) {
 				syntaxError("invalid binary literal (too long)");
@@ -162,7 +183,7 @@ public class WhileyLexer {
 			int val = 0;
 			for(int i=start;i!=pos;++i) {
 				val = val << 1;
-				char c = input.charAt(i);
+				char c = input[i];
 				if(c == '1') {
 					val = val | 1;
 				} else if(c == '0') {
@@ -172,35 +193,22 @@ public class WhileyLexer {
 				}				
 			}
 			pos = pos + 1;
-			return new Byte((byte)val,input.substring(start,pos),start,line);
+			return new Byte((byte)val,new String(input,start,pos - start),start,line);
 		} else {
-			BigInteger r = new BigInteger(input.substring(start, pos));
-			return new Int(r,input.substring(start,pos),start,line);			
+			return new Int(symbols.intern(input, start, pos - start),start,line);			
 		}		
 	}
 	
 	public Token scanHexDigits() {		
 		int start = pos;
 		pos += 2; // skip "0x"
-		while (pos < input.length()
-				&& isHexDigit(input.charAt(pos))) {			
+		while (pos < length && isHexDigit(input[pos])) {			
 			pos = pos + 1;
 		}		
-		BigInteger r = BigInteger.ZERO;
-		BigInteger base = BigInteger.ONE;
-		BigInteger sixteen = BigInteger.valueOf(16);
-		int first = start+2;
-		int tmp = pos;		
-		while(tmp > first) {			
-			BigInteger d = BigInteger.valueOf(hexDigit(input.charAt(--tmp)));			
-			r = r.add(d.multiply(base));
-			base = base.multiply(sixteen);
-		}
-		
-		return new Int(r,input.substring(start,pos),start,line);						
+		return new Int(new String(input,start,pos - start),start,line);						
 	}
 	
-	public int hexDigit(char c) {
+	public static int hexDigit(char c) {
 		if('0' <= c && c <= '9') { 
 			return c - '0';
 		} else if('a' <= c && c <= 'f') {
@@ -218,10 +226,10 @@ public class WhileyLexer {
 	public Token scanChar() {
 		int start = pos;
 		pos++;
-		char c = input.charAt(pos++);				
+		char c = input[pos++];				
 		if(c == '\\') {
 			// escape code
-			switch(input.charAt(pos++)) {
+			switch(input[pos++]) {
 				case 't':
 					c = '\t';
 					break;
@@ -235,25 +243,31 @@ public class WhileyLexer {
 					syntaxError("unrecognised escape character",pos);
 			}
 		}
-		if(input.charAt(pos) != '\'') {
+		if(pos >= length || input[pos] != '\'') {
 			syntaxError("unexpected end-of-character",pos);
 		}
 		pos = pos + 1;
-		return new Char(c,input.substring(start,pos),start,line);
+		return new Char(c,new String(input,start,pos - start),start,line);
 	}
 	
 	public Token scanString() {
 		int start = pos;
 		pos ++;
-		StringBuffer buf = new StringBuffer();
+		// The buffer is only needed if the string contains escapes. Otherwise,
+		// its value is simply the text between the quotes.
+		StringBuilder buf = null;
 		
-		while(pos < input.length()) {
-			char c = input.charAt(pos);
+		while(pos < length) {
+			char c = input[pos];
 			if(c == '\\') {				
-				if(++pos == input.length()) {
+				if(++pos == length) {
 					syntaxError("unexpected end-of-file",pos);
 				}
-				switch (input.charAt(pos)) {
+				if (buf == null) {
+					buf = new StringBuilder();
+					buf.append(input, start + 1, pos - start - 2);
+				}
+				switch (input[pos]) {
 					case 'b' :
 						buf.append('\b');
 						break;
@@ -280,16 +294,18 @@ public class WhileyLexer {
 						break;
 					case 'u' :
 						// unicode escapes are six digits long, including "slash u"
-						String unicode = input.substring(pos+1,pos+5);
+						String unicode = new String(input,pos+1,4);
 						buf.append((char) Integer.parseInt(unicode, 16)); // unicode
 						break;
 					default :
 						syntaxError("unknown escape character",pos);							
 				}
 			} else if (c == '"') {				
-				String v = input.substring(start,++pos);
-				return new Strung(buf.toString(),v, start,line);
-			} else {			
+				String v = new String(input,start,++pos - start);
+				String s = buf == null ? v.substring(1, v.length() - 1) : buf
+						.toString();
+				return new Strung(s,v, start,line);
+			} else if (buf != null) {			
 				buf.append(c);
 			}
 			pos = pos + 1;
@@ -339,11 +355,11 @@ public class WhileyLexer {
 	}
 	
 	public Token scanOperator() {		
-		char c = input.charAt(pos);
+		char c = input[pos];
 		
 		if(c == '.') {
-			if((pos+1) < input.length() && input.charAt(pos+1) == '.') {
-				if((pos+2) < input.length() && input.charAt(pos+2) == '.') {
+			if((pos+1) < length && input[pos+1] == '.') {
+				if((pos+2) < length && input[pos+2] == '.') {
 					pos += 3;
 					return new DotDotDot(pos-3,line);
 				} else {
@@ -356,7 +372,7 @@ public class WhileyLexer {
 		} else if(c == ',') {
 			return new Comma(pos++,line);
 		} else if(c == ':') {
-			if((pos+1) < input.length() && input.charAt(pos+1) == ':') {
+			if((pos+1) < length && input[pos+1] == ':') {
 				pos += 2;
 				return new ColonColon(pos-2,line);
 			} else {
@@ -379,7 +395,7 @@ public class WhileyLexer {
 		} else if(c == '+') {
 			return new Plus(pos++,line);
 		} else if(c == '-') {
-			if((pos+1) < input.length() && input.charAt(pos+1) == '>') {
+			if((pos+1) < length && input[pos+1] == '>') {
 				pos += 2;
 				return new RightArrow("->",pos-2,line);
 			} else {
@@ -388,23 +404,23 @@ public class WhileyLexer {
 		} else if(c == '*') {
 			return new Star(pos++,line);
 		} else if(c == '&') {
-			if((pos+1) < input.length() && input.charAt(pos+1) == '&') {
+			if((pos+1) < length && input[pos+1] == '&') {
 				pos += 2;
 				return new LogicalAnd("&&",pos-2,line);
 			} else {
 				return new Ampersand("&",pos++,line);
 			}
 		} else if(c == '|') {
-			if((pos+1) < input.length() && input.charAt(pos+1) == '|') {
+			if((pos+1) < length && input[pos+1] == '|') {
 				pos += 2;
 				return new LogicalOr("||",pos-2,line);
 			} else {
 				return new Bar(pos++,line);
 			}
 		} else if(c == '/') {
-			if((pos+1) < input.length() && input.charAt(pos+1) == '/') {
+			if((pos+1) < length && input[pos+1] == '/') {
 				return scanLineComment();
-			} else if((pos+1) < input.length() && input.charAt(pos+1) == '*') {
+			} else if((pos+1) < length && input[pos+1] == '*') {
 				return scanBlockComment();
 			} else {
 				return new RightSlash(pos++,line);
@@ -416,7 +432,7 @@ public class WhileyLexer {
 		} else if(c == '~') {
 			return new Tilde(pos++,line);			
 		} else if(c == '!') {			
-			if((pos+1) < input.length() && input.charAt(pos+1) == '=') {
+			if((pos+1) < length && input[pos+1] == '=') {
 				pos += 2;
 				return new NotEquals("!=",pos-2,line);
 			} else {
@@ -425,30 +441,30 @@ public class WhileyLexer {
 		} else if(c == '?') {						
 			return new Question(pos++,line);							
 		} else if(c == '=') {
-			if((pos+1) < input.length() && input.charAt(pos+1) == '=') {
+			if((pos+1) < length && input[pos+1] == '=') {
 				pos += 2;
 				return new EqualsEquals(pos-2,line);
-			} else if((pos+1) < input.length() && input.charAt(pos+1) == '>') {
+			} else if((pos+1) < length && input[pos+1] == '>') {
 				pos += 2;
 				return new StrongRightArrow("=>",pos-2,line);
 			} else {
 				return new Equals(pos++,line);				
 			}
 		} else if(c == '<') {
-			if((pos+1) < input.length() && input.charAt(pos+1) == '=') {
+			if((pos+1) < length && input[pos+1] == '=') {
 				pos += 2;
 				return new LessEquals("<=",pos-2,line);
-			} else if((pos+1) < input.length() && input.charAt(pos+1) == '<') {
+			} else if((pos+1) < length && input[pos+1] == '<') {
 				pos += 2;
 				return new LeftLeftAngle(pos-2,line);
 			} else {
 				return new LeftAngle(pos++,line);
 			}
 		} else if(c == '>') {
-			if((pos+1) < input.length() && input.charAt(pos+1) == '=') {
+			if((pos+1) < length && input[pos+1] == '=') {
 				pos += 2;
 				return new GreaterEquals(">=",pos - 2,line);
-			} else if((pos+1) < input.length() && input.charAt(pos+1) == '>') {
+			} else if((pos+1) < length && input[pos+1] == '>') {
 				pos += 2;
 				return new RightRightAngle(pos - 2,line);
 			} else {
@@ -536,43 +552,41 @@ public class WhileyLexer {
 	
 	public Token scanIdentifier() {
 		int start = pos;		
-		while (pos < input.length() &&
-				Character.isJavaIdentifierPart(input.charAt(pos))) {
+		while (pos < length && Character.isJavaIdentifierPart(input[pos])) {
 			pos++;								
 		}		
-		String text = input.substring(start,pos);
+		String text = symbols.intern(input, start, pos - start);
 		
-		// now, check for keywords
-		for(String keyword : keywords) {
-			if(keyword.equals(text)) {
-				return new Keyword(text,start,line);
-			}
+		// now, check for keywords and text operators. Since these were
+		// interned first, their texts are exactly the strings given in
+		// WORDS, and so this lookup is cheap.
+		Integer kind = WORDS.get(text);
+		if (kind == null) {
+			// must be identifier
+			return new Identifier(text,start,line);
 		}
-		
-		// now, check for text operators
-		if(text.equals("in")) {
+		switch (kind) {
+		case KEYWORD:
+			return new Keyword(text,start,line);
+		case ELEMOF:
 			return new ElemOf(text,start,line);
-		} else if(text.equals("no")) {
+		case NONE:
 			return new None(text,start,line);
-		} else if(text.equals("some")) {
+		case SOME:
 			return new Some(text,start,line);
-		} else if(text.equals("all")) {
+		case ALL:
 			return new All(text,start,line);
-		} else if(text.equals("is")) {			
-			return new InstanceOf(start,line);			 
+		default:
+			return new InstanceOf(start,line);
 		}
-	
-		// otherwise, must be identifier
-		return new Identifier(text,start,line);
 	}
 	
 	public Token scanIndent() {
 		int start = pos;
 		int nindent = 0;				
-		char lookahead = input.charAt(pos);
-		while (pos < input.length()
-				&& ((lookahead = input.charAt(pos)) == ' ' || (lookahead = input
-						.charAt(pos)) == '\t')) {
+		char lookahead;
+		while (pos < length
+				&& ((lookahead = input[pos]) == ' ' || lookahead == '\t')) {
 			pos++;
 			if(lookahead == '\t') {
 				nindent += SPACES_PER_TAB;
@@ -581,13 +595,13 @@ public class WhileyLexer {
 			}			
 			
 		}
-		return new Indent(input.substring(start, pos), nindent, start,line);	
+		return new Indent(symbols.intern(input, start, pos - start), nindent, start,line);	
 	}
 	
 	public void skipWhitespace(List<Token> tokens) {					
-		while (pos < input.length() && input.charAt(pos) != '\n'
-				&& input.charAt(pos) != '\r'
-				&& Character.isWhitespace(input.charAt(pos))) {
+		while (pos < length && input[pos] != '\n'
+				&& input[pos] != '\r'
+				&& Character.isWhitespace(input[pos])) {
 			pos++;
 		}		
 	}
@@ -600,6 +614,106 @@ public class WhileyLexer {
 		throw new SyntaxError(msg, filename, pos, pos);
 	}
 	
+	private static final int KEYWORD = 0;
+	private static final int ELEMOF = 1;
+	private static final int NONE = 2;
+	private static final int SOME = 3;
+	private static final int ALL = 4;
+	private static final int INSTANCEOF = 5;
+	
+	/**
+	 * Maps each keyword and textual operator to its kind of token.
+	 */
+	private static final HashMap<String,Integer> WORDS = new HashMap<String,Integer>();
+	
+	static {
+		for(String keyword : keywords) {
+			WORDS.put(keyword, KEYWORD);
+		}
+		WORDS.put("in", ELEMOF);
+		WORDS.put("no", NONE);
+		WORDS.put("some", SOME);
+		WORDS.put("all", ALL);
+		WORDS.put("is", INSTANCEOF);
+	}
+	
+	/**
+	 * A simple hash table which interns sequences of characters, such that
+	 * equal sequences are always represented by the same string. Looking up a
+	 * sequence which has been seen before does not allocate. The table is
+	 * initialised with the keywords and textual operators, so that these are
+	 * represented by the exact strings used in <code>WORDS</code>.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	private static final class SymbolTable {
+		private String[] strings = new String[512];
+		private int size;
+		
+		public SymbolTable() {
+			for(String word : WORDS.keySet()) {
+				insert(word);
+			}
+		}
+		
+		public String intern(char[] chars, int start, int length) {
+			int hash = 0;
+			for (int i = start; i != start + length; ++i) {
+				hash = 31 * hash + chars[i];
+			}
+			int mask = strings.length - 1;
+			int index = (hash ^ (hash >>> 16)) & mask;
+			String s;
+			while ((s = strings[index]) != null) {
+				if (s.hashCode() == hash && matches(s, chars, start, length)) {
+					return s;
+				}
+				index = (index + 1) & mask;
+			}
+			s = new String(chars, start, length);
+			insert(s);
+			return s;
+		}
+		
+		private void insert(String s) {
+			place(strings, s);
+			if (++size * 2 > strings.length) {
+				String[] old = strings;
+				strings = new String[old.length * 2];
+				for (String o : old) {
+					if (o != null) {
+						place(strings, o);
+					}
+				}
+			}
+		}
+		
+		private static void place(String[] table, String s) {
+			int hash = s.hashCode();
+			int mask = table.length - 1;
+			int index = (hash ^ (hash >>> 16)) & mask;
+			while (table[index] != null) {
+				index = (index + 1) & mask;
+			}
+			table[index] = s;
+		}
+		
+		private static boolean matches(String s, char[] chars, int start,
+				int length) {
+			if (s.length() != length) {
+				return false;
+			}
+			for (int i = 0; i != length; ++i) {
+				if (s.charAt(i) != chars[start + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+	}
+	
 	public static abstract class Token {
 		public final String text;
 		public final int start;
@@ -617,11 +731,20 @@ public class WhileyLexer {
 	}
 	
 	public static class Real extends Token {
-		public final BigRational value;
+		private BigRational value;
+		public Real(String text, int pos, int line) { 
+			super(text,pos,line);
+		}
 		public Real(BigRational r, String text, int pos, int line) { 
 			super(text,pos,line);
 			value = r;
 		}
+		public BigRational value() {
+			if (value == null) {
+				value = new BigRational(text);
+			}
+			return value;
+		}
 	}
 	public static class Byte extends Token {
 		public final byte value;
@@ -638,11 +761,33 @@ public class WhileyLexer {
 		}
 	}
 	public static class Int extends Token {
-		public final BigInteger value;
+		private BigInteger value;
+		public Int(String text, int pos, int line) { 
+			super(text,pos,line);
+		}
 		public Int(BigInteger r, String text, int pos, int line) { 
 			super(text,pos,line);
 			value = r;
 		}
+		public BigInteger value() {
+			if (value != null) {
+				return value;
+			} else if (text.startsWith("0x")) {
+				BigInteger r = BigInteger.ZERO;
+				BigInteger sixteen = BigInteger.valueOf(16);
+				for (int i = 2; i < text.length(); ++i) {
+					r = r.multiply(sixteen).add(
+							BigInteger.valueOf(hexDigit(text.charAt(i))));
+				}
+				value = r;
+			} else if (text.length() < 19) {
+				// fits in a long, which is much cheaper to parse
+				value = BigInteger.valueOf(Long.parseLong(text));
+			} else {
+				value = new BigInteger(text);
+			}
+			return value;
+		}
 	}
 	public static class Identifier extends Token {
 		public Identifier(String text, int pos, int line) { super(text,pos,line); }
@@ -668,11 +813,29 @@ public class WhileyLexer {
 			this.indent = nSpaces; 
 		}		
 	}	
+	/**
+	 * The text of a comment is not retained, since it is never needed.
+	 * Instead, only its length is recorded.
+	 */
 	public static class LineComment extends Token {
-		public LineComment(String text, int pos, int line) { super(text,pos,line);	}
+		private final int length;
+		public LineComment(int pos, int length, int line) { 
+			super("//",pos,line);
+			this.length = length;
+		}
+		public int end() {
+			return start + length - 1;
+		}
 	}
 	public static class BlockComment extends Token {
-		public BlockComment(String text, int pos, int line) { super(text,pos,line);	}
+		private final int length;
+		public BlockComment(int pos, int length, int line) { 
+			super("/*",pos,line);
+			this.length = length;
+		}
+		public int end() {
+			return start + length - 1;
+		}
 	}
 	public static class Caret extends Token {
 		public Caret(int pos, int line) { super("^",pos,line);	}
@@ -1332,10 +1332,10 @@ public final class WhileyParser {
 			char val = match(Char.class).value;
 			return new Expr.Constant(Constant.V_CHAR(val), sourceAttr(start, index - 1));
 		} else if (token instanceof Int) {			
-			BigInteger val = match(Int.class).value;
+			BigInteger val = match(Int.class).value();
 			return new Expr.Constant(Constant.V_INTEGER(val), sourceAttr(start, index - 1));
 		} else if (token instanceof Real) {
-			BigRational val = match(Real.class).value;
+			BigRational val = match(Real.class).value();
 			return new Expr.Constant(Constant.V_RATIONAL(val), sourceAttr(start,
 					index - 1));			
 		} else if (token instanceof Strung) {
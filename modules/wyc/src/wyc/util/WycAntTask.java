@@ -113,6 +113,10 @@ public class WycAntTask extends MatchingTask {
     	builder.setVerbose(b);
     }
     
+    public void setJobs(int jobs) {
+    	builder.setParallelism(jobs);
+    }
+    
     public void execute() throws BuildException { 
     	try {
     		int count = builder.buildAll();    		
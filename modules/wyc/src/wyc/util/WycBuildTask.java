@@ -141,6 +141,8 @@ public class WycBuildTask {
 							Collections.EMPTY_MAP));
 					add(new Pipeline.Template(BackPropagation.class,
 							Collections.EMPTY_MAP));
+					add(new Pipeline.Template(FunctionInlining.class,
+							Collections.EMPTY_MAP));
 					add(new Pipeline.Template(LoopVariants.class, Collections.EMPTY_MAP));
 					add(new Pipeline.Template(ConstantPropagation.class,
 							Collections.EMPTY_MAP));
@@ -161,6 +163,7 @@ public class WycBuildTask {
 	 */
 	static {
 		Pipeline.register(BackPropagation.class);
+		Pipeline.register(FunctionInlining.class);
 		Pipeline.register(DefiniteAssignmentCheck.class);
 		Pipeline.register(LoopVariants.class);
 		Pipeline.register(ConstantPropagation.class);
@@ -279,6 +282,54 @@ public class WycBuildTask {
 	 */
 	protected boolean verification = false;	
 	
+	/**
+	 * The maximum number of threads which may be used when compiling whiley
+	 * files. This also bounds the number of threads used to build targets
+	 * whose dependencies have been built (e.g. class files from wyil files).
+	 */
+	protected int parallelism = 1;
+	
+	/**
+	 * The dependency index records which modules use names defined in which
+	 * other modules. This is used to determine which modules must be rebuilt
+	 * when a given module changes. When the wyil directory is a physical
+	 * directory, the index is persisted there between builds in the file
+	 * given by <code>DEPENDENCY_INDEX</code>.
+	 */
+	protected DependencyIndex dependencies = new DependencyIndex();
+	
+	/**
+	 * The name of the file in the wyil directory in which the dependency index
+	 * is stored.
+	 */
+	public static final String DEPENDENCY_INDEX = ".wyildeps";
+	
+	/**
+	 * The manifest records a content hash for every wyil file built, and is
+	 * used to avoid rebuilding wyil files which are already up-to-date. This
+	 * is only used when the wyil directory is a physical directory.
+	 */
+	protected BuildManifest wyilManifest;
+	
+	/**
+	 * The name of the file in the wyil directory in which the wyil manifest is
+	 * stored.
+	 */
+	public static final String WYIL_MANIFEST = ".wyilmanifest";
+	
+	/**
+	 * An optional cache of jar file roots, which allows libraries on the boot
+	 * and whiley paths to be shared with other builds. This may be null, in
+	 * which case such roots are constructed afresh for every build.
+	 */
+	protected RootCache rootCache;
+	
+	/**
+	 * For recording the time and memory spent on each file and stage of a
+	 * build. By default, nothing is recorded.
+	 */
+	protected Tracer tracer = Tracer.NULL;
+	
 	// ==========================================================================
 	// Constructors & Configuration
 	// ========================================================================== 
@@ -309,6 +360,22 @@ public class WycBuildTask {
 		this.verification = verification;
 	}
 	
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("invalid parallelism level: "
+					+ parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+	
+	public void setRootCache(RootCache rootCache) {
+		this.rootCache = rootCache;
+	}
+	
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer;
+	}
+	
 	public void setPipelineModifiers(List<Pipeline.Modifier> modifiers) {		
 		this.pipelineModifiers = new ArrayList<Pipeline.Modifier>(modifiers);
 	}
@@ -340,7 +407,7 @@ public class WycBuildTask {
 		for (File root : roots) {
 			try {
 				if (root.getName().endsWith(".jar")) {
-					whileypath.add(new JarFileRoot(root, registry));
+					whileypath.add(jarFileRoot(root));
 				} else {
 					whileypath.add(new DirectoryRoot(root, wyilFileFilter, registry));
 				}
@@ -358,7 +425,7 @@ public class WycBuildTask {
 		for (File root : roots) {
 			try {
 				if (root.getName().endsWith(".jar")) {
-					bootpath.add(new JarFileRoot(root, registry));
+					bootpath.add(jarFileRoot(root));
 				} else {
 					bootpath.add(new DirectoryRoot(root, wyilOrWycsFileFilter, registry));
 				}
@@ -371,6 +438,22 @@ public class WycBuildTask {
 		}
 	}
     
+	/**
+	 * Get the root for a given jar file. This is taken from the root cache,
+	 * when one is provided, and constructed afresh otherwise.
+	 * 
+	 * @param jar
+	 * @return
+	 * @throws IOException
+	 */
+	protected JarFileRoot jarFileRoot(File jar) throws IOException {
+		if (rootCache != null) {
+			return rootCache.get(jar, registry);
+		} else {
+			return new JarFileRoot(jar, registry);
+		}
+	}
+    
     public void setIncludes(String includes) {
     	String[] split = includes.split(",");
     	Content.Filter<WhileyFile> whileyFilter = null;
@@ -458,6 +541,58 @@ public class WycBuildTask {
 		return delta.size();		
 	}
 	
+	/**
+	 * Rebuild after a given set of files in the whiley source directory have
+	 * changed (e.g. as reported by a <code>DirectoryWatcher</code>). Only the
+	 * entries for those files are invalidated, rather than rescanning the
+	 * whole directory. Source files which have been created or modified are
+	 * then built, along with any which depend upon them. Likewise, any source
+	 * files which depend upon a deleted file are rebuilt (e.g. to report that
+	 * they now refer to something which does not exist).
+	 * 
+	 * @param files
+	 *            --- files which have been created, modified or deleted.
+	 * @return the number of source files which have changed.
+	 */
+	public int buildChanges(Collection<File> files) throws Exception {
+		if (whileyDir == null) {
+			return 0;
+		}
+		
+		File location = whileyDir.location().getCanonicalFile();
+		boolean refreshed = false;
+		List delta = new ArrayList<Path.Entry<WhileyFile>>();
+		for (File file : files) {
+			refreshed |= file.getCanonicalFile().equals(location);
+			Path.Entry<?> e = whileyDir.update(file);
+			if (e != null && isSourceFile(e)) {
+				delta.add(e);
+			} else if (e == null && !file.exists()) {
+				// The file may have been a source file which was deleted, in
+				// which case those which depend upon it must be rebuilt.
+				Path.ID id = sourceID(location, file.getCanonicalFile());
+				if (id != null) {
+					for (Path.ID dependent : dependencies.dependentsOf(id)) {
+						Path.Entry<WhileyFile> de = whileyDir.get(dependent,
+								WhileyFile.ContentType);
+						if (de != null && isSourceFile(de) && !delta.contains(de)) {
+							delta.add(de);
+						}
+					}
+				}
+			}
+		}
+		
+		if (refreshed) {
+			// in this case, some changes may have been missed.
+			delta = getModifiedSourceFiles();
+		}
+		if (!delta.isEmpty()) {
+			buildEntries(delta);
+		}
+		return delta.size();
+	}
+	
 	protected <T> void buildEntries(List<Path.Entry<T>> delta) throws Exception {	
 		
 		// ======================================================================
@@ -476,9 +611,78 @@ public class WycBuildTask {
 		// Build!
 		// ======================================================================		
 
-		project.build(delta);
+		// Source files are annotated with types when they are built, and
+		// hence cannot be reused by a subsequent build. Only those which
+		// depend upon the given entries can be built. These are determined
+		// beforehand, since the dependencies of each module are recomputed
+		// during the build; and, they are refreshed even if the build fails,
+		// since they may then be partially typed.
+		HashSet<Path.ID> built = new HashSet<Path.ID>();
+		if (whileyDir != null) {
+			ArrayList<Path.ID> worklist = new ArrayList<Path.ID>();
+			for (Path.Entry<T> e : delta) {
+				if (built.add(e.id())) {
+					worklist.add(e.id());
+				}
+			}
+			while (!worklist.isEmpty()) {
+				Path.ID id = worklist.remove(worklist.size() - 1);
+				for (Path.ID dependent : dependencies.dependentsOf(id)) {
+					if (built.add(dependent)) {
+						worklist.add(dependent);
+					}
+				}
+			}
+		}
 		
-		flush();		
+		try {
+			project.build(delta);
+			flush();
+		} finally {
+			for (Path.ID id : built) {
+				Path.Entry<WhileyFile> e = whileyDir.get(id,
+						WhileyFile.ContentType);
+				if (e != null) {
+					e.refresh();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Check whether a given entry in the whiley source directory is a source
+	 * file which this task builds.
+	 * 
+	 * @param e
+	 * @return
+	 */
+	private boolean isSourceFile(Path.Entry<?> e) {
+		return e.contentType() == WhileyFile.ContentType
+				&& whileyIncludes.matches(e.id(), WhileyFile.ContentType)
+				&& (whileyExcludes == null || !whileyExcludes.matches(e.id(),
+						WhileyFile.ContentType));
+	}
+	
+	/**
+	 * Determine the identifier of the module held in a given whiley source
+	 * file, or null if the file is not a whiley file in the given directory.
+	 * This is needed for files which have been deleted, since these no longer
+	 * have entries.
+	 * 
+	 * @param location
+	 *            --- canonical location of the whiley source directory.
+	 * @param file
+	 *            --- canonical location of file.
+	 * @return
+	 */
+	private static Path.ID sourceID(File location, File file) {
+		String path = file.getPath();
+		String prefix = location.getPath() + File.separator;
+		if (!path.startsWith(prefix) || !path.endsWith(".whiley")) {
+			return null;
+		}
+		path = path.substring(prefix.length(), path.length() - ".whiley".length());
+		return Trie.fromString(path.replace(File.separatorChar, '/'));
 	}
 	
 	// ==========================================================================
@@ -503,8 +707,43 @@ public class WycBuildTask {
 		roots.addAll(whileypath);
 		roots.addAll(bootpath);
 
-		// second, construct the module loader
-		return new StandardProject(roots);
+		// second, load the dependency index (if there is one). Modules whose
+		// source file no longer exists are dropped, since they will never be
+		// rebuilt.
+		File index = getDependencyIndexFile();
+		if (index != null) {
+			dependencies.read(index);
+		}
+		for (Path.ID id : dependencies.modules()) {
+			if (whileyDir == null || !whileyDir.exists(id, WhileyFile.ContentType)) {
+				dependencies.clear(id);
+			}
+		}
+
+		// third, construct the module loader
+		StandardProject project = new StandardProject(roots);
+		project.setDependencyIndex(dependencies);
+		project.setParallelism(parallelism);
+		if (verbose) {
+			project.setLogger(new Logger.Default(logout));
+		}
+		return project;
+	}
+	
+	/**
+	 * Determine the file in which the dependency index is stored. This is
+	 * located in the wyil directory, provided it is a physical directory.
+	 * Otherwise, the index is only maintained in memory and null is returned.
+	 * 
+	 * @return
+	 */
+	protected File getDependencyIndexFile() {
+		if (wyilDir instanceof DirectoryRoot) {
+			return new File(((DirectoryRoot) wyilDir).location(),
+					DEPENDENCY_INDEX);
+		} else {
+			return null;
+		}
 	}
 	
 	/**
@@ -528,14 +767,92 @@ public class WycBuildTask {
 		}
 	}
 	
+	/**
+	 * Create and read the manifest for a given target root, provided it is a
+	 * physical directory. Otherwise, targets in the root do not persist
+	 * between builds and, hence, null is returned.
+	 * 
+	 * @param root
+	 *            --- root in which targets are stored.
+	 * @param name
+	 *            --- name of manifest file within root.
+	 * @param configuration
+	 *            --- description of builder configuration for the targets.
+	 * @return
+	 * @throws IOException
+	 */
+	protected BuildManifest createManifest(Path.Root root, String name,
+			String configuration) throws IOException {
+		if (root instanceof DirectoryRoot) {
+			BuildManifest manifest = new BuildManifest(new File(
+					((DirectoryRoot) root).location(), name), configuration);
+			manifest.read();
+			return manifest;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Describe the configuration under which targets are built by a given
+	 * builder, for use with a manifest. Targets also depend upon the compiler
+	 * itself, and upon the libraries on the whiley and boot paths. Since the
+	 * dependency index only records modules built by this task, these are
+	 * identified by the compiler version and by the size and modification time
+	 * of every wyil and wycs file in each library root.
+	 *
+	 * @param builder
+	 *            --- description of the builder (e.g. its pipeline).
+	 * @return
+	 */
+	protected String configuration(String builder) {
+		StringBuilder r = new StringBuilder(builder);
+		r.append("\nversion ");
+		r.append(WycBuildTask.class.getPackage().getImplementationVersion());
+		ArrayList<Path.Root> libraries = new ArrayList<Path.Root>(whileypath);
+		libraries.addAll(bootpath);
+		for (Path.Root root : libraries) {
+			r.append("\nlibrary ");
+			r.append(root);
+			if (root instanceof JarFileRoot) {
+				describe(((JarFileRoot) root).location(), r);
+			} else if (root instanceof DirectoryRoot) {
+				describe(((DirectoryRoot) root).location(), r);
+			}
+		}
+		return r.toString();
+	}
+
+	private static void describe(File file, StringBuilder r) {
+		if (file.isDirectory()) {
+			// only wyil and wycs files are considered, since other files (e.g.
+			// manifests) may be rewritten by every build.
+			File[] files = file.listFiles(wyilOrWycsFileFilter);
+			if (files != null) {
+				Arrays.sort(files);
+				for (File f : files) {
+					describe(f, r);
+				}
+			}
+		} else {
+			r.append(' ');
+			r.append(file.getName());
+			r.append(':');
+			r.append(file.length());
+			r.append(':');
+			r.append(file.lastModified());
+		}
+	}
+
 	/**
 	 * Add all build rules to the project. By default, this adds a standard
 	 * build rule for compiling whiley files to wyil files using the
 	 * <code>Whiley2WyilBuilder</code>.
 	 * 
 	 * @param project
+	 * @throws IOException
 	 */
-	protected void addBuildRules(StandardProject project) {
+	protected void addBuildRules(StandardProject project) throws IOException {
 		if(whileyDir != null) {
 			// whileydir can be null if a subclass of this task doesn't
 			// necessarily require it.
@@ -550,15 +867,25 @@ public class WycBuildTask {
 			// ========================================================
 			
 			WhileyBuilder wyilBuilder = new WhileyBuilder(project,wyilPipeline);
+			wyilBuilder.setDependencyIndex(dependencies);
+			wyilBuilder.setParallelism(parallelism);
+			wyilBuilder.setTracer(tracer);
 
 			if(verbose) {			
-				wyilBuilder.setLogger(new Logger.Default(System.err));
+				wyilBuilder.setLogger(new Logger.Default(logout));
 			}
 
 			StandardBuildRule rule = new StandardBuildRule(wyilBuilder);		
 
 			rule.add(whileyDir, whileyIncludes, whileyExcludes, wyilDir,
 					WhileyFile.ContentType, WyilFile.ContentType);
+			
+			// The manifest depends upon the pipeline, since changing the
+			// pipeline may change the wyil files generated.
+			wyilManifest = createManifest(wyilDir, WYIL_MANIFEST,
+					configuration(wyilPipeline.toString()));
+			rule.setManifest(wyilManifest);
+			rule.setDependencyIndex(dependencies);
 
 			project.add(rule);
 			
@@ -573,7 +900,7 @@ public class WycBuildTask {
 				Wyil2WyalBuilder wyalBuilder = new Wyil2WyalBuilder(project);
 
 				if(verbose) {			
-					wyalBuilder.setLogger(new Logger.Default(System.err));
+					wyalBuilder.setLogger(new Logger.Default(logout));
 				}
 
 				rule = new StandardBuildRule(wyalBuilder);		
@@ -592,9 +919,10 @@ public class WycBuildTask {
 				}
 
 				Wyal2WycsBuilder wycsBuilder = new Wyal2WycsBuilder(project,wycsPipeline);
+				wycsBuilder.setTracer(tracer);
 
 				if(verbose) {			
-					wycsBuilder.setLogger(new Logger.Default(System.err));
+					wycsBuilder.setLogger(new Logger.Default(logout));
 				}
 
 				rule = new StandardBuildRule(wycsBuilder);		
@@ -644,5 +972,12 @@ public class WycBuildTask {
 		wyilDir.flush();
 		wyalDir.flush();
 		wycsDir.flush();
+		File index = getDependencyIndexFile();
+		if (index != null && dependencies.isModified()) {
+			dependencies.write(index);
+		}
+		if (wyilManifest != null) {
+			wyilManifest.write();
+		}
 	}	
 }
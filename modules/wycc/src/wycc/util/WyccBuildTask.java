@@ -162,7 +162,7 @@ public class WyccBuildTask extends wyc.util.WycBuildTask {
     }
 	
 	@Override
-	protected void addBuildRules(StandardProject project) {
+	protected void addBuildRules(StandardProject project) throws IOException {
 		
 		// Add default build rule for converting whiley files into wyil files. 
 		super.addBuildRules(project);
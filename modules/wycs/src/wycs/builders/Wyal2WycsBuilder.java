@@ -15,6 +15,7 @@ import wybs.lang.*;
 import wybs.lang.Path.Entry;
 import wybs.util.Pair;
 import wybs.util.ResolveError;
+import wybs.util.Tracer;
 import wybs.util.Trie;
 import wycs.core.SemanticType;
 import wycs.core.WycsFile;
@@ -56,6 +57,8 @@ public class Wyal2WycsBuilder implements Builder, Logger {
 
 	protected Logger logger = Logger.NULL;
 
+	protected Tracer tracer = Tracer.NULL;
+
 	protected boolean debug = false;
 
 	public Wyal2WycsBuilder(NameSpace namespace, Pipeline<WycsFile> pipeline) {
@@ -71,6 +74,14 @@ public class Wyal2WycsBuilder implements Builder, Logger {
 		this.logger = logger;
 	}
 
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer;
+	}
+
+	public Tracer tracer() {
+		return tracer;
+	}
+
 	public void setDebug(boolean debug) {
 		this.debug = debug;
 	}
@@ -35,8 +35,15 @@ public class WycsFile implements CompilationUnit {
 		public WycsFile read(Path.Entry<WycsFile> e, InputStream input)
 				throws IOException {
 			// System.out.println("SCANNING: " + e.id());
-			WycsFileReader reader = new WycsFileReader(e,input);
-			return reader.read();
+			// The entry may supply its contents more efficiently as a binary
+			// stream (e.g. a memory-mapped file) than through the given stream.
+			input.close();
+			WycsFileReader reader = new WycsFileReader(e, e.binaryInputStream());
+			try {
+				return reader.read();
+			} finally {
+				reader.close();
+			}
 		}
 
 		public void write(OutputStream output, WycsFile module)
@@ -37,6 +37,11 @@ public class WycsFileReader {
 		this.entry = entry;
 		this.input = new BinaryInputStream(input);
 	}
+	
+	public WycsFileReader(Path.Entry<WycsFile> entry, BinaryInputStream input) {
+		this.entry = entry;
+		this.input = input;
+	}
 
 	public void close() throws IOException {
 		input.close();
@@ -14,6 +14,7 @@ import wybs.lang.Logger;
 import wybs.lang.SyntacticElement;
 import wybs.lang.Transform;
 import wybs.util.Pair;
+import wybs.util.Tracer;
 import wybs.util.Trie;
 import wybs.util.Triple;
 import wycs.builders.Wyal2WycsBuilder;
@@ -49,6 +50,10 @@ public class VerificationCheck implements Transform<WycsFile> {
 	
 	private Logger logger;
 	
+	private final Builder builder;
+	
+	private Tracer tracer = Tracer.NULL;
+	
 	private String filename;
 	
 	// ======================================================================
@@ -56,6 +61,7 @@ public class VerificationCheck implements Transform<WycsFile> {
 	// ======================================================================
 
 	public VerificationCheck(Builder builder) {
+		this.builder = builder;
 		if(builder instanceof Logger) {
 			this.logger = (Logger) builder;
 		} else {
@@ -104,6 +110,10 @@ public class VerificationCheck implements Transform<WycsFile> {
 	public void apply(WycsFile wf) {
 		if (enabled) {
 			this.filename = wf.filename();
+			// NOTE: the tracer may be set after this check is constructed
+			if (builder instanceof Wyal2WycsBuilder) {
+				this.tracer = ((Wyal2WycsBuilder) builder).tracer();
+			}
 			
 			List<WycsFile.Declaration> statements = wf.declarations();
 			int count = 0;
@@ -111,7 +121,14 @@ public class VerificationCheck implements Transform<WycsFile> {
 				WycsFile.Declaration stmt = statements.get(i);
 
 				if (stmt instanceof WycsFile.Assert) {
-					checkValid((WycsFile.Assert) stmt, ++count);
+					count = count + 1;
+					Tracer.Span span = tracer.start("verify", "assertion",
+							filename, "#" + count);
+					try {
+						checkValid((WycsFile.Assert) stmt, count);
+					} finally {
+						span.end();
+					}
 				} else if (stmt instanceof WycsFile.Function
 						|| stmt instanceof WycsFile.Macro) {
 					// TODO: we could try to verify that the function makes
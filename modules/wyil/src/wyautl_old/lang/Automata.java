@@ -758,6 +758,18 @@ public final class Automata {
 	 * possibly more).
 	 * </p>
 	 * 
+	 * <p>
+	 * The fixpoint is computed using a worklist of state pairs. Every pair is
+	 * evaluated once; thereafter, a pair is only re-evaluated when a pair it
+	 * may depend upon has changed. Following the contract of
+	 * <code>Relation.update()</code>, the pair <code>(i,j)</code> may depend
+	 * only on pairs drawn from <code>i</code> and its children, and
+	 * <code>j</code> and its children. Thus, when pair <code>(i,j)</code>
+	 * changes, every pair formed from <code>i</code> or a parent of
+	 * <code>i</code>, and <code>j</code> or a parent of <code>j</code>, is
+	 * placed back on the worklist.
+	 * </p>
+	 * 
 	 * @param relation
 	 *            --- the relation to be computed. automaton.
 	 */	
@@ -766,16 +778,82 @@ public final class Automata {
 		Automaton to = relation.to();
 		int fromDomain = from.size();
 		int toDomain = to.size();
+		int[][] fromParents = parents(from);
+		int[][] toParents = parents(to);
 
-		boolean changed = true;
-		while (changed) {			
-			changed = false;
-			for (int i = 0; i != fromDomain; i++) {
-				for (int j = 0; j != toDomain; j++) {
-					changed |= relation.update(i, j);
+		// The worklist is a stack of pair indices; the bitset records which
+		// pairs are currently on it, so that no pair is added twice.
+		int size = fromDomain * toDomain;
+		int[] worklist = new int[Math.max(size, 1)];
+		BitSet queued = new BitSet(size);
+		int top = 0;
+		// push in reverse, so the pairs are first visited in row-major order
+		for (int k = size - 1; k >= 0; --k) {
+			worklist[top++] = k;
+		}
+		queued.set(0, size);
+
+		while (top > 0) {
+			int k = worklist[--top];
+			queued.clear(k);
+			int i = k / toDomain;
+			int j = k % toDomain;
+			if (relation.update(i, j)) {
+				int[] ips = fromParents[i];
+				int[] jps = toParents[j];
+				for (int a = -1; a != ips.length; ++a) {
+					int p = a < 0 ? i : ips[a];
+					for (int b = -1; b != jps.length; ++b) {
+						int q = b < 0 ? j : jps[b];
+						int pq = (p * toDomain) + q;
+						if (!queued.get(pq)) {
+							queued.set(pq);
+							if (top == worklist.length) {
+								worklist = Arrays.copyOf(worklist, top * 2);
+							}
+							worklist[top++] = pq;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compute the set of parents for each state in a given automaton. That is,
+	 * for each state, the (distinct) states which have it as a child.
+	 * 
+	 * @param automaton
+	 * @return
+	 */
+	private static int[][] parents(Automaton automaton) {
+		State[] states = automaton.states;
+		int[] counts = new int[states.length];
+		BitSet seen = new BitSet(states.length);
+		for (int i = 0; i != states.length; ++i) {
+			seen.clear();
+			for (int child : states[i].children) {
+				if (!seen.get(child)) {
+					seen.set(child);
+					counts[child]++;
+				}
+			}
+		}
+		int[][] parents = new int[states.length][];
+		for (int i = 0; i != states.length; ++i) {
+			parents[i] = new int[counts[i]];
+			counts[i] = 0;
+		}
+		for (int i = 0; i != states.length; ++i) {
+			seen.clear();
+			for (int child : states[i].children) {
+				if (!seen.get(child)) {
+					seen.set(child);
+					parents[child][counts[child]++] = i;
 				}
 			}
 		}
+		return parents;
 	}
 	
 	/**
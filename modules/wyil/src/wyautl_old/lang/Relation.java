@@ -77,6 +77,14 @@ public interface Relation {
 	 * <code>from</code> automaton, and a node in the <code>to</code> automaton.
 	 * </p>
 	 * 
+	 * <p>
+	 * <b>NOTE:</b> the new status of <code>(from,to)</code> may depend only on
+	 * the status of pairs drawn from <code>from</code> and its children, and
+	 * <code>to</code> and its children. This allows
+	 * <code>Automata.computeFixpoint()</code> to revisit a pair only when
+	 * something it depends upon has changed.
+	 * </p>
+	 * 
 	 * @param from
 	 *            --- An index into automaton <code>from</code>.
 	 * @param to
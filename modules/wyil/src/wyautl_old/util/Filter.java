@@ -127,6 +127,7 @@ public class Filter {
 			} catch(EOFException e) {
 				
 			}
+			writer.flush();
 			if(!verbose) {
 				System.err.print("\rRead " + nread + " automata, wrote " + nwritten+ ".");
 			}			
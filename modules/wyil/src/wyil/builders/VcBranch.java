@@ -799,16 +799,11 @@ public class VcBranch {
 	 * @return
 	 */
 	private int findLabelIndex(String label) {
-		for (int i = pc; i != block.size(); ++i) {			
-			Code code = block.get(i).code;
-			if (code instanceof Code.Label) {
-				Code.Label l = (Code.Label) code;
-				if (l.label.equals(label)) {
-					return i;
-				}
-			}
+		int i = block.graph().indexOf(label);
+		if (i < pc) {
+			throw new IllegalArgumentException("unknown label --- " + label);
 		}
-		throw new IllegalArgumentException("unknown label --- " + label);
+		return i;
 	}
 	
 	private Scope topScope() {
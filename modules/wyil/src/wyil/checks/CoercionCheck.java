@@ -32,7 +32,6 @@ import static wyil.util.ErrorMessages.*;
 import wybs.lang.Builder;
 import wybs.lang.Path;
 import wybs.lang.SyntacticElement;
-import wybs.lang.Transform;
 import wybs.util.Pair;
 import wyil.*;
 import wyil.lang.*;
@@ -75,7 +74,7 @@ import wyil.util.*;
  * 
  * @author David J. Pearce
  */
-public class CoercionCheck implements Transform<WyilFile> {
+public class CoercionCheck implements CaseTransform {
 	private String filename;
 
 	public CoercionCheck(Builder builder) {
@@ -90,6 +89,20 @@ public class CoercionCheck implements Transform<WyilFile> {
 		}
 	}
 		
+	public boolean begin(WyilFile module) {
+		filename = module.filename();
+		return true;
+	}
+	
+	public WyilFile.TypeDeclaration apply(WyilFile.TypeDeclaration type) {
+		return type;
+	}
+	
+	public WyilFile.Case apply(WyilFile.Case c, WyilFile.MethodDeclaration method) {
+		check(c.body(), method);
+		return c;
+	}
+	
 	public void check(WyilFile.MethodDeclaration method) {				
 		for (WyilFile.Case c : method.cases()) {
 			check(c.body(), method);
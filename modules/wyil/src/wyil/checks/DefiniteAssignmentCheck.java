@@ -29,7 +29,6 @@ import java.util.*;
 
 import wybs.lang.Builder;
 import wybs.lang.Path;
-import wybs.lang.Transform;
 import wybs.util.Pair;
 import wyil.util.*;
 import wyil.util.dfa.*;
@@ -59,117 +58,98 @@ import static wyil.util.ErrorMessages.*;
  * 
  */
 public class DefiniteAssignmentCheck extends
-		ForwardFlowAnalysis<HashSet<Integer>> implements Transform<WyilFile> {
+		WorklistFlowAnalysis<RegisterSet> implements CaseTransform {
 	
 	public DefiniteAssignmentCheck(Builder builder) {
-		
+		super(true);
 	}
 	
-	public HashSet<Integer> initialStore() {
-		HashSet<Integer> defined = new HashSet<Integer>();
+	public RegisterSet initialStore() {
+		RegisterSet defined = new RegisterSet(methodCase.body().numSlots());
 		
 		int diff = 0;
 										
 		for(int i=0;i!=method.type().params().size();++i) {
-			defined.add(i+diff);
+			defined = defined.add(i+diff);
 		}								
 		
 		return defined;
 	}
 	
-	public HashSet<Integer> propagate(int idx, Entry entry, HashSet<Integer> in) {						
+	public RegisterSet propagate(int idx, Entry entry, RegisterSet in) {						
 		Code code = entry.code;			
 		
 		checkUses(code,entry,in);
 		
 		int def = defs(code,entry);
-		if(def >= 0) {			
-			in = new HashSet<Integer>(in);			
-			in.add(def); 
-		} 	
+		in = in.add(def);
 		
 		return in;
 	}
 		
 	@Override
-	public Pair<HashSet<Integer>, HashSet<Integer>> propagate(int index,
-			Code.If igoto, Entry entry, HashSet<Integer> in) {
-
-		if (!in.contains(igoto.leftOperand) || !in.contains(igoto.rightOperand)) {
-			syntaxError(errorMessage(VARIABLE_POSSIBLY_UNITIALISED), filename,
-					entry);
-		}
-
-		return new Pair(in, in);
-	}
-
-	@Override
-	public Pair<HashSet<Integer>, HashSet<Integer>> propagate(int index,
-			Code.IfIs iftype, Entry entry, HashSet<Integer> in) {
-		
-		if (!in.contains(iftype.operand)) {
-			syntaxError(errorMessage(VARIABLE_POSSIBLY_UNITIALISED), filename,
-					entry);
-		}
-		
-		return new Pair(in,in);
-	}
-	
-	@Override
-	public List<HashSet<Integer>> propagate(int index, Code.Switch sw,
-			Entry entry, HashSet<Integer> in) {
-
-		if (!in.contains(sw.operand)) {
-			syntaxError(errorMessage(VARIABLE_POSSIBLY_UNITIALISED), filename,
-					entry);
-		}
+	public RegisterSet transfer(int blk, RegisterSet in) {
+		for (int i = graph.first(blk); i <= graph.last(blk); ++i) {
+			Entry entry = block.get(i);
+			Code code = entry.code;
 
-		ArrayList<HashSet<Integer>> stores = new ArrayList();
-		for (int i = 0; i != sw.branches.size(); ++i) {
-			stores.add(in);
+			if (code instanceof Code.If) {
+				Code.If igoto = (Code.If) code;
+				if (!in.contains(igoto.leftOperand)
+						|| !in.contains(igoto.rightOperand)) {
+					syntaxError(errorMessage(VARIABLE_POSSIBLY_UNITIALISED),
+							filename, entry);
+				}
+				flow(igoto.target, in);
+			} else if (code instanceof Code.IfIs) {
+				Code.IfIs iftype = (Code.IfIs) code;
+				if (!in.contains(iftype.operand)) {
+					syntaxError(errorMessage(VARIABLE_POSSIBLY_UNITIALISED),
+							filename, entry);
+				}
+				flow(iftype.target, in);
+			} else if (code instanceof Code.Switch) {
+				Code.Switch sw = (Code.Switch) code;
+				if (!in.contains(sw.operand)) {
+					syntaxError(errorMessage(VARIABLE_POSSIBLY_UNITIALISED),
+							filename, entry);
+				}
+				for (Pair<Constant, String> p : sw.branches) {
+					flow(p.second(), in);
+				}
+				flow(sw.defaultTarget, in);
+			} else if (code instanceof Code.Goto) {
+				flow(((Code.Goto) code).target, in);
+			} else if (code instanceof Code.ForAll) {
+				Code.ForAll fall = (Code.ForAll) code;
+				if (!in.contains(fall.sourceOperand)) {
+					syntaxError(errorMessage(VARIABLE_POSSIBLY_UNITIALISED),
+							filename, entry);
+				}
+				in = in.add(fall.indexOperand);
+				// the loop may be skipped, or exited once exhausted
+				flow(fall.target, in);
+			} else if (code instanceof Code.Loop
+					|| code instanceof Code.TryCatch) {
+				// nothing to do here
+			} else {
+				flowHandlers(i, code, in);
+				in = propagate(i, entry, in);
+			}
 		}
-		return stores;
-	}
-
-	@Override
-	public HashSet<Integer> propagate(Type handler, Code.TryCatch tc, HashSet<Integer> in) {
-		in = new HashSet<Integer>(in);
-		in.add(tc.operand);
 		return in;
 	}
-	
-	@Override
-	public HashSet<Integer> propagate(int start, int end, Code.Loop loop,
-			Entry entry, HashSet<Integer> in, List<Code.TryCatch> handlers) {
-
-		if (loop instanceof Code.ForAll) {						
-			Code.ForAll fall = (Code.ForAll) loop;
-			
-			if (!in.contains(fall.sourceOperand)) {
-				syntaxError(errorMessage(VARIABLE_POSSIBLY_UNITIALISED),
-						filename, entry);
-			}
-			
-			in = new HashSet<Integer>(in);
-			in.add(fall.indexOperand);
-		}
 
-		HashSet<Integer> r = propagate(start + 1, end, in, handlers);
-		return join(in, r);
+	@Override
+	public RegisterSet propagate(Type handler, Code.TryCatch tc, RegisterSet in) {
+		return in.add(tc.operand);
 	}
 	
-	protected HashSet<Integer> join(HashSet<Integer> s1, HashSet<Integer> s2) {		
-		HashSet<Integer> r = new HashSet<Integer>();
-		// set intersection
-		for (Integer s : s1) {
-			if (s2.contains(s)) {
-				r.add(s);
-			}
-		}
-		return r;
+	protected RegisterSet join(RegisterSet s1, RegisterSet s2) {		
+		return s1.intersect(s2);
 	}
 		
-	public void checkUses(Code code, Entry entry, HashSet<Integer> in) {
+	public void checkUses(Code code, Entry entry, RegisterSet in) {
 		if(code instanceof Code.AbstractUnaryOp) {
 			Code.AbstractUnaryOp a = (Code.AbstractUnaryOp) code;
 			if(a.operand == Code.NULL_REG || in.contains(a.operand)) {
@@ -30,10 +30,10 @@ import java.util.*;
 import wybs.lang.Builder;
 import wybs.lang.Path;
 import wybs.lang.SyntaxError;
-import wybs.lang.Transform;
 import wybs.util.Pair;
 import wyil.lang.*;
 import wyil.lang.Code.*;
+import wyil.util.CaseTransform;
 import static wybs.lang.SyntaxError.*;
 import static wyil.util.ErrorMessages.*;
 
@@ -56,7 +56,7 @@ import static wyil.util.ErrorMessages.*;
  * @author David J. Pearce
  * 
  */
-public class ModuleCheck implements Transform<WyilFile> {
+public class ModuleCheck implements CaseTransform {
 	private String filename;
 
 	public ModuleCheck(Builder builder) {
@@ -71,15 +71,33 @@ public class ModuleCheck implements Transform<WyilFile> {
 		}
 	}
 		
+	public boolean begin(WyilFile module) {
+		filename = module.filename();
+		return true;
+	}
+	
+	public WyilFile.TypeDeclaration apply(WyilFile.TypeDeclaration type) {
+		return type;
+	}
+	
+	public WyilFile.Case apply(WyilFile.Case c, WyilFile.MethodDeclaration method) {
+		check(c, method);
+		return c;
+	}
+	
 	public void check(WyilFile.MethodDeclaration method) {		
 		for (WyilFile.Case c : method.cases()) {
-			checkTryCatchBlocks(c, method);
-			if(method.isFunction()) {
-				checkFunctionPure(c);
-			}
+			check(c, method);
 		}		
 	}
 	
+	protected void check(WyilFile.Case c, WyilFile.MethodDeclaration method) {
+		checkTryCatchBlocks(c, method);
+		if(method.isFunction()) {
+			checkFunctionPure(c);
+		}
+	}
+	
 	protected void checkTryCatchBlocks(WyilFile.Case c, WyilFile.MethodDeclaration m) {
 		HashMap<String,Block.Entry> labelMap = new HashMap<String,Block.Entry>();
 		for (Block.Entry b : c.body()) {
@@ -104,17 +122,7 @@ public class ModuleCheck implements Transform<WyilFile> {
 				if (code instanceof TryCatch) {
 					TryCatch sw = (TryCatch) code;
 					int s = i;
-					// Note, I could make this more efficient!					
-					while (++i < block.size()) {
-						entry = block.get(i);
-						if (entry.code instanceof Code.Label) {
-							Code.Label l = (Code.Label) entry.code;
-							if (l.label.equals(sw.target)) {
-								// end of loop body found
-								break;
-							}
-						}						
-					}
+					i = block.graph().end(i);
 					
 					Handler nhandler = new Handler(sw.catches,handler);
 					checkTryCatchBlocks(s + 1, i, c, nhandler, labelMap);
@@ -27,6 +27,7 @@ package wyil.io;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import wybs.io.BinaryInputStream;
@@ -47,7 +48,14 @@ import wyautl.util.BigRational;
 public final class WyilFileReader {
 	private static final char[] magic = {'W','Y','I','L','F','I','L','E'};
 	
-	private final BinaryInputStream input;
+	/**
+	 * The stream from which data is currently being read. This is temporarily
+	 * replaced when decoding a lazily loaded case (see
+	 * <code>readFunctionOrMethodCase()</code>). Since such cases retain this
+	 * reader, the original stream is discarded once the file has been read, so
+	 * that (for example) a memory-mapped file is not kept mapped.
+	 */
+	private BinaryInputStream input;
 	private String[] stringPool;
 	private Path.ID[] pathPool;
 	private NameID[] namePool;
@@ -55,18 +63,33 @@ public final class WyilFileReader {
 	private Type[] typePool;
 	
 	public WyilFileReader(String filename) throws IOException {
-		this.input = new BinaryInputStream(new FileInputStream(filename));
+		this.input = BinaryInputStream.map(new File(filename));
 	}
 	
 	public WyilFileReader(InputStream input) throws IOException {
 		this.input = new BinaryInputStream(input);
 	}
 	
+	public WyilFileReader(BinaryInputStream input) throws IOException {
+		this.input = input;
+	}
+	
 	public void close() throws IOException {
-		input.close();
+		if (input != null) {
+			input.close();
+			input = null;
+		}
 	}
 	
 	public WyilFile read() throws IOException {
+		try {
+			return readFile();
+		} finally {
+			close();
+		}
+	}
+	
+	private WyilFile readFile() throws IOException {
 				
 		for(int i=0;i!=8;++i) {
 			char c = (char) input.read_u8();
@@ -380,7 +403,7 @@ public final class WyilFileReader {
 			
 			switch(kind) {
 				case WyilFileWriter.BLOCK_Case:
-					cases.add(readFunctionOrMethodCase(type));
+					cases.add(readFunctionOrMethodCase(type,size));
 					break;
 				default:
 					throw new RuntimeException("Unknown function block encountered");
@@ -409,7 +432,7 @@ public final class WyilFileReader {
 			
 			switch(kind) {
 				case WyilFileWriter.BLOCK_Case:
-					cases.add(readFunctionOrMethodCase(type));
+					cases.add(readFunctionOrMethodCase(type,size));
 					break;
 				default:
 					throw new RuntimeException("Unknown method block encountered");
@@ -451,6 +474,42 @@ public final class WyilFileReader {
 		return mods;
 	}
 	
+	/**
+	 * Read a function or method case. The blocks making up the case are not
+	 * decoded at this point. Instead, the raw bytes of the case are retained
+	 * and decoded when the case is first accessed. Since the pools have already
+	 * been read, this is straightforward and means that only those cases which
+	 * are actually used need be decoded.
+	 * 
+	 * @param type
+	 *            --- type of enclosing function or method.
+	 * @param size
+	 *            --- number of bytes making up the case.
+	 * @return
+	 * @throws IOException
+	 */
+	private WyilFile.Case readFunctionOrMethodCase(
+			final Type.FunctionOrMethod type, int size) throws IOException {
+		final byte[] bytes = new byte[size];
+		input.read(bytes);
+		return new WyilFile.Case(new WyilFile.Case.Decoder() {
+			public WyilFile.Case decode() throws IOException {
+				return decodeFunctionOrMethodCase(type, bytes);
+			}
+		}, Collections.EMPTY_LIST);
+	}
+	
+	private synchronized WyilFile.Case decodeFunctionOrMethodCase(
+			Type.FunctionOrMethod type, byte[] bytes) throws IOException {
+		BinaryInputStream original = input;
+		try {
+			input = new BinaryInputStream(ByteBuffer.wrap(bytes));
+			return readFunctionOrMethodCase(type);
+		} finally {
+			input = original;
+		}
+	}
+	
 	private WyilFile.Case readFunctionOrMethodCase(Type.FunctionOrMethod type) throws IOException {
 		Block precondition = null;
 		Block postcondition = null;
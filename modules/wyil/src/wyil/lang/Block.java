@@ -26,6 +26,7 @@
 package wyil.lang;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import wybs.lang.Attribute;
 import wybs.lang.SyntacticElement;
@@ -81,6 +82,7 @@ import wyil.util.*;
 public final class Block implements Iterable<Block.Entry> {
 	private final ArrayList<Entry> stmts;
 	private final int numInputs;
+	private Graph graph; // cached, null if not yet computed
 			
 	public Block(int numInputs) {
 		this.stmts = new ArrayList<Entry>();
@@ -174,6 +176,19 @@ public final class Block implements Iterable<Block.Entry> {
 		return new Typing(inputs,stmts,numSlots());
 	}
 	
+	/**
+	 * Return the control-flow graph of this block. This is cached until the
+	 * block is next changed, hence repeated calls are cheap.
+	 * 
+	 * @return
+	 */
+	public Graph graph() {
+		if(graph == null) {
+			graph = new Graph(stmts);
+		}
+		return graph;
+	}
+	
 	// ===================================================================
 	// Import Methods
 	// ===================================================================
@@ -279,6 +294,7 @@ public final class Block implements Iterable<Block.Entry> {
 	
 	public void append(Block.Entry entry) {
 		stmts.add(new Entry(entry.code,entry.attributes()));
+		graph = null;
 	}
 
 	/**
@@ -292,6 +308,7 @@ public final class Block implements Iterable<Block.Entry> {
 	 */
 	public void append(Code code, Attribute... attributes) {
 		stmts.add(new Entry(code,attributes));
+		graph = null;
 	}
 
 	/**
@@ -305,6 +322,7 @@ public final class Block implements Iterable<Block.Entry> {
 	 */
 	public void append(Code code, Collection<Attribute> attributes) {
 		stmts.add(new Entry(code,attributes));		
+		graph = null;
 	}
 
 	/**
@@ -342,6 +360,7 @@ public final class Block implements Iterable<Block.Entry> {
 	 */
 	public void insert(int index, Code code, Attribute... attributes) {
 		stmts.add(index,new Entry(code,attributes));
+		graph = null;
 	}
 	
 	/**
@@ -355,6 +374,7 @@ public final class Block implements Iterable<Block.Entry> {
 	 */
 	public void insert(int index, Code code, Collection<Attribute> attributes) {
 		stmts.add(index,new Entry(code,attributes));
+		graph = null;
 	}
 
 	/**
@@ -390,7 +410,8 @@ public final class Block implements Iterable<Block.Entry> {
 	 * @param attributes
 	 */
 	public void replace(int index, Code code, Attribute... attributes) {
-		stmts.set(index,new Entry(code,attributes));
+		Entry old = stmts.set(index,new Entry(code,attributes));
+		invalidate(old.code,code);
 	}
 	
 	/**
@@ -404,7 +425,8 @@ public final class Block implements Iterable<Block.Entry> {
 	 * @param attributes
 	 */
 	public void replace(int index, Code code, Collection<Attribute> attributes) {
-		stmts.set(index, new Entry(code, attributes));
+		Entry old = stmts.set(index, new Entry(code, attributes));
+		invalidate(old.code,code);
 	}
 
 	/**
@@ -418,6 +440,30 @@ public final class Block implements Iterable<Block.Entry> {
 	 */
 	public void remove(int index) {
 		stmts.remove(index);
+		graph = null;
+	}
+
+	/**
+	 * Discard the cached control-flow graph after one bytecode was replaced by
+	 * another, unless the graph is unaffected. This is the case when both are
+	 * sequential, or both are loops of the same kind sharing an end label.
+	 * 
+	 * @param old
+	 * @param code
+	 */
+	private void invalidate(Code old, Code code) {
+		if (old instanceof Code.Loop && code instanceof Code.Loop) {
+			Code.Loop l1 = (Code.Loop) old;
+			Code.Loop l2 = (Code.Loop) code;
+			if (l1.target.equals(l2.target)
+					&& (old instanceof Code.ForAll) == (code instanceof Code.ForAll)) {
+				return;
+			}
+		} else if (Graph.isSequential(old) && Graph.isSequential(code)
+				&& !(old instanceof Code.Label) && !(code instanceof Code.Label)) {
+			return;
+		}
+		graph = null;
 	}
 
 	// ===================================================================
@@ -439,9 +485,59 @@ public final class Block implements Iterable<Block.Entry> {
 		return r + "]";
 	}
 
-	private static int _idx=0;
+	private static final LabelScope _shared = new LabelScope("blklab");
+	private static final ThreadLocal<LabelScope> _scope = new ThreadLocal<LabelScope>();
+	
 	public static String freshLabel() {
-		return "blklab" + _idx++;
+		LabelScope scope = _scope.get();
+		if (scope == null) {
+			scope = _shared;
+		}
+		return scope.freshLabel();
+	}
+
+	/**
+	 * Set the scope from which fresh labels are drawn by the current thread.
+	 * A builder processing several files at once can give each file its own
+	 * scope, so that the labels generated for a file do not depend on how its
+	 * processing is interleaved with that of other files.
+	 * 
+	 * @param scope
+	 *            --- scope to use, or null to use the shared scope.
+	 * @return the scope previously used by this thread, or null if this was
+	 *         the shared scope.
+	 */
+	public static LabelScope setLabelScope(LabelScope scope) {
+		LabelScope old = _scope.get();
+		if (scope == null) {
+			_scope.remove();
+		} else {
+			_scope.set(scope);
+		}
+		return old;
+	}
+
+	/**
+	 * A source of fresh labels, each formed by appending a number to a given
+	 * prefix. Scopes used together must have prefixes whose labels cannot be
+	 * confused, such as <code>blklab</code> and <code>blklab1_</code>.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	public static final class LabelScope {
+		private final String prefix;
+		// NOTE: the counter is atomic since blocks may be constructed by
+		// several threads at once.
+		private final AtomicInteger counter = new AtomicInteger();
+		
+		public LabelScope(String prefix) {
+			this.prefix = prefix;
+		}
+		
+		public String freshLabel() {
+			return prefix + counter.getAndIncrement();
+		}
 	}
 
 	/**
@@ -588,4 +684,335 @@ public final class Block implements Iterable<Block.Entry> {
 			return result;
 		}
 	}
+	
+	/**
+	 * <p>
+	 * Represents the control-flow graph of a block, along with an index of its
+	 * labels and the nesting of its loops and try-catch handlers. This is
+	 * calculated on demand by {@link Block#graph()} and then cached until the
+	 * block is next modified.
+	 * </p>
+	 * 
+	 * <p>
+	 * A loop's end label serves two purposes: branching to it exits the loop,
+	 * whilst falling through into it returns to the loop header. The graph
+	 * reflects this by giving any basic block which falls through into an end
+	 * label an edge back to the header instead.
+	 * </p>
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	public static final class Graph {
+		private static final int[] EMPTY = new int[0];
+		
+		private final HashMap<String,Integer> labels;
+		private final int[] partners;
+		private final int[] parents;
+		private final BitSet loops;
+		private final BitSet terminals;
+		private final int[] blocks;
+		private final int[] firsts;
+		private final int[][] succs;
+		private final int[][] preds;
+		
+		private Graph(List<Entry> stmts) {
+			int size = stmts.size();
+			this.labels = new HashMap<String,Integer>();
+			this.partners = new int[size];
+			this.parents = new int[size];
+			this.blocks = new int[size];
+			this.loops = new BitSet(size);
+			this.terminals = new BitSet(size);
+			
+			// First, index the labels.
+			for (int i = 0; i != size; ++i) {
+				Code code = stmts.get(i).code;
+				if (code instanceof Code.Label) {
+					String label = ((Code.Label) code).label;
+					if (!labels.containsKey(label)) {
+						labels.put(label, i);
+					}
+				}
+			}
+			
+			// Second, match every loop and try-catch with its end label, and
+			// determine which of these encloses each bytecode.
+			Arrays.fill(partners, -1);
+			int[] stack = new int[size];
+			int depth = 0;
+			for (int i = 0; i != size; ++i) {
+				while (depth > 0 && partners[stack[depth - 1]] <= i) {
+					depth = depth - 1;
+				}
+				parents[i] = depth == 0 ? -1 : stack[depth - 1];
+				Code code = stmts.get(i).code;
+				String target = null;
+				if (code instanceof Code.Loop) {
+					target = ((Code.Loop) code).target;
+					loops.set(i);
+				} else if (code instanceof Code.TryCatch) {
+					target = ((Code.TryCatch) code).target;
+				}
+				if (target != null) {
+					Integer end = labels.get(target);
+					if (end != null && end > i) {
+						partners[i] = end;
+						partners[end] = i;
+					} else {
+						partners[i] = size;
+					}
+					stack[depth++] = i;
+				}
+			}
+			
+			// Third, split the block into basic blocks.
+			BitSet leaders = new BitSet(size);
+			leaders.set(0);
+			for (int i = 0; i != size; ++i) {
+				Code code = stmts.get(i).code;
+				if (code instanceof Code.Label || code instanceof Code.Loop) {
+					leaders.set(i);
+				}
+				if (!isSequential(code)) {
+					leaders.set(i + 1);
+				}
+				if (code instanceof Code.Goto || code instanceof Code.Switch
+						|| code instanceof Code.Return
+						|| code instanceof Code.Throw) {
+					terminals.set(i);
+				}
+			}
+			leaders.clear(size);
+			int count = size == 0 ? 0 : leaders.cardinality();
+			this.firsts = new int[count + 1];
+			for (int i = leaders.nextSetBit(0), b = 0; i >= 0 && b < count; i = leaders
+					.nextSetBit(i + 1), ++b) {
+				firsts[b] = i;
+			}
+			firsts[count] = size;
+			for (int b = 0; b != count; ++b) {
+				Arrays.fill(blocks, firsts[b], firsts[b + 1], b);
+			}
+			
+			// Finally, connect the basic blocks together.
+			this.succs = new int[count][];
+			int[] npreds = new int[count];
+			for (int b = 0; b != count; ++b) {
+				int last = firsts[b + 1] - 1;
+				succs[b] = successors(stmts, last);
+				for (int s : succs[b]) {
+					npreds[s]++;
+				}
+			}
+			this.preds = new int[count][];
+			for (int b = 0; b != count; ++b) {
+				preds[b] = npreds[b] == 0 ? EMPTY : new int[npreds[b]];
+				npreds[b] = 0;
+			}
+			for (int b = 0; b != count; ++b) {
+				for (int s : succs[b]) {
+					preds[s][npreds[s]++] = b;
+				}
+			}
+		}
+		
+		/**
+		 * Return the index of the given label, or -1 if there is no such label.
+		 * 
+		 * @param label
+		 * @return
+		 */
+		public int indexOf(String label) {
+			Integer index = labels.get(label);
+			return index == null ? -1 : index;
+		}
+		
+		/**
+		 * Return the index of the end label for the loop or try-catch bytecode
+		 * at the given index. If the end label is missing, the size of the
+		 * block is returned.
+		 * 
+		 * @param index
+		 * @return
+		 */
+		public int end(int index) {
+			return partners[index];
+		}
+		
+		/**
+		 * Return the index of the loop or try-catch bytecode which is closed by
+		 * the end label at the given index, or -1 if it closes neither.
+		 * 
+		 * @param index
+		 * @return
+		 */
+		public int start(int index) {
+			int start = partners[index];
+			return start < index ? start : -1;
+		}
+		
+		/**
+		 * Return the index of the innermost loop or try-catch bytecode whose
+		 * body contains the given index, or -1 if there is none.
+		 * 
+		 * @param index
+		 * @return
+		 */
+		public int parent(int index) {
+			return parents[index];
+		}
+		
+		/**
+		 * Return the index at which execution continues when the bytecode at
+		 * the given index completes normally without branching. This is the
+		 * loop header when falling into the end of a loop body, and may be the
+		 * size of the block when falling off its end. If the bytecode never
+		 * completes in this way (e.g. a return), then -1 is returned.
+		 * 
+		 * @param index
+		 * @return
+		 */
+		public int next(int index) {
+			if (terminals.get(index)) {
+				return -1;
+			}
+			int next = index + 1;
+			if (next < blocks.length) {
+				int start = start(next);
+				if (start >= 0 && loops.get(start)
+						&& (parents[index] == start || index == start)) {
+					next = start;
+				}
+			}
+			return next;
+		}
+		
+		/**
+		 * Return the number of basic blocks in this graph.
+		 * 
+		 * @return
+		 */
+		public int size() {
+			return succs.length;
+		}
+		
+		/**
+		 * Return the basic block containing the given index.
+		 * 
+		 * @param index
+		 * @return
+		 */
+		public int blockOf(int index) {
+			return blocks[index];
+		}
+		
+		/**
+		 * Return the index of the first bytecode in a basic block.
+		 * 
+		 * @param block
+		 * @return
+		 */
+		public int first(int block) {
+			return firsts[block];
+		}
+		
+		/**
+		 * Return the index of the last bytecode in a basic block.
+		 * 
+		 * @param block
+		 * @return
+		 */
+		public int last(int block) {
+			return firsts[block + 1] - 1;
+		}
+		
+		/**
+		 * Return the successors of a basic block. The returned array must not
+		 * be modified.
+		 * 
+		 * @param block
+		 * @return
+		 */
+		public int[] successors(int block) {
+			return succs[block];
+		}
+		
+		/**
+		 * Return the predecessors of a basic block. The returned array must not
+		 * be modified.
+		 * 
+		 * @param block
+		 * @return
+		 */
+		public int[] predecessors(int block) {
+			return preds[block];
+		}
+		
+		private int[] successors(List<Entry> stmts, int index) {
+			Code code = stmts.get(index).code;
+			ArrayList<Integer> targets = new ArrayList<Integer>();
+			if (code instanceof Code.Goto) {
+				addTarget(((Code.Goto) code).target, targets);
+			} else if (code instanceof Code.If) {
+				addNext(index, targets);
+				addTarget(((Code.If) code).target, targets);
+			} else if (code instanceof Code.IfIs) {
+				addNext(index, targets);
+				addTarget(((Code.IfIs) code).target, targets);
+			} else if (code instanceof Code.Switch) {
+				Code.Switch sw = (Code.Switch) code;
+				for (Pair<Constant, String> p : sw.branches) {
+					addTarget(p.second(), targets);
+				}
+				addTarget(sw.defaultTarget, targets);
+			} else if (code instanceof Code.ForAll) {
+				addNext(index, targets);
+				addTarget(((Code.ForAll) code).target, targets);
+			} else if (code instanceof Code.TryCatch) {
+				addNext(index, targets);
+				for (Pair<Type, String> p : ((Code.TryCatch) code).catches) {
+					addTarget(p.second(), targets);
+				}
+			} else if (!(code instanceof Code.Return || code instanceof Code.Throw)) {
+				addNext(index, targets);
+			}
+			if (targets.isEmpty()) {
+				return EMPTY;
+			}
+			int[] result = new int[targets.size()];
+			for (int i = 0; i != result.length; ++i) {
+				result[i] = targets.get(i);
+			}
+			return result;
+		}
+		
+		private void addNext(int index, ArrayList<Integer> targets) {
+			int next = next(index);
+			if (next >= 0 && next < blocks.length) {
+				addBlock(blocks[next], targets);
+			}
+		}
+		
+		private void addTarget(String label, ArrayList<Integer> targets) {
+			Integer index = labels.get(label);
+			if (index != null) {
+				addBlock(blocks[index], targets);
+			}
+		}
+		
+		private static boolean isSequential(Code code) {
+			return !(code instanceof Code.Goto || code instanceof Code.If
+					|| code instanceof Code.IfIs || code instanceof Code.Switch
+					|| code instanceof Code.Loop
+					|| code instanceof Code.TryCatch
+					|| code instanceof Code.Return || code instanceof Code.Throw);
+		}
+		
+		private static void addBlock(int block, ArrayList<Integer> targets) {
+			if (!targets.contains(block)) {
+				targets.add(block);
+			}
+		}
+	}
 }
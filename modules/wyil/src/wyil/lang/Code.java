@@ -26,6 +26,7 @@
 package wyil.lang;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import wybs.lang.NameID;
 import wybs.util.Pair;
@@ -900,7 +901,7 @@ public abstract class Code {
 		@Override
 		public final Code remap(java.util.Map<Integer, Integer> binding) {
 			Integer nTarget = binding.get(target);
-			Integer nOperand = binding.get(target);
+			Integer nOperand = binding.get(operand);
 			int[] nOperands = remapOperands(binding, operands);
 			if (nTarget != null || nOperand != null || nOperands != operands) {
 				nTarget = nTarget != null ? nTarget : target;
@@ -2308,7 +2309,9 @@ public abstract class Code {
 		}
 
 		public boolean equals(Object o) {
-			if (o instanceof Label) {
+			// NOTE: a loop or try end is not equal to a label of the same
+			// name, since otherwise interning one could yield the other.
+			if (o != null && o.getClass() == Label.class) {
 				return label.equals(((Label) o).label);
 			}
 			return false;
@@ -2684,7 +2687,9 @@ public abstract class Code {
 		}
 
 		public boolean equals(Object o) {
-			if (o instanceof Loop) {
+			// NOTE: a forall is not equal to a loop with the same target,
+			// since otherwise interning one could yield the other.
+			if (o != null && o.getClass() == Loop.class) {
 				Loop f = (Loop) o;
 				return target.equals(f.target)
 						&& Arrays.equals(modifiedOperands, f.modifiedOperands);
@@ -4391,18 +4396,58 @@ public abstract class Code {
 		return nOperands;
 	}
 
-	private static final ArrayList<Code> values = new ArrayList<Code>();
-	private static final HashMap<Code, Integer> cache = new HashMap<Code, Integer>();
+	// =============================================================
+	// Intern Table
+	// =============================================================
 
-	private static <T extends Code> T get(T type) {
-		Integer idx = cache.get(type);
-		if (idx != null) {
-			return (T) values.get(idx);
+	/**
+	 * Every bytecode created via the factory methods is interned, so that
+	 * identical bytecodes share a single instance. The table is shared safely
+	 * between threads compiling in parallel, and bytecodes no longer
+	 * referenced from any block can be garbage collected.
+	 */
+	private static final Interner<Code, Code> interned = new Interner<Code, Code>();
+	private static final AtomicLong internHits = new AtomicLong();
+	private static final AtomicLong internMisses = new AtomicLong();
+
+	private static <T extends Code> T get(T code) {
+		Code existing = interned.intern(code, code);
+		if (existing != code) {
+			internHits.incrementAndGet();
 		} else {
-			cache.put(type, values.size());
-			values.add(type);
-			return type;
+			internMisses.incrementAndGet();
 		}
+		return (T) existing;
+	}
+
+	/**
+	 * Return the number of distinct bytecodes currently held in the intern
+	 * table.
+	 * 
+	 * @return
+	 */
+	public static int internedCodes() {
+		return interned.size();
+	}
+
+	/**
+	 * Return the number of bytecodes created which were found to already be
+	 * in the intern table.
+	 * 
+	 * @return
+	 */
+	public static long internHits() {
+		return internHits.get();
+	}
+
+	/**
+	 * Return the number of bytecodes created which were not already in the
+	 * intern table.
+	 * 
+	 * @return
+	 */
+	public static long internMisses() {
+		return internMisses.get();
 	}
 	
 	public static final int FMT_SHIFT        = 5;
@@ -31,6 +31,7 @@ import java.util.*;
 import wybs.lang.NameID;
 import wybs.util.Pair;
 import wyautl.util.BigRational;
+import wyil.util.Interner;
 
 public abstract class Constant implements Comparable<Constant> {	
 
@@ -827,17 +828,13 @@ public abstract class Constant implements Comparable<Constant> {
 		}
 	}
 		
-	private static final ArrayList<Constant> values = new ArrayList<Constant>();
-	private static final HashMap<Constant,java.lang.Integer> cache = new HashMap<Constant,java.lang.Integer>();
+	/**
+	 * Every constant created via the factory methods is interned, so that
+	 * identical constants share a single instance.
+	 */
+	private static final Interner<Constant, Constant> interned = new Interner<Constant, Constant>();
 	
-	private static <T extends Constant> T get(T type) {
-		java.lang.Integer idx = cache.get(type);
-		if(idx != null) {
-			return (T) values.get(idx);
-		} else {					
-			cache.put(type, values.size());
-			values.add(type);
-			return type;
-		}
+	private static <T extends Constant> T get(T constant) {
+		return (T) interned.intern(constant, constant);
 	}
 }
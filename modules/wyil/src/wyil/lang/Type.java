@@ -20,6 +20,8 @@ package wyil.lang;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import wyautl_old.io.BinaryAutomataReader;
 import wyautl_old.io.BinaryAutomataWriter;
@@ -29,6 +31,7 @@ import wybs.io.BinaryInputStream;
 import wybs.io.BinaryOutputStream;
 import wybs.lang.NameID;
 import wybs.util.Trie;
+import wyil.util.Interner;
 import wyil.util.type.*;
 
 /**
@@ -533,22 +536,32 @@ public abstract class Type {
 	 * whether the set of all possible values described by the type
 	 * <code>t2</code> is a subset of that described by <code>t1</code>.
 	 */
-	public static boolean isImplicitCoerciveSubtype(Type t1, Type t2) {				
-		Automaton a1 = destruct(t1);
-		Automaton a2 = destruct(t2);
-		ImplicitCoercionOperator relation = new ImplicitCoercionOperator(a1,a2);				
-		return relation.isSubtype(0, 0); 
+	public static boolean isImplicitCoerciveSubtype(Type t1, Type t2) {
+		SubtypeQuery query = new SubtypeQuery(SubtypeQuery.IMPLICIT, t1, t2);
+		Boolean result = lookupSubtype(query);
+		if (result == null) {
+			Automaton a1 = destruct(t1);
+			Automaton a2 = destruct(t2);
+			ImplicitCoercionOperator relation = new ImplicitCoercionOperator(a1,a2);
+			result = storeSubtype(query, relation.isSubtype(0, 0));
+		}
+		return result;
 	}
 
 	/**
 	 * Determine whether type <code>t2</code> is an <i>explicit coercive
 	 * subtype</i> of type <code>t1</code>.  
 	 */
-	public static boolean isExplicitCoerciveSubtype(Type t1, Type t2) {				
-		Automaton a1 = destruct(t1);
-		Automaton a2 = destruct(t2);
-		ExplicitCoercionOperator relation = new ExplicitCoercionOperator(a1,a2);				
-		return relation.isSubtype(0, 0); 
+	public static boolean isExplicitCoerciveSubtype(Type t1, Type t2) {
+		SubtypeQuery query = new SubtypeQuery(SubtypeQuery.EXPLICIT, t1, t2);
+		Boolean result = lookupSubtype(query);
+		if (result == null) {
+			Automaton a1 = destruct(t1);
+			Automaton a2 = destruct(t2);
+			ExplicitCoercionOperator relation = new ExplicitCoercionOperator(a1,a2);
+			result = storeSubtype(query, relation.isSubtype(0, 0));
+		}
+		return result;
 	}
 	
 	/**
@@ -557,13 +570,133 @@ public abstract class Type {
 	 * all possible values described by the type <code>t2</code> is a subset of
 	 * that described by <code>t1</code>.
 	 */
-	public static boolean isSubtype(Type t1, Type t2) {		
-		Automaton a1 = destruct(t1);
-		Automaton a2 = destruct(t2);
-		SubtypeOperator relation = new SubtypeOperator(a1,a2);		
-		return relation.isSubtype(0, 0);		
+	public static boolean isSubtype(Type t1, Type t2) {
+		SubtypeQuery query = new SubtypeQuery(SubtypeQuery.SUBTYPE, t1, t2);
+		Boolean result = lookupSubtype(query);
+		if (result == null) {
+			Automaton a1 = destruct(t1);
+			Automaton a2 = destruct(t2);
+			SubtypeOperator relation = new SubtypeOperator(a1,a2);
+			result = storeSubtype(query, relation.isSubtype(0, 0));
+		}
+		return result;
 	}
 	
+	// =============================================================
+	// Subtype Cache
+	// =============================================================
+
+	/**
+	 * The maximum number of subtype queries retained in the cache. When this
+	 * limit is reached the cache is simply emptied and begins refilling. This
+	 * is crude, but avoids any bookkeeping on the (very hot) lookup path.
+	 */
+	private static volatile int subtypeCacheLimit = 100000;
+
+	private static final ConcurrentHashMap<SubtypeQuery, Boolean> subtypeCache = new ConcurrentHashMap<SubtypeQuery, Boolean>();
+	private static final AtomicLong subtypeCacheHits = new AtomicLong();
+	private static final AtomicLong subtypeCacheMisses = new AtomicLong();
+
+	/**
+	 * Return the number of subtype queries answered from the cache.
+	 * 
+	 * @return
+	 */
+	public static long subtypeCacheHits() {
+		return subtypeCacheHits.get();
+	}
+
+	/**
+	 * Return the number of subtype queries which had to be computed from
+	 * scratch.
+	 * 
+	 * @return
+	 */
+	public static long subtypeCacheMisses() {
+		return subtypeCacheMisses.get();
+	}
+
+	/**
+	 * Set the maximum number of entries held in the subtype cache. A limit of
+	 * zero disables caching altogether.
+	 * 
+	 * @param limit
+	 */
+	public static void setSubtypeCacheLimit(int limit) {
+		subtypeCacheLimit = limit;
+		subtypeCache.clear();
+	}
+
+	/**
+	 * Empty the subtype cache and reset its counters.
+	 */
+	public static void clearSubtypeCache() {
+		subtypeCache.clear();
+		subtypeCacheHits.set(0);
+		subtypeCacheMisses.set(0);
+	}
+
+	private static Boolean lookupSubtype(SubtypeQuery query) {
+		Boolean result = subtypeCache.get(query);
+		if (result != null) {
+			subtypeCacheHits.incrementAndGet();
+		} else {
+			subtypeCacheMisses.incrementAndGet();
+		}
+		return result;
+	}
+
+	private static boolean storeSubtype(SubtypeQuery query, boolean result) {
+		int limit = subtypeCacheLimit;
+		if (limit > 0) {
+			if (subtypeCache.size() >= limit) {
+				subtypeCache.clear();
+			}
+			subtypeCache.put(query, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Identifies a single subtype query. Since types are compared structurally
+	 * (via their canonical automata), two queries over equivalent types
+	 * are considered the same. The hash code is computed once, since hashing a
+	 * compound type requires traversing its automaton.
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	private static final class SubtypeQuery {
+		public static final int SUBTYPE = 0;
+		public static final int IMPLICIT = 1;
+		public static final int EXPLICIT = 2;
+
+		private final int kind;
+		private final Type t1;
+		private final Type t2;
+		private final int hashCode;
+
+		public SubtypeQuery(int kind, Type t1, Type t2) {
+			this.kind = kind;
+			this.t1 = t1;
+			this.t2 = t2;
+			this.hashCode = kind + 31 * (t1.hashCode() + 31 * t2.hashCode());
+		}
+
+		public boolean equals(Object o) {
+			if (o instanceof SubtypeQuery) {
+				SubtypeQuery q = (SubtypeQuery) o;
+				return kind == q.kind && hashCode == q.hashCode
+						&& t1.equals(q.t1) && t2.equals(q.t2);
+			}
+			return false;
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
 	/**
 	 * <p>
 	 * Contractive types are types which cannot accept value because they have
@@ -909,21 +1042,30 @@ public abstract class Type {
 	public static class Compound extends Type {
 		//protected Automaton automaton;
 		public Automaton automaton;
+		private final int hashCode;
 		
 		public Compound(Automaton automaton) {
 			this.automaton = automaton;
+			this.hashCode = automaton.hashCode();
 		}
 		
 		public int hashCode() {
-			return automaton.hashCode();
+			return hashCode;
 		}
 		
 		public boolean equals(Object o) {
-			if (o instanceof Compound) {
+			if (o == this) {
+				return true;
+			} else if (o instanceof Compound) {
 				Compound c = (Compound) o;
 				//equalsCount++;
 				if(canonicalisation) {
-					return automaton.equals(c.automaton);
+					// Compound types built through construct() are interned, so
+					// distinct instances are almost always distinct types.
+					// However, we still fall back on a structural check for
+					// those which were not.
+					return hashCode == c.hashCode
+							&& automaton.equals(c.automaton);
 				} else {
 					return isSubtype(this, c) && isSubtype(c, this);
 				}				
@@ -2077,8 +2219,15 @@ public abstract class Type {
 	 */
 	public final static Type construct(Automaton automaton) {
 		automaton = normalise(automaton);
-		// second, construc the appropriate face
+		// first, check whether we've seen this type before
 		State root = automaton.states[0];
+		if (canonicalisation) {
+			Compound existing = InternTable.types.lookup(automaton);
+			if (existing != null) {
+				return existing;
+			}
+		}
+		// second, construc the appropriate face
 		Type type;
 		
 		switch(root.kind) {
@@ -2189,6 +2338,11 @@ public abstract class Type {
 		
 		//distinctTypes.add(type);
 		
+		if (canonicalisation && type instanceof Compound) {
+			type = InternTable.types.intern(((Compound) type).automaton,
+					(Compound) type);
+		}
+		
 		return type;
 	}
 
@@ -2346,22 +2500,41 @@ public abstract class Type {
 	public static final byte K_METHOD = 20; 
 	public static final byte K_NOMINAL = 21;
 	
-	private static final ArrayList<Automaton> values = new ArrayList<Automaton>();
-	private static final HashMap<Automaton,Integer> cache = new HashMap<Automaton,Integer>();
+	// =============================================================
+	// Intern Table
+	// =============================================================
 
 	/**
-	 * The following method is for implementing the fly-weight pattern.
+	 * Return the number of distinct compound types currently held in the
+	 * intern table.
+	 * 
+	 * @return
 	 */
-	private static <T extends Automaton> T get(T type) {
-		Integer idx = cache.get(type);
-		if(idx != null) {
-			return (T) values.get(idx);
-		} else {					
-			cache.put(type, values.size());
-			values.add(type);
-			return type;
-		}
-	}	
+	public static int internedTypes() {
+		return InternTable.types.size();
+	}
+
+	/**
+	 * <p>
+	 * The intern table implements the fly-weight pattern for compound types.
+	 * That is, every compound type built via <code>construct()</code> is
+	 * canonical, and can be compared by reference. Types are keyed by their
+	 * (normalised) automata, so that an existing type can be found before a
+	 * new one is constructed.
+	 * </p>
+	 * 
+	 * <p>
+	 * <b>NOTE:</b> the table lives in its own class, since the static type
+	 * constants (e.g. <code>T_SET_ANY</code>) are constructed whilst this
+	 * class is still being initialised.
+	 * </p>
+	 * 
+	 * @author David J. Pearce
+	 * 
+	 */
+	private static final class InternTable {
+		private static final Interner<Automaton, Compound> types = new Interner<Automaton, Compound>();
+	}
 	
 	public static void main(String[] args) {
 		//Type from = fromString("(null,null)");
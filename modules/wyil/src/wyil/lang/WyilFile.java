@@ -53,10 +53,16 @@ public final class WyilFile implements CompilationUnit {
 			return null;
 		}
 
-		public WyilFile read(Path.Entry<WyilFile> e, InputStream input) throws IOException {			
-			WyilFileReader reader = new WyilFileReader(input);
-			WyilFile mi = reader.read();
-			return mi;				
+		public WyilFile read(Path.Entry<WyilFile> e, InputStream input) throws IOException {
+			// The entry may supply its contents more efficiently as a binary
+			// stream (e.g. a memory-mapped file) than through the given stream.
+			input.close();
+			WyilFileReader reader = new WyilFileReader(e.binaryInputStream());
+			try {
+				return reader.read();
+			} finally {
+				reader.close();
+			}
 		}
 		
 		public void write(OutputStream output, WyilFile module) throws IOException {
@@ -414,10 +420,16 @@ public final class WyilFile implements CompilationUnit {
 	}	
 	
 	public static final class Case extends SyntacticElement.Impl {				
-		private final Block precondition;
-		private final Block postcondition;
-		private final Block body;
-		private final ArrayList<String> locals;		
+		private Block precondition;
+		private Block postcondition;
+		private Block body;
+		private final ArrayList<String> locals;
+		
+		/**
+		 * The decoder responsible for constructing the blocks of this case on
+		 * demand, or null if they are already available.
+		 */
+		private Decoder decoder;
 		
 		public Case(Block body, Block precondition, Block postcondition,
 				Collection<String> locals, Attribute... attributes) {
@@ -437,20 +449,65 @@ public final class WyilFile implements CompilationUnit {
 			this.locals = new ArrayList<String>(locals);			
 		}
 		
+		/**
+		 * Construct a case whose blocks are not decoded until first accessed.
+		 * This allows e.g. a WyIL file to be loaded without the expense of
+		 * decoding method bodies which are never used.
+		 * 
+		 * @param decoder
+		 *            --- responsible for decoding the blocks of this case.
+		 * @param locals
+		 * @param attributes
+		 */
+		public Case(Decoder decoder, Collection<String> locals,
+				Attribute... attributes) {
+			super(attributes);
+			this.decoder = decoder;
+			this.locals = new ArrayList<String>(locals);
+		}
+		
 		public Block body() {
+			decode();
 			return body;
 		}
 		
 		public Block precondition() {
+			decode();
 			return precondition;
 		}
 		
 		public Block postcondition() {
+			decode();
 			return postcondition;
 		}
 		
 		public List<String> locals() {
 			return Collections.unmodifiableList(locals);
 		}
+		
+		private synchronized void decode() {
+			if (decoder != null) {
+				try {
+					Case c = decoder.decode();
+					this.body = c.body;
+					this.precondition = c.precondition;
+					this.postcondition = c.postcondition;
+					this.decoder = null;
+				} catch (IOException e) {
+					throw new RuntimeException(e.getMessage(), e);
+				}
+			}
+		}
+		
+		/**
+		 * A decoder is responsible for constructing the blocks of a case which
+		 * is loaded lazily.
+		 * 
+		 * @author David J. Pearce
+		 * 
+		 */
+		public interface Decoder {
+			public Case decode() throws IOException;
+		}
 	}
 }
@@ -84,9 +84,9 @@ import wyil.util.dfa.BackwardFlowAnalysis;
  * @author David J. Pearce
  * 
  */
-public final class BackPropagation extends BackwardFlowAnalysis<BackPropagation.Env> implements Transform<WyilFile> {	
-	private static final HashMap<Integer,Block> afterInserts = new HashMap<Integer,Block>();
-	private static final HashMap<Integer,Block.Entry> rewrites = new HashMap<Integer,Block.Entry>();
+public final class BackPropagation extends BackwardFlowAnalysis<BackPropagation.Env> implements CaseTransform {	
+	private final HashMap<Integer,Block> afterInserts = new HashMap<Integer,Block>();
+	private final HashMap<Integer,Block.Entry> rewrites = new HashMap<Integer,Block.Entry>();
 	
 	public BackPropagation(Builder builder) {
 		super();
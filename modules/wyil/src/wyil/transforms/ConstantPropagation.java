@@ -31,35 +31,113 @@ import java.math.BigInteger;
 import java.util.*;
 
 import wybs.lang.Builder;
-import wybs.lang.Path;
-import wybs.lang.Transform;
+import wybs.lang.SyntaxError;
 import wybs.util.Pair;
 import wyautl.util.BigRational;
 import wyil.lang.*;
 import wyil.lang.Block.Entry;
 import wyil.lang.Code;
 import wyil.util.*;
-import wyil.util.dfa.ForwardFlowAnalysis;
+import wyil.util.dfa.DefUseChains;
 
-public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation.Env> implements Transform<WyilFile> {	
-	private static final HashMap<Integer,Rewrite> rewrites = new HashMap<Integer,Rewrite>();
+/**
+ * <p>
+ * Propagates constants through method and function bodies using sparse
+ * conditional constant propagation. Every definition of a register (see
+ * {@link DefUseChains}) is given a value which is either unknown (i.e. not yet
+ * determined), a constant, or overdefined. At the same time, the basic blocks
+ * which are executable are determined, beginning with the first. A
+ * definition is only (re)evaluated when it becomes executable, or when the
+ * value of a definition it reads changes, and only those definitions which
+ * are executable contribute to the value of a register read. Thus, a
+ * conditional branch whose operands are constant only makes the target it
+ * actually takes executable.
+ * </p>
+ * 
+ * <p>
+ * Once a fixed point is reached, every bytecode which defines a constant is
+ * replaced with a <code>const</code> bytecode, and every conditional branch
+ * whose outcome is known is replaced with a <code>goto</code> (or removed).
+ * Any bytecodes which are not executable are removed. Finally, a register
+ * read which is always a copy of another is replaced with the original, and
+ * the copy itself may then be removed by {@link LiveVariablesAnalysis}.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public class ConstantPropagation implements CaseTransform {
+	/**
+	 * Represents the value of a definition which is not constant.
+	 */
+	private static final Constant OVERDEFINED = new Overdefined();
 	
 	/**
 	 * Determines whether constant propagation is enabled or not.
 	 */
 	private boolean enabled = getEnable();
 	
+	private String filename;
+	private Block block;
+	private Block.Graph graph;
+	private DefUseChains chains;
+	
+	/**
+	 * The value of each definition, where null means not yet known.
+	 */
+	private Constant[] values;
+	
+	/**
+	 * The basic blocks which are known to be executable.
+	 */
+	private BitSet executable;
+	
+	/**
+	 * The basic blocks which have become executable but not yet been
+	 * propagated through.
+	 */
+	private BitSet blocks;
+	
+	/**
+	 * The bytecodes which read a definition whose value has changed.
+	 */
+	private BitSet codes;
+	
 	public ConstantPropagation(Builder builder) {
 		
 	}
 	
-	@Override
 	public void apply(WyilFile module) {
 		if(enabled) {
-			super.apply(module);
+			filename = module.filename();
+			for(WyilFile.Declaration d : module.declarations()) {
+				if(d instanceof WyilFile.TypeDeclaration) {
+					WyilFile.TypeDeclaration td = (WyilFile.TypeDeclaration) d;
+					module.replace(td,propagate(td));	
+				} else if(d instanceof WyilFile.MethodDeclaration) {
+					WyilFile.MethodDeclaration md = (WyilFile.MethodDeclaration) d;
+					if(!md.isNative()) {
+						// native functions/methods don't have bodies
+						module.replace(md,propagate(md));
+					}
+				}
+			}
 		}
 	}
 	
+	public boolean begin(WyilFile module) {
+		filename = module.filename();
+		return enabled;
+	}
+	
+	public WyilFile.TypeDeclaration apply(WyilFile.TypeDeclaration type) {
+		return propagate(type);
+	}
+	
+	public WyilFile.Case apply(WyilFile.Case mcase, WyilFile.MethodDeclaration method) {
+		return propagate(mcase);
+	}
+	
 	public static String describeEnable() {
 		return "Enable/disable constant propagation";
 	}
@@ -72,7 +150,6 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 		this.enabled = flag;
 	}
 		
-	@Override
 	public WyilFile.TypeDeclaration propagate(WyilFile.TypeDeclaration type) {
 		Block constraint = type.constraint();
 		if(constraint != null) {
@@ -83,20 +160,16 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 		return type;			
 	}
 	
-	public Env initialStore() {				
-		Env environment = new Env();		
-		int nvars = block.numSlots();
-		
-		for (int i=0; i != nvars; ++i) {			
-			environment.add(null);			
-		}				
-					
-		return environment;				
+	public WyilFile.MethodDeclaration propagate(WyilFile.MethodDeclaration method) {
+		ArrayList<WyilFile.Case> cases = new ArrayList<WyilFile.Case>();
+		for (WyilFile.Case c : method.cases()) {
+			cases.add(propagate(c));
+		}
+		return new WyilFile.MethodDeclaration(method.modifiers(),
+				method.name(), method.type(), cases);
 	}
 	
-	@Override
 	public WyilFile.Case propagate(WyilFile.Case mcase) {				
-		// TODO: back propagate through pre- and post-conditions
 		Block precondition = mcase.precondition();
 		Block postcondition = mcase.postcondition();
 		if (precondition != null) {
@@ -112,145 +185,567 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 	
 	public Block propagate(Block body) {				
 		block = body;
-		stores = new HashMap<String,Env>();		
-		rewrites.clear();
-
-		// TODO: propagate constants through pre- and post-conditions.
+		graph = body.graph();
+		chains = new DefUseChains(body);
+		values = new Constant[chains.size()];
+		executable = new BitSet(graph.size());
+		blocks = new BitSet(graph.size());
+		codes = new BitSet(body.size());
 		
-		Env environment = initialStore();		
-		propagate(0,body.size(), environment, Collections.EMPTY_LIST);	
+		// parameters, and registers not yet assigned, could hold anything.
+		for (int d = body.size(); d != values.length; ++d) {
+			values[d] = OVERDEFINED;
+		}
+		
+		if (body.size() > 0) {
+			execute(0);
+		}
 		
-		// At this point, we apply the inserts
-		Block nbody = new Block(body.numInputs());		
-		for(int i=0;i!=body.size();++i) {
-			Rewrite rewrite = rewrites.get(i);			
-			if(rewrite != null) {					
-				nbody.append(rewrite.rewrite);				
-			} else {				
-				nbody.append(body.get(i));
+		while (true) {
+			int b = blocks.nextSetBit(0);
+			if (b >= 0) {
+				blocks.clear(b);
+				for (int i = graph.first(b); i <= graph.last(b); ++i) {
+					visit(i);
+				}
+			} else {
+				int i = codes.nextSetBit(0);
+				if (i < 0) {
+					break;
+				}
+				codes.clear(i);
+				if (executable.get(graph.blockOf(i))) {
+					visit(i);
+				}
 			}
 		}
 		
+		Block nbody = rewrite(body);
+		
+		// the analysis is not needed once a block is finished with.
+		block = null;
+		graph = null;
+		chains = null;
+		values = null;
 		return nbody;
 	}
-	/*
 	
-	protected Block unrollFor(Code.ForAll fall, Block body) {		
-		Block blk = new Block();
-		Collection<Value> values;
-		if(fall.source instanceof Value.List) {
-			Value.List l = (Value.List) fall.source;
-			values = l.values;
-		} else {
-			Value.Set s = (Value.Set) fall.source;
-			values = s.values;
+	/**
+	 * Mark a basic block as executable, in which case it will be propagated
+	 * through if it wasn't already.
+	 * 
+	 * @param blk
+	 */
+	private void execute(int blk) {
+		if (!executable.get(blk)) {
+			executable.set(blk);
+			blocks.set(blk);
+		}
+	}
+	
+	/**
+	 * Mark the basic block starting at a given index as executable. The index
+	 * may be the size of the block, or -1, in which case nothing happens.
+	 * 
+	 * @param index
+	 */
+	private void executeAt(int index) {
+		if (index >= 0 && index < block.size()) {
+			execute(graph.blockOf(index));
+		}
+	}
+	
+	/**
+	 * (Re)evaluate the bytecode at a given index, which is known to be
+	 * executable.
+	 * 
+	 * @param index
+	 */
+	private void visit(int index) {
+		Entry entry = block.get(index);
+		Code code = entry.code;
+		try {
+			if (code instanceof Code.If) {
+				Code.If c = (Code.If) code;
+				if (isKnown(index)) {
+					branch(index, c.target, evaluate(index, c));
+				}
+			} else if (code instanceof Code.IfIs) {
+				Code.IfIs c = (Code.IfIs) code;
+				// the operand is retyped, but its value is unchanged
+				define(index, value(index, c.operand));
+				if (isKnown(index)) {
+					branch(index, c.target, evaluate(index, c));
+				}
+			} else if (code instanceof Code.Switch) {
+				Code.Switch c = (Code.Switch) code;
+				if (isKnown(index)) {
+					String target = evaluate(index, c);
+					if (target != null) {
+						executeAt(graph.indexOf(target));
+					} else {
+						for (Pair<Constant, String> p : c.branches) {
+							executeAt(graph.indexOf(p.second()));
+						}
+						executeAt(graph.indexOf(c.defaultTarget));
+					}
+				}
+			} else {
+				if (chains.register(index) != Code.NULL_REG) {
+					define(index, evaluate(index, code));
+				}
+				int blk = graph.blockOf(index);
+				if (index == graph.last(blk)) {
+					for (int s : graph.successors(blk)) {
+						execute(s);
+					}
+				}
+			}
+		} catch (SyntaxError se) {
+			throw se;
+		} catch (Throwable ex) {
+			internalFailure("internal failure", filename, entry, ex);
+		}
+	}
+	
+	/**
+	 * Make the target and/or the fall-through of a conditional branch
+	 * executable, depending on whether it is known to be taken.
+	 * 
+	 * @param index
+	 * @param target
+	 * @param taken
+	 *            --- true or false if the branch is known to be taken or not,
+	 *            or null if this is unknown.
+	 */
+	private void branch(int index, String target, Boolean taken) {
+		if (taken != Boolean.FALSE) {
+			executeAt(graph.indexOf(target));
 		}
-		HashMap<String,CExpr> binding = new HashMap<String,CExpr>();
-		String var = fall.variable.name();
-		for(Value v : values) {
-			// first, relabel to avoid conflicts
-			Block tmp = Block.relabel(body);
-			// second, substitute value
-			binding.put(var, v);			
-			tmp = Block.substitute(binding,tmp);			
-			// finally,add to the target blk
-			blk.addAll(tmp);
+		if (taken != Boolean.TRUE) {
+			executeAt(graph.next(index));
 		}
-		return blk;
-	}		
+	}
 	
-	*/
+	/**
+	 * Lower the value of a given definition, such that it is no higher than a
+	 * given value. If this changes it, then those bytecodes which read the
+	 * definition must be reevaluated.
+	 * 
+	 * @param definition
+	 * @param value
+	 */
+	private void define(int definition, Constant value) {
+		Constant old = values[definition];
+		Constant nval = meet(old, value);
+		if (nval != old) {
+			values[definition] = nval;
+			for (int use : chains.uses(definition)) {
+				codes.set(use);
+			}
+		}
+	}
 	
-
-	@Override
-	public Env propagate(int index, Entry entry, Env environment) {						
-		Code code = entry.code;			
-		
-		// reset the rewrites for this code, in case it changes
-		rewrites.remove(index);
-		
-		environment = (Env) environment.clone();
-		
-		if(code instanceof Code.BinArithOp) {
-			infer(index,(Code.BinArithOp)code,entry,environment);
-		} else if(code instanceof Code.Convert) {
-			infer(index,(Code.Convert)code,entry,environment);
-		} else if(code instanceof Code.Const) {
-			infer(index, (Code.Const)code,entry,environment);
-		} else if(code instanceof Code.Debug) {
-			infer(index, (Code.Debug)code,entry,environment);
-		} else if(code instanceof Code.AssertOrAssume) {
-			infer(index, (Code.AssertOrAssume)code,entry,environment);
-		} else if(code instanceof Code.FieldLoad) {
-			infer(index,(Code.FieldLoad)code,entry,environment);			
-		} else if(code instanceof Code.TupleLoad) {
-			infer(index,(Code.TupleLoad)code,entry,environment);			
-		} else if(code instanceof Code.IndirectInvoke) {
-			infer(index, (Code.IndirectInvoke)code,entry,environment);
-		} else if(code instanceof Code.Invoke) {
-			infer(index, (Code.Invoke)code,entry,environment);
-		} else if(code instanceof Code.Invert) {
-			infer(index,(Code.Invert)code,entry,environment);
-		} else if(code instanceof Code.Lambda) {
-			// skip			
-		} else if(code instanceof Code.Label) {
-			// skip			
-		} else if(code instanceof Code.BinListOp) {
-			infer(index,(Code.BinListOp)code,entry,environment);
-		} else if(code instanceof Code.LengthOf) {
-			infer(index,(Code.LengthOf)code,entry,environment);
-		} else if(code instanceof Code.SubList) {
-			infer(index,(Code.SubList)code,entry,environment);
-		} else if(code instanceof Code.IndexOf) {
-			infer(index,(Code.IndexOf)code,entry,environment);
-		} else if(code instanceof Code.Assign) {
-			infer(index,(Code.Assign)code,entry,environment);
-		} else if(code instanceof Code.Update) {
-			infer(index, (Code.Update)code,entry,environment);
-		} else if(code instanceof Code.NewMap) {
-			infer(index,(Code.NewMap)code,entry,environment);
-		} else if(code instanceof Code.NewList) {
-			infer(index,(Code.NewList)code,entry,environment);
-		} else if(code instanceof Code.NewRecord) {
-			infer(index,(Code.NewRecord)code,entry,environment);
-		} else if(code instanceof Code.NewSet) {
-			infer(index,(Code.NewSet)code,entry,environment);
-		} else if(code instanceof Code.NewTuple) {
-			infer(index,(Code.NewTuple)code,entry,environment);
-		} else if(code instanceof Code.UnArithOp) {
-			infer(index,(Code.UnArithOp)code,entry,environment);
-		} else if(code instanceof Code.Dereference) {
-			infer(index,(Code.Dereference)code,entry,environment);
-		} else if(code instanceof Code.Return) {
-			infer(index, (Code.Return)code,entry,environment);
-		} else if(code instanceof Code.BinSetOp) {
-			infer(index,(Code.BinSetOp)code,entry,environment);
-		} else if(code instanceof Code.BinStringOp) {
-			infer(index,(Code.BinStringOp)code,entry,environment);
-		} else if(code instanceof Code.SubString) {
-			infer(index,(Code.SubString)code,entry,environment);
-		} else if(code instanceof Code.Nop) {
-			// skip			
-		} else if(code instanceof Code.NewObject) {
-			infer(index,(Code.NewObject)code,entry,environment);
-		} else if(code instanceof Code.Throw) {
-			infer(index,(Code.Throw)code,entry,environment);
+	/**
+	 * Determine the value of a register read by the bytecode at a given index.
+	 * This is the meet of the executable definitions which reach it, and is
+	 * null if none of these is known yet.
+	 * 
+	 * @param index
+	 * @param register
+	 * @return
+	 */
+	private Constant value(int index, int register) {
+		int[] defs = chains.definitions(index, register);
+		if (defs == null || defs.length == 0) {
+			// should be impossible, but it's always safe to give up.
+			return OVERDEFINED;
+		}
+		Constant result = null;
+		for (int d : defs) {
+			if (chains.isEntry(d) || executable.get(graph.blockOf(d))) {
+				result = meet(result, values[d]);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Determine whether the values of all registers read by the bytecode at a
+	 * given index are known (though they may be overdefined).
+	 * 
+	 * @param index
+	 * @return
+	 */
+	private boolean isKnown(int index) {
+		for (int operand : chains.operands(index)) {
+			if (value(index, operand) == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static Constant meet(Constant c1, Constant c2) {
+		if (c1 == null) {
+			return c2;
+		} else if (c2 == null || c1 == OVERDEFINED || c1.equals(c2)) {
+			return c1;
+		} else {
+			return OVERDEFINED;
+		}
+	}
+	
+	public static boolean isRealConstant(Constant c) {
+		return c != null && c != OVERDEFINED;
+	}
+	
+	// =========================================================================
+	// Rewriting
+	// =========================================================================
+	
+	/**
+	 * Construct a new block from the given block, once a fixed point has been
+	 * reached.
+	 * 
+	 * @param body
+	 * @return
+	 */
+	private Block rewrite(Block body) {
+		Block nbody = new Block(body.numInputs());
+		for (int i = 0; i != body.size(); ++i) {
+			Entry entry = body.get(i);
+			Code code = entry.code;
+			if (!executable.get(graph.blockOf(i))) {
+				// The end of a loop or try-catch must be retained along with
+				// its start, even though it may not be reachable itself.
+				int start = graph.start(i);
+				if (start >= 0 && executable.get(graph.blockOf(start))) {
+					nbody.append(entry);
+				}
+			} else if (code instanceof Code.If) {
+				Code.If c = (Code.If) code;
+				Boolean taken = evaluate(i, c);
+				if (taken == null) {
+					append(i, entry, nbody);
+				} else if (taken) {
+					nbody.append(Code.Goto(c.target), entry.attributes());
+				}
+			} else if (code instanceof Code.IfIs) {
+				Code.IfIs c = (Code.IfIs) code;
+				Boolean taken = evaluate(i, c);
+				if (taken == null) {
+					nbody.append(entry);
+				} else {
+					// NOTE: the operand is retyped on both branches, and so must
+					// still be written here.
+					nbody.append(Code.Const(c.operand, value(i, c.operand)),
+							entry.attributes());
+					if (taken) {
+						nbody.append(Code.Goto(c.target), entry.attributes());
+					}
+				}
+			} else if (code instanceof Code.Switch) {
+				String target = evaluate(i, (Code.Switch) code);
+				if (target == null) {
+					append(i, entry, nbody);
+				} else {
+					nbody.append(Code.Goto(target), entry.attributes());
+				}
+			} else if (code instanceof Code.AbstractAssignable
+					&& !(code instanceof Code.Const)
+					&& chains.register(i) != Code.NULL_REG
+					&& isRealConstant(values[i])) {
+				nbody.append(Code.Const(chains.register(i), values[i]),
+						entry.attributes());
+			} else {
+				append(i, entry, nbody);
+			}
+		}
+		return nbody;
+	}
+	
+	/**
+	 * Append the bytecode at a given index, having replaced any registers it
+	 * reads which are copies of others.
+	 * 
+	 * @param index
+	 * @param entry
+	 * @param nbody
+	 */
+	private void append(int index, Entry entry, Block nbody) {
+		Code code = entry.code;
+		if ((code instanceof Code.Loop && !(code instanceof Code.ForAll))
+				|| code instanceof Code.IfIs) {
+			// NOTE: it's unsafe to remap a type test, since the variable being
+			// retyped will need to be subsequently cast.
+			nbody.append(entry);
+			return;
+		}
+		HashMap<Integer, Integer> binding = new HashMap<Integer, Integer>();
+		int target = chains.register(index);
+		for (int operand : chains.operands(index)) {
+			// follow chains of copies back to the original register
+			int source = operand;
+			for (int n = 0; n != block.numSlots(); ++n) {
+				int next = copyOf(index, source);
+				if (next == source) {
+					break;
+				}
+				source = next;
+			}
+			// the target cannot be remapped, since it is also written
+			if (operand != target && source != operand) {
+				binding.put(operand, source);
+			}
+		}
+		if (code instanceof Code.ForAll) {
+			// the source of a loop is read only once on entry, but registers
+			// modified within it must not be remapped.
+			for (int r : ((Code.ForAll) code).modifiedOperands) {
+				binding.remove(r);
+			}
+		}
+		Code ncode = code.remap(binding);
+		if (ncode != code) {
+			nbody.append(ncode, entry.attributes());
 		} else {
-			internalFailure("unknown: " + code.getClass().getName(),filename,entry);
+			nbody.append(entry);
+		}
+	}
+	
+	/**
+	 * Determine the register of which a register read at a given index is a
+	 * copy. This is the case when the only (executable) definition of it which
+	 * reaches the index is an assignment from another register, and that
+	 * register cannot be written in between. This is easily checked when both
+	 * are in the same basic block. Otherwise, the same single definition of
+	 * the other register must reach both the assignment and the index; since
+	 * the assignment must be passed through to reach the index, the other
+	 * register cannot then be written in between. If there is no such
+	 * register, then the register itself is returned.
+	 * 
+	 * @param index
+	 * @param register
+	 * @return
+	 */
+	private int copyOf(int index, int register) {
+		int def = single(chains.definitions(index, register));
+		if (def < 0 || chains.isEntry(def)
+				|| !(block.get(def).code instanceof Code.Assign)) {
+			return register;
+		}
+		int source = ((Code.Assign) block.get(def).code).operand;
+		if (def < index && graph.blockOf(def) == graph.blockOf(index)) {
+			for (int i = def + 1; i < index; ++i) {
+				if (chains.register(i) == source) {
+					return register;
+				}
+			}
+			return source;
+		}
+		int before = single(chains.definitions(def, source));
+		int after = single(chains.definitions(index, source));
+		return before >= 0 && before == after ? source : register;
+	}
+	
+	/**
+	 * Return the only executable definition amongst those given, or -1 if
+	 * there is not exactly one.
+	 * 
+	 * @param defs
+	 * @return
+	 */
+	private int single(int[] defs) {
+		int result = -1;
+		if (defs != null) {
+			for (int d : defs) {
+				if (chains.isEntry(d) || executable.get(graph.blockOf(d))) {
+					if (result >= 0) {
+						return -1;
+					}
+					result = d;
+				}
+			}
+		}
+		return result;
+	}
+	
+	// =========================================================================
+	// Branches
+	// =========================================================================
+	
+	/**
+	 * Determine whether or not a conditional branch is taken, or null if this
+	 * is unknown.
+	 * 
+	 * @param index
+	 * @param code
+	 * @return
+	 */
+	public Boolean evaluate(int index, Code.If code) {
+		Constant lhs = value(index, code.leftOperand);
+		Constant rhs = value(index, code.rightOperand);
+		if (!isRealConstant(lhs) || !isRealConstant(rhs)
+				|| lhs.getClass() != rhs.getClass()) {
 			return null;
-		}	
-		
-		return environment;
+		}
+		switch (code.op) {
+		case EQ:
+		case NEQ:
+			if (lhs instanceof Constant.Null || lhs instanceof Constant.Bool
+					|| lhs instanceof Constant.Byte
+					|| lhs instanceof Constant.Char
+					|| lhs instanceof Constant.Integer
+					|| lhs instanceof Constant.Rational
+					|| lhs instanceof Constant.Strung) {
+				return lhs.equals(rhs) == (code.op == Code.Comparator.EQ);
+			}
+			break;
+		case LT:
+		case LTEQ:
+		case GT:
+		case GTEQ:
+			if (lhs instanceof Constant.Integer
+					|| lhs instanceof Constant.Rational) {
+				int c = lhs.compareTo(rhs);
+				switch (code.op) {
+				case LT:
+					return c < 0;
+				case LTEQ:
+					return c <= 0;
+				case GT:
+					return c > 0;
+				default:
+					return c >= 0;
+				}
+			}
+			break;
+		}
+		return null;
 	}
 	
-	public void infer(int index, Code.AssertOrAssume code, Block.Entry entry, Env environment) {
-		remap(environment, index, entry);
+	/**
+	 * Determine whether or not a type test is taken, or null if this is
+	 * unknown.
+	 * 
+	 * @param index
+	 * @param code
+	 * @return
+	 */
+	public Boolean evaluate(int index, Code.IfIs code) {
+		Constant val = value(index, code.operand);
+		if (!isRealConstant(val)) {
+			return null;
+		}
+		Type type = val.type();
+		if (Type.isSubtype(code.rightOperand, type)) {
+			return true;
+		} else if (Type.isSubtype(Type.T_VOID,
+				Type.intersect(type, code.rightOperand))) {
+			return false;
+		}
+		return null;
+	}
+	
+	/**
+	 * Determine the target of a switch, or null if this is unknown.
+	 * 
+	 * @param index
+	 * @param code
+	 * @return
+	 */
+	public String evaluate(int index, Code.Switch code) {
+		Constant val = value(index, code.operand);
+		if (!isRealConstant(val)) {
+			return null;
+		}
+		for (Pair<Constant, String> p : code.branches) {
+			if (p.first().equals(val)) {
+				return p.second();
+			}
+		}
+		return code.defaultTarget;
+	}
+	
+	// =========================================================================
+	// Definitions
+	// =========================================================================
+	
+	/**
+	 * Evaluate the value written by a given bytecode, based on the values
+	 * currently known for the registers it reads.
+	 * 
+	 * @param index
+	 * @param code
+	 * @return
+	 */
+	public Constant evaluate(int index, Code code) {
+		if (code instanceof Code.Const) {
+			return ((Code.Const) code).constant;
+		}
+		for (int operand : chains.operands(index)) {
+			Constant val = value(index, operand);
+			if (val == null) {
+				return null;
+			} else if (val == OVERDEFINED) {
+				return OVERDEFINED;
+			}
+		}
+		
+		Constant result;
+		try {
+			if(code instanceof Code.BinArithOp) {
+				result = evaluate(index,(Code.BinArithOp)code);
+			} else if(code instanceof Code.FieldLoad) {
+				result = evaluate(index,(Code.FieldLoad)code);
+			} else if(code instanceof Code.TupleLoad) {
+				result = evaluate(index,(Code.TupleLoad)code);
+			} else if(code instanceof Code.Invert) {
+				result = evaluate(index,(Code.Invert)code);
+			} else if(code instanceof Code.BinListOp) {
+				result = evaluate(index,(Code.BinListOp)code);
+			} else if(code instanceof Code.LengthOf) {
+				result = evaluate(index,(Code.LengthOf)code);
+			} else if(code instanceof Code.SubList) {
+				result = evaluate(index,(Code.SubList)code);
+			} else if(code instanceof Code.IndexOf) {
+				result = evaluate(index,(Code.IndexOf)code);
+			} else if(code instanceof Code.Assign) {
+				result = value(index,((Code.Assign)code).operand);
+			} else if(code instanceof Code.NewMap) {
+				result = evaluate(index,(Code.NewMap)code);
+			} else if(code instanceof Code.NewList) {
+				result = evaluate(index,(Code.NewList)code);
+			} else if(code instanceof Code.NewRecord) {
+				result = evaluate(index,(Code.NewRecord)code);
+			} else if(code instanceof Code.NewSet) {
+				result = evaluate(index,(Code.NewSet)code);
+			} else if(code instanceof Code.NewTuple) {
+				result = evaluate(index,(Code.NewTuple)code);
+			} else if(code instanceof Code.UnArithOp) {
+				result = evaluate(index,(Code.UnArithOp)code);
+			} else if(code instanceof Code.BinSetOp) {
+				result = evaluate(index,(Code.BinSetOp)code);
+			} else if(code instanceof Code.BinStringOp) {
+				result = evaluate(index,(Code.BinStringOp)code);
+			} else if(code instanceof Code.SubString) {
+				result = evaluate(index,(Code.SubString)code);
+			} else {
+				// e.g. invoke, update, convert, etc
+				result = null;
+			}
+		} catch (ArithmeticException e) {
+			// e.g. a division by zero, which must fail its runtime assertion.
+			result = null;
+		}
+		
+		return result == null ? OVERDEFINED : result;
 	}
 	
-	public void infer(int index, Code.BinArithOp code, Block.Entry entry,
-			Env environment) {		
-		Constant lhs = environment.get(code.leftOperand);
-		Constant rhs = environment.get(code.rightOperand);
+	public Constant evaluate(int index, Code.BinArithOp code) {		
+		Constant lhs = value(index, code.leftOperand);
+		Constant rhs = value(index, code.rightOperand);
 		Constant result = null;
 		
 		if(lhs instanceof Constant.Rational && rhs instanceof Constant.Rational) {
@@ -321,76 +816,37 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 			}	
 			}		
 		} 
-		
-		assign(code.target,result,environment,index,entry);
-	}
-	
-	public void infer(int index, Code.Convert code, Block.Entry entry,
-			Env environment) {
-		// TODO: implement this		
-		Constant val = environment.get(code.operand);
-		
-		invalidate(code.target,environment,index,entry);
-	}
-	
-	public void infer(int index, Code.Const code, Block.Entry entry,
-			Env environment) {
-		invalidate(code.target,environment,index,entry);
-	}
-	
-	public void infer(int index, Code.Debug code, Block.Entry entry, Env environment) {
-		remap(environment, index, entry);
+
+		return result;
 	}
-			
-	public void infer(int index, Code.FieldLoad code, Block.Entry entry,
-			Env environment) {
-		Constant src = environment.get(code.operand);
+
+	public Constant evaluate(int index, Code.FieldLoad code) {
+		Constant src = value(index, code.operand);
 		
 		Constant result = null;
 		if (src instanceof Constant.Record) {
 			Constant.Record rec = (Constant.Record) src;
 			result = rec.values.get(code.field);
 		}
-		
-		assign(code.target,result,environment,index,entry);		
+
+		return result;		
 	}
-	
-	public void infer(int index, Code.TupleLoad code, Block.Entry entry,
-			Env environment) {
-		Constant src = environment.get(code.operand);
+
+	public Constant evaluate(int index, Code.TupleLoad code) {
+		Constant src = value(index, code.operand);
 		
 		Constant result = null;
 		if (src instanceof Constant.Tuple) {
 			Constant.Tuple tup = (Constant.Tuple) src;
 			result = tup.values.get(code.index);
 		}
-		
-		assign(code.target,result,environment,index,entry);	
-	}
-	
-	public void infer(int index, Code.IndirectInvoke code, Block.Entry entry,
-			Env environment) {
-		
-		// TODO: in principle we can do better here in the case that the target
-		// is a constant. This seems pretty unlikely though ...
-		
-		if (code.target != Code.NULL_REG) {
-			invalidate(code.target,environment,index,entry);
-		} 		
-	}
-	
-	public void infer(int index, Code.Invoke code, Block.Entry entry,
-			Env environment) {
-				
-		if (code.target != Code.NULL_REG) {
-			invalidate(code.target,environment,index,entry);
-		}		
+
+		return result;	
 	}
-	
-	public void infer(int index, Code.BinListOp code, Block.Entry entry,
-			Env environment) {
-		Constant lhs = environment.get(code.leftOperand);
-		Constant rhs = environment.get(code.rightOperand);
+
+	public Constant evaluate(int index, Code.BinListOp code) {
+		Constant lhs = value(index, code.leftOperand);
+		Constant rhs = value(index, code.rightOperand);
 		Constant result = null;
 		switch(code.kind) {
 		case APPEND:
@@ -421,19 +877,12 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 				result = Constant.V_LIST(values);
 			} 
 		}
-		
-		assign(code.target,result,environment,index,entry);
-	}
-	
-	public void infer(int index, Code.Lambda code, Block.Entry entry,
-			Env environment) {
-		// For now, don't do anything!
-		assign(code.target,null,environment,index,entry);
+
+		return result;
 	}
-	
-	public void infer(int index, Code.LengthOf code, Block.Entry entry,
-			Env environment) {
-		Constant val = environment.get(code.operand);
+
+	public Constant evaluate(int index, Code.LengthOf code) {
+		Constant val = value(index, code.operand);
 		Constant result = null;
 		
 		if(val instanceof Constant.List) {
@@ -443,15 +892,14 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 			Constant.Set list = (Constant.Set) val;
 			result = Constant.V_INTEGER(BigInteger.valueOf(list.values.size()));			
 		} 
-		
-		assign(code.target,result,environment,index,entry);
+
+		return result;
 	}
-	
-	public void infer(int index, Code.SubList code, Block.Entry entry,
-			Env environment) {
-		Constant list = environment.get(code.operands[0]);
-		Constant start = environment.get(code.operands[1]);
-		Constant end = environment.get(code.operands[2]);
+
+	public Constant evaluate(int index, Code.SubList code) {
+		Constant list = value(index, code.operands[0]);
+		Constant start = value(index, code.operands[1]);
+		Constant end = value(index, code.operands[2]);
 		Constant result = null;
 		if (list instanceof Constant.List && start instanceof Constant.Rational
 				&& end instanceof Constant.Rational) {
@@ -473,14 +921,13 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 				}
 			}
 		}
-		
-		assign(code.target,result,environment,index,entry);
+
+		return result;
 	}
-	
-	public void infer(int index, Code.IndexOf code, Block.Entry entry,
-			Env environment) {		
-		Constant src = environment.get(code.leftOperand);
-		Constant idx = environment.get(code.rightOperand);
+
+	public Constant evaluate(int index, Code.IndexOf code) {		
+		Constant src = value(index, code.leftOperand);
+		Constant idx = value(index, code.rightOperand);
 		Constant result = null;
 		if (idx instanceof Constant.Rational && src instanceof Constant.List) {
 			Constant.Rational num = (Constant.Rational) idx;
@@ -503,38 +950,17 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 				}
 			}
 		}
-		
-		assign(code.target,result,environment,index,entry);	
-	}
-	
-	public void infer(int index, Code.Assign code, Block.Entry entry,
-			Env environment) {
 
-		Constant result = environment.get(code.operand);
-		
-		if (result == null) {
-			result = new Alias(code.operand);
-		}
-
-		// FIXME: problem with remapping here?
-		
-		assign(code.target,result,environment,index,entry);
+		return result;	
 	}
-	
-	public void infer(int index, Code.Update code, Block.Entry entry,
-			Env environment) {		
-		// TODO: implement this!		
-		invalidate(code.target,environment,index,entry);
-	}
-	
-	public void infer(int index, Code.NewMap code, Block.Entry entry,
-			Env environment) {
+
+	public Constant evaluate(int index, Code.NewMap code) {
 		HashMap<Constant, Constant> values = new HashMap<Constant, Constant>();
 		boolean isValue = true;
 		int[] code_operands = code.operands;
 		for (int i = 0; i != code_operands.length; i = i + 2) {
-			Constant key = environment.get(code_operands[i]);
-			Constant val = environment.get(code_operands[i+1]);
+			Constant key = value(index, code_operands[i]);
+			Constant val = value(index, code_operands[i+1]);
 			if (isRealConstant(key) && isRealConstant(val)) {
 				values.put(key, val);
 			} else {
@@ -545,19 +971,18 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 		if (isValue) {
 			result = Constant.V_MAP(values);
 		}
-		
-		assign(code.target,result,environment,index,entry);
+
+		return result;
 	}
-	
-	public void infer(int index, Code.NewRecord code, Block.Entry entry,
-			Env environment) {
+
+	public Constant evaluate(int index, Code.NewRecord code) {
 		HashMap<String, Constant> values = new HashMap<String, Constant>();
 		ArrayList<String> keys = new ArrayList<String>(code.type.keys());
 		Collections.sort(keys);
 		boolean isValue = true;
 		int[] code_operands = code.operands;
 		for (int i=0;i!=code_operands.length;++i) {
-			Constant val = environment.get(code_operands[i]);
+			Constant val = value(index, code_operands[i]);
 			if (isRealConstant(val)) {
 				values.put(keys.get(i), val);
 			} else {
@@ -569,18 +994,17 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 		if (isValue) {
 			result = Constant.V_RECORD(values);
 		}
-		
-		assign(code.target,result,environment,index,entry);
+
+		return result;
 	}
-	
-	public void infer(int index, Code.NewList code, Block.Entry entry,
-			Env environment) {
+
+	public Constant evaluate(int index, Code.NewList code) {
 		ArrayList<Constant> values = new ArrayList<Constant>();
 
 		boolean isValue = true;
 		int[] code_operands = code.operands;
 		for (int i = 0; i != code_operands.length; ++i) {
-			Constant val = environment.get(code_operands[i]);
+			Constant val = value(index, code_operands[i]);
 			if (isRealConstant(val)) {
 				values.add(val);
 			} else {
@@ -592,17 +1016,16 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 		if (isValue) {
 			result = Constant.V_LIST(values);			
 		}
-		assign(code.target,result,environment,index,entry);
+		return result;
 	}
-	
-	public void infer(int index, Code.NewSet code, Block.Entry entry,
-			Env environment) {
+
+	public Constant evaluate(int index, Code.NewSet code) {
 		HashSet<Constant> values = new HashSet<Constant>();
 
 		boolean isValue = true;
 		int[] code_operands = code.operands;
 		for (int i = 0; i != code_operands.length; ++i) {
-			Constant val = environment.get(code_operands[i]);
+			Constant val = value(index, code_operands[i]);
 			if (isRealConstant(val)) {
 				values.add(val);
 			} else {
@@ -614,17 +1037,16 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 		if (isValue) {
 			result = Constant.V_SET(values);			
 		}
-		assign(code.target,result,environment,index,entry);
+		return result;
 	}
-	
-	public void infer(int index, Code.NewTuple code, Block.Entry entry,
-			Env environment) {
+
+	public Constant evaluate(int index, Code.NewTuple code) {
 		ArrayList<Constant> values = new ArrayList<Constant>();		
 
 		boolean isValue=true;
 		int[] code_operands = code.operands;
 		for (int i = 0; i != code_operands.length; ++i) {
-			Constant val = environment.get(code_operands[i]);
+			Constant val = value(index, code_operands[i]);
 			if (isRealConstant(val)) {
 				values.add(val);
 			} else {
@@ -636,19 +1058,13 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 		if (isValue) {	
 			result = Constant.V_TUPLE(values);			
 		}
-		assign(code.target,result,environment,index,entry);
-	}
-	
-	public void infer(int index, Code.Return code, Block.Entry entry,
-			Env environment) {
-		remap(environment,index,entry);
+		return result;
 	}
 
-	public void infer(int index, Code.BinSetOp code, Block.Entry entry,
-			Env environment) {						
+	public Constant evaluate(int index, Code.BinSetOp code) {						
 		Constant result = null;
-		Constant lhs = environment.get(code.leftOperand);
-		Constant rhs = environment.get(code.rightOperand);
+		Constant lhs = value(index, code.leftOperand);
+		Constant rhs = value(index, code.rightOperand);
 		switch(code.kind) {
 		case UNION:
 			if (lhs instanceof Constant.Set
@@ -721,14 +1137,13 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 			} 
 			break;
 		}
-		 		
-		assign(code.target,result,environment,index,entry);
+
+		return result;
 	}
-	
-	public void infer(int index, Code.BinStringOp code, Block.Entry entry,
-			Env environment) {
-		Constant lhs = environment.get(code.leftOperand);
-		Constant rhs = environment.get(code.rightOperand);
+
+	public Constant evaluate(int index, Code.BinStringOp code) {
+		Constant lhs = value(index, code.leftOperand);
+		Constant rhs = value(index, code.rightOperand);
 		Constant result = null;
 		switch(code.kind) {
 		case APPEND:
@@ -746,15 +1161,14 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 			break;
 		}
 
-		assign(code.target,result,environment,index,entry);
+		return result;
 	}
-	
-	public void infer(int index, Code.SubString code, Block.Entry entry,
-			Env environment) {		
+
+	public Constant evaluate(int index, Code.SubString code) {		
 		
-		Constant src = environment.get(code.operands[0]);
-		Constant start = environment.get(code.operands[1]);
-		Constant end = environment.get(code.operands[2]);
+		Constant src = value(index, code.operands[0]);
+		Constant start = value(index, code.operands[1]);
+		Constant end = value(index, code.operands[2]);
 		
 		Constant result = null;
 		if (src instanceof Constant.Strung && start instanceof Constant.Rational
@@ -777,13 +1191,12 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 				}
 			}
 		} 
-		
-		assign(code.target,result,environment,index,entry);
+
+		return result;
 	}
-	
-	public void infer(int index, Code.Invert code, Block.Entry entry,
-			Env environment) {
-		Constant val = environment.get(code.operand);
+
+	public Constant evaluate(int index, Code.Invert code) {
+		Constant val = value(index, code.operand);
 		Constant result = null;
 		
 		if (val instanceof Constant.Byte) {
@@ -791,13 +1204,12 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 			result = Constant.V_BYTE((byte) ~num.value);			
 		}
 
-		assign(code.target,result,environment,index,entry);
+		return result;
 	}
-	
-	public void infer(int index, Code.UnArithOp code, Block.Entry entry,
-			Env environment) {
+
+	public Constant evaluate(int index, Code.UnArithOp code) {
 		// needs to be updated to support numerator and denominator
-		Constant val = environment.get(code.operand);
+		Constant val = value(index, code.operand);
 		Constant result = null;
 		
 		switch(code.kind) {
@@ -810,239 +1222,17 @@ public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation
 					result = Constant.V_INTEGER(num.value.negate());
 				}
 		}
-				
-		assign(code.target,result,environment,index,entry);
-	}
-	
-	public void infer(int index, Code.NewObject code, Block.Entry entry,
-			Env environment) {
-		invalidate(code.target,environment,index,entry);
-	}
-	
-	public void infer(int index, Code.Throw code, Block.Entry entry,
-			Env environment) {		
-		remap(environment,index,entry);
-	}
-	
-	public void infer(int index, Code.Dereference code, Block.Entry entry,
-			Env environment) {
-		invalidate(code.target,environment,index,entry);
-	}	
-	
-	@Override
-	public Pair<Env, Env> propagate(int index, Code.If code, Entry entry,
-			Env environment) {
-		environment = (Env) environment.clone();
-
-		// TODO: could do more here!
-		
-		remap(environment, index, entry);
-
-		return new Pair(environment, environment);
-	}
-	
-	@Override
-	public Pair<Env, Env> propagate(int index,
-			Code.IfIs code, Entry entry, Env environment) {
-		environment = (Env) environment.clone();
-		
-		// TODO: could do more here!
-		
-		// NOTE: it's unsafe to remap here since the variable being retyped will
-		// need to be subsequently cast.
-		
-		return new Pair(environment, environment);
-	}
-	
-	@Override
-	public List<Env> propagate(int index, Code.Switch code, Entry entry,
-			Env environment) {
-		environment = (Env) environment.clone();
-
-		Constant val = environment.get(code.operand);
-
-		// TODO: could do more here!
-		
-		remap(environment, index, entry);
-		
-		ArrayList<Env> stores = new ArrayList();
-		for (int i = 0; i != code.branches.size(); ++i) {
-			stores.add(environment);
-		}
-
-		return stores;
-	}
-
-	@Override
-	public Env propagate(Type handler, Code.TryCatch tc, Env environment) {		
-		Env catchEnvironment = (Env) environment.clone();		
-
-		// TODO: implement me!
-		return catchEnvironment;
-	}
-	
-	@Override
-	public Env propagate(int start, int end, Code.Loop loop,
-			Entry entry, Env environment, List<Code.TryCatch> handlers) {
-		
-		environment = new Env(environment);
-		
-		if(loop instanceof Code.ForAll) {
-			Code.ForAll fall = (Code.ForAll) loop; 	
-			
-			// TO DO: could unroll loop if src collection is a value.
-			invalidate(fall.indexOperand,environment,start,entry);
-		} 
-		
-		// Now, kill every variable which is modified in the loop. This is a
-		// safety precaution, and it's possible we could do better here in some
-		// circumstances (e.g. by unrolling the loop).
-		
-		for(int slot : loop.modifiedOperands) {
-			invalidate(slot,environment,start,entry);			
-		}
-		
-		remap(environment, start, entry);
-		
-		Env oldEnv = null;
-		Env newEnv = environment;				
-		
-		do {						
-			// iterate until a fixed point reached
-			oldEnv = newEnv;
-			newEnv = propagate(start+1,end, oldEnv, handlers);
-			newEnv = join(environment,newEnv);
-		} while (!newEnv.equals(oldEnv));
-		
-		return newEnv;		
-	}
-	
-	public void invalidate(int slot, Env environment, int index, Block.Entry entry) {
-		assign(slot,null,environment,index,entry);
-	}
-	
-	public void assign(int target, Constant constant, Env environment, int index, Block.Entry entry) {
-		environment.set(target, constant);
-		
-		for (int i = 0; i != environment.size(); ++i) {
-			Constant c = environment.get(i);
-			if (c instanceof Alias) {
-				Alias a = (Alias) c;
-				if (a.reg == target) {
-					environment.set(i, null);
-				}
-			}
-		}
-		
-		if (isRealConstant(constant)) {
-			entry = new Block.Entry(Code.Const(target, constant),
-					entry.attributes());
-			rewrites.put(index, new Rewrite(entry));
-		} else if(constant == null) {
-			
-			// TODO: it's always safe to call remap after we have set target to
-			// null. However, we could do better in some cases (i.e. when the
-			// target register is also an operand register).
-			
-			remap(environment,index,entry);
-		}
-	}
-	
-	public static boolean isRealConstant(Constant c) {
-		return c != null && !(c instanceof Alias);
-	}
-	
-	public void remap(Env environment, int index, Block.Entry entry) {
-		Map<Integer,Integer> binding = new HashMap<Integer,Integer>();
-		for(int i=0;i!=environment.size();++i) {
-			Constant c = environment.get(i);
-			if(c instanceof Alias) {
-				Alias a = (Alias) c;
-				binding.put(i,a.reg);
-			}
-		}
-		Code old = entry.code;
-		Code code = old.remap(binding);
-		if(code != old) {
-			entry = new Block.Entry(code, entry.attributes());
-			rewrites.put(index, new Rewrite(entry));
-		} else {
-			rewrites.put(index, null);
-		}
-	}
-	
-	public Env join(Env env1, Env env2) {
-		if (env2 == null) {
-			return env1;
-		} else if (env1 == null) {
-			return env2;
-		}
-		Env env = new Env();
-		for (int i = 0; i != Math.min(env1.size(), env2.size()); ++i) {
-			Constant mt = env1.get(i);
-			Constant ot = env2.get(i);
-			if (ot instanceof Constant && mt instanceof Constant && ot.equals(mt)) {
-				env.add(mt);
-			} else {
-				env.add(null);
-			}			
-		}
-		return env;
-	}	
-	
-	public final static class Env extends ArrayList<Constant> {
-		public Env() {
-		}
-		public Env(Collection<Constant> v) {
-			super(v);
-		}		
-		public Env clone() {
-			return new Env(this);
-		}
-	}
-	
 
-	private static class Rewrite {		
-		public final Block.Entry rewrite;
-		
-		public Rewrite(Block.Entry rewrite) {
-			this.rewrite = rewrite;
-		}
+		return result;
 	}
 	
-	private static class Alias extends Constant {
-		public final int reg;
-		
-		public Alias(int reg) {
-			this.reg = reg;
-		}
-		
-		public int hashCode() {
-			return reg;
-		}
-		
-		public boolean equals(Object o) {
-			if(o instanceof Alias) {
-				Alias a = (Alias) o;
-				return reg == a.reg;
-			}
-			return false;
-		}
-		
+	private static class Overdefined extends Constant {
 		public wyil.lang.Type type() {
 			return wyil.lang.Type.T_ANY;
 		}
 		
 		public int compareTo(Constant c) {
-			if(c instanceof Alias) {
-				Alias a = (Alias) c;
-				if(reg < a.reg) { 
-					return -1;
-				} else if(reg == a.reg) {
-					return 0;
-				} 
-			}
-			return 1;
+			return c == this ? 0 : 1;
 		}
 	}
 }
@@ -30,10 +30,10 @@ import java.util.*;
 
 import wybs.lang.Builder;
 import wybs.lang.Path;
-import wybs.lang.Transform;
 import wybs.util.Pair;
 import wyil.*;
 import wyil.lang.*;
+import wyil.util.CaseTransform;
 
 /**
  * Removes dead-code from method and function bodies in a given bytecode.
@@ -44,7 +44,7 @@ import wyil.lang.*;
  * @author David J. Pearce
  * 
  */
-public class DeadCodeElimination implements Transform<WyilFile> {
+public class DeadCodeElimination implements CaseTransform {
 
 	/**
 	 * Determines whether constant propagation is enabled or not.
@@ -79,6 +79,20 @@ public class DeadCodeElimination implements Transform<WyilFile> {
 		}
 	}
 	
+	public boolean begin(WyilFile module) {
+		return enabled;
+	}
+	
+	public WyilFile.TypeDeclaration apply(WyilFile.TypeDeclaration type) {
+		transform(type);
+		return type;
+	}
+	
+	public WyilFile.Case apply(WyilFile.Case mcase, WyilFile.MethodDeclaration method) {
+		transform(mcase, method);
+		return mcase;
+	}
+	
 	public void transform(WyilFile.TypeDeclaration type) {
 		Block constraint = type.constraint();
 		
@@ -99,7 +113,7 @@ public class DeadCodeElimination implements Transform<WyilFile> {
 	}
 	
 	private void transform(Block block) {
-		HashMap<String,Integer> labelMap = buildLabelMap(block);
+		Block.Graph graph = block.graph();
 		BitSet visited = new BitSet(block.size());
 		Stack<Integer> worklist = new Stack();
 		worklist.push(0);
@@ -111,25 +125,25 @@ public class DeadCodeElimination implements Transform<WyilFile> {
 			
 			if(code instanceof Code.Goto) {
 				Code.Goto g = (Code.Goto) code;				
-				addTarget(labelMap.get(g.target),visited,worklist);
+				addTarget(graph.indexOf(g.target),visited,worklist);
 			} else if(code instanceof Code.If) {								
 				Code.If ig = (Code.If) code;				
 				addTarget(index+1,visited,worklist);
-				addTarget(labelMap.get(ig.target),visited,worklist);				
+				addTarget(graph.indexOf(ig.target),visited,worklist);				
 			} else if(code instanceof Code.IfIs) {								
 				Code.IfIs ig = (Code.IfIs) code;				
 				addTarget(index+1,visited,worklist);
-				addTarget(labelMap.get(ig.target),visited,worklist);				
+				addTarget(graph.indexOf(ig.target),visited,worklist);				
 			} else if(code instanceof Code.Switch) {
 				Code.Switch sw = (Code.Switch) code;
 				for(Pair<Constant,String> p : sw.branches) {
-					addTarget(labelMap.get(p.second()),visited,worklist);
+					addTarget(graph.indexOf(p.second()),visited,worklist);
 				}
-				addTarget(labelMap.get(sw.defaultTarget),visited,worklist);
+				addTarget(graph.indexOf(sw.defaultTarget),visited,worklist);
 			} else if(code instanceof Code.TryCatch) {
 				Code.TryCatch tc = (Code.TryCatch) code;
 				for(Pair<Type,String> p : tc.catches) {
-					addTarget(labelMap.get(p.second()),visited,worklist);
+					addTarget(graph.indexOf(p.second()),visited,worklist);
 				}
 				addTarget(index+1,visited,worklist);
 			} else if(code instanceof Code.Throw || code instanceof Code.Return) {
@@ -154,18 +168,6 @@ public class DeadCodeElimination implements Transform<WyilFile> {
 		}
 	}
 	
-	private static HashMap<String,Integer> buildLabelMap(Block block) {
-		HashMap<String,Integer> map = new HashMap<String,Integer>();
-		for(int i=0;i!=block.size();++i) {
-			Code c = block.get(i).code;
-			if(c instanceof Code.Label) {
-				Code.Label l = (Code.Label) c;				
-				map.put(l.label,i);
-			}
-		}
-		return map;
-	}
-	
 	private static void addTarget(int index, BitSet visited, Stack<Integer> worklist) {
 		if(!visited.get(index)) {
 			visited.set(index);			
@@ -0,0 +1,383 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyil.transforms;
+
+import java.util.*;
+
+import wybs.lang.Attribute;
+import wybs.lang.Builder;
+import wybs.lang.NameID;
+import wybs.lang.Path;
+import wybs.lang.SyntaxError;
+import wybs.lang.Transform;
+import wyil.lang.*;
+import static wybs.lang.SyntaxError.*;
+
+/**
+ * <p>
+ * Responsible for inlining calls to small functions, such as accessors or
+ * <code>whiley.lang.Math.max()</code>, which would otherwise be compiled into
+ * a call (and, in the case of the JVM backend, boxing of the arguments). The
+ * body of the function is imported into the caller, with its parameters bound
+ * to copies of the arguments and each return replaced by an assignment to the
+ * target register and a jump to the end of the inlined body. Copies which turn
+ * out to be unnecessary are then removed by later stages, such as
+ * <code>ConstantPropagation</code>.
+ * </p>
+ * 
+ * <p>
+ * Only calls to functions (not methods) with a single case are inlined, and
+ * never those which are native (since they have no body) or exported (since
+ * they form the external interface of a module). Furthermore, a function is
+ * not inlined if it invokes itself, or if it contains a
+ * <code>trycatch</code>. A function declared in another module is inlined
+ * only if it invokes no other function, and only if that module is not being
+ * rebuilt in the same build. Otherwise, its body would be taken from a WyIL
+ * file which may itself be in the process of being transformed, and which is
+ * not the one this module would see were it compiled alone.
+ * </p>
+ * 
+ * <p>
+ * The size of a function which can be inlined is limited by one of two
+ * budgets. A call site within a loop is considered to be <i>hot</i>, and so a
+ * larger function may be inlined there than elsewhere. In addition, the total
+ * number of bytecodes by which a function or method case may grow through
+ * inlining is limited.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> this stage should be applied after runtime assertions have
+ * been inlined, since the preconditions of an inlined function are then
+ * already checked at the call site, and its postconditions within its body.
+ * It should also be applied before loop variants are determined, since the
+ * inlined body may write registers within a loop.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public class FunctionInlining implements Transform<WyilFile> {
+	private final Builder builder;
+	private String filename;
+	private WyilFile module;
+	
+	/**
+	 * Determines whether inlining is enabled or not.
+	 */
+	private boolean enabled = getEnable();
+	
+	/**
+	 * The maximum size of a function inlined at a call site outside a loop.
+	 */
+	private int maxSize = getMaxSize();
+	
+	/**
+	 * The maximum size of a function inlined at a call site within a loop.
+	 */
+	private int maxLoopSize = getMaxLoopSize();
+	
+	/**
+	 * The maximum number of bytecodes by which a case may grow.
+	 */
+	private int maxGrowth = getMaxGrowth();
+	
+	public FunctionInlining(Builder builder) {
+		this.builder = builder;
+	}
+	
+	public static String describeEnable() {
+		return "Enable/disable function inlining";
+	}
+	
+	public static boolean getEnable() {
+		return true; // default value
+	}
+	
+	public void setEnable(boolean flag) {
+		this.enabled = flag;
+	}
+	
+	public static String describeMaxSize() {
+		return "Maximum size of a function inlined outside a loop";
+	}
+	
+	public static int getMaxSize() {
+		return 20; // default value
+	}
+	
+	public void setMaxSize(int size) {
+		this.maxSize = size;
+	}
+	
+	public static String describeMaxLoopSize() {
+		return "Maximum size of a function inlined within a loop";
+	}
+	
+	public static int getMaxLoopSize() {
+		return 60; // default value
+	}
+	
+	public void setMaxLoopSize(int size) {
+		this.maxLoopSize = size;
+	}
+	
+	public static String describeMaxGrowth() {
+		return "Maximum growth of a function or method through inlining";
+	}
+	
+	public static int getMaxGrowth() {
+		return 200; // default value
+	}
+	
+	public void setMaxGrowth(int growth) {
+		this.maxGrowth = growth;
+	}
+	
+	public void apply(WyilFile module) {
+		if (enabled) {
+			this.filename = module.filename();
+			this.module = module;
+
+			for (WyilFile.Declaration d : module.declarations()) {
+				if (d instanceof WyilFile.MethodDeclaration) {
+					WyilFile.MethodDeclaration md = (WyilFile.MethodDeclaration) d;
+					if (!md.isNative()) {
+						// native functions/methods don't have bodies
+						module.replace(md, transform(md));
+					}
+				}
+			}
+			
+			this.module = null;
+		}
+	}
+	
+	public WyilFile.MethodDeclaration transform(WyilFile.MethodDeclaration method) {
+		ArrayList<WyilFile.Case> cases = new ArrayList<WyilFile.Case>();
+		for (WyilFile.Case c : method.cases()) {
+			cases.add(transform(c));
+		}
+		return new WyilFile.MethodDeclaration(method.modifiers(),
+				method.name(), method.type(), cases, method.attributes());
+	}
+	
+	public WyilFile.Case transform(WyilFile.Case mcase) {
+		Block body = mcase.body();
+		Block nbody = new Block(body.numInputs());
+		int freeSlot = body.numSlots();
+		int budget = maxGrowth;
+		// the end labels of the loops enclosing the current bytecode
+		ArrayList<String> loops = new ArrayList<String>();
+
+		for (int i = 0; i != body.size(); ++i) {
+			Block.Entry entry = body.get(i);
+			Code code = entry.code;
+			if (code instanceof Code.Loop) {
+				loops.add(((Code.Loop) code).target);
+			} else if (code instanceof Code.LoopEnd && !loops.isEmpty()
+					&& ((Code.LoopEnd) code).label.equals(loops.get(loops.size() - 1))) {
+				loops.remove(loops.size() - 1);
+			} else if (code instanceof Code.Invoke) {
+				int limit = loops.isEmpty() ? maxSize : maxLoopSize;
+				Block blk = transform((Code.Invoke) code, entry, freeSlot,
+						Math.min(limit, budget));
+				if (blk != null) {
+					nbody.append(blk);
+					freeSlot = Math.max(freeSlot, blk.numSlots());
+					budget -= blk.size() - 1;
+					continue;
+				}
+			}
+			nbody.append(entry);
+		}
+
+		if (budget == maxGrowth) {
+			return mcase;
+		}
+		return new WyilFile.Case(nbody, mcase.precondition(),
+				mcase.postcondition(), mcase.locals(), mcase.attributes());
+	}
+	
+	/**
+	 * Inline the function invoked by a given call site, provided it is small
+	 * enough. The returned block replaces the invoke bytecode.
+	 * 
+	 * @param code
+	 *            --- the invoke bytecode.
+	 * @param entry
+	 *            --- the entry of the invoke bytecode.
+	 * @param freeSlot
+	 *            --- the first register not used by the caller.
+	 * @param limit
+	 *            --- the maximum size of function to inline.
+	 * @return the inlined body, or null if the function is not inlined.
+	 */
+	public Block transform(Code.Invoke code, Block.Entry entry, int freeSlot,
+			int limit) {
+		try {
+			WyilFile.Case callee = findCallee(code.name, code.type);
+			if (callee != null && callee.body().size() <= limit) {
+				return inline(code, entry, callee.body(), freeSlot);
+			}
+		} catch (SyntaxError e) {
+			throw e;
+		} catch (Throwable e) {
+			internalFailure(e.getMessage(), filename, entry, e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Import the body of a function in place of a given call site. The
+	 * arguments are first copied into unused registers, since the function may
+	 * assign to its parameters.
+	 * 
+	 * @param code
+	 *            --- the invoke bytecode.
+	 * @param entry
+	 *            --- the entry of the invoke bytecode.
+	 * @param body
+	 *            --- the body of the invoked function.
+	 * @param freeSlot
+	 *            --- the first register not used by the caller.
+	 * @return
+	 */
+	private Block inline(Code.Invoke code, Block.Entry entry, Block body,
+			int freeSlot) {
+		Block blk = new Block(0);
+		List<Type> params = code.type.params();
+		HashMap<Integer, Integer> binding = new HashMap<Integer, Integer>();
+		for (int i = 0; i != params.size(); ++i) {
+			blk.append(Code.Assign(params.get(i), freeSlot + i,
+					code.operands[i]), entry.attributes());
+			binding.put(i, freeSlot + i);
+		}
+
+		// NOTE: the registers of the caller are treated as inputs here, so
+		// that the temporaries of the body are not mapped onto them.
+		Block imported = new Block(freeSlot);
+		Attribute.Source source = entry.attribute(Attribute.Source.class);
+		if (source != null) {
+			body = Block.resource(body, source);
+		}
+		imported.importExternal(body, binding);
+
+		String exit = Block.freshLabel();
+		for (int i = 0; i != imported.size(); ++i) {
+			Block.Entry e = imported.get(i);
+			if (e.code instanceof Code.Return) {
+				Code.Return r = (Code.Return) e.code;
+				if (code.target != Code.NULL_REG) {
+					blk.append(Code.Assign(r.type, code.target, r.operand),
+							e.attributes());
+				}
+				if (!fallsThrough(imported, i + 1)) {
+					blk.append(Code.Goto(exit), e.attributes());
+				}
+			} else {
+				blk.append(e);
+			}
+		}
+		blk.append(Code.Label(exit));
+
+		return blk;
+	}
+	
+	/**
+	 * Check whether control reaching a given index of a block would fall
+	 * through to its end without executing anything. This is the case when
+	 * only labels (but not loop ends) remain.
+	 * 
+	 * @param block
+	 * @param index
+	 * @return
+	 */
+	private static boolean fallsThrough(Block block, int index) {
+		for (int i = index; i != block.size(); ++i) {
+			Code code = block.get(i).code;
+			if (!(code instanceof Code.Label) || code instanceof Code.LoopEnd) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Find the function invoked by a given call site, provided it can be
+	 * inlined. A function declared in another module is only inlined if that
+	 * module is not being rebuilt in the same build.
+	 * 
+	 * @param name
+	 *            --- the name of the invoked function.
+	 * @param type
+	 *            --- the type of the invoked function.
+	 * @return the only case of the function, or null if it cannot be inlined.
+	 * @throws Exception
+	 */
+	private WyilFile.Case findCallee(NameID name, Type.FunctionOrMethod type)
+			throws Exception {
+		boolean external = !name.module().equals(module.id());
+		WyilFile m = module;
+		if (external) {
+			Path.Entry<WyilFile> e = builder.namespace().get(name.module(),
+					WyilFile.ContentType);
+			if (e == null) {
+				// this will be reported elsewhere
+				return null;
+			} else if (e.isModified()) {
+				// The module is being rebuilt alongside this one. Since code
+				// is generated for every file before any stage is applied,
+				// its entry has been written (but not yet flushed) by now.
+				return null;
+			}
+			m = e.read();
+		}
+
+		WyilFile.MethodDeclaration method = m.method(name.name(), type);
+		if (method == null || !method.isFunction() || method.isNative()
+				|| method.isExport() || method.cases().size() != 1) {
+			return null;
+		}
+
+		WyilFile.Case mcase = method.cases().get(0);
+		Block body = mcase.body();
+		if (body.numInputs() != type.params().size()) {
+			return null;
+		}
+		for (Block.Entry entry : body) {
+			Code code = entry.code;
+			if (code instanceof Code.TryCatch) {
+				return null;
+			} else if (code instanceof Code.Invoke) {
+				Code.Invoke c = (Code.Invoke) code;
+				if (external || (c.name.equals(name) && c.type.equals(type))) {
+					return null;
+				}
+			}
+		}
+		return mcase;
+	}
+}
@@ -33,13 +33,13 @@ import static wyil.util.ErrorMessages.*;
 
 import wybs.lang.Builder;
 import wybs.lang.Path;
-import wybs.lang.Transform;
 import wybs.util.Pair;
 import wyil.lang.Block;
 import wyil.lang.Code;
 import wyil.lang.WyilFile;
 import wyil.lang.Type;
 import wyil.lang.Block.Entry;
+import wyil.util.CaseTransform;
 import wyil.util.dfa.*;
 
 /**
@@ -68,8 +68,13 @@ import wyil.util.dfa.*;
  * @author David J. Pearce, 2011
  * 
  */
-public class LiveVariablesAnalysis extends BackwardFlowAnalysis<LiveVariablesAnalysis.Env> implements Transform<WyilFile> {
-	private static final HashMap<Integer,Block.Entry> rewrites = new HashMap<Integer,Block.Entry>();
+public class LiveVariablesAnalysis extends WorklistFlowAnalysis<RegisterSet> implements CaseTransform {
+	private final HashMap<Integer,Block.Entry> rewrites = new HashMap<Integer,Block.Entry>();
+	
+	/**
+	 * The empty set of registers, sized for the block being propagated.
+	 */
+	private RegisterSet empty;
 	
 	/**
 	 * Determines whether constant propagation is enabled or not.
@@ -79,7 +84,7 @@ public class LiveVariablesAnalysis extends BackwardFlowAnalysis<LiveVariablesAna
 	private boolean nops = getNops();
 	
 	public LiveVariablesAnalysis(Builder builder) {
-		
+		super(false);
 	}	
 	
 	@Override
@@ -89,6 +94,11 @@ public class LiveVariablesAnalysis extends BackwardFlowAnalysis<LiveVariablesAna
 		}
 	}
 	
+	@Override
+	public boolean begin(WyilFile module) {
+		return enabled && super.begin(module);
+	}
+	
 
 	public static String describeEnable() {
 		return "Enable/disable live variables analysis";
@@ -131,7 +141,7 @@ public class LiveVariablesAnalysis extends BackwardFlowAnalysis<LiveVariablesAna
 	 * @return
 	 */
 	@Override
-	public Env lastStore() { return EMPTY_ENV; }
+	public RegisterSet initialStore() { return empty; }
 	
 	@Override
 	public WyilFile.Case propagate(WyilFile.Case mcase) {
@@ -151,11 +161,9 @@ public class LiveVariablesAnalysis extends BackwardFlowAnalysis<LiveVariablesAna
 	}
 	
 	public Block propagate(Block body) {		
-		block = body;
-		stores = new HashMap<String,Env>();
 		rewrites.clear();
-		Env environment = lastStore();		
-		propagate(0,body.size(), environment, Collections.EMPTY_LIST);	
+		empty = new RegisterSet(body.numSlots());
+		solve(body, initialStore());
 		
 		// At this point, we apply the inserts	
 		Block nbody = new Block(body.numInputs());		
@@ -174,46 +182,107 @@ public class LiveVariablesAnalysis extends BackwardFlowAnalysis<LiveVariablesAna
 	}
 	
 	@Override
-	public Env propagate(int index, Entry entry, Env environment) {		
+	public RegisterSet transfer(int blk, RegisterSet environment) {
+		for (int i = graph.last(blk); i >= graph.first(blk); --i) {
+			Entry entry = block.get(i);
+			Code code = entry.code;
+
+			if (code instanceof Code.If) {
+				Code.If ifgoto = (Code.If) code;
+				RegisterSet trueEnv = store(ifgoto.target);
+				environment = propagate(i, ifgoto, entry, nonNull(trueEnv),
+						nonNull(environment));
+			} else if (code instanceof Code.IfIs) {
+				Code.IfIs iftype = (Code.IfIs) code;
+				RegisterSet trueEnv = store(iftype.target);
+				environment = propagate(i, iftype, entry, nonNull(trueEnv),
+						nonNull(environment));
+			} else if (code instanceof Code.Switch) {
+				Code.Switch sw = (Code.Switch) code;
+				ArrayList<RegisterSet> swEnvs = new ArrayList<RegisterSet>();
+				for (int j = 0; j != sw.branches.size(); ++j) {
+					swEnvs.add(nonNull(store(sw.branches.get(j).second())));
+				}
+				RegisterSet defEnv = nonNull(store(sw.defaultTarget));
+				environment = propagate(i, sw, entry, swEnvs, defEnv);
+			} else if (code instanceof Code.Goto) {
+				environment = store(((Code.Goto) code).target);
+			} else if (code instanceof Code.ForAll) {
+				Code.ForAll fall = (Code.ForAll) code;
+				// the loop may be skipped, or exited once exhausted
+				environment = join(nonNull(environment),
+						nonNull(store(fall.target)));
+				environment = environment.add(fall.sourceOperand).remove(
+						fall.indexOperand);
+			} else if (code instanceof Code.TryCatch) {
+				// Back-ends may assume any bytecode in the try block can
+				// throw. For example, the JVM verifier requires registers
+				// read by a handler to be defined throughout the try block
+				// and, hence, they must be live on entry to it.
+				Code.TryCatch tc = (Code.TryCatch) code;
+				for (Pair<Type, String> p : tc.catches) {
+					environment = join(nonNull(environment),
+							nonNull(store(p.second())));
+				}
+			} else if (code instanceof Code.Label || code instanceof Code.Loop) {
+				// nothing to do here
+			} else {
+				if (code instanceof Code.Return || code instanceof Code.Throw) {
+					environment = initialStore();
+				}
+				environment = propagate(i, entry, nonNull(environment));
+			}
+
+			environment = joinHandlers(i, code, environment);
+		}
+		return environment;
+	}
+
+	private RegisterSet nonNull(RegisterSet env) {
+		// a store is null if it is not yet known, which arises for loops.
+		return env == null ? empty : env;
+	}
+
+	public RegisterSet propagate(int index, Entry entry, RegisterSet environment) {		
 		rewrites.put(index,null);
 		Code code = entry.code;		
 		boolean isLive = true;
-		environment = (Env) environment.clone();
 		
 		if (code instanceof Code.AbstractAssignable
 				&& !(code instanceof Code.Update)) { 
 			Code.AbstractAssignable aa = (Code.AbstractAssignable) code;
-			isLive = environment.remove(aa.target);
+			isLive = environment.contains(aa.target);
+			environment = environment.remove(aa.target);
 		} 
 		
 		if ((isLive && code instanceof Code.AbstractUnaryAssignable)
 				|| (code instanceof Code.Dereference)) {
 			Code.AbstractUnaryAssignable c = (Code.AbstractUnaryAssignable) code;
-			environment.add(c.operand);
+			environment = environment.add(c.operand);
 		} else if(isLive && code instanceof Code.AbstractUnaryOp) {
 			Code.AbstractUnaryOp c = (Code.AbstractUnaryOp) code;
-			environment.add(c.operand);
+			environment = environment.add(c.operand);
 		} else if(isLive && code instanceof Code.AbstractBinaryAssignable) {
 			Code.AbstractBinaryAssignable c = (Code.AbstractBinaryAssignable) code;
-			environment.add(c.leftOperand);
-			environment.add(c.rightOperand);
+			environment = environment.add(c.leftOperand);
+			environment = environment.add(c.rightOperand);
 		} else if(isLive && code instanceof Code.AbstractBinaryOp) {
 			Code.AbstractBinaryOp c = (Code.AbstractBinaryOp) code;
-			environment.add(c.leftOperand);
-			environment.add(c.rightOperand);
+			environment = environment.add(c.leftOperand);
+			environment = environment.add(c.rightOperand);
 		} else if ((isLive && code instanceof Code.AbstractNaryAssignable)
 				|| (code instanceof Code.Invoke && ((Code.Invoke) code).type instanceof Type.Method)) {
 			Code.AbstractNaryAssignable c = (Code.AbstractNaryAssignable) code;
 			for(int operand : c.operands) {
-				environment.add(operand);
+				environment = environment.add(operand);
 			}
 		} else if ((isLive && code instanceof Code.AbstractSplitNaryAssignable)
 				|| (code instanceof Code.IndirectInvoke && ((Code.IndirectInvoke) code).type instanceof Type.Method)
 				|| (code instanceof Code.Update && ((Code.Update) code).type instanceof Type.Reference)) {
 			Code.AbstractSplitNaryAssignable c = (Code.AbstractSplitNaryAssignable) code;
-			environment.add(c.operand);
+			environment = environment.add(c.operand);
 			for(int operand : c.operands) {
-				environment.add(operand);
+				environment = environment.add(operand);
 			}
 			
 		} else if(!isLive) {			
@@ -226,96 +295,46 @@ public class LiveVariablesAnalysis extends BackwardFlowAnalysis<LiveVariablesAna
 		return environment;
 	}
 	
-	@Override
-	public Env propagate(int index, Code.If code, Entry entry, Env trueEnv,
-			Env falseEnv) {
-		Env r = join(trueEnv, falseEnv);
+	public RegisterSet propagate(int index, Code.If code, Entry entry, RegisterSet trueEnv,
+			RegisterSet falseEnv) {
+		RegisterSet r = join(trueEnv, falseEnv);
 
-		r.add(code.leftOperand);
-		r.add(code.rightOperand);
+		r = r.add(code.leftOperand);
+		r = r.add(code.rightOperand);
 
 		return r;
 	}
 	
 	@Override
-	protected Env propagate(Type handler, Env normalEnv, Env exceptionEnv) {
+	protected RegisterSet propagate(Type handler, RegisterSet normalEnv, RegisterSet exceptionEnv) {
 		
 		return join(normalEnv, exceptionEnv);
 	}
 	
-	@Override
-	public Env propagate(int index,
-			Code.IfIs code, Entry entry, Env trueEnv, Env falseEnv) {
-		Env r = join(trueEnv,falseEnv);
+	public RegisterSet propagate(int index,
+			Code.IfIs code, Entry entry, RegisterSet trueEnv, RegisterSet falseEnv) {
+		RegisterSet r = join(trueEnv,falseEnv);
 				
-		r.add(code.operand);		
+		r = r.add(code.operand);		
 		
 		return r;
 	}
 	
-	@Override
-	public Env propagate(int index, Code.Switch code,
-			Entry stmt, List<Env> environments, Env defEnv) {
-		Env environment = defEnv;
+	public RegisterSet propagate(int index, Code.Switch code,
+			Entry stmt, List<RegisterSet> environments, RegisterSet defEnv) {
+		RegisterSet environment = defEnv;
 		
 		for(int i=0;i!=code.branches.size();++i) {
 			environment = join(environment,environments.get(i));
 		} 		
 		
-		environment.add(code.operand);
+		environment = environment.add(code.operand);
 		
 		return environment;
 	}
 		
-	public Env propagate(int start, int end, Code.Loop loop,
-			Entry stmt, Env environment, List<Pair<Type,String>> handlers) {
-
-		 
-		Env oldEnv = null;
-		Env newEnv = null;
-		
-		if(loop instanceof Code.ForAll) {
-			Code.ForAll fall = (Code.ForAll) loop;
-			environment = new Env(environment);	
-			environment.add(fall.sourceOperand);
-		} else {
-			environment = EMPTY_ENV;
-		}
-		
-		do {			
-			// iterate until a fixed point reached
-			oldEnv = newEnv != null ? newEnv : environment;
-			newEnv = propagate(start+1,end, oldEnv, handlers);
-			
-		} while (!newEnv.equals(oldEnv));
-		
-		environment = newEnv;
-		
-		if(loop instanceof Code.ForAll) {
-			Code.ForAll fall = (Code.ForAll) loop; 		
-			// FIXME: is the following really necessary?
-			environment.remove(fall.indexOperand);
-		} 		
-		
-		return environment;		
-	}
-	
-	private Env join(Env env1, Env env2) {		
+	protected RegisterSet join(RegisterSet env1, RegisterSet env2) {		
 		// implements set union
-		Env r = new Env(env1);
-		r.addAll(env2);
-		return r;
-	}
-	
-	private static final Env EMPTY_ENV = new Env();
-	
-	public static final class Env extends HashSet<Integer> {
-		public Env() {
-			super();
-		}
-		
-		public Env(Env env) {
-			super(env);
-		}
+		return env1.union(env2);
 	}
 }
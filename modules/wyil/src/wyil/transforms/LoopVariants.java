@@ -4,11 +4,11 @@ import java.util.BitSet;
 import java.util.HashSet;
 
 import wybs.lang.Builder;
-import wybs.lang.Transform;
 import wyil.lang.Block;
 import wyil.lang.Code;
 import wyil.lang.Type;
 import wyil.lang.WyilFile;
+import wyil.util.CaseTransform;
 
 /**
  * <p>
@@ -42,7 +42,7 @@ import wyil.lang.WyilFile;
  * @author David J. Pearce
  * 
  */
-public class LoopVariants implements Transform<WyilFile> {
+public class LoopVariants implements CaseTransform {
 	private String filename;
 	
 	/**
@@ -82,6 +82,22 @@ public class LoopVariants implements Transform<WyilFile> {
 		}
 	}
 	
+	public boolean begin(WyilFile module) {
+		filename = module.filename();
+		return enabled;
+	}
+	
+	public WyilFile.TypeDeclaration apply(WyilFile.TypeDeclaration type) {
+		infer(type);
+		return type;
+	}
+	
+	public WyilFile.Case apply(WyilFile.Case mcase, WyilFile.MethodDeclaration method) {
+		Block body = mcase.body();
+		infer(body,0,body.size());
+		return mcase;
+	}
+	
 	public void infer(WyilFile.TypeDeclaration type) {
 		Block invariant = type.constraint();
 		if (invariant != null) {
@@ -120,17 +136,7 @@ public class LoopVariants implements Transform<WyilFile> {
 			} if(code instanceof Code.Loop) {
 				Code.Loop loop = (Code.Loop) code;
 				int s = i;
-				// Note, I could make this more efficient!					
-				while (++i < block.size()) {
-					Block.Entry nEntry = block.get(i);
-					if (nEntry.code instanceof Code.LoopEnd) {
-						Code.Label l = (Code.Label) nEntry.code;
-						if (l.label.equals(loop.target)) {
-							// end of loop body found
-							break;
-						}
-					}						
-				}
+				i = block.graph().end(i);
 				
 				BitSet loopModified = infer(block,s+1,i);
 				if (code instanceof Code.ForAll) {
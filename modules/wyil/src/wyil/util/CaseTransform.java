@@ -0,0 +1,95 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyil.util;
+
+import wybs.lang.Transform;
+import wyil.lang.WyilFile;
+
+/**
+ * <p>
+ * A transform which can be applied to a module one declaration (or method
+ * case) at a time. Such transforms do not need to see the whole module at
+ * once, and can therefore be <i>fused</i> with others of the same kind. That
+ * is, rather than applying each stage in turn to the whole module, every stage
+ * is applied to a given method case before moving on to the next. This means
+ * the intermediate forms of a case produced between stages can be discarded as
+ * soon as the last stage has finished with it.
+ * </p>
+ * 
+ * <p>
+ * For a given module, <code>begin()</code> is called first. If this returns
+ * true, then <code>apply()</code> is called on each type declaration and on
+ * each case of every non-native method declaration. Applying the transform in
+ * this way must have the same effect as calling
+ * <code>apply(WyilFile)</code>.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> a transform which reads declarations other than the one it is
+ * given (e.g. the preconditions of methods it invokes) should not implement
+ * this interface. This is because, when fused, such declarations may or may
+ * not have already passed through later stages, depending on the order in
+ * which modules are processed.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public interface CaseTransform extends Transform<WyilFile> {
+
+	/**
+	 * Prepare to transform the declarations of a given module.
+	 * 
+	 * @param module
+	 *            --- module whose declarations are about to be transformed.
+	 * @return false if this transform will not modify or check the module
+	 *         (e.g. because it is disabled), in which case its declarations
+	 *         are not passed to it.
+	 */
+	public boolean begin(WyilFile module);
+
+	/**
+	 * Apply this transform to a given type declaration.
+	 * 
+	 * @param type
+	 *            --- type declaration to be transformed.
+	 * @return the transformed type declaration, which may be the original.
+	 */
+	public WyilFile.TypeDeclaration apply(WyilFile.TypeDeclaration type)
+			throws Exception;
+
+	/**
+	 * Apply this transform to a given case of a method declaration.
+	 * 
+	 * @param mcase
+	 *            --- method case to be transformed.
+	 * @param method
+	 *            --- enclosing method declaration.
+	 * @return the transformed method case, which may be the original.
+	 */
+	public WyilFile.Case apply(WyilFile.Case mcase,
+			WyilFile.MethodDeclaration method) throws Exception;
+}
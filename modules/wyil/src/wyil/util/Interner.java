@@ -0,0 +1,117 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyil.util;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * <p>
+ * An intern table implements the fly-weight pattern, by mapping each key to a
+ * canonical value. This allows values (e.g. types or bytecodes) to be shared
+ * rather than duplicated, and compared by reference. In many cases, the key
+ * and the value are the same object.
+ * </p>
+ * 
+ * <p>
+ * The table is split into segments, each guarded by its own lock, so that it
+ * can be shared safely between threads compiling in parallel, without them
+ * contending for a single lock. Entries are held weakly, so that values no
+ * longer referenced anywhere else can be garbage collected.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public final class Interner<K, V> {
+	private static final int SEGMENTS = 16;
+
+	private final WeakHashMap<K, WeakReference<V>>[] segments = new WeakHashMap[SEGMENTS];
+
+	public Interner() {
+		for (int i = 0; i != SEGMENTS; ++i) {
+			segments[i] = new WeakHashMap<K, WeakReference<V>>();
+		}
+	}
+
+	/**
+	 * Look for the canonical value associated with a given key.
+	 * 
+	 * @param key
+	 * @return --- the canonical value, or null if there is none.
+	 */
+	public V lookup(K key) {
+		WeakHashMap<K, WeakReference<V>> segment = segment(key);
+		synchronized (segment) {
+			WeakReference<V> ref = segment.get(key);
+			return ref == null ? null : ref.get();
+		}
+	}
+
+	/**
+	 * Return the canonical value associated with a given key. If there is no
+	 * such value, then the given value becomes the canonical value. Observe
+	 * that the value must strongly reference the key, since otherwise the
+	 * entry could be collected whilst the value remained in use.
+	 * 
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public V intern(K key, V value) {
+		WeakHashMap<K, WeakReference<V>> segment = segment(key);
+		synchronized (segment) {
+			WeakReference<V> ref = segment.get(key);
+			V existing = ref == null ? null : ref.get();
+			if (existing != null) {
+				return existing;
+			}
+			segment.put(key, new WeakReference<V>(value));
+			return value;
+		}
+	}
+
+	/**
+	 * Return the number of values currently held in this table.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		int count = 0;
+		for (WeakHashMap<K, WeakReference<V>> segment : segments) {
+			synchronized (segment) {
+				count += segment.size();
+			}
+		}
+		return count;
+	}
+
+	private WeakHashMap<K, WeakReference<V>> segment(K key) {
+		int hashCode = key.hashCode();
+		hashCode ^= (hashCode >>> 16);
+		return segments[hashCode & (SEGMENTS - 1)];
+	}
+}
@@ -68,6 +68,33 @@ public abstract class BackwardFlowAnalysis<T> {
 		}				
 	}
 	
+	/**
+	 * Prepare to propagate through the declarations of a given module one at
+	 * a time, rather than all at once. See {@link wyil.util.CaseTransform}.
+	 * 
+	 * @param module
+	 * @return
+	 */
+	public boolean begin(WyilFile module) {
+		filename = module.filename();
+		return true;
+	}
+	
+	public WyilFile.TypeDeclaration apply(WyilFile.TypeDeclaration type) {
+		return propagate(type);
+	}
+	
+	public WyilFile.Case apply(WyilFile.Case mcase,
+			WyilFile.MethodDeclaration method) {
+		this.method = method;
+		mcase = propagate(mcase);
+		// the stores are not needed once a case is finished with.
+		this.methodCase = null;
+		this.block = null;
+		this.stores = null;
+		return mcase;
+	}
+	
 	protected WyilFile.ConstantDeclaration propagate(WyilFile.ConstantDeclaration constant) {
 		return constant;
 	}
@@ -102,42 +129,26 @@ public abstract class BackwardFlowAnalysis<T> {
 				
 				// First, check for a label which may have incoming information.
 				if (code instanceof Code.LoopEnd) {					
-					Code.Loop loop = null;
 					String label = ((Code.LoopEnd) code).label;
 					// first, save the store since it might be needed for break
 					// statements.
 					stores.put(label,store);
 					// now, identify the loop body.
 					int loopEnd = i;
-					while (--i >= 0) {						
-						stmt = block.get(i);
-						if (stmt.code instanceof Code.Loop) {
-							loop = (Code.Loop) stmt.code;
-							if (label.equals(loop.target)) {
-								// start of loop body found
-								break;
-							}
-						}						
-					}			
+					i = block.graph().start(i);
+					stmt = block.get(i);
+					Code.Loop loop = (Code.Loop) stmt.code;
 					
 					store = propagate(i, loopEnd, loop, stmt, store, handlers);															
 					continue;
 				} else if (code instanceof Code.TryEnd) {					
-					Code.TryCatch tc = null;
 					String label = ((Code.TryEnd) code).label;
 					stores.put(label,store);
 					// now, identify the try-catch body.
 					int tcEnd = i;
-					while (--i >= 0) {						
-						stmt = block.get(i);
-						if (stmt.code instanceof Code.TryCatch) {
-							tc = (Code.TryCatch) stmt.code;
-							if (label.equals(tc.target)) {
-								// start of loop body found
-								break;
-							}
-						}						
-					}			
+					i = block.graph().start(i);
+					stmt = block.get(i);
+					Code.TryCatch tc = (Code.TryCatch) stmt.code;
 					ArrayList<Pair<Type, String>> nhandlers = new ArrayList<Pair<Type, String>>(
 							handlers);
 					nhandlers.addAll(0, tc.catches);					
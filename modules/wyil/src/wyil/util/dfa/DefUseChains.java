@@ -0,0 +1,444 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyil.util.dfa;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+import wybs.util.Pair;
+import wyil.lang.*;
+
+/**
+ * <p>
+ * The def-use chains of a {@link Block}, as determined from its reaching
+ * definitions. A <i>definition</i> is identified by the index of the bytecode
+ * which writes a register, such as an assignable bytecode or a
+ * <code>forall</code> (which writes its index variable). A type test is also
+ * considered to write its operand, since it is retyped on both branches. The
+ * exception variable of a <code>trycatch</code> is also defined by it, but
+ * only on entry to one of its handlers. In addition, every register has a
+ * definition on entry to the block, identified by the size of the block plus
+ * the register. This holds the value of a parameter for an input register,
+ * and an undefined value otherwise.
+ * </p>
+ * 
+ * <p>
+ * Definitions flow along every edge of the control-flow graph (see
+ * {@link Block.Graph}), and into a catch handler from any bytecode which may
+ * throw an exception it catches. Thus, every use of a register which is
+ * reachable from the start of the block has at least one reaching definition.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public final class DefUseChains {
+	private static final int[] EMPTY = new int[0];
+	
+	private final Block.Graph graph;
+	private final int size;
+	private final int[] registers;
+	private final int[][] operands;
+	private final int[][][] reaching;
+	private final int[][] uses;
+	private final BitSet[] kills;
+	private final BitSet[] ins;
+	
+	public DefUseChains(Block block) {
+		this.graph = block.graph();
+		this.size = block.size();
+		int numSlots = block.numSlots();
+		this.registers = new int[size + numSlots];
+		this.operands = new int[size][];
+		this.reaching = new int[size][][];
+		
+		// First, determine the register written and those read by each
+		// bytecode, and which definitions are killed by writing each register.
+		this.kills = new BitSet[numSlots];
+		BitSet entry = new BitSet(size + numSlots);
+		for (int r = 0; r != numSlots; ++r) {
+			kills[r] = new BitSet(size + numSlots);
+			kills[r].set(size + r);
+			entry.set(size + r);
+			registers[size + r] = r;
+		}
+		HashMap<String, Integer> handlers = new HashMap<String, Integer>();
+		for (int i = 0; i != size; ++i) {
+			Code code = block.get(i).code;
+			int r = definition(code);
+			if (r >= 0 && r < numSlots) {
+				kills[r].set(i);
+				registers[i] = r;
+			} else {
+				registers[i] = Code.NULL_REG;
+			}
+			operands[i] = operands(code);
+			if (code instanceof Code.TryCatch) {
+				handlers.put(((Code.TryCatch) code).target, i);
+			}
+		}
+		
+		// Second, compute the reaching definitions for each operand.
+		ReachingDefinitions rd = new ReachingDefinitions(entry, handlers);
+		rd.solve(block, rd.initialStore());
+		this.ins = new BitSet[graph.size()];
+		for (int b = 0; b != ins.length; ++b) {
+			ins[b] = rd.store(graph.first(b));
+		}
+		
+		// Finally, invert these to give the uses of each definition.
+		int[] counts = new int[registers.length];
+		for (int[][] defs : reaching) {
+			if (defs != null) {
+				for (int[] ds : defs) {
+					for (int d : ds) {
+						counts[d]++;
+					}
+				}
+			}
+		}
+		this.uses = new int[registers.length][];
+		for (int d = 0; d != registers.length; ++d) {
+			uses[d] = counts[d] == 0 ? EMPTY : new int[counts[d]];
+			counts[d] = 0;
+		}
+		for (int i = 0; i != size; ++i) {
+			if (reaching[i] != null) {
+				for (int[] ds : reaching[i]) {
+					for (int d : ds) {
+						uses[d][counts[d]++] = i;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Return the number of definitions, which is the size of the block plus
+	 * its number of slots.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return registers.length;
+	}
+	
+	/**
+	 * Return the definition of a given register on entry to the block.
+	 * 
+	 * @param register
+	 * @return
+	 */
+	public int entry(int register) {
+		return size + register;
+	}
+	
+	/**
+	 * Determine whether a given definition is that of a register on entry to
+	 * the block.
+	 * 
+	 * @param definition
+	 * @return
+	 */
+	public boolean isEntry(int definition) {
+		return definition >= size;
+	}
+	
+	/**
+	 * Return the register written by a given definition. If the definition is
+	 * the index of a bytecode which writes no register, then
+	 * <code>Code.NULL_REG</code> is returned.
+	 * 
+	 * @param definition
+	 * @return
+	 */
+	public int register(int definition) {
+		return registers[definition];
+	}
+	
+	/**
+	 * Return the (distinct) registers read by the bytecode at a given index.
+	 * The returned array must not be modified.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public int[] operands(int index) {
+		return operands[index];
+	}
+	
+	/**
+	 * Return the definitions of a given register which reach the bytecode at a
+	 * given index (i.e. which may hold immediately before it). If the bytecode
+	 * is unreachable, then null is returned. This is precomputed for the
+	 * registers read by the bytecode, and the returned array must not be
+	 * modified.
+	 * 
+	 * @param index
+	 * @param register
+	 * @return
+	 */
+	public int[] definitions(int index, int register) {
+		int[][] defs = reaching[index];
+		if (defs == null) {
+			return null;
+		}
+		int[] ops = operands[index];
+		for (int i = 0; i != ops.length; ++i) {
+			if (ops[i] == register) {
+				return defs[i];
+			}
+		}
+		// Otherwise, look for a definition earlier in the same basic block.
+		// Note that a trycatch, which only defines on entry to its handlers,
+		// always ends a basic block.
+		int blk = graph.blockOf(index);
+		for (int i = index - 1; i >= graph.first(blk); --i) {
+			if (registers[i] == register) {
+				return new int[] { i };
+			}
+		}
+		if (register < 0 || register >= kills.length || ins[blk] == null) {
+			return EMPTY;
+		}
+		BitSet ds = (BitSet) ins[blk].clone();
+		ds.and(kills[register]);
+		return toArray(ds);
+	}
+	
+	/**
+	 * Return the indices of the bytecodes which read a given definition. The
+	 * returned array must not be modified.
+	 * 
+	 * @param definition
+	 * @return
+	 */
+	public int[] uses(int definition) {
+		return uses[definition];
+	}
+	
+	/**
+	 * Determine the register written by a given bytecode, or
+	 * <code>Code.NULL_REG</code> if there is none.
+	 * 
+	 * @param code
+	 * @return
+	 */
+	private static int definition(Code code) {
+		if (code instanceof Code.AbstractAssignable) {
+			return ((Code.AbstractAssignable) code).target;
+		} else if (code instanceof Code.ForAll) {
+			return ((Code.ForAll) code).indexOperand;
+		} else if (code instanceof Code.TryCatch) {
+			return ((Code.TryCatch) code).operand;
+		} else if (code instanceof Code.IfIs) {
+			return ((Code.IfIs) code).operand;
+		}
+		return Code.NULL_REG;
+	}
+	
+	/**
+	 * Determine the registers read by a given bytecode.
+	 * 
+	 * @param code
+	 * @return
+	 */
+	private static int[] operands(Code code) {
+		if (code instanceof Code.AbstractUnaryOp) {
+			Code.AbstractUnaryOp c = (Code.AbstractUnaryOp) code;
+			return distinct(c.operand);
+		} else if (code instanceof Code.AbstractUnaryAssignable) {
+			Code.AbstractUnaryAssignable c = (Code.AbstractUnaryAssignable) code;
+			return distinct(c.operand);
+		} else if (code instanceof Code.AbstractBinaryAssignable) {
+			Code.AbstractBinaryAssignable c = (Code.AbstractBinaryAssignable) code;
+			return distinct(c.leftOperand, c.rightOperand);
+		} else if (code instanceof Code.AbstractBinaryOp) {
+			Code.AbstractBinaryOp c = (Code.AbstractBinaryOp) code;
+			return distinct(c.leftOperand, c.rightOperand);
+		} else if (code instanceof Code.Void) {
+			// a void bytecode reads nothing; it only undefines its operands.
+			return EMPTY;
+		} else if (code instanceof Code.AbstractNaryAssignable) {
+			Code.AbstractNaryAssignable c = (Code.AbstractNaryAssignable) code;
+			return distinct(c.operands);
+		} else if (code instanceof Code.AbstractSplitNaryAssignable) {
+			Code.AbstractSplitNaryAssignable c = (Code.AbstractSplitNaryAssignable) code;
+			int[] regs = new int[c.operands.length + 2];
+			System.arraycopy(c.operands, 0, regs, 2, c.operands.length);
+			regs[0] = c.operand;
+			// an update only partially overwrites its target
+			regs[1] = code instanceof Code.Update ? c.target : Code.NULL_REG;
+			return distinct(regs);
+		} else if (code instanceof Code.ForAll) {
+			return distinct(((Code.ForAll) code).sourceOperand);
+		}
+		return EMPTY;
+	}
+	
+	private static int[] distinct(int... regs) {
+		int n = 0;
+		int[] result = new int[regs.length];
+		outer:
+		for (int r : regs) {
+			if (r == Code.NULL_REG) {
+				continue;
+			}
+			for (int i = 0; i != n; ++i) {
+				if (result[i] == r) {
+					continue outer;
+				}
+			}
+			result[n++] = r;
+		}
+		if (n == 0) {
+			return EMPTY;
+		} else if (n != result.length) {
+			int[] tmp = new int[n];
+			System.arraycopy(result, 0, tmp, 0, n);
+			result = tmp;
+		}
+		return result;
+	}
+	
+	private static int[] toArray(BitSet bits) {
+		int[] result = new int[bits.cardinality()];
+		for (int i = bits.nextSetBit(0), j = 0; i >= 0; i = bits
+				.nextSetBit(i + 1)) {
+			result[j++] = i;
+		}
+		return result;
+	}
+	
+	/**
+	 * Determines the definitions reaching each bytecode, where the store is
+	 * the set of definitions which reach a given point. As a side-effect,
+	 * these are recorded for the operands of each bytecode. Since a basic
+	 * block is last propagated through with its final store, the recorded
+	 * definitions are those at the fixed point.
+	 */
+	private final class ReachingDefinitions extends WorklistFlowAnalysis<BitSet> {
+		private final BitSet entry;
+		private final HashMap<String, Integer> handlers;
+		
+		public ReachingDefinitions(BitSet entry,
+				HashMap<String, Integer> handlers) {
+			super(true);
+			this.entry = entry;
+			this.handlers = handlers;
+		}
+		
+		@Override
+		protected BitSet initialStore() {
+			return entry;
+		}
+		
+		@Override
+		protected BitSet transfer(int blk, BitSet store) {
+			for (int i = graph.first(blk); i <= graph.last(blk); ++i) {
+				Code code = block.get(i).code;
+				reach(i, store);
+				
+				if (code instanceof Code.If) {
+					flow(((Code.If) code).target, store);
+				} else if (code instanceof Code.IfIs) {
+					// the operand is retyped on both branches
+					store = define(i, store);
+					flow(((Code.IfIs) code).target, store);
+				} else if (code instanceof Code.Switch) {
+					Code.Switch sw = (Code.Switch) code;
+					for (Pair<Constant, String> p : sw.branches) {
+						flow(p.second(), store);
+					}
+					flow(sw.defaultTarget, store);
+				} else if (code instanceof Code.Goto) {
+					flow(((Code.Goto) code).target, store);
+				} else if (code instanceof Code.ForAll) {
+					store = define(i, store);
+					// the loop may be skipped, or exited once exhausted
+					flow(((Code.ForAll) code).target, store);
+				} else if (code instanceof Code.TryCatch) {
+					// this matches the edges of the control-flow graph, even
+					// though nothing in the try block may actually throw.
+					Code.TryCatch tc = (Code.TryCatch) code;
+					for (Pair<Type, String> p : tc.catches) {
+						flow(p.second(), define(i, store));
+					}
+				} else if (!(code instanceof Code.Loop)) {
+					flowHandlers(i, code, store);
+					store = define(i, store);
+				}
+			}
+			return store;
+		}
+		
+		@Override
+		protected BitSet propagate(Type handler, Code.TryCatch tc, BitSet store) {
+			return define(handlers.get(tc.target), store);
+		}
+		
+		@Override
+		protected BitSet join(BitSet s1, BitSet s2) {
+			BitSet r = (BitSet) s1.clone();
+			r.or(s2);
+			return r;
+		}
+		
+		/**
+		 * Return the store after a given definition.
+		 */
+		private BitSet define(int definition, BitSet store) {
+			int reg = registers[definition];
+			if (reg == Code.NULL_REG) {
+				return store;
+			}
+			BitSet r = (BitSet) store.clone();
+			r.andNot(kills[reg]);
+			r.set(definition);
+			return r;
+		}
+		
+		/**
+		 * Record the definitions reaching the operands of the bytecode at a
+		 * given index.
+		 */
+		private void reach(int index, BitSet store) {
+			int[] ops = operands[index];
+			int[][] defs = new int[ops.length][];
+			for (int i = 0; i != ops.length; ++i) {
+				int r = ops[i];
+				if (r < kills.length) {
+					BitSet ds = (BitSet) store.clone();
+					ds.and(kills[r]);
+					defs[i] = toArray(ds);
+				} else {
+					defs[i] = EMPTY;
+				}
+			}
+			reaching[index] = defs;
+		}
+	}
+}
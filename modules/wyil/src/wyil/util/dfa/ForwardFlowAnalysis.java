@@ -67,6 +67,33 @@ public abstract class ForwardFlowAnalysis<T> {
 		}		
 	}
 	
+	/**
+	 * Prepare to propagate through the declarations of a given module one at
+	 * a time, rather than all at once. See {@link wyil.util.CaseTransform}.
+	 * 
+	 * @param module
+	 * @return
+	 */
+	public boolean begin(WyilFile module) {
+		filename = module.filename();
+		return true;
+	}
+	
+	public WyilFile.TypeDeclaration apply(WyilFile.TypeDeclaration type) {
+		return propagate(type);
+	}
+	
+	public WyilFile.Case apply(WyilFile.Case mcase,
+			WyilFile.MethodDeclaration method) {
+		this.method = method;
+		mcase = propagate(mcase);
+		// the stores are not needed once a case is finished with.
+		this.methodCase = null;
+		this.block = null;
+		this.stores = null;
+		return mcase;
+	}
+	
 	protected WyilFile.ConstantDeclaration propagate(WyilFile.ConstantDeclaration constant) {
 		return constant;
 	}
@@ -117,19 +144,9 @@ public abstract class ForwardFlowAnalysis<T> {
 					continue;
 				} else if (code instanceof Code.Loop) {
 					Code.Loop loop = (Code.Loop) code;
-					Block.Entry nEntry = entry;
 					int s = i;
-					// Note, I could make this more efficient!					
-					while (++i < block.size()) {
-						nEntry = block.get(i);
-						if (nEntry.code instanceof Code.Label) {
-							Code.Label l = (Code.Label) nEntry.code;
-							if (l.label.equals(loop.target)) {
-								// end of loop body found
-								break;
-							}
-						}						
-					}
+					// jump to the end of the loop body
+					i = block.graph().end(i);
 					// propagate through the loop body
 					store = propagate(s, i, loop, entry, store, handlers);
 					// following is needed to ensure branches to exit label
@@ -163,18 +180,8 @@ public abstract class ForwardFlowAnalysis<T> {
 				} else if (code instanceof Code.TryCatch) {
 					Code.TryCatch tc = (Code.TryCatch) code;					
 					int s = i;
-
-					// Note, I could make this more efficient!					
-					while (++i < block.size()) {
-						entry = block.get(i);
-						if (entry.code instanceof Code.Label) {
-							Code.Label l = (Code.Label) entry.code;
-							if (l.label.equals(tc.target)) {
-								// end of loop body found
-								break;
-							}
-						}						
-					}
+					// jump to the end of the try block
+					i = block.graph().end(i);
 					
 					ArrayList<Code.TryCatch> nhandlers = new ArrayList<Code.TryCatch>(handlers);														
 					nhandlers.add(tc);
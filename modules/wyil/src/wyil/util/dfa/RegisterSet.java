@@ -0,0 +1,216 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyil.util.dfa;
+
+import java.util.Arrays;
+
+import wyil.lang.Code;
+
+/**
+ * <p>
+ * An immutable set of registers, represented densely as a bitset. This is
+ * intended as the abstract store for dataflow analyses which track a property
+ * of each register (e.g. whether it is live or definitely assigned). Since
+ * stores are shared freely between basic blocks, every operation which would
+ * change a set returns a new one instead; conversely, any operation which
+ * would leave it unchanged returns the set itself without allocating.
+ * </p>
+ * 
+ * <p>
+ * A set may be given an initial capacity, typically
+ * {@link wyil.lang.Block#numSlots()}, though registers beyond this are still
+ * permitted. The special register <code>Code.NULL_REG</code> (i.e. the target
+ * of a bytecode whose result is discarded) may also be a member, just as it
+ * could be for a <code>Set&lt;Integer&gt;</code>; this is stored in the first
+ * bit, with each other register shifted up by one.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public final class RegisterSet {
+	private static final long[] NO_WORDS = new long[0];
+	
+	private final long[] words;
+	
+	/**
+	 * Construct an empty set with enough capacity for a given number of
+	 * registers.
+	 * 
+	 * @param numSlots
+	 */
+	public RegisterSet(int numSlots) {
+		this.words = numSlots < 0 ? NO_WORDS : new long[(numSlots + 64) >>> 6];
+	}
+	
+	private RegisterSet(long[] words) {
+		this.words = words;
+	}
+	
+	public boolean contains(int register) {
+		int bit = register - Code.NULL_REG;
+		if (bit < 0) {
+			return false;
+		}
+		int w = bit >>> 6;
+		return w < words.length && (words[w] & (1L << bit)) != 0;
+	}
+	
+	public boolean isEmpty() {
+		for (long word : words) {
+			if (word != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Return this set with a given register added.
+	 * 
+	 * @param register
+	 * @return
+	 */
+	public RegisterSet add(int register) {
+		int bit = register - Code.NULL_REG;
+		if (bit < 0 || contains(register)) {
+			return this;
+		}
+		int w = bit >>> 6;
+		long[] nwords = Arrays.copyOf(words, Math.max(words.length, w + 1));
+		nwords[w] |= 1L << bit;
+		return new RegisterSet(nwords);
+	}
+	
+	/**
+	 * Return this set with a given register removed.
+	 * 
+	 * @param register
+	 * @return
+	 */
+	public RegisterSet remove(int register) {
+		if (!contains(register)) {
+			return this;
+		}
+		int bit = register - Code.NULL_REG;
+		long[] nwords = words.clone();
+		nwords[bit >>> 6] &= ~(1L << bit);
+		return new RegisterSet(nwords);
+	}
+	
+	/**
+	 * Determine whether every register in this set is also in another.
+	 * 
+	 * @param rs
+	 * @return
+	 */
+	public boolean subsetOf(RegisterSet rs) {
+		long[] lhs = words;
+		long[] rhs = rs.words;
+		for (int i = 0; i != lhs.length; ++i) {
+			long r = i < rhs.length ? rhs[i] : 0;
+			if ((lhs[i] & ~r) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Return the union of this set and another. If either contains the other,
+	 * then that is returned as is.
+	 * 
+	 * @param rs
+	 * @return
+	 */
+	public RegisterSet union(RegisterSet rs) {
+		if (rs.subsetOf(this)) {
+			return this;
+		} else if (subsetOf(rs)) {
+			return rs;
+		}
+		long[] lhs = words.length >= rs.words.length ? words : rs.words;
+		long[] rhs = lhs == words ? rs.words : words;
+		long[] nwords = lhs.clone();
+		for (int i = 0; i != rhs.length; ++i) {
+			nwords[i] |= rhs[i];
+		}
+		return new RegisterSet(nwords);
+	}
+	
+	/**
+	 * Return the intersection of this set and another. If either is contained
+	 * in the other, then that is returned as is.
+	 * 
+	 * @param rs
+	 * @return
+	 */
+	public RegisterSet intersect(RegisterSet rs) {
+		if (subsetOf(rs)) {
+			return this;
+		} else if (rs.subsetOf(this)) {
+			return rs;
+		}
+		long[] nwords = new long[Math.min(words.length, rs.words.length)];
+		for (int i = 0; i != nwords.length; ++i) {
+			nwords[i] = words[i] & rs.words[i];
+		}
+		return new RegisterSet(nwords);
+	}
+	
+	public boolean equals(Object o) {
+		if (o instanceof RegisterSet) {
+			RegisterSet rs = (RegisterSet) o;
+			return rs == this || (subsetOf(rs) && rs.subsetOf(this));
+		}
+		return false;
+	}
+	
+	public int hashCode() {
+		// NOTE: trailing zero words must not affect the hash code, since sets
+		// of differing capacities may be equal.
+		long h = 1234;
+		for (int i = words.length; --i >= 0;) {
+			h ^= words[i] * (i + 1);
+		}
+		return (int) ((h >> 32) ^ h);
+	}
+	
+	public String toString() {
+		StringBuilder r = new StringBuilder("{");
+		boolean firstTime = true;
+		for (int i = Code.NULL_REG; i != (words.length * 64) + Code.NULL_REG; ++i) {
+			if (contains(i)) {
+				if (!firstTime) {
+					r.append(", ");
+				}
+				firstTime = false;
+				r.append(i);
+			}
+		}
+		return r.append("}").toString();
+	}
+}
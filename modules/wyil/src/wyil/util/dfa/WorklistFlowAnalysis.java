@@ -0,0 +1,578 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyil.util.dfa;
+
+import static wybs.lang.SyntaxError.internalFailure;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import wybs.lang.SyntaxError;
+import wybs.util.Pair;
+import wyil.lang.*;
+
+/**
+ * <p>
+ * A generic dataflow analysis which operates over the basic blocks of a
+ * {@link Block}, rather than recursively over its bytecodes. Basic blocks are
+ * held on a worklist and processed in reverse postorder (or postorder, for a
+ * backwards analysis), and a basic block is only revisited when the store
+ * flowing into it changes. Thus, a loop body is no longer re-propagated in its
+ * entirety for every iteration of every enclosing loop.
+ * </p>
+ * 
+ * <p>
+ * Subclasses implement a transfer function for an entire basic block. In a
+ * forwards analysis, this is given the store which holds on entry to the basic
+ * block. Any branches are propagated explicitly using <code>flow()</code>,
+ * whilst the store returned is that which holds if execution continues on
+ * normally from the last bytecode. In a backwards analysis, this is given the
+ * store which holds after the last bytecode if execution continues on normally
+ * and the stores of any branch targets are read using <code>store()</code>.
+ * The store returned is that which holds on entry to the basic block.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> stores are compared using <code>equals()</code> to determine
+ * whether a fixed point has been reached, and must not be modified once they
+ * have been passed to or returned from the transfer function.
+ * </p>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public abstract class WorklistFlowAnalysis<T> {
+	protected String filename;
+	protected WyilFile.MethodDeclaration method;
+	protected WyilFile.Case methodCase;
+	protected Block block;
+	protected Block.Graph graph;
+	
+	private final boolean forwards;
+	private ArrayList<T> stores;
+	private int[] visits;
+	private int[] order;
+	private int[] positions;
+	private BitSet worklist;
+	private T exit;
+	
+	/**
+	 * For a backwards analysis, identifies the basic blocks which may read the
+	 * store of each catch handler. That is, those containing a bytecode which
+	 * may throw an exception caught by the handler (see
+	 * <code>joinHandlers()</code>), along with that containing the trycatch
+	 * bytecode itself. This is null for basic blocks which are not catch
+	 * handlers.
+	 */
+	private BitSet[] readers;
+	
+	protected WorklistFlowAnalysis(boolean forwards) {
+		this.forwards = forwards;
+	}
+	
+	public void apply(WyilFile module) {			
+		filename = module.filename();
+		
+		for(WyilFile.Declaration d : module.declarations()) {
+			if(d instanceof WyilFile.ConstantDeclaration) {
+				WyilFile.ConstantDeclaration cd = (WyilFile.ConstantDeclaration) d; 
+				module.replace(cd,propagate((cd)));
+			} else if(d instanceof WyilFile.TypeDeclaration) {
+				WyilFile.TypeDeclaration td = (WyilFile.TypeDeclaration) d;
+				module.replace(td,propagate(td));	
+			} else if(d instanceof WyilFile.MethodDeclaration) {
+				WyilFile.MethodDeclaration md = (WyilFile.MethodDeclaration) d;
+				if(!md.isNative()) {
+					// native functions/methods don't have bodies
+					module.replace(md,propagate(md));
+				}
+			}
+		}		
+	}
+	
+	/**
+	 * Prepare to propagate through the declarations of a given module one at
+	 * a time, rather than all at once. See {@link wyil.util.CaseTransform}.
+	 * 
+	 * @param module
+	 * @return
+	 */
+	public boolean begin(WyilFile module) {
+		filename = module.filename();
+		return true;
+	}
+	
+	public WyilFile.TypeDeclaration apply(WyilFile.TypeDeclaration type) {
+		return propagate(type);
+	}
+	
+	public WyilFile.Case apply(WyilFile.Case mcase,
+			WyilFile.MethodDeclaration method) {
+		this.method = method;
+		mcase = propagate(mcase);
+		// the stores are not needed once a case is finished with.
+		this.methodCase = null;
+		this.block = null;
+		this.graph = null;
+		this.stores = null;
+		this.readers = null;
+		return mcase;
+	}
+	
+	protected WyilFile.ConstantDeclaration propagate(WyilFile.ConstantDeclaration constant) {
+		return constant;
+	}
+	
+	protected WyilFile.TypeDeclaration propagate(WyilFile.TypeDeclaration type) {
+		return type;
+	}
+	
+	protected WyilFile.MethodDeclaration propagate(WyilFile.MethodDeclaration method) {
+		this.method = method;
+		ArrayList<WyilFile.Case> cases = new ArrayList<WyilFile.Case>();
+		for (WyilFile.Case c : method.cases()) {
+			cases.add(propagate(c));
+		}
+		return new WyilFile.MethodDeclaration(method.modifiers(), method.name(), method.type(), cases);
+	}
+	
+	protected WyilFile.Case propagate(WyilFile.Case mcase) {
+		this.methodCase = mcase;
+		solve(mcase.body(), initialStore());
+		return mcase;
+	}
+	
+	// ===================================================================
+	// Solver
+	// ===================================================================
+	
+	/**
+	 * Propagate through a given block until a fixed point is reached.
+	 * 
+	 * @param block
+	 *            --- the block to propagate through.
+	 * @param store
+	 *            --- the store holding on entry to the block for a forwards
+	 *            analysis, or on exit from the block for a backwards analysis.
+	 */
+	protected void solve(Block block, T store) {
+		this.block = block;
+		this.graph = block.graph();
+		int size = graph.size();
+		this.stores = new ArrayList<T>(size);
+		for (int i = 0; i != size; ++i) {
+			stores.add(null);
+		}
+		this.visits = new int[size];
+		this.worklist = new BitSet(size);
+		this.readers = forwards ? null : readers();
+		order();
+		
+		if (size == 0) {
+			return;
+		} else if (forwards) {
+			exit = null;
+			flow(0, store);
+		} else {
+			exit = store;
+			worklist.set(0, size);
+		}
+		
+		for (int p = worklist.nextSetBit(0); p >= 0; p = worklist
+				.nextSetBit(0)) {
+			worklist.clear(p);
+			int b = order[p];
+			int last = graph.last(b);
+			try {
+				if (forwards) {
+					T out = transfer(b, stores.get(b));
+					int next = graph.next(last);
+					if (out != null && next >= 0) {
+						flow(next, out);
+					}
+				} else {
+					int next = graph.next(last);
+					T out = next >= 0 ? store(next) : null;
+					update(b, transfer(b, out));
+				}
+			} catch (SyntaxError se) {
+				throw se;
+			} catch (Throwable ex) {
+				internalFailure("internal failure", filename,
+						block.get(graph.first(b)), ex);
+			}
+		}
+	}
+	
+	/**
+	 * Propagate a store into the basic block starting at a given index. This
+	 * is used by a forwards analysis for branches.
+	 * 
+	 * @param index
+	 *            --- index of the first bytecode in the target basic block.
+	 * @param store
+	 */
+	protected void flow(int index, T store) {
+		if (store == null || index < 0 || index >= block.size()) {
+			return;
+		}
+		int b = graph.blockOf(index);
+		T old = stores.get(b);
+		update(b, old == null ? store : join(old, store));
+	}
+	
+	/**
+	 * Propagate a store into the basic block starting at a given label.
+	 * 
+	 * @param label
+	 * @param store
+	 */
+	protected void flow(String label, T store) {
+		flow(graph.indexOf(label), store);
+	}
+	
+	/**
+	 * Return the store currently known for the basic block starting at a given
+	 * index. For a forwards analysis, this is the store on entry to the basic
+	 * block; for a backwards analysis it is that computed for the start of the
+	 * basic block, or the exit store if the index is the size of the block.
+	 * This is null if no store is known yet.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	protected T store(int index) {
+		if (index < 0) {
+			return null;
+		} else if (index >= block.size()) {
+			return exit;
+		}
+		return stores.get(graph.blockOf(index));
+	}
+	
+	/**
+	 * Return the store currently known for the basic block starting at a given
+	 * label.
+	 * 
+	 * @param label
+	 * @return
+	 */
+	protected T store(String label) {
+		int index = graph.indexOf(label);
+		return index < 0 ? null : store(index);
+	}
+	
+	/**
+	 * Determine the try-catch handlers which are active at a given index,
+	 * with the outermost first.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	protected List<Code.TryCatch> handlers(int index) {
+		ArrayList<Code.TryCatch> handlers = new ArrayList<Code.TryCatch>();
+		for (int p = graph.parent(index); p >= 0; p = graph.parent(p)) {
+			Code code = block.get(p).code;
+			if (code instanceof Code.TryCatch) {
+				handlers.add(0, (Code.TryCatch) code);
+			}
+		}
+		return handlers;
+	}
+	
+	/**
+	 * For a forwards analysis, propagate a store into the catch handlers
+	 * which may be reached by an exception thrown from the bytecode at a
+	 * given index.
+	 * 
+	 * @param index
+	 * @param code
+	 * @param store
+	 *            --- store immediately before the bytecode.
+	 */
+	protected void flowHandlers(int index, Code code, T store) {
+		Type type = thrown(code);
+		if (type == null) {
+			return;
+		}
+		List<Code.TryCatch> handlers = handlers(index);
+		for (int i = handlers.size() - 1; i >= 0; --i) {
+			Code.TryCatch tc = handlers.get(i);
+			for (Pair<Type, String> p : tc.catches) {
+				Type handler = p.first();
+				if (Type.isSubtype(handler, type)) {
+					flow(p.second(), propagate(handler, tc, store));
+					return; // completely subsumed
+				} else if (Type.isSubtype(type, handler)) {
+					flow(p.second(), propagate(handler, tc, store));
+					// not completely subsumed
+					type = Type.intersect(type, Type.Negation(handler));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * For a backwards analysis, join a store with those of the catch handlers
+	 * which may be reached by an exception thrown from the bytecode at a
+	 * given index.
+	 * 
+	 * @param index
+	 * @param code
+	 * @param store
+	 *            --- store immediately before the bytecode.
+	 * @return
+	 */
+	protected T joinHandlers(int index, Code code, T store) {
+		Type type = thrown(code);
+		if (type == null) {
+			return store;
+		}
+		List<Code.TryCatch> handlers = handlers(index);
+		for (int i = handlers.size() - 1; i >= 0; --i) {
+			for (Pair<Type, String> p : handlers.get(i).catches) {
+				Type handler = p.first();
+				T exceptionStore = store(p.second());
+				if (exceptionStore == null) {
+					continue;
+				} else if (Type.isSubtype(handler, type)) {
+					return propagate(handler, store, exceptionStore);
+				} else if (Type.isSubtype(type, handler)) {
+					store = propagate(handler, store, exceptionStore);
+					// not completely subsumed
+					type = Type.intersect(type, Type.Negation(handler));
+				}
+			}
+		}
+		return store;
+	}
+	
+	private static Type thrown(Code code) {
+		if (code instanceof Code.Throw) {
+			return ((Code.Throw) code).type;
+		} else if (code instanceof Code.IndirectInvoke) {
+			return ((Code.IndirectInvoke) code).type.throwsClause();
+		} else if (code instanceof Code.Invoke) {
+			return ((Code.Invoke) code).type.throwsClause();
+		}
+		return null;
+	}
+	
+	private void update(int b, T store) {
+		T old = stores.get(b);
+		if (store == null || store.equals(old)) {
+			return;
+		}
+		visits[b]++;
+		if (old != null) {
+			store = widen(b, old, store, visits[b]);
+		}
+		stores.set(b, store);
+		if (forwards) {
+			worklist.set(positions[b]);
+		} else {
+			for (int p : graph.predecessors(b)) {
+				worklist.set(positions[p]);
+			}
+			// The bytecodes covered by a catch handler are not predecessors
+			// of its basic block, yet their stores depend upon it.
+			BitSet rs = readers[b];
+			if (rs != null) {
+				for (int r = rs.nextSetBit(0); r >= 0; r = rs.nextSetBit(r + 1)) {
+					worklist.set(positions[r]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Determine the basic blocks which read the store of each catch handler
+	 * in a backwards analysis.
+	 * 
+	 * @return
+	 */
+	private BitSet[] readers() {
+		BitSet[] readers = new BitSet[graph.size()];
+		for (int i = 0; i != block.size(); ++i) {
+			Code code = block.get(i).code;
+			List<Code.TryCatch> handlers;
+			if (code instanceof Code.TryCatch) {
+				handlers = new ArrayList<Code.TryCatch>();
+				handlers.add((Code.TryCatch) code);
+			} else if (thrown(code) != null) {
+				handlers = handlers(i);
+			} else {
+				continue;
+			}
+			for (Code.TryCatch tc : handlers) {
+				for (Pair<Type, String> p : tc.catches) {
+					int index = graph.indexOf(p.second());
+					if (index < 0) {
+						continue;
+					}
+					int hb = graph.blockOf(index);
+					if (readers[hb] == null) {
+						readers[hb] = new BitSet();
+					}
+					readers[hb].set(graph.blockOf(i));
+				}
+			}
+		}
+		return readers;
+	}
+	
+	/**
+	 * Order the basic blocks in reverse postorder for a forwards analysis, or
+	 * postorder for a backwards analysis. Those unreachable from the entry
+	 * come last.
+	 */
+	private void order() {
+		int size = graph.size();
+		order = new int[size];
+		positions = new int[size];
+		BitSet visited = new BitSet(size);
+		int[] stack = new int[size];
+		int[] edges = new int[size];
+		int n = 0;
+		for (int root = 0; root < size; root = visited.nextClearBit(root)) {
+			int start = n;
+			int depth = 0;
+			stack[depth++] = root;
+			visited.set(root);
+			while (depth > 0) {
+				int b = stack[depth - 1];
+				int[] succs = graph.successors(b);
+				if (edges[b] < succs.length) {
+					int s = succs[edges[b]++];
+					if (!visited.get(s)) {
+						visited.set(s);
+						stack[depth++] = s;
+					}
+				} else {
+					depth = depth - 1;
+					order[n++] = b;
+				}
+			}
+			if (forwards) {
+				// reverse each tree separately, so that those blocks which
+				// are unreachable still come last.
+				for (int i = start, j = n - 1; i < j; ++i, --j) {
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j] = tmp;
+				}
+			}
+		}
+		for (int i = 0; i != size; ++i) {
+			positions[order[i]] = i;
+		}
+	}
+	
+	// =========================================================================
+	// Abstract Methods
+	// =========================================================================
+	
+	/**
+	 * Determine the store on entry to the current method case for a forwards
+	 * analysis, or on exit from it for a backwards analysis.
+	 * 
+	 * @return
+	 */
+	protected abstract T initialStore();
+	
+	/**
+	 * Propagate through a basic block.
+	 * 
+	 * @param block
+	 *            --- the basic block being propagated through.
+	 * @param store
+	 *            --- the store on entry to the basic block for a forwards
+	 *            analysis, or after its last bytecode for a backwards analysis
+	 *            (which may be null).
+	 * @return
+	 */
+	protected abstract T transfer(int block, T store);
+	
+	/**
+	 * Join two abstract stores together producing a new abstract store. Observe
+	 * that this operation must not side-effect the two input stores.
+	 * 
+	 * @param store1
+	 * @param store2
+	 * @return
+	 */
+	protected abstract T join(T store1, T store2);
+	
+	/**
+	 * Widen the store for a basic block which has changed once again. This is
+	 * necessary to ensure termination of an analysis whose abstract domain has
+	 * infinite ascending chains. By default, no widening is performed.
+	 * 
+	 * @param block
+	 *            --- the basic block whose store has changed.
+	 * @param old
+	 *            --- the previous store for the basic block.
+	 * @param store
+	 *            --- the new store for the basic block.
+	 * @param visits
+	 *            --- the number of times this store has changed.
+	 * @return
+	 */
+	protected T widen(int block, T old, T store, int visits) {
+		return store;
+	}
+	
+	/**
+	 * Propagate an exception into a catch handler, for a forwards analysis.
+	 * 
+	 * @param handler
+	 *            --- type of handler catching exception
+	 * @param tc
+	 *            --- the code of the enclosing try-catch handler
+	 * @param store
+	 *            --- store immediately before cause
+	 * @return
+	 */
+	protected T propagate(Type handler, Code.TryCatch tc, T store) {
+		return store;
+	}
+	
+	/**
+	 * Propagate back from a catch handler, for a backwards analysis.
+	 * 
+	 * @param handler
+	 *            --- type of handler catching exception
+	 * @param normal
+	 *            --- store after the cause, if no exception is thrown
+	 * @param exceptional
+	 *            --- store at the start of the handler
+	 * @return
+	 */
+	protected T propagate(Type handler, T normal, T exceptional) {
+		return join(normal, exceptional);
+	}
+}
@@ -38,6 +38,7 @@ import wybs.lang.NameSpace;
 import wybs.lang.Path;
 import wybs.lang.SyntaxError;
 import wybs.util.Pair;
+import wybs.util.Tracer;
 import static wybs.lang.SyntaxError.*;
 import wyautl.util.BigRational;
 import wyil.lang.*;
@@ -66,6 +67,7 @@ import static wyjvm.lang.JvmTypes.*;
 public class Wyil2JavaBuilder implements Builder {
 	private static int CLASS_VERSION = 49;
 	private Logger logger = Logger.NULL;
+	private Tracer tracer = Tracer.NULL;
 	protected String filename;
 	protected JvmType.Clazz owner;
 	
@@ -73,6 +75,10 @@ public class Wyil2JavaBuilder implements Builder {
 		this.logger = logger;
 	}
 	
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer;
+	}
+	
 	public NameSpace namespace() {
 		return null; // TODO: this seems like a mistake in Builder ?
 	}
@@ -92,10 +98,17 @@ public class Wyil2JavaBuilder implements Builder {
 			if(f.contentType() == ClassFile.ContentType) {
 				Path.Entry<WyilFile> sf = (Path.Entry<WyilFile>) p.first();
 				Path.Entry<ClassFile> df = (Path.Entry<ClassFile>) f;
-				ClassFile contents = build(sf.read());
+				Tracer.Span span = tracer.start("translate", "wyil => java",
+						sf.id().toString());
+				ClassFile contents;
+				try {
+					contents = build(sf.read());
 						
-				// validate generated bytecode
-				new Validation().apply(contents);
+					// validate generated bytecode
+					new Validation().apply(contents);
+				} finally {
+					span.end();
+				}
 				
 				// FIXME: deadCode elimination is currently unsafe because the
 				// LineNumberTable and Exceptions attributes do not deal with rewrites
@@ -53,6 +53,11 @@ public class WyjcMain extends WycMain {
 	public WyjcMain(WyjcBuildTask builder, OptArg[] options) {
 		super(builder, options);
 	}
+	
+	@Override
+	protected WycMain newInstance() {
+		return new WyjcMain(new WyjcBuildTask(), options);
+	}
 
 	@Override
 	public void configure(Map<String, Object> values) throws IOException {
@@ -150,6 +150,7 @@ public class RuntimeValidTests extends TestHarness {
  @Test public void For_Valid_11_RuntimeTest() { runTest("For_Valid_11"); }
  @Test public void For_Valid_12_RuntimeTest() { runTest("For_Valid_12"); }
  @Test public void For_Valid_13_RuntimeTest() { runTest("For_Valid_13"); }
+ @Test public void For_Valid_14_RuntimeTest() { runTest("For_Valid_14"); }
  @Test public void Function_Valid_1_RuntimeTest() { runTest("Function_Valid_1"); }
  @Test public void Function_Valid_2_RuntimeTest() { runTest("Function_Valid_2"); }
  @Test public void Function_Valid_3_RuntimeTest() { runTest("Function_Valid_3"); }
@@ -160,6 +161,9 @@ public class RuntimeValidTests extends TestHarness {
  @Test public void Function_Valid_9_RuntimeTest() { runTest("Function_Valid_9"); }
  @Test public void Function_Valid_10_RuntimeTest() { runTest("Function_Valid_10"); } 
  @Test public void Function_Valid_12_RuntimeTest() { runTest("Function_Valid_12"); }
+ @Test public void Function_Valid_14_RuntimeTest() { runTest("Function_Valid_14"); }
+ @Test public void Function_Valid_15_RuntimeTest() { runTest("Function_Valid_15"); }
+ @Test public void Function_Valid_16_RuntimeTest() { runTest("Function_Valid_16"); }
  @Test public void FunctionRef_Valid_1_RuntimeTest() { runTest("FunctionRef_Valid_1"); }
  @Ignore("Known Issue") @Test public void FunctionRef_Valid_2_RuntimeTest() { runTest("FunctionRef_Valid_2"); }
  @Ignore("Known Issue") @Test public void FunctionRef_Valid_3_RuntimeTest() { runTest("FunctionRef_Valid_3"); }
@@ -175,6 +179,7 @@ public class RuntimeValidTests extends TestHarness {
  @Test public void IfElse_Valid_2_RuntimeTest() { runTest("IfElse_Valid_2"); }
  @Test public void IfElse_Valid_3_RuntimeTest() { runTest("IfElse_Valid_3"); }
  @Test public void IfElse_Valid_4_RuntimeTest() { runTest("IfElse_Valid_4"); }
+ @Test public void IfElse_Valid_5_RuntimeTest() { runTest("IfElse_Valid_5"); }
  @Test public void Import_Valid_1_RuntimeTest() { runTest("Import_Valid_1"); }
  @Test public void Import_Valid_2_RuntimeTest() { runTest("Import_Valid_2"); } 
  @Test public void Import_Valid_3_RuntimeTest() { runTest("Import_Valid_3"); }
@@ -401,11 +406,14 @@ public class RuntimeValidTests extends TestHarness {
  @Test public void Switch_Valid_8_RuntimeTest() { runTest("Switch_Valid_8"); }
  @Test public void Switch_Valid_9_RuntimeTest() { runTest("Switch_Valid_9"); }
  @Ignore("Known Issue") @Test public void Switch_Valid_10_RuntimeTest() { runTest("Switch_Valid_10"); }
+ @Test public void Switch_Valid_11_RuntimeTest() { runTest("Switch_Valid_11"); }
  @Test public void Syntax_Valid_1_RuntimeTest() { runTest("Syntax_Valid_1"); }
  @Test public void TryCatch_Valid_1_RuntimeTest() { runTest("TryCatch_Valid_1"); }
  @Test public void TryCatch_Valid_2_RuntimeTest() { runTest("TryCatch_Valid_2"); }
  @Test public void TryCatch_Valid_3_RuntimeTest() { runTest("TryCatch_Valid_3"); }
  @Test public void TryCatch_Valid_4_RuntimeTest() { runTest("TryCatch_Valid_4"); }
+ @Test public void TryCatch_Valid_5_RuntimeTest() { runTest("TryCatch_Valid_5"); }
+ @Test public void TryCatch_Valid_6_RuntimeTest() { runTest("TryCatch_Valid_6"); }
  @Test public void TupleType_Valid_1_RuntimeTest() { runTest("TupleType_Valid_1"); }
  @Test public void TupleType_Valid_2_RuntimeTest() { runTest("TupleType_Valid_2"); }
  @Test public void TupleType_Valid_3_RuntimeTest() { runTest("TupleType_Valid_3"); }
@@ -455,6 +463,7 @@ public class RuntimeValidTests extends TestHarness {
  @Test public void TypeEquals_Valid_36_RuntimeTest() { runTest("TypeEquals_Valid_36"); }
  @Test public void TypeEquals_Valid_37_RuntimeTest() { runTest("TypeEquals_Valid_37"); }
  @Test public void TypeEquals_Valid_38_RuntimeTest() { runTest("TypeEquals_Valid_38"); }
+ @Test public void TypeEquals_Valid_39_RuntimeTest() { runTest("TypeEquals_Valid_39"); }
  @Ignore("Known Issue") @Test public void Update_Valid_1_RuntimeTest() { runTest("Update_Valid_1"); }
  @Ignore("Known Issue") @Test public void Update_Valid_2_RuntimeTest() { runTest("Update_Valid_2"); }
  @Test public void UnionType_Valid_1_RuntimeTest() { runTest("UnionType_Valid_1"); }
@@ -487,4 +496,5 @@ public class RuntimeValidTests extends TestHarness {
  @Test public void While_Valid_8_RuntimeTest() { runTest("While_Valid_8"); }
  @Test public void While_Valid_9_RuntimeTest() { runTest("While_Valid_9"); }
  @Test public void While_Valid_10_RuntimeTest() { runTest("While_Valid_10"); }
+ @Test public void While_Valid_11_RuntimeTest() { runTest("While_Valid_11"); }
 }
@@ -8,6 +8,7 @@ import java.util.List;
 import wybs.lang.Content;
 import wybs.lang.Logger;
 import wybs.lang.Path;
+import wybs.util.BuildManifest;
 import wybs.util.DirectoryRoot;
 import wybs.util.StandardProject;
 import wybs.util.StandardBuildRule;
@@ -57,6 +58,18 @@ public class WyjcBuildTask extends wyc.util.WycBuildTask {
 	 */
 	protected DirectoryRoot classDir;
 	
+	/**
+	 * The manifest records a content hash for every class file built, and is
+	 * used to avoid rebuilding class files which are already up-to-date.
+	 */
+	protected BuildManifest classManifest;
+	
+	/**
+	 * The name of the file in the class directory in which the class manifest
+	 * is stored.
+	 */
+	public static final String CLASS_MANIFEST = ".classmanifest";
+	
 	public WyjcBuildTask() {
 		super(new Registry());
 	}
@@ -89,7 +102,7 @@ public class WyjcBuildTask extends wyc.util.WycBuildTask {
 	}
 		
 	@Override
-	protected void addBuildRules(StandardProject project) {
+	protected void addBuildRules(StandardProject project) throws IOException {
 		// Add default build rule for converting whiley files into wyil files. 
 		super.addBuildRules(project);
 		
@@ -97,15 +110,21 @@ public class WyjcBuildTask extends wyc.util.WycBuildTask {
 		// the Wyil2JavaBuilder.
 		
 		Wyil2JavaBuilder jbuilder = new Wyil2JavaBuilder();
+		jbuilder.setTracer(tracer);
 
 		if (verbose) {
-			jbuilder.setLogger(new Logger.Default(System.err));
+			jbuilder.setLogger(new Logger.Default(logout));
 		}
 
 		StandardBuildRule rule = new StandardBuildRule(jbuilder);
 		
 		rule.add(wyilDir, wyilIncludes, wyilExcludes, classDir,
 				WyilFile.ContentType, ClassFile.ContentType);
+		
+		classManifest = createManifest(classDir, CLASS_MANIFEST,
+				configuration(jbuilder.getClass().getName()));
+		rule.setManifest(classManifest);
+		rule.setDependencyIndex(dependencies);
 
 		project.add(rule);
 	}
@@ -128,6 +147,9 @@ public class WyjcBuildTask extends wyc.util.WycBuildTask {
 	protected void flush() throws IOException {
 		super.flush();
 		classDir.flush();
+		if (classManifest != null) {
+			classManifest.write();
+		}
 	}
 }		
 
@@ -337,6 +337,7 @@ public class Code implements BytecodeAttribute {
 				a.write(attrbout, constantPool, loader);
 			}
 		}
+		attrbout.flush();
 		byte[] attrbytes = bout.toByteArray();
 		
 		// === WRITE CODE ATTRIBUTE ===		
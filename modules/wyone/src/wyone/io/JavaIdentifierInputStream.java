@@ -53,9 +53,17 @@ public class JavaIdentifierInputStream extends InputStream {
 	}
 
 	public int read() throws IOException {
+		if(count == 0 && index == identifier.length()) {
+			return -1; // end of stream
+		}
 		int value = 0;
 		int mask = 1;
 		for(int i=0;i!=8;++i) {
+			if(count == 0 && index == identifier.length()) {
+				// The final character may encode only part of a byte, in
+				// which case the remaining bits are taken as zero.
+				break;
+			}
 			if(read_bit()) {
 				value |= mask;
 			}